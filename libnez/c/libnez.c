@@ -109,38 +109,108 @@ char *loadFile(const char *filename, size_t *length) {
   return source;
 }
 
+void nez_InitArena(Arena arena) {
+  arena->top = arena->end = NULL;
+  arena->chunk = NULL;
+  arena->used = 0;
+}
+
+void *nez_ArenaGrow(Arena arena, size_t size) {
+  size_t csize = ARENA_CHUNK_SIZE;
+  if(arena->chunk != NULL) {
+    arena->used += arena->top - (char *)(arena->chunk + 1);
+    csize = arena->chunk->size * 2;
+  }
+  while(csize < size + sizeof(struct ArenaChunk)) {
+    csize *= 2;
+  }
+  struct ArenaChunk *c = (struct ArenaChunk *)malloc(csize);
+  if(c == NULL) {
+    nez_PrintErrorInfo("arena: out of memory");
+  }
+  c->prev = arena->chunk;
+  c->size = csize;
+  arena->chunk = c;
+  arena->top = (char *)(c + 1) + size;
+  arena->end = (char *)c + csize;
+  return (char *)(c + 1);
+}
+
+/* frees all but the last (largest) chunk, which is reused */
+void nez_ResetArena(Arena arena) {
+  struct ArenaChunk *c = arena->chunk;
+  if(c != NULL) {
+    struct ArenaChunk *prev = c->prev;
+    while(prev != NULL) {
+      struct ArenaChunk *p = prev->prev;
+      free(prev);
+      prev = p;
+    }
+    c->prev = NULL;
+    arena->top = (char *)(c + 1);
+  }
+  arena->used = 0;
+}
+
+void nez_DisposeArena(Arena arena) {
+  nez_ResetArena(arena);
+  free(arena->chunk);
+  nez_InitArena(arena);
+}
+
+size_t nez_ArenaUsed(Arena arena) {
+  if(arena->chunk == NULL) {
+    return 0;
+  }
+  return arena->used + (arena->top - (char *)(arena->chunk + 1));
+}
+
 ParsingContext nez_CreateParsingContext(const char *filename) {
-  ParsingContext ctx = (ParsingContext)malloc(sizeof(struct ParsingContext));
+  ParsingContext ctx = (ParsingContext)calloc(1, sizeof(struct ParsingContext));
   ctx->pos = ctx->input_size = 0;
   ctx->inputs = loadFile(filename, &ctx->input_size);
   ctx->cur = ctx->inputs;
   ctx->choiceCount = 0;
+  nez_InitArena(&ctx->arena);
   return ctx;
 }
 
-void nez_DisposeParsingContext(ParsingContext ctx) {
-  free(ctx->inputs);
-  free(ctx);
+/* frees the trees and logs of the last parse, and clears the memo table */
+void nez_ResetParsingContext(ParsingContext ctx) {
+  nez_ResetArena(&ctx->arena);
+  ctx->pos = 0;
+  ctx->cur = ctx->inputs;
+  ctx->left = NULL;
+  ctx->logStack = NULL;
+  ctx->logStackSize = 0;
+  ctx->unusedLog = NULL;
+  if(ctx->flags != NULL) {
+    memset(ctx->flags, 0, sizeof(int) * ctx->flags_size);
+  }
+  if(ctx->memo_table != NULL) {
+    struct MemoTable *t = ctx->memo_table;
+    for(size_t i = 0; i < t->size; i++) {
+      t->memoArray[i].key = -1;
+    }
+    t->memoHit = t->memoMiss = t->memoStored = 0;
+  }
 }
 
-void nez_DisposeObject(ParsingObject pego) {
-  ParsingObject *child;
-  assert(pego != NULL);
-  child = pego->child;
-  pego->child = NULL;
-  if (child) {
-    int child_size = pego->child_size;
-    for (int i = 0; i < child_size; i++) {
-      nez_DisposeObject(child[i]);
-    }
-    free(child);
+void nez_DisposeParsingContext(ParsingContext ctx) {
+  nez_DisposeArena(&ctx->arena);
+  if(ctx->memo_table != NULL) {
+    free(ctx->memo_table->memoArray);
+    free(ctx->memo_table);
   }
+  free(ctx->flags);
+  free(ctx->inputs);
+  free(ctx);
 }
 
 ParsingLog nez_newLog(ParsingContext ctx) {
   ParsingLog l;
   if(ctx->unusedLog == NULL) {
-    l = (ParsingLog)malloc(sizeof(struct ParsingLog));
+    l = (ParsingLog)nez_ArenaAlloc(&ctx->arena, sizeof(struct ParsingLog));
   }
   else {
     l = ctx->unusedLog;
@@ -151,15 +221,7 @@ ParsingLog nez_newLog(ParsingContext ctx) {
 }
 
 ParsingObject nez_newObject(ParsingContext ctx, const char *start) {
-  ParsingObject o;
-  if(ctx->unusedObject == NULL) {
-    o = (ParsingObject)malloc(sizeof(struct ParsingObject));
-  }
-  else {
-    o = ctx->unusedObject;
-    ctx->unusedObject = o->parent;
-  }
-  o->refc = 0;
+  ParsingObject o = (ParsingObject)nez_ArenaAlloc(&ctx->arena, sizeof(struct ParsingObject));
   o->start_pos = start - ctx->inputs;
   o->end_pos = o->start_pos;
   o->tag = "#empty"; // default
@@ -172,9 +234,7 @@ ParsingObject nez_newObject(ParsingContext ctx, const char *start) {
 
 ParsingObject nez_newObject_(ParsingContext ctx, long start, long end,
                              const char* tag, const char* value) {
-  ParsingObject o;
-  o = (ParsingObject)malloc(sizeof(struct ParsingObject));
-  o->refc = 0;
+  ParsingObject o = (ParsingObject)nez_ArenaAlloc(&ctx->arena, sizeof(struct ParsingObject));
   o->start_pos = start;
   o->end_pos = end;
   o->tag = tag;
@@ -185,68 +245,33 @@ ParsingObject nez_newObject_(ParsingContext ctx, long start, long end,
   return o;
 }
 
-void nez_unusedObject(ParsingContext ctx, ParsingObject o) {
-  o->parent = ctx->unusedObject;
-  ctx->unusedObject = o;
-  if (o->child_size > 0) {
-    for (int i = 0; i < o->child_size; i++) {
-      nez_setObject(ctx, &(o->child[i]), NULL);
-    }
-    free(o->child);
-    o->child = NULL;
-  }
-}
-
-ParsingObject nez_setObject_(ParsingContext ctx, ParsingObject var, ParsingObject o) {
-  if (var != NULL) {
-    var->refc -= 1;
-    if (var->refc == 0) {
-      nez_unusedObject(ctx, var);
-    }
-  }
-  if (o != NULL) {
-    o->refc += 1;
-  }
-  return o;
-}
-
-void nez_setObject(ParsingContext ctx, ParsingObject *var, ParsingObject o) {
-  nez_setObject_(ctx, *var, o);
-  *var = o;
-}
-
 void nez_unusedLog(ParsingContext ctx, ParsingLog log) {
-  if(log->type == LazyLink_T) {
-    nez_setObject(ctx, &log->po, NULL);  
-  }
+  log->po = NULL;
   log->next = ctx->unusedLog;
   ctx->unusedLog = log;
 }
 
 int commitCount = 0;
 
+/* links the children logged from start up to end */
 ParsingObject commitNode(ParsingContext ctx, ParsingLog start, ParsingLog end,
                 int objectSize, long spos, long epos,
                 const char* tag, const char* value, ParsingObject po) {
-  ParsingObject newnode = NULL;
-  newnode = nez_setObject_(ctx, newnode, nez_newObject_(ctx, spos, epos, tag, value));
+  ParsingObject newnode = nez_newObject_(ctx, spos, epos, tag, value);
   if (objectSize > 0) {
-    newnode->child = (ParsingObject *)calloc(sizeof(ParsingObject), objectSize);
+    newnode->child = (ParsingObject *)nez_ArenaAlloc(&ctx->arena, sizeof(ParsingObject) * objectSize);
+    memset(newnode->child, 0, sizeof(ParsingObject) * objectSize);
     newnode->child_size = objectSize;
     if(po != NULL) {
-      nez_setObject(ctx, &newnode->child[0], po);
+      newnode->child[0] = po;
     }
-    ParsingLog next = NULL;
-    int maxId = (objectSize - 1);
-    for (ParsingLog cur = start; cur != end; cur = next) {
-      next = cur->next;
+    for (ParsingLog cur = start; cur != end; cur = cur->next) {
 #if NEZ_DEBUG
       fprintf(stderr, "Node[%d] type=%d,cur=%p next=%p\n", commitCount, cur->type, cur, cur->next);
 #endif
       if(cur->type == LazyLink_T) {
-        nez_setObject(ctx, &newnode->child[maxId - cur->pos], cur->po);
+        newnode->child[cur->pos] = cur->po;
       }
-      nez_unusedLog(ctx, cur);
     }
   }
   commitCount++;
@@ -264,7 +289,7 @@ void nez_pushDataLog(ParsingContext ctx, int type, long pos,
     case LazyLink_T: {
       assert(po != NULL);
       l->pos = index;
-      nez_setObject(ctx, &(l->po), po);
+      l->po = po;
       break;
     }
     case LazyCapture_T: {
@@ -292,23 +317,28 @@ void nez_pushDataLog(ParsingContext ctx, int type, long pos,
   }
 }
 
+/* commits the logs above mark in the order they were pushed; a left
+ * new ({@) makes the node so far the first child of the next one */
 ParsingObject nez_commitLog(ParsingContext ctx, int mark) {
-  ParsingLog start = ctx->logStack;
-  if(!start) {
+  ParsingLog first = NULL;
+  while (mark < ctx->logStackSize) {
+    ParsingLog l = ctx->logStack;
+    ctx->logStack = l->next;
+    ctx->logStackSize--;
+    l->next = first;
+    first = l;
+  }
+  if(!first) {
     return NULL;
   }
-  ParsingLog cur = NULL;
-  //assert(start->type == LazyCapture_T);
+  ParsingLog start = first;
   int objectSize    = 0;
-  long spos  = 0;
-  long epos  = start->pos;
+  long spos  = first->pos;
+  long epos  = spos;
   const char* tag   = NULL;
   const char* value = NULL;
   ParsingObject po  = NULL;
-  while (mark < ctx->logStackSize) {
-    cur = ctx->logStack;
-    ctx->logStack = ctx->logStack->next;
-    ctx->logStackSize--;
+  for (ParsingLog cur = first; cur != NULL; cur = cur->next) {
 #if NEZ_DEBUG
     fprintf(stderr, "Log[%d] type=%d,cur=%p next=%p\n", commitCount, cur->type, cur, cur->next);
 #endif
@@ -325,7 +355,7 @@ ParsingObject nez_commitLog(ParsingContext ctx, int mark) {
       }
       case LazyCapture_T: {
         epos = cur->pos;
-        goto L_unused;
+        break;
       }
       case LazyLeftJoin_T: {
         po = commitNode(ctx, start, cur, objectSize, spos, epos, tag, value, po);
@@ -335,30 +365,30 @@ ParsingObject nez_commitLog(ParsingContext ctx, int mark) {
         tag = NULL;
         value = NULL;
         objectSize = 1;
-        goto L_unused;
+        break;
       }
       case LazyNew_T: {
         spos = cur->pos;
-        goto L_unused;
+        epos = spos;
+        break;
       }
       case LazyTag_T: {
         tag = cur->value;
-        goto L_unused;
+        break;
       }
       case LazyValue_T: {
         value = cur->value;
-        goto L_unused;
-      }
-      default: {
-    L_unused:
         break;
       }
     }
   }
-  po = commitNode(ctx, start, cur, objectSize, spos, epos, tag, value, po);
-  //nez_abortLog(ctx, mark);
+  po = commitNode(ctx, start, NULL, objectSize, spos, epos, tag, value, po);
+  while (first != NULL) {
+    ParsingLog next = first->next;
+    nez_unusedLog(ctx, first);
+    first = next;
+  }
   return po;
-  //nez_pushDataLog(ctx, LazyLink_T, NULL, index, NULL, po);
 }
 
 void nez_abortLog(ParsingContext ctx, int mark) {
@@ -376,15 +406,17 @@ int nez_markLogStack(ParsingContext ctx) {
 }
 
 void createMemoTable(ParsingContext ctx, size_t size) {
-  ctx->memo_table = malloc(sizeof(struct MemoTable));
-  ctx->memo_table->size = 32 * (size + 1);
-  ctx->memo_table->memoArray = malloc(sizeof(struct MemoEntry) * ctx->memo_table->size);
-  ctx->memo_table->shift = (int)(log(ctx->memo_table->size) / log(2.0)) + 1;
-  for(size_t i = 0; i < ctx->memo_table->size; i++) {
-    ctx->memo_table->memoArray[i] = malloc(sizeof(struct MemoEntry));
-    ctx->memo_table->memoArray[i]->key = -1;
-    ctx->memo_table->memoArray[i]->consumed = NULL;
-    ctx->memo_table->memoArray[i]->left = NULL;
+  size_t n = 1;
+  while(n < 32 * (size + 1)) {
+    n *= 2;
+  }
+  ctx->memo_table = calloc(1, sizeof(struct MemoTable));
+  ctx->memo_table->size = n;
+  ctx->memo_table->points = size + 1;
+  ctx->memo_table->memoArray = calloc(n, sizeof(struct MemoEntry));
+  ctx->memo_table->shift = (int)(log(n) / log(2.0)) + 1;
+  for(size_t i = 0; i < n; i++) {
+    ctx->memo_table->memoArray[i].key = -1;
   }
 }
 
@@ -392,12 +424,15 @@ long longkey(long pos, int memoPoint, int shift) {
   return ((pos << shift) | memoPoint) & 0x7fffffffffffffffL;
 }
 
+static inline MemoEntry memoEntry(struct MemoTable *t, long pos, int memoPoint) {
+  return &t->memoArray[((size_t)pos * t->points + memoPoint) & (t->size - 1)];
+}
+
 void nez_setMemo(ParsingContext ctx, char* pos, int memoPoint, int r) {
   long key = longkey(pos - ctx->inputs, memoPoint, ctx->memo_table->shift);
-  int hash = (int)(key % ctx->memo_table->size);
-  MemoEntry m = ctx->memo_table->memoArray[hash];
+  MemoEntry m = memoEntry(ctx->memo_table, pos - ctx->inputs, memoPoint);
   m->key = key;
-  m->left = nez_setObject_(ctx, m->left, ctx->left);
+  m->left = ctx->left;
   m->consumed = ctx->cur;
   m->r = r;
   ctx->memo_table->memoStored++;
@@ -408,8 +443,7 @@ void nez_setMemo(ParsingContext ctx, char* pos, int memoPoint, int r) {
 
 MemoEntry nez_getMemo(ParsingContext ctx, char* pos, int memoPoint) {
   long key = longkey(pos - ctx->inputs, memoPoint, ctx->memo_table->shift);
-  int hash = (int)(key % ctx->memo_table->size);
-  MemoEntry m = ctx->memo_table->memoArray[hash];
+  MemoEntry m = memoEntry(ctx->memo_table, pos - ctx->inputs, memoPoint);
   if(m->key == key) {
 #if NEZ_DEBUG
     fprintf(stderr, "memoHit(key:%ld, pos:%ld, consumed:%ld)\n", key, ctx->cur - ctx->inputs, m->consumed - ctx->cur );
@@ -433,9 +467,9 @@ void nez_log(ParsingContext ctx, const char* input_file, const char* grammar, in
   }
 
   /*Date*/
-  time_t timer;
+  time_t now = time(NULL);
   struct tm *local;
-  local = localtime(&timer);
+  local = localtime(&now);
   fprintf(fp, "%4d/%2d/%2d %2d:%2d:%2d,", local->tm_year + 1900, local->tm_mon + 1, local->tm_mday, local->tm_hour, local->tm_min, local->tm_sec);
 
   /*Parser*/
@@ -484,3 +518,82 @@ void nez_log(ParsingContext ctx, const char* input_file, const char* grammar, in
 
   fclose(fp);
 }
+
+static int compareTime(const void *a, const void *b) {
+  uint64_t x = *(const uint64_t *)a;
+  uint64_t y = *(const uint64_t *)b;
+  return x < y ? -1 : x > y ? 1 : 0;
+}
+
+/*
+ * The main of a generated parser:
+ *   parser [-q] [-b count] input...
+ * parses each input and prints the tree, unless -q is given. -b parses
+ * each input count times after a warmup run and prints the median time,
+ * the throughput, the arena bytes and the memo counters; the median is
+ * also logged in nez_c_log.csv.
+ */
+int nez_main(struct NezParser *parser, int argc, char* const argv[]) {
+  int quiet = 0;
+  int count = 0;
+  int i = 1;
+  for(; i < argc && argv[i][0] == '-'; i++) {
+    if(strcmp(argv[i], "-q") == 0) {
+      quiet = 1;
+    }
+    else if(strcmp(argv[i], "-b") == 0 && i + 1 < argc) {
+      count = atoi(argv[++i]);
+      quiet = 1;
+    }
+    else {
+      break;
+    }
+  }
+  if(i == argc || count < 0) {
+    fprintf(stderr, "usage: %s [-q] [-b count] input...\n", argv[0]);
+    return 1;
+  }
+  if(count > 0) {
+    printf("input\tsize\tms\tMiB/s\tarena[KiB]\tmemo.stored\tmemo.hit\n");
+  }
+  for(; i < argc; i++) {
+    ParsingContext ctx = nez_CreateParsingContext(argv[i]);
+    ctx->flags_size = parser->flagsSize;
+    ctx->flags = (int*)calloc(parser->flagsSize + 1, sizeof(int));
+    createMemoTable(ctx, parser->memoSize);
+    int runs = count + 1;
+    uint64_t *times = (uint64_t *)malloc(sizeof(uint64_t) * runs);
+    for(int r = 0; r < runs; r++) {
+      nez_ResetParsingContext(ctx);
+      uint64_t start = utimer();
+      int failed = parser->parse(ctx);
+      ParsingObject po = NULL;
+      if(!failed && parser->ast) {
+        po = nez_commitLog(ctx, 0);
+      }
+      times[r] = utimer() - start;
+      if(failed) {
+        fprintf(stderr, "%s: parse error\n", argv[i]);
+        return 1;
+      }
+      if((size_t)(ctx->cur - ctx->inputs) != ctx->input_size) {
+        fprintf(stderr, "%s: unconsumed at %ld\n", argv[i], (long)(ctx->cur - ctx->inputs));
+        return 1;
+      }
+      if(r == 0 && !quiet && po != NULL) {
+        dump_pego(&po, ctx->inputs, 0);
+      }
+    }
+    if(count > 0) {
+      qsort(times + 1, count, sizeof(uint64_t), compareTime);
+      uint64_t median = times[1 + count / 2];
+      double mib = ctx->input_size / (1024.0 * 1024.0) / (median > 0 ? median / 1000000.0 : 1e-6);
+      printf("%s\t%zu\t%.3f\t%.3f\t%zu\t%lu\t%lu\n", argv[i], ctx->input_size, median / 1000.0, mib,
+             nez_ArenaUsed(&ctx->arena) / 1024, ctx->memo_table->memoStored, ctx->memo_table->memoHit);
+      nez_log(ctx, argv[i], parser->grammar, parser->ruleCount, median > 1000 ? median / 1000 : 1, "");
+    }
+    free(times);
+    nez_DisposeParsingContext(ctx);
+  }
+  return 0;
+}
@@ -8,7 +8,6 @@
 #define LIBNEZ_H
 
 struct ParsingObject {
-  int refc; // referencing counting gc
   int child_size;
   struct ParsingObject **child;
   struct ParsingObject *parent;
@@ -18,20 +17,22 @@ struct ParsingObject {
   const char *value;
 };
 
+struct MemoEntry {
+  long key;
+  char *consumed;
+  struct ParsingObject *left;
+  int r;
+};
+
+// entries are inline and direct-mapped; size is a power of two
 struct MemoTable {
   int shift;
   unsigned long memoHit;
   unsigned long memoMiss;
   unsigned long memoStored;
   size_t size;
-  struct MemoEntry** memoArray;
-};
-
-struct MemoEntry {
-  long key;
-  char *consumed;
-  struct ParsingObject *left;
-  int r;
+  size_t points;
+  struct MemoEntry* memoArray;
 };
 
 #define LazyLink_T 0
@@ -49,12 +50,18 @@ struct ParsingLog {
   struct ParsingLog *next;
 };
 
-struct MemoryPool {
-  struct ParsingObject *object_pool;
-  struct ParsingLog *log_pool;
-  size_t oidx;
-  size_t lidx;
-  size_t init_size;
+// a bump-pointer arena; objects, child arrays and logs live until the
+// arena is reset, so that a parse is freed as a whole
+struct ArenaChunk {
+  struct ArenaChunk *prev;
+  size_t size;
+};
+
+struct Arena {
+  char *top;
+  char *end;
+  struct ArenaChunk *chunk;
+  size_t used;   // bytes in the chunks before the current one
 };
 
 union StackEntry {
@@ -68,7 +75,7 @@ struct ParsingContext {
   size_t input_size;
   long pos;
   struct ParsingObject *left;
-  struct ParsingObject *unusedObject;
+  struct Arena arena;
 
   int logStackSize;
   struct ParsingLog *logStack;
@@ -86,11 +93,11 @@ struct ParsingContext {
 typedef struct ParsingObject *ParsingObject;
 typedef struct ParsingLog *ParsingLog;
 typedef struct ParsingContext *ParsingContext;
-typedef struct MemoryPool *MemoryPool;
+typedef struct Arena *Arena;
 typedef union StackEntry* StackEntry;
 typedef struct MemoEntry* MemoEntry;
 
-int level;
+static int level;
 static void dump_func(const char* name) {
   level++;
   for(int i = 0; i < level; i++) {
@@ -109,18 +116,29 @@ static uint64_t timer() {
   return tv.tv_sec * 1000 + tv.tv_usec / 1000;
 }
 
-extern MemoryPool nez_CreateMemoryPool(MemoryPool mpool, size_t init_size);
-extern void MemoryPool_Reset(MemoryPool mpool);
-extern void nez_DisposeMemoryPool(MemoryPool mpool);
-
-static inline ParsingObject MemoryPool_AllocParsingObject(MemoryPool mpool) {
-  assert(mpool->oidx < mpool->init_size);
-  return &mpool->object_pool[mpool->oidx++];
+static uint64_t utimer() {
+  struct timeval tv;
+  gettimeofday(&tv, NULL);
+  return tv.tv_sec * 1000000 + tv.tv_usec;
 }
 
-static inline ParsingLog MemoryPool_AllocParsingLog(MemoryPool mpool) {
-  assert(mpool->lidx < mpool->init_size);
-  return &mpool->log_pool[mpool->lidx++];
+#define ARENA_CHUNK_SIZE (64 * 1024)
+#define ARENA_ALIGN(n) (((n) + sizeof(void*) - 1) & ~(sizeof(void*) - 1))
+
+void nez_InitArena(Arena arena);
+void *nez_ArenaGrow(Arena arena, size_t size);
+void nez_ResetArena(Arena arena);
+void nez_DisposeArena(Arena arena);
+size_t nez_ArenaUsed(Arena arena);
+
+static inline void *nez_ArenaAlloc(Arena arena, size_t size) {
+  size = ARENA_ALIGN(size);
+  if((size_t)(arena->end - arena->top) < size) {
+    return nez_ArenaGrow(arena, size);
+  }
+  void *p = arena->top;
+  arena->top += size;
+  return p;
 }
 
 void nez_consume(ParsingContext ctx);
@@ -138,14 +156,12 @@ int nez_not_match(ParsingContext ctx, char c);
 
 #define PARSING_CONTEXT_MAX_STACK_LENGTH 1024
 ParsingContext nez_CreateParsingContext(const char *filename);
+void nez_ResetParsingContext(ParsingContext ctx);
 void nez_DisposeParsingContext(ParsingContext ctx);
-void nez_DisposeObject(ParsingObject pego);
 
 void nez_PrintErrorInfo(const char *errmsg);
 void dump_pego(ParsingObject *pego, char *source, int level);
 
-void nez_setObject(ParsingContext ctx, ParsingObject *var, ParsingObject o);
-ParsingObject nez_setObject_(ParsingContext ctx, ParsingObject var, ParsingObject o);
 ParsingObject nez_newObject(ParsingContext ctx, const char *start);
 ParsingObject nez_newObject_(ParsingContext ctx, long start, long end,
                              const char* tag, const char* value);
@@ -161,4 +177,16 @@ MemoEntry nez_getMemo(ParsingContext ctx, char* pos, int memoPoint);
 
 void nez_log(ParsingContext ctx, const char* input_file, const char* grammar, int ruleCount, uint64_t latency, const char* opt);
 
+// the driver of a generated parser; see nez_main() in libnez.c
+struct NezParser {
+  int (*parse)(ParsingContext ctx);
+  const char *grammar;
+  int ruleCount;
+  size_t memoSize;
+  size_t flagsSize;
+  int ast;
+};
+
+int nez_main(struct NezParser *parser, int argc, char* const argv[]);
+
 #endif
\ No newline at end of file
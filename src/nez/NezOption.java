@@ -24,6 +24,7 @@ public class NezOption {
 	public boolean enabledInlining        = true;      // inline
 
 	public boolean enabledLexicalOptimization = true;  // lex
+	public boolean enabledWordScan        = true;      // swar
 	//public boolean enabledCommonFactored  = true;      // common
 	
 	public boolean enabledPrediction      = true;      // predict
@@ -32,6 +33,17 @@ public class NezOption {
 	/* runtime option */
 	public boolean enabledMemoization     = true;  // memo
 	public boolean enabledPackratParsing  = false; // packrat
+	public boolean enabledJIT             = false; // jit
+	public boolean enabledPackedCode      = false; // packed
+	public boolean enabledGrammarCache    = false; // cache
+	public boolean enabledLazyCompilation = false; // lazy
+	public boolean enabledArrayMemo       = false; // arraymemo
+	public int     memoWindowSize         = 32;    // window=N
+	public int     memoAssociativity      = 1;     // ways=N (1, 2, 4)
+	public boolean enabledAdaptiveMemo    = true;  // adaptive
+	public boolean enabledMemoReactivation = false; // reactivate
+	public boolean enabledAutoMemo        = false; // automemo
+	public boolean enabledIncrementalParsing = false; // incremental
 
 	/* misc */
 	public boolean enabledInterning            = true;
@@ -55,11 +67,24 @@ public class NezOption {
 		o.enabledSymbolTable = this.enabledSymbolTable;
 		o.enabledAsIsGrammar = this.enabledAsIsGrammar;
 		o.enabledLexicalOptimization = this.enabledLexicalOptimization;
+		o.enabledWordScan = this.enabledWordScan;
 		o.enabledInlining = this.enabledInlining;
 //		o.enabledCommonFactored = this.enabledCommonFactored;
 		o.enabledPrediction = this.enabledPrediction;
+		o.enabledDFAConversion = this.enabledDFAConversion;
 		o.enabledMemoization = this.enabledMemoization;
 		o.enabledPackratParsing = this.enabledPackratParsing;
+		o.enabledJIT = this.enabledJIT;
+		o.enabledPackedCode = this.enabledPackedCode;
+		o.enabledGrammarCache = this.enabledGrammarCache;
+		o.enabledLazyCompilation = this.enabledLazyCompilation;
+		o.enabledArrayMemo = this.enabledArrayMemo;
+		o.memoWindowSize = this.memoWindowSize;
+		o.memoAssociativity = this.memoAssociativity;
+		o.enabledAdaptiveMemo = this.enabledAdaptiveMemo;
+		o.enabledMemoReactivation = this.enabledMemoReactivation;
+		o.enabledAutoMemo = this.enabledAutoMemo;
+		o.enabledIncrementalParsing = this.enabledIncrementalParsing;
 		o.enabledInterning = this.enabledInterning;
 		o.enabledExampleVerification = this.enabledExampleVerification;
 		o.enabledProfiling = this.enabledProfiling;
@@ -69,7 +94,11 @@ public class NezOption {
 	
 	public final void setOption(String args) {
 		for(String s : args.split(":")) {
-			if(s.startsWith("+")) {
+			int loc = s.indexOf('=');
+			if(loc > 0) {
+				setValue(s.substring(0, loc), s.substring(loc+1));
+			}
+			else if(s.startsWith("+")) {
 				setOption(s.substring(1),true);
 			}
 			else if(s.startsWith("-")) {
@@ -83,33 +112,57 @@ public class NezOption {
 	
 	public final void setOption(String key, boolean value) {
 		switch(key) {
+		case "adaptive":
+			this.enabledAdaptiveMemo = value;
+			break;
+		case "arraymemo":
+			this.enabledArrayMemo = value;
+			break;
 		case "asis":
 			this.enabledAsIsGrammar = value;
 			break;
 		case "ast":
 			this.enabledASTConstruction = value;
 			break;
+		case "cache":
+			this.enabledGrammarCache = value;
+			break;
 		case "dfa":
 			this.enabledDFAConversion = value;
 			break;
 		case "example":
 			this.enabledExampleVerification = value;
 			break;
+		case "incremental":
+			this.enabledIncrementalParsing = value;
+			break;
 		case "inline":
 			this.enabledInlining = value;
 			break;
 		case "intern":
 			this.enabledInterning = value;
 			break;
+		case "jit":
+			this.enabledJIT = value;
+			break;
+		case "lazy":
+			this.enabledLazyCompilation = value;
+			break;
 		case "lex" : case "lexer":
 			this.enabledLexicalOptimization = value;
 			break;
+		case "automemo":
+			this.enabledAutoMemo = value;
+			break;
 		case "memo":
 			this.enabledMemoization = value;
 			break;
 		case "notice":
 			this.enabledNoticeReport = value;
 			break;
+		case "packed":
+			this.enabledPackedCode = value;
+			break;
 		case "packrat":
 			this.enabledPackratParsing = value;
 			break;
@@ -119,9 +172,15 @@ public class NezOption {
 		case "prof":
 			this.enabledProfiling = value;
 			break;
+		case "reactivate":
+			this.enabledMemoReactivation = value;
+			break;
 		case "safe":
 			this.enabledSafeMode = value;
 			break;
+		case "swar":
+			this.enabledWordScan = value;
+			break;
 		case "symbol":
 			this.enabledSymbolTable = value;
 			break;
@@ -130,6 +189,27 @@ public class NezOption {
 		}
 	}
 	
+	public final void setValue(String key, String value) {
+		int n = 0;
+		try {
+			n = Integer.parseInt(value);
+		}
+		catch(NumberFormatException e) {
+			Verbose.debug("not a number: " + key + "=" + value);
+			return;
+		}
+		switch(key) {
+		case "window":
+			this.memoWindowSize = n;
+			break;
+		case "ways":
+			this.memoAssociativity = n;
+			break;
+		default:
+			Verbose.debug("undefined option:" + key + "=" + value);
+		}
+	}
+	
 	public final String toString() {
 		StringBuilder sb = new StringBuilder();
 		if(this.enabledSafeMode) {
@@ -144,18 +224,60 @@ public class NezOption {
 		if(this.enabledAsIsGrammar) {
 			sb.append(":asis");
 		}
+		if(this.enabledInlining) {
+			sb.append(":inline");
+		}
 		if(this.enabledLexicalOptimization) {
 			sb.append(":lexer");
 		}
+		if(this.enabledWordScan) {
+			sb.append(":swar");
+		}
 		if(this.enabledPrediction) {
 			sb.append(":predict");
 		}
+		if(this.enabledDFAConversion) {
+			sb.append(":dfa");
+		}
 		if(this.enabledMemoization) {
 			sb.append(":memo");
 		}
 		if(this.enabledPackratParsing) {
 			sb.append(":packrat");
 		}
+		if(this.enabledArrayMemo) {
+			sb.append(":arraymemo");
+		}
+		if(this.enabledAdaptiveMemo) {
+			sb.append(":adaptive");
+		}
+		if(this.enabledMemoReactivation) {
+			sb.append(":reactivate");
+		}
+		if(this.enabledAutoMemo) {
+			sb.append(":automemo");
+		}
+		if(this.enabledIncrementalParsing) {
+			sb.append(":incremental");
+		}
+		if(this.memoWindowSize != 32) {
+			sb.append(":window=" + this.memoWindowSize);
+		}
+		if(this.memoAssociativity != 1) {
+			sb.append(":ways=" + this.memoAssociativity);
+		}
+		if(this.enabledJIT) {
+			sb.append(":jit");
+		}
+		if(this.enabledPackedCode) {
+			sb.append(":packed");
+		}
+		if(this.enabledGrammarCache) {
+			sb.append(":cache");
+		}
+		if(this.enabledLazyCompilation) {
+			sb.append(":lazy");
+		}
 		if(this.enabledExampleVerification) {
 			sb.append(":example");
 		}
@@ -7,6 +7,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 
 import nez.io.FileContext;
+import nez.io.MappedFileContext;
+import nez.io.StreamContext;
 import nez.io.StringContext;
 import nez.util.StringUtils;
 import nez.vm.Context;
@@ -78,14 +80,15 @@ public abstract class SourceContext extends Context {
 	}
 
 	private final long getLineStartPosition(long fromPostion) {
+		long start = this.getWindowStart();
 		long startIndex = fromPostion;
 		if(!(startIndex < this.length())) {
 			startIndex = this.length() - 1;
 		}
-		if(startIndex < 0) {
-			startIndex = 0;
+		if(startIndex < start) {
+			startIndex = start;
 		}
-		while(startIndex > 0) {
+		while(startIndex > start) {
 			int ch = byteAt(startIndex);
 			if(ch == '\n') {
 				startIndex = startIndex + 1;
@@ -135,14 +138,15 @@ public abstract class SourceContext extends Context {
 
 	private final String getTextAround(long pos, String delim) {
 		int ch = 0;
-		if(pos < 0) {
-			pos = 0;
+		long start = this.getWindowStart();
+		if(pos < start) {
+			pos = start;
 		}
-		while(this.byteAt(pos) == this.EOF() && pos > 0) {
+		while(this.byteAt(pos) == this.EOF() && pos > start) {
 			pos -= 1;
 		}
 		long startIndex = pos;
-		while(startIndex > 0) {
+		while(startIndex > start) {
 			ch = byteAt(startIndex);
 			if(ch == '\n' && pos - startIndex > 0) {
 				startIndex = startIndex + 1;
@@ -208,6 +212,13 @@ public abstract class SourceContext extends Context {
 		return new StringContext(resource, linenum, str);
 	}
 
+	public final static SourceContext newStreamContext(String resource, InputStream in) {
+		return new StreamContext(resource, in);
+	}
+
+	/* files larger than this are memory-mapped (MappedFileContext) */
+	public final static long MappedFileSize = 1L << 20;
+
 	public final static SourceContext newFileContext(String fileName) throws IOException {
 		File f = new File(fileName);
 		//System.out.println("file: " + fileName + " " + f.isFile());
@@ -232,6 +243,9 @@ public abstract class SourceContext extends Context {
 				return new StringContext(fileName, 1, builder.toString());
 			}
 		}
+		if(f.length() > MappedFileSize) {
+			return new MappedFileContext(fileName);
+		}
 		return new FileContext(fileName);
 	}
 }
@@ -0,0 +1,173 @@
+package nez.ast;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import nez.SourceContext;
+import nez.io.MappedFileContext;
+import nez.main.Verbose;
+import nez.util.StringUtils;
+
+/**
+ * BinaryTree reads a tree written by BinaryTreeWriter. The file is mapped
+ * into memory and nothing but the header is decoded when it is opened; a
+ * BinaryTreeCursor decodes the nodes it visits and skips the others.
+ * The text of a node is read from the embedded source, or from the
+ * original input file, which is opened on the first request.
+ */
+
+public class BinaryTree {
+	private final ByteBuffer buffer;
+	private final String resourceName;
+	private final long sourceLength;
+	private final Tag[] tags;
+	private final int root;         // the offset of the root node
+	private Source source = null;
+	private boolean sourceLoaded;
+
+	public BinaryTree(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		int p = 0;
+		for(byte b : BinaryTreeWriter.Magic) {
+			if(p >= buffer.limit() || buffer.get(p++) != b) {
+				throw new IOException("not a binary tree");
+			}
+		}
+		if(p + 2 > buffer.limit() || buffer.get(p++) != BinaryTreeWriter.Version) {
+			throw new IOException("unsupported binary tree version");
+		}
+		int flags = buffer.get(p++);
+		long[] r = { p };
+		this.resourceName = this.readString(r);
+		this.sourceLength = this.readVarLong(r);
+		this.tags = new Tag[(int)this.readVarLong(r)];
+		for(int i = 0; i < this.tags.length; i++) {
+			this.tags[i] = Tag.tag(this.readString(r));
+		}
+		p = (int)r[0];
+		if((flags & BinaryTreeWriter.EmbeddedSource) != 0) {
+			ByteBuffer b = buffer.duplicate();
+			b.position(p);
+			b.limit(p + (int)this.sourceLength);
+			this.source = new MappedFileContext(this.resourceName, b);
+			p += (int)this.sourceLength;
+		}
+		this.sourceLoaded = this.source != null;
+		this.root = p;
+	}
+
+	/**
+	 * Maps a file written by BinaryTreeWriter.
+	 */
+	public static BinaryTree open(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("too large binary tree: " + path);
+			}
+			return new BinaryTree(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		catch(IOException e) {
+			Verbose.traceException(e);
+			throw e;
+		}
+		finally {
+			file.close();  // the mapping remains valid
+		}
+	}
+
+	public final String getResourceName() {
+		return this.resourceName;
+	}
+
+	public final boolean hasEmbeddedSource() {
+		return this.sourceLoaded && this.source instanceof MappedFileContext;
+	}
+
+	/**
+	 * Returns the source, or null if it is not embedded and the input
+	 * file is missing or has another length.
+	 */
+	public final Source getSource() {
+		if(!this.sourceLoaded) {
+			this.sourceLoaded = true;
+			try {
+				SourceContext s = SourceContext.newFileContext(this.resourceName);
+				if(s.length() == this.sourceLength) {
+					this.source = s;
+				}
+			}
+			catch(IOException e) {
+				Verbose.traceException(e);
+			}
+		}
+		return this.source;
+	}
+
+	/**
+	 * Sets the source, when the input file has been moved or opened.
+	 */
+	public final void setSource(Source source) {
+		this.source = source;
+		this.sourceLoaded = true;
+	}
+
+	public final BinaryTreeCursor newCursor() {
+		return new BinaryTreeCursor(this, this.root);
+	}
+
+	public final CommonTree toCommonTree() {
+		return this.newCursor().toCommonTree();
+	}
+
+	/* decoding; r[0] is the offset to read */
+
+	final Tag getTag(int index) {
+		return this.tags[index];
+	}
+
+	final int get(int offset) {
+		return this.buffer.get(offset) & 0xff;
+	}
+
+	final long readVarLong(long[] r) {
+		int p = (int)r[0];
+		long n = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = this.buffer.get(p++);
+			n |= (long)(b & 0x7f) << shift;
+			shift += 7;
+		} while(b < 0);
+		r[0] = p;
+		return n;
+	}
+
+	final String readString(long[] r) {
+		int size = (int)this.readVarLong(r);
+		return this.readString((int)r[0], size, r);
+	}
+
+	final String readString(int offset, int size, long[] r) {
+		byte[] b = new byte[size];
+		ByteBuffer d = this.buffer.duplicate();
+		d.position(offset);
+		d.get(b);
+		if(r != null) {
+			r[0] = offset + size;
+		}
+		try {
+			return new String(b, StringUtils.DefaultEncoding);
+		}
+		catch(UnsupportedEncodingException e) {
+			Verbose.traceException(e);
+		}
+		return "";
+	}
+
+}
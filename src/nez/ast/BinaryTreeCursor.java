@@ -0,0 +1,223 @@
+package nez.ast;
+
+/**
+ * BinaryTreeCursor moves over the nodes of a BinaryTree, decoding only the
+ * node it stands on; a sibling is reached by skipping the subtree before it.
+ */
+
+public final class BinaryTreeCursor {
+	private final BinaryTree tree;
+	private final int root;
+	private final long[] r = new long[1];
+
+	/* the current node */
+	private int offset;
+	private long base;          // the position of the parent
+	private Tag tag;            // null for a null child
+	private long pos;
+	private int length;
+	private int valueOffset;
+	private int valueSize = -1;
+	private int size;
+	private int next;           // the offset after the node
+	private int children;       // the offset of the first child
+
+	/* ancestors */
+	private int[] pathOffsets = new int[32];
+	private long[] pathBases = new long[32];
+	private int[] pathIndexes = new int[32];
+	private int[] pathSizes = new int[32];
+	private int index;          // the index in the parent
+	private int depth = 0;
+
+	BinaryTreeCursor(BinaryTree tree, int root) {
+		this.tree = tree;
+		this.root = root;
+		this.decode(root, 0);
+	}
+
+	private void decode(int offset, long base) {
+		this.offset = offset;
+		this.base = base;
+		this.r[0] = offset;
+		int head = (int)tree.readVarLong(r);
+		this.valueSize = -1;
+		this.size = 0;
+		if(head == 0) {
+			this.tag = null;
+			this.pos = base;
+			this.length = 0;
+			this.next = (int)r[0];
+			return;
+		}
+		this.tag = tree.getTag((head >>> 2) - 1);
+		long z = tree.readVarLong(r);
+		this.pos = base + ((z >>> 1) ^ -(z & 1));
+		this.length = (int)tree.readVarLong(r);
+		if((head & BinaryTreeWriter.HasValue) != 0) {
+			this.valueSize = (int)tree.readVarLong(r);
+			this.valueOffset = (int)r[0];
+			r[0] += this.valueSize;
+		}
+		if((head & BinaryTreeWriter.HasChildren) != 0) {
+			this.size = (int)tree.readVarLong(r);
+			int bytes = (int)tree.readVarLong(r);
+			this.children = (int)r[0];
+			this.next = this.children + bytes;
+		}
+		else {
+			this.next = (int)r[0];
+		}
+	}
+
+	public final BinaryTree getTree() {
+		return this.tree;
+	}
+
+	public final int getDepth() {
+		return this.depth;
+	}
+
+	public final void reset() {
+		this.depth = 0;
+		this.decode(this.root, 0);
+	}
+
+	/* node */
+
+	public final boolean isNull() {
+		return this.tag == null;
+	}
+
+	public final Tag getTag() {
+		return this.tag;
+	}
+
+	public final boolean is(Tag tag) {
+		return this.tag == tag;
+	}
+
+	public final long getSourcePosition() {
+		return this.pos;
+	}
+
+	public final int getLength() {
+		return this.length;
+	}
+
+	public final boolean isLeaf() {
+		return this.size == 0;
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	public final String getText() {
+		if(this.valueSize >= 0) {
+			return tree.readString(this.valueOffset, this.valueSize, null);
+		}
+		Source s = tree.getSource();
+		return s == null ? "" : s.substring(this.pos, this.pos + this.length);
+	}
+
+	public final CharSequence getTextView() {
+		if(this.valueSize >= 0) {
+			return this.getText();
+		}
+		Source s = tree.getSource();
+		return s == null ? "" : new SourceText(s, this.pos, this.length);
+	}
+
+	/* moves */
+
+	public final boolean firstChild() {
+		if(this.size == 0) {
+			return false;
+		}
+		if(this.depth == this.pathOffsets.length) {
+			int n = this.depth * 2;
+			int[] a = new int[n];
+			System.arraycopy(this.pathOffsets, 0, a, 0, this.depth);
+			this.pathOffsets = a;
+			long[] b = new long[n];
+			System.arraycopy(this.pathBases, 0, b, 0, this.depth);
+			this.pathBases = b;
+			int[] c = new int[n];
+			System.arraycopy(this.pathIndexes, 0, c, 0, this.depth);
+			this.pathIndexes = c;
+			int[] d = new int[n];
+			System.arraycopy(this.pathSizes, 0, d, 0, this.depth);
+			this.pathSizes = d;
+		}
+		this.pathOffsets[this.depth] = this.offset;
+		this.pathBases[this.depth] = this.base;
+		this.pathIndexes[this.depth] = this.index;
+		this.pathSizes[this.depth] = this.size;
+		this.depth++;
+		this.index = 0;
+		this.decode(this.children, this.pos);
+		return true;
+	}
+
+	public final boolean nextSibling() {
+		if(this.depth == 0) {
+			return false;
+		}
+		if(!(this.index + 1 < this.pathSizes[this.depth - 1])) {
+			return false;
+		}
+		this.index++;
+		this.decode(this.next, this.base);
+		return true;
+	}
+
+	public final boolean parent() {
+		if(this.depth == 0) {
+			return false;
+		}
+		this.depth--;
+		this.index = this.pathIndexes[this.depth];
+		this.decode(this.pathOffsets[this.depth], this.pathBases[this.depth]);
+		return true;
+	}
+
+	public final boolean child(int index) {
+		if(!firstChild()) {
+			return false;
+		}
+		for(int i = 0; i < index; i++) {
+			if(!nextSibling()) {
+				parent();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* conversion */
+
+	/**
+	 * Decodes the subtree of the current node into CommonTree objects.
+	 */
+	public final CommonTree toCommonTree() {
+		if(this.tag == null) {
+			return null;
+		}
+		Object value = this.valueSize >= 0 ? this.getText() : null;
+		CommonTree t = new CommonTree(this.tag, tree.getSource(), this.pos, this.pos + this.length, this.size, value);
+		if(this.firstChild()) {
+			int i = 0;
+			do {
+				CommonTree c = this.toCommonTree();
+				if(c != null) {
+					t.set(i, c);
+				}
+				i++;
+			} while(this.nextSibling());
+			this.parent();
+		}
+		return t;
+	}
+
+}
@@ -0,0 +1,284 @@
+package nez.ast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nez.main.Verbose;
+import nez.util.ConsoleUtils;
+import nez.util.StringUtils;
+
+/**
+ * BinaryTreeWriter writes a CommonTree in the binary format read by
+ * BinaryTree. The nodes are written in preorder:
+ *
+ * <pre>
+ * node  := head zigzag(pos - parent pos) length [value] [children]
+ * head  := 0 (null) | (tag index + 1) &lt;&lt; 2 | HasValue | HasChildren
+ * value := size utf8
+ * children := count size node*
+ * </pre>
+ *
+ * All numbers are varints. The size of children lets a reader skip a
+ * subtree without decoding it.
+ */
+
+public class BinaryTreeWriter {
+	final static byte[] Magic = { 'N', 'E', 'Z', 'B' };
+	final static int Version = 1;
+	final static int EmbeddedSource = 1;
+	final static int HasValue = 1;
+	final static int HasChildren = 2;
+
+	private boolean embedSource;
+	private int[] tagIndex;        // tagId => index + 1 in the dictionary
+	private Tag[] tags;
+	private int tagSize;
+	private int[] sizes;           // the size of children, in preorder
+	private int sizeCount;
+	private byte[] buf = new byte[8192];
+	private int bufSize;
+	private OutputStream out;
+
+	public BinaryTreeWriter() {
+		this(false);
+	}
+
+	/**
+	 * embedSource: writes the source text into the file, so that a reader
+	 * does not need the original input.
+	 */
+	public BinaryTreeWriter(boolean embedSource) {
+		this.embedSource = embedSource;
+	}
+
+	/**
+	 * Writes a file through a temporary file and a rename, so that a reader
+	 * that maps the old file never sees it truncated.
+	 */
+	public void transform(String path, CommonTree node) {
+		if(path == null) {
+			ConsoleUtils.exit(1, "binary output requires a file name (-o)");
+		}
+		File file = new File(path);
+		File temp = new File(path + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				this.write(out, node);
+			}
+			finally {
+				out.close();
+			}
+			if(!temp.renameTo(file)) {
+				file.delete();
+				if(!temp.renameTo(file)) {
+					throw new IOException("cannot rename: " + temp);
+				}
+			}
+		}
+		catch(IOException e) {
+			Verbose.traceException(e);
+			temp.delete();
+			ConsoleUtils.exit(1, "cannot write: " + path);
+		}
+	}
+
+	public void write(OutputStream out, CommonTree node) throws IOException {
+		this.out = out;
+		this.tagIndex = new int[64];
+		this.tags = new Tag[16];
+		this.tagSize = 0;
+		this.sizes = new int[256];
+		this.sizeCount = 0;
+		this.bufSize = 0;
+		this.measure(node, 0);
+		Source s = node == null ? null : node.getSource();
+		boolean embed = this.embedSource && s != null;
+		/* header */
+		for(byte b : Magic) {
+			this.writeByte(b);
+		}
+		this.writeByte(Version);
+		this.writeByte(embed ? EmbeddedSource : 0);
+		this.writeBytes(StringUtils.toUtf8(s == null ? "" : s.getResourceName()));
+		this.writeVarLong(s == null ? 0 : s.length());
+		this.writeVarInt(this.tagSize);
+		for(int i = 0; i < this.tagSize; i++) {
+			this.writeBytes(StringUtils.toUtf8(this.tags[i].getName()));
+		}
+		if(embed) {
+			long length = s.length();
+			for(long pos = 0; pos < length; pos += 1 << 20) {
+				byte[] b = s.subbyte(pos, Math.min(length, pos + (1 << 20)));
+				this.writeRaw(b);
+			}
+		}
+		/* nodes */
+		this.sizeCount = 0;
+		this.writeNode(node, 0);
+		this.flushBuffer();
+		this.out.flush();
+		this.tags = null;
+		this.sizes = null;
+		this.out = null;
+	}
+
+	/* pass 1: the tag dictionary and the size of each node's children */
+
+	private int measure(CommonTree node, long base) {
+		if(node == null) {
+			return 1;
+		}
+		int index = this.indexOf(node.getTag());
+		long pos = node.getSourcePosition();
+		int size = sizeOfVarInt(index << 2) + sizeOfVarLong(zigzag(pos - base)) + sizeOfVarInt(node.getLength());
+		byte[] value = this.valueOf(node);
+		if(value != null) {
+			size += sizeOfVarInt(value.length) + value.length;
+		}
+		if(node.size() > 0) {
+			int slot = this.sizeCount++;
+			if(slot == this.sizes.length) {
+				int[] a = new int[this.sizes.length * 2];
+				System.arraycopy(this.sizes, 0, a, 0, this.sizes.length);
+				this.sizes = a;
+			}
+			int children = 0;
+			for(int i = 0; i < node.size(); i++) {
+				children += this.measure(node.get(i), pos);
+			}
+			this.sizes[slot] = children;
+			size += sizeOfVarInt(node.size()) + sizeOfVarInt(children) + children;
+		}
+		return size;
+	}
+
+	private int indexOf(Tag tag) {
+		if(!(tag.tagId < this.tagIndex.length)) {
+			int[] a = new int[Math.max(tag.tagId + 1, this.tagIndex.length * 2)];
+			System.arraycopy(this.tagIndex, 0, a, 0, this.tagIndex.length);
+			this.tagIndex = a;
+		}
+		if(this.tagIndex[tag.tagId] == 0) {
+			if(this.tagSize == this.tags.length) {
+				Tag[] a = new Tag[this.tags.length * 2];
+				System.arraycopy(this.tags, 0, a, 0, this.tags.length);
+				this.tags = a;
+			}
+			this.tags[this.tagSize++] = tag;
+			this.tagIndex[tag.tagId] = this.tagSize;
+		}
+		return this.tagIndex[tag.tagId];
+	}
+
+	/* a value is written only if it differs from the source text */
+	private byte[] valueOf(CommonTree node) {
+		Object value = node.getValue();
+		if(value == null) {
+			return null;
+		}
+		byte[] utf8 = StringUtils.toUtf8(value.toString());
+		Source s = node.getSource();
+		if(s != null && utf8.length == node.getLength() && s.match(node.getSourcePosition(), utf8)) {
+			return null;  // copied by getText()
+		}
+		return utf8;
+	}
+
+	/* pass 2 */
+
+	private void writeNode(CommonTree node, long base) throws IOException {
+		if(node == null) {
+			this.writeByte(0);
+			return;
+		}
+		byte[] value = this.valueOf(node);
+		int head = this.tagIndex[node.getTag().tagId] << 2;
+		if(value != null) {
+			head |= HasValue;
+		}
+		if(node.size() > 0) {
+			head |= HasChildren;
+		}
+		long pos = node.getSourcePosition();
+		this.writeVarInt(head);
+		this.writeVarLong(zigzag(pos - base));
+		this.writeVarInt(node.getLength());
+		if(value != null) {
+			this.writeBytes(value);
+		}
+		if(node.size() > 0) {
+			this.writeVarInt(node.size());
+			this.writeVarInt(this.sizes[this.sizeCount++]);
+			for(int i = 0; i < node.size(); i++) {
+				this.writeNode(node.get(i), pos);
+			}
+		}
+	}
+
+	/* varints */
+
+	static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	static int sizeOfVarInt(int n) {
+		return sizeOfVarLong(n & 0xffffffffL);
+	}
+
+	static int sizeOfVarLong(long n) {
+		int size = 1;
+		while((n & ~0x7fL) != 0) {
+			n >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private void writeVarInt(int n) throws IOException {
+		this.writeVarLong(n & 0xffffffffL);
+	}
+
+	private void writeVarLong(long n) throws IOException {
+		if(this.bufSize + 10 > this.buf.length) {
+			this.flushBuffer();
+		}
+		while((n & ~0x7fL) != 0) {
+			this.buf[this.bufSize++] = (byte)((n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		this.buf[this.bufSize++] = (byte)n;
+	}
+
+	private void writeByte(int b) throws IOException {
+		if(this.bufSize == this.buf.length) {
+			this.flushBuffer();
+		}
+		this.buf[this.bufSize++] = (byte)b;
+	}
+
+	private void writeBytes(byte[] b) throws IOException {
+		this.writeVarInt(b.length);
+		this.writeRaw(b);
+	}
+
+	private void writeRaw(byte[] b) throws IOException {
+		if(this.bufSize + b.length > this.buf.length) {
+			this.flushBuffer();
+			if(b.length > this.buf.length) {
+				this.out.write(b);
+				return;
+			}
+		}
+		System.arraycopy(b, 0, this.buf, this.bufSize, b.length);
+		this.bufSize += b.length;
+	}
+
+	private void flushBuffer() throws IOException {
+		this.out.write(this.buf, 0, this.bufSize);
+		this.bufSize = 0;
+	}
+
+}
@@ -0,0 +1,208 @@
+package nez.ast;
+
+import java.util.HashMap;
+
+/**
+ * ColumnarTree stores a parsed tree in primitive columns instead of
+ * CommonTree objects: a node is an index into the tag, position, length,
+ * first child and next sibling columns (about 24 bytes per node). The
+ * columns are allocated in pages, so that a large tree is never copied
+ * to grow. Use newCursor() to navigate and toCommonTree() to convert.
+ */
+
+public class ColumnarTree {
+	final static int PageShift = 16;
+	final static int PageSize  = 1 << PageShift;
+	final static int PageMask  = PageSize - 1;
+	public final static int Null = -1;
+	final static int Unlinked = -2;   // nextSibling of a node that is not a child
+
+	private Source source = null;
+	private int[][]  tags = new int[16][];
+	private long[][] poses = new long[16][];
+	private int[][]  lens = new int[16][];
+	private int[][]  firstChilds = new int[16][];
+	private int[][]  nextSiblings = new int[16][];
+	private HashMap<Integer, Object> values = null;  // replaced text
+	private int size = 0;
+	private int root = Null;
+
+	public final Source getSource() {
+		return this.source;
+	}
+
+	public final int getRoot() {
+		return this.root;
+	}
+
+	final void setRoot(int root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns the number of nodes, including the nodes that were built but
+	 * dropped by backtracking.
+	 */
+	public final int size() {
+		return this.size;
+	}
+
+	/* columns */
+
+	final int newNode(Source s, Tag tag, long pos, int len, Object value) {
+		if(this.source == null) {
+			this.source = s;
+		}
+		int node = this.size;
+		int page = node >>> PageShift;
+		if(page == this.tags.length) {
+			this.tags = grow(this.tags);
+			this.poses = grow(this.poses);
+			this.lens = grow(this.lens);
+			this.firstChilds = grow(this.firstChilds);
+			this.nextSiblings = grow(this.nextSiblings);
+		}
+		if(this.tags[page] == null) {
+			this.tags[page] = new int[PageSize];
+			this.poses[page] = new long[PageSize];
+			this.lens[page] = new int[PageSize];
+			this.firstChilds[page] = new int[PageSize];
+			this.nextSiblings[page] = new int[PageSize];
+		}
+		int i = node & PageMask;
+		this.tags[page][i] = tag.tagId;
+		this.poses[page][i] = pos;
+		this.lens[page][i] = len;
+		this.firstChilds[page][i] = Null;
+		this.nextSiblings[page][i] = Unlinked;
+		if(value != null) {
+			if(this.values == null) {
+				this.values = new HashMap<Integer, Object>();
+			}
+			this.values.put(node, value);
+		}
+		this.size++;
+		return node;
+	}
+
+	private static int[][] grow(int[][] a) {
+		int[][] b = new int[a.length * 2][];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static long[][] grow(long[][] a) {
+		long[][] b = new long[a.length * 2][];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/* a copy of the node for another parent; its children are shared */
+	final int dupNode(int node) {
+		int n = newNode(this.source, getTag(node), getSourcePosition(node), getLength(node), getValue(node));
+		setFirstChild(n, getFirstChild(node));
+		return n;
+	}
+
+	final void setFirstChild(int node, int child) {
+		this.firstChilds[node >>> PageShift][node & PageMask] = child;
+	}
+
+	final void setNextSibling(int node, int sibling) {
+		this.nextSiblings[node >>> PageShift][node & PageMask] = sibling;
+	}
+
+	final boolean isLinked(int node) {
+		return this.nextSiblings[node >>> PageShift][node & PageMask] != Unlinked;
+	}
+
+	public final Tag getTag(int node) {
+		return Tag.tag(this.tags[node >>> PageShift][node & PageMask]);
+	}
+
+	public final int getTagId(int node) {
+		return this.tags[node >>> PageShift][node & PageMask];
+	}
+
+	public final long getSourcePosition(int node) {
+		return this.poses[node >>> PageShift][node & PageMask];
+	}
+
+	public final int getLength(int node) {
+		return this.lens[node >>> PageShift][node & PageMask];
+	}
+
+	public final int getFirstChild(int node) {
+		return this.firstChilds[node >>> PageShift][node & PageMask];
+	}
+
+	/**
+	 * Returns the next sibling, or a negative value if node is the last.
+	 */
+	public final int getNextSibling(int node) {
+		return this.nextSiblings[node >>> PageShift][node & PageMask];
+	}
+
+	public final Object getValue(int node) {
+		return this.values == null ? null : this.values.get(node);
+	}
+
+	/* text */
+
+	public final String getText(int node) {
+		Object value = getValue(node);
+		if(value != null) {
+			return value.toString();
+		}
+		long pos = getSourcePosition(node);
+		return this.source.substring(pos, pos + getLength(node));
+	}
+
+	public final CharSequence getTextView(int node) {
+		Object value = getValue(node);
+		if(value != null) {
+			return value.toString();
+		}
+		return new SourceText(this.source, getSourcePosition(node), getLength(node));
+	}
+
+	public final boolean textEquals(int node, byte[] utf8) {
+		Object value = getValue(node);
+		if(value != null) {
+			return SourceText.textEquals(value.toString(), utf8);
+		}
+		return utf8.length == getLength(node) && this.source.match(getSourcePosition(node), utf8);
+	}
+
+	/* navigation */
+
+	public final TreeCursor newCursor() {
+		return new TreeCursor(this, this.root);
+	}
+
+	public final int countChildren(int node) {
+		int c = 0;
+		for(int n = getFirstChild(node); n >= 0; n = getNextSibling(n)) {
+			c++;
+		}
+		return c;
+	}
+
+	/* conversion */
+
+	public final CommonTree toCommonTree() {
+		return this.root == Null ? null : toCommonTree(this.root);
+	}
+
+	public final CommonTree toCommonTree(int node) {
+		long pos = getSourcePosition(node);
+		CommonTree t = new CommonTree(getTag(node), this.source, pos, pos + getLength(node), countChildren(node), getValue(node));
+		int i = 0;
+		for(int n = getFirstChild(node); n >= 0; n = getNextSibling(n)) {
+			t.set(i, toCommonTree(n));
+			i++;
+		}
+		return t;
+	}
+
+}
@@ -0,0 +1,76 @@
+package nez.ast;
+
+/**
+ * ColumnarTreeTransducer builds a ColumnarTree; a node object is the
+ * Integer index of the node. The children linked to a node are chained
+ * when the node is committed.
+ */
+
+public class ColumnarTreeTransducer extends TreeTransducer {
+	private static final Tag Token = Tag.tag("token");
+	private static final Tag Tree = Tag.tag("tree");
+
+	private final ColumnarTree tree = new ColumnarTree();
+	private int pendingNode = ColumnarTree.Null;
+	private int[] pending = new int[16];   // the children of pendingNode
+	private int pendingSize = 0;
+
+	@Override
+	public Object newNode(Tag tag, Source s, long spos, long epos, int size, Object value) {
+		int node = tree.newNode(s, tag == null ? (size == 0 ? Token : Tree) : tag, spos, (int)(epos - spos), value);
+		if(size > 0) {
+			if(size > this.pending.length) {
+				this.pending = new int[Math.max(size, this.pending.length * 2)];
+			}
+			for(int i = 0; i < size; i++) {
+				this.pending[i] = ColumnarTree.Null;
+			}
+			this.pendingNode = node;
+			this.pendingSize = size;
+		}
+		return node;
+	}
+
+	@Override
+	public void link(Object node, int index, Object child) {
+		int c = (Integer)child;
+		if(tree.isLinked(c)) {
+			c = tree.dupNode(c);  // a shared subtree
+		}
+		tree.setNextSibling(c, ColumnarTree.Null);
+		if((Integer)node == this.pendingNode && index < this.pendingSize) {
+			this.pending[index] = c;
+		}
+	}
+
+	@Override
+	public Object commit(Object node) {
+		int n = (Integer)node;
+		if(n == this.pendingNode) {
+			int prev = ColumnarTree.Null;
+			for(int i = this.pendingSize - 1; i >= 0; i--) {
+				int c = this.pending[i];
+				if(c != ColumnarTree.Null) {
+					tree.setNextSibling(c, prev);
+					prev = c;
+				}
+			}
+			tree.setFirstChild(n, prev);
+			this.pendingNode = ColumnarTree.Null;
+		}
+		return node;
+	}
+
+	@Override
+	public void abort(Object node) {
+	}
+
+	/**
+	 * Returns the tree whose root is a node returned by commit().
+	 */
+	public final ColumnarTree getTree(Object root) {
+		tree.setRoot((Integer)root);
+		return tree;
+	}
+
+}
@@ -92,10 +92,22 @@ public class CommonTree extends AbstractList<CommonTree> implements SourcePositi
 		return this.pos;
 	}
 
+	/* the replaced text, or the text once getText() has copied it */
+	final Object getValue() {
+		return this.value;
+	}
+
 	public final int getLength() {
 		return this.length;
 	}
 
+	/**
+	 * Moves this node by delta bytes, for a subtree reused after a text edit.
+	 */
+	public final void shiftPosition(long delta) {
+		this.pos += delta;
+	}
+
 	@Override
 	public final boolean isEmpty() {
 		return this.length == 0;
@@ -231,6 +243,50 @@ public class CommonTree extends AbstractList<CommonTree> implements SourcePositi
 		return "";
 	}
 	
+	/**
+	 * Returns the text as a view over the source, which is not copied into
+	 * a String; see also textEquals() and textHash().
+	 */
+	public final CharSequence getTextView() {
+		if(this.value != null) {
+			return this.value.toString();
+		}
+		if(this.source != null) {
+			return new SourceText(this.source, this.getSourcePosition(), this.getLength());
+		}
+		return "";
+	}
+
+	/**
+	 * Compares the UTF-8 bytes of the text without creating a String.
+	 */
+	public final boolean textEquals(byte[] utf8) {
+		if(this.value != null) {
+			return SourceText.textEquals(this.value.toString(), utf8);
+		}
+		if(this.source != null) {
+			return utf8.length == this.getLength() && this.source.match(this.getSourcePosition(), utf8);
+		}
+		return utf8.length == 0;
+	}
+
+	/**
+	 * Returns the hash of the UTF-8 bytes of the text, SourceText.textHash(utf8).
+	 */
+	public final int textHash() {
+		if(this.value != null) {
+			return SourceText.textHash(this.value.toString());
+		}
+		int h = 0;
+		if(this.source != null) {
+			long pos = this.getSourcePosition();
+			for(int i = 0; i < this.length; i++) {
+				h = h * 31 + this.source.byteAt(pos + i);
+			}
+		}
+		return h;
+	}
+
 	public final String textAt(int index, String defaultValue) {
 		if(index < this.size()) {
 			return this.get(index).getText();
@@ -0,0 +1,150 @@
+package nez.ast;
+
+import java.util.BitSet;
+
+/**
+ * EventTreeTransducer builds no tree objects for a TreeListener. A node
+ * becomes part of the result only when the whole parse succeeds, so the
+ * nodes of accepted tags are kept in ColumnarTree columns until emit();
+ * a skipped node is passed through as its accepted descendants, or as a
+ * transparent row if it has more than one.
+ */
+
+public class EventTreeTransducer extends TreeTransducer {
+	private static final Tag Token = Tag.tag("token");
+	private static final Tag Tree = Tag.tag("tree");
+	private static final Object Empty = new Object();    // no accepted node
+	private static final Object Pending = new Object();  // the node until commit
+
+	private final TreeListener listener;
+	private final ColumnarTree buffer = new ColumnarTree();
+	private final BitSet leaves = new BitSet();
+	private final BitSet transparents = new BitSet();
+
+	/* the node under construction */
+	private Tag tag;
+	private Source source;
+	private long spos;
+	private long epos;
+	private Object value;
+	private int size;
+	private int[] children = new int[16];
+
+	public EventTreeTransducer(TreeListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public boolean requires(Tag tag) {
+		return listener.accept(tag == null ? Token : tag);
+	}
+
+	@Override
+	public Object newNode(Tag tag, Source s, long spos, long epos, int size, Object value) {
+		this.tag = tag == null ? (size == 0 ? Token : Tree) : tag;
+		this.source = s;
+		this.spos = spos;
+		this.epos = epos;
+		this.value = value;
+		this.size = size;
+		if(size > this.children.length) {
+			this.children = new int[Math.max(size, this.children.length * 2)];
+		}
+		for(int i = 0; i < size; i++) {
+			this.children[i] = ColumnarTree.Null;
+		}
+		return Pending;
+	}
+
+	@Override
+	public void link(Object node, int index, Object child) {
+		if(child == Empty || !(index < this.size)) {
+			return;
+		}
+		int c = (Integer)child;
+		if(buffer.isLinked(c)) {
+			int n = buffer.dupNode(c);  // a shared subtree
+			leaves.set(n, leaves.get(c));
+			transparents.set(n, transparents.get(c));
+			c = n;
+		}
+		buffer.setNextSibling(c, ColumnarTree.Null);
+		this.children[index] = c;
+	}
+
+	@Override
+	public Object commit(Object node) {
+		if(node != Pending) {
+			return node;  // committed
+		}
+		boolean accepted = listener.accept(this.tag);
+		if(this.size == 0) {
+			if(!accepted) {
+				return Empty;
+			}
+			int n = buffer.newNode(this.source, this.tag, this.spos, (int)(this.epos - this.spos), this.value);
+			leaves.set(n);
+			return n;
+		}
+		int count = 0;
+		int first = ColumnarTree.Null;
+		for(int i = this.size - 1; i >= 0; i--) {
+			int c = this.children[i];
+			if(c != ColumnarTree.Null) {
+				buffer.setNextSibling(c, first);
+				first = c;
+				count++;
+			}
+		}
+		if(!accepted) {
+			if(count == 0) {
+				return Empty;
+			}
+			if(count == 1) {
+				buffer.setNextSibling(first, ColumnarTree.Unlinked);
+				return first;
+			}
+		}
+		int n = buffer.newNode(this.source, this.tag, this.spos, (int)(this.epos - this.spos), accepted ? this.value : null);
+		buffer.setFirstChild(n, first);
+		if(!accepted) {
+			transparents.set(n);
+		}
+		return n;
+	}
+
+	@Override
+	public void abort(Object node) {
+	}
+
+	/**
+	 * Sends the events of a node returned by commit() to the listener.
+	 */
+	public final void emit(Object node) {
+		if(node != Empty && node != Pending) {
+			emit((int)(Integer)node);
+		}
+	}
+
+	private void emit(int n) {
+		if(transparents.get(n)) {
+			for(int c = buffer.getFirstChild(n); c >= 0; c = buffer.getNextSibling(c)) {
+				emit(c);
+			}
+			return;
+		}
+		Tag tag = buffer.getTag(n);
+		Source s = buffer.getSource();
+		long pos = buffer.getSourcePosition(n);
+		if(leaves.get(n)) {
+			listener.token(tag, s, pos, pos + buffer.getLength(n), buffer.getTextView(n));
+			return;
+		}
+		listener.startTree(tag, s, pos);
+		for(int c = buffer.getFirstChild(n); c >= 0; c = buffer.getNextSibling(c)) {
+			emit(c);
+		}
+		listener.endTree(tag, s, pos, pos + buffer.getLength(n));
+	}
+
+}
@@ -0,0 +1,154 @@
+package nez.ast;
+
+import java.util.Arrays;
+
+import nez.util.StringUtils;
+
+/**
+ * SourceText is the text of a node read through its source; the bytes are
+ * neither copied nor decoded into a String. Characters of an ASCII text
+ * are read directly from the source; other text is decoded once.
+ */
+
+public final class SourceText implements CharSequence {
+	private final Source source;
+	private final long pos;
+	private final int length;
+	private int ascii = 0;          // 0: unknown, 1: ascii, -1: decoded
+	private String decoded = null;
+
+	public SourceText(Source source, long pos, int length) {
+		this.source = source;
+		this.pos = pos;
+		this.length = length;
+	}
+
+	public final Source getSource() {
+		return this.source;
+	}
+
+	public final long getSourcePosition() {
+		return this.pos;
+	}
+
+	/* bytes */
+
+	public final int byteLength() {
+		return this.length;
+	}
+
+	public final int byteAt(int index) {
+		return this.source.byteAt(this.pos + index);
+	}
+
+	public final boolean textEquals(byte[] utf8) {
+		return utf8.length == this.length && this.source.match(this.pos, utf8);
+	}
+
+	public final int textHash() {
+		int h = 0;
+		for(int i = 0; i < this.length; i++) {
+			h = h * 31 + this.source.byteAt(this.pos + i);
+		}
+		return h;
+	}
+
+	/**
+	 * The hash of UTF-8 bytes, which equals String.hashCode() for ASCII.
+	 */
+	public final static int textHash(byte[] utf8) {
+		int h = 0;
+		for(int i = 0; i < utf8.length; i++) {
+			h = h * 31 + (utf8[i] & 0xff);
+		}
+		return h;
+	}
+
+	/* text of a node that is not in the source (e.g., replaced) */
+
+	final static boolean textEquals(CharSequence s, byte[] utf8) {
+		if(s.length() == utf8.length) {
+			int i = 0;
+			for(; i < utf8.length; i++) {
+				char c = s.charAt(i);
+				if(c >= 0x80 || utf8[i] < 0) {
+					break;
+				}
+				if(c != utf8[i]) {
+					return false;
+				}
+			}
+			if(i == utf8.length) {
+				return true;
+			}
+		}
+		else if(utf8.length < s.length()) {
+			return false;  // UTF-8 is not shorter than UTF-16
+		}
+		return Arrays.equals(StringUtils.toUtf8(s.toString()), utf8);
+	}
+
+	final static int textHash(CharSequence s) {
+		int h = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) {
+				return textHash(StringUtils.toUtf8(s.toString()));
+			}
+			h = h * 31 + c;
+		}
+		return h;
+	}
+
+	/* CharSequence */
+
+	private boolean isAscii() {
+		if(this.ascii == 0) {
+			this.ascii = 1;
+			for(int i = 0; i < this.length; i++) {
+				if(this.source.byteAt(this.pos + i) >= 0x80) {
+					this.ascii = -1;
+					this.decoded = this.toString();
+					break;
+				}
+			}
+		}
+		return this.ascii == 1;
+	}
+
+	@Override
+	public final int length() {
+		return isAscii() ? this.length : this.decoded.length();
+	}
+
+	@Override
+	public final char charAt(int index) {
+		if(isAscii()) {
+			if(index < 0 || index >= this.length) {
+				throw new IndexOutOfBoundsException("index " + index + " in " + this.length);
+			}
+			return (char)this.source.byteAt(this.pos + index);
+		}
+		return this.decoded.charAt(index);
+	}
+
+	@Override
+	public final CharSequence subSequence(int start, int end) {
+		if(isAscii()) {
+			if(start < 0 || end > this.length || start > end) {
+				throw new IndexOutOfBoundsException(start + ".." + end + " in " + this.length);
+			}
+			return new SourceText(this.source, this.pos + start, end - start);
+		}
+		return this.decoded.subSequence(start, end);
+	}
+
+	@Override
+	public final String toString() {
+		if(this.decoded != null) {
+			return this.decoded;
+		}
+		return this.source.substring(this.pos, this.pos + this.length);
+	}
+
+}
@@ -8,7 +8,7 @@ public class Tag {
 	private static HashMap<String, Tag> tagIdMap = new HashMap<String, Tag>();
 	private static UList<Tag> tagNameList = new UList<Tag>(new Tag[64]);
 	
-	public final static Tag tag(String tagName) {
+	public final static synchronized Tag tag(String tagName) {
 		Tag tag = tagIdMap.get(tagName);
 		if(tag == null) {
 			tag = new Tag(tagIdMap.size(), tagName);
@@ -0,0 +1,126 @@
+package nez.ast;
+
+/**
+ * TreeCursor is a flyweight over a ColumnarTree: one object moves over the
+ * nodes, keeping the path from the root for parent().
+ */
+
+public final class TreeCursor {
+	private final ColumnarTree tree;
+	private final int root;
+	private int node;
+	private int[] path = new int[32];
+	private int depth = 0;
+
+	TreeCursor(ColumnarTree tree, int root) {
+		this.tree = tree;
+		this.root = root;
+		this.node = root;
+	}
+
+	public final ColumnarTree getTree() {
+		return this.tree;
+	}
+
+	public final int getNode() {
+		return this.node;
+	}
+
+	public final int getDepth() {
+		return this.depth;
+	}
+
+	public final void reset() {
+		this.node = this.root;
+		this.depth = 0;
+	}
+
+	/* node */
+
+	public final Tag getTag() {
+		return tree.getTag(this.node);
+	}
+
+	public final boolean is(Tag tag) {
+		return tree.getTagId(this.node) == tag.tagId;
+	}
+
+	public final long getSourcePosition() {
+		return tree.getSourcePosition(this.node);
+	}
+
+	public final int getLength() {
+		return tree.getLength(this.node);
+	}
+
+	public final boolean isLeaf() {
+		return tree.getFirstChild(this.node) == ColumnarTree.Null;
+	}
+
+	public final int size() {
+		return tree.countChildren(this.node);
+	}
+
+	public final String getText() {
+		return tree.getText(this.node);
+	}
+
+	public final CharSequence getTextView() {
+		return tree.getTextView(this.node);
+	}
+
+	public final boolean textEquals(byte[] utf8) {
+		return tree.textEquals(this.node, utf8);
+	}
+
+	/* moves */
+
+	public final boolean firstChild() {
+		int c = tree.getFirstChild(this.node);
+		if(c == ColumnarTree.Null) {
+			return false;
+		}
+		if(this.depth == this.path.length) {
+			int[] a = new int[this.path.length * 2];
+			System.arraycopy(this.path, 0, a, 0, this.path.length);
+			this.path = a;
+		}
+		this.path[this.depth++] = this.node;
+		this.node = c;
+		return true;
+	}
+
+	public final boolean nextSibling() {
+		if(this.depth == 0) {
+			return false;
+		}
+		int s = tree.getNextSibling(this.node);
+		if(s < 0) {
+			return false;
+		}
+		this.node = s;
+		return true;
+	}
+
+	public final boolean parent() {
+		if(this.depth == 0) {
+			return false;
+		}
+		this.node = this.path[--this.depth];
+		return true;
+	}
+
+	public final boolean child(int index) {
+		if(!firstChild()) {
+			return false;
+		}
+		for(int i = 0; i < index; i++) {
+			if(!nextSibling()) {
+				parent();
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,42 @@
+package nez.ast;
+
+/**
+ * TreeListener receives a parsed tree as events (Grammar.parse(sc,
+ * listener)) instead of a CommonTree. Only the nodes of accepted tags are
+ * reported; the descendants of a skipped node are reported as children of
+ * its nearest accepted ancestor.
+ */
+
+public abstract class TreeListener {
+	private boolean[] accepted = null;  // indexed by Tag.tagId; null accepts all
+
+	public TreeListener() {
+	}
+
+	public TreeListener(String... tagNames) {
+		this.accepted = new boolean[0];
+		for(String name : tagNames) {
+			Tag tag = Tag.tag(name);
+			if(!(tag.tagId < this.accepted.length)) {
+				boolean[] a = new boolean[tag.tagId + 1];
+				System.arraycopy(this.accepted, 0, a, 0, this.accepted.length);
+				this.accepted = a;
+			}
+			this.accepted[tag.tagId] = true;
+		}
+	}
+
+	public boolean accept(Tag tag) {
+		return this.accepted == null || (tag.tagId < this.accepted.length && this.accepted[tag.tagId]);
+	}
+
+	public abstract void startTree(Tag tag, Source s, long pos);
+
+	public abstract void endTree(Tag tag, Source s, long spos, long epos);
+
+	/**
+	 * Receives a leaf; text is a view of the source or a replaced value.
+	 */
+	public abstract void token(Tag tag, Source s, long spos, long epos, CharSequence text);
+
+}
@@ -5,4 +5,12 @@ public abstract class TreeTransducer {
 	public abstract void link(Object node, int index, Object child);
 	public abstract Object commit(Object node);
 	public abstract void abort(Object node);
+
+	/**
+	 * Returns false if the nodes of the tag (null for default) are not
+	 * used; the text of such a node is not copied from a stream.
+	 */
+	public boolean requires(Tag tag) {
+		return true;
+	}
 }
@@ -2,7 +2,7 @@ package nez.generator;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Stack;
 
 import nez.NezOption;
@@ -50,7 +50,6 @@ public class CParserGenerator extends ParserGenerator {
 	@Override
 	public void generate(Grammar grammar, NezOption option, String fileName) {
 		this.setOption(option);
-		this.option.setOption("ast", false);
 		this.optimizer = new GrammarOptimizer(option);
 		this.setOutputFile(fileName);
 		makeHeader(grammar);
@@ -83,44 +82,9 @@ public class CParserGenerator extends ParserGenerator {
 	public void makeFooter(Grammar grammar) {
 		this.file.writeIndent("int main(int argc, char* const argv[])");
 		this.openBlock();
-		this.file.writeIndent("uint64_t start, end, latency;");
-		this.file.writeIndent("ParsingContext ctx = nez_CreateParsingContext(argv[1]);");
-		this.file.writeIndent("ctx->flags_size = " + flagTable.size() + ";");
-		this.file.writeIndent("ctx->flags = (int*)calloc(" + flagTable.size() + ", sizeof(int));");
-		this.file.writeIndent("createMemoTable(ctx, " + memoId + ");");
-		this.file.writeIndent("for (int i = 0; i < 5; i++)");
-		this.openBlock();
-		this.file.writeIndent("ctx->cur = ctx->inputs;");
-		this.file.writeIndent("start = timer();");
-		this.file.writeIndent("if(pFile(ctx))");
-		this.openBlock();
-		this.file.writeIndent("nez_PrintErrorInfo(\"parse error\");");
-		this.closeBlock();
-		this.file.writeIndent("else if((ctx->cur - ctx->inputs) != ctx->input_size)");
-		this.openBlock();
-		this.file.writeIndent("nez_PrintErrorInfo(\"unconsume\");");
-		this.closeBlock();
-		this.file.writeIndent("else");
-		this.openBlock();
-		this.file.writeIndent("end = timer();");
-		if(this.option.enabledASTConstruction) {
-			this.file.writeIndent("ParsingObject po = nez_commitLog(ctx,0);");
-			this.file.writeIndent("dump_pego(&po, ctx->inputs, 0);");
-		}
-		this.file.writeIndent("fprintf(stderr, \"ErapsedTime: %llu msec\\n\", (unsigned long long)end - start);");
-		this.file.writeIndent("if(i == 0)");
-		this.openBlock();
-		this.file.writeIndent("latency = (unsigned long long)end - start;");
-		this.closeBlock();
-		this.file.writeIndent("else if(latency > ((unsigned long long)end - start))");
-		this.openBlock();
-		this.file.writeIndent("latency = (unsigned long long)end - start;");
-		this.closeBlock();
-		this.closeBlock();
-		this.closeBlock();
-		this.file.writeIndent("nez_log(ctx, argv[1], \"" + grammar.getProductionList().get(0).getGrammarFile().getURN() + "\", "
-				+ grammar.getProductionList().size() + ", latency, \"\");");
-		this.file.writeIndent("return 0;");
+		this.file.writeIndent("struct NezParser parser = { pFile, \"" + grammar.getProductionList().get(0).getGrammarFile().getURN() + "\", "
+				+ grammar.getProductionList().size() + ", " + memoId + ", " + flagTable.size() + ", " + (this.option.enabledASTConstruction ? 1 : 0) + " };");
+		this.file.writeIndent("return nez_main(&parser, argc, argv);");
 		this.file.writeIndent();
 		this.closeBlock();
 	}
@@ -199,6 +163,19 @@ public class CParserGenerator extends ParserGenerator {
 		}
 	}
 
+	/* the logs since a backtrack point are dropped when it is taken */
+	private void markLog(String mark) {
+		if(this.option.enabledASTConstruction) {
+			this.let("int", mark, "nez_markLogStack(ctx)");
+		}
+	}
+
+	private void abortLog(String mark) {
+		if(this.option.enabledASTConstruction) {
+			this.file.writeIndent("nez_abortLog(ctx, " + mark + ");");
+		}
+	}
+
 	private void memoize(Production rule, int id, String pos) {
 		this.file.writeIndent("nez_setMemo(ctx, " + pos + ", " + id + ", 0);");
 	}
@@ -360,7 +337,7 @@ public class CParserGenerator extends ParserGenerator {
 		for(int i = 0; i < e.size(); i++) {
 			Expression inner = e.get(i);
 			if(inner instanceof ByteChar) {
-				this.file.writeIndent("if((int)*(ctx->cur + " + i + ") == " + ((ByteChar) inner).byteChar + ")");
+				this.file.writeIndent("if((uint8_t)*(ctx->cur + " + i + ") == " + ((ByteChar) inner).byteChar + ")");
 				this.openBlock();
 			}
 		}
@@ -376,7 +353,7 @@ public class CParserGenerator extends ParserGenerator {
 			inner = getNonTerminalRule(inner);
 		}
 		if(inner instanceof ByteChar) {
-			this.file.writeIndent("if((int)*ctx->cur == " + ((ByteChar) inner).byteChar + ")");
+			this.file.writeIndent("if((uint8_t)*ctx->cur == " + ((ByteChar) inner).byteChar + ")");
 			this.openBlock();
 			this.jumpFailureJump();
 			this.closeBlock();
@@ -470,7 +447,7 @@ public class CParserGenerator extends ParserGenerator {
 		for(int i = 0; i < e.size(); i++) {
 			Expression inner = e.get(i);
 			if(inner instanceof ByteChar) {
-				this.file.writeIndent("if((int)*(ctx->cur++) == " + ((ByteChar) inner).byteChar + ")");
+				this.file.writeIndent("if((uint8_t)*(ctx->cur++) == " + ((ByteChar) inner).byteChar + ")");
 				this.openBlock();
 			}
 		}
@@ -488,7 +465,7 @@ public class CParserGenerator extends ParserGenerator {
 			inner = getNonTerminalRule(inner);
 		}
 		if(inner instanceof ByteChar) {
-			this.file.writeIndent("if((int)*ctx->cur == " + ((ByteChar) inner).byteChar + ")");
+			this.file.writeIndent("if((uint8_t)*ctx->cur == " + ((ByteChar) inner).byteChar + ")");
 			this.openBlock();
 			this.file.writeIndent("ctx->cur++;");
 			this.closeBlock();
@@ -557,14 +534,14 @@ public class CParserGenerator extends ParserGenerator {
 			if(b[start]) {
 				int end = searchEndChar(b, start + 1);
 				if(start == end) {
-					this.file.writeIndent("if((int)*ctx->cur == " + start + ")");
+					this.file.writeIndent("if((uint8_t)*ctx->cur == " + start + ")");
 					this.openBlock();
 					this.consume();
 					this.file.writeIndent("continue;");
 					this.closeBlock();
 				}
 				else {
-					this.file.writeIndent("if(" + start + "<= (int)*ctx->cur" + " && (int)*ctx->cur <= " + end + ")");
+					this.file.writeIndent("if(" + start + "<= (uint8_t)*ctx->cur" + " && (uint8_t)*ctx->cur <= " + end + ")");
 					this.openBlock();
 					this.consume();
 					this.file.writeIndent("continue;");
@@ -585,7 +562,7 @@ public class CParserGenerator extends ParserGenerator {
 		if(inner instanceof ByteChar) {
 			this.file.writeIndent("while(1)");
 			this.openBlock();
-			this.file.writeIndent("if((int)*ctx->cur != " + ((ByteChar) inner).byteChar + ")");
+			this.file.writeIndent("if((uint8_t)*ctx->cur != " + ((ByteChar) inner).byteChar + ")");
 			this.openBlock();
 			this.file.writeIndent("break;");
 			this.closeBlock();
@@ -601,14 +578,14 @@ public class CParserGenerator extends ParserGenerator {
 				if(b[start]) {
 					int end = searchEndChar(b, start + 1);
 					if(start == end) {
-						this.file.writeIndent("if((int)*ctx->cur == " + start + ")");
+						this.file.writeIndent("if((uint8_t)*ctx->cur == " + start + ")");
 						this.openBlock();
 						this.consume();
 						this.file.writeIndent("continue;");
 						this.closeBlock();
 					}
 					else {
-						this.file.writeIndent("if(" + start + "<= (int)*ctx->cur" + " && (int)*ctx->cur <= " + end + ")");
+						this.file.writeIndent("if(" + start + "<= (uint8_t)*ctx->cur" + " && (uint8_t)*ctx->cur <= " + end + ")");
 						this.openBlock();
 						this.consume();
 						this.file.writeIndent("continue;");
@@ -711,7 +688,7 @@ public class CParserGenerator extends ParserGenerator {
 
 	@Override
 	public void visitByteChar(ByteChar e) {
-		this.file.writeIndent("if((int)*ctx->cur != " + e.byteChar + ")");
+		this.file.writeIndent("if((uint8_t)*ctx->cur != " + e.byteChar + ")");
 		this.openBlock();
 		this.jumpFailureJump();
 		this.closeBlock();
@@ -736,14 +713,14 @@ public class CParserGenerator extends ParserGenerator {
 			if(b[start]) {
 				int end = searchEndChar(b, start + 1);
 				if(start == end) {
-					this.file.writeIndent("if((int)*ctx->cur == " + start + ")");
+					this.file.writeIndent("if((uint8_t)*ctx->cur == " + start + ")");
 					this.openBlock();
 					this.consume();
 					this.gotoLabel(label);
 					this.closeBlock();
 				}
 				else {
-					this.file.writeIndent("if(" + start + "<= (int)*ctx->cur" + " && (int)*ctx->cur <= " + end + ")");
+					this.file.writeIndent("if(" + start + "<= (uint8_t)*ctx->cur" + " && (uint8_t)*ctx->cur <= " + end + ")");
 					this.openBlock();
 					this.consume();
 					this.gotoLabel(label);
@@ -801,11 +778,14 @@ public class CParserGenerator extends ParserGenerator {
 			this.pushFailureJumpPoint();
 			String label = "EXIT_OPTION" + this.fid;
 			String backtrack = "c" + this.fid;
+			String mark = "log" + this.fid;
 			this.let("char*", backtrack, "ctx->cur");
+			this.markLog(mark);
 			visitExpression(e.get(0));
 			this.gotoLabel(label);
 			this.popFailureJumpPoint(e);
 			this.let(null, "ctx->cur", backtrack);
+			this.abortLog(mark);
 			this.exitLabel(label);
 		}
 	}
@@ -813,32 +793,38 @@ public class CParserGenerator extends ParserGenerator {
 	@Override
 	public void visitRepetition(Repetition e) {
 		if(!specializeRepetition(e)) {
-			this.pushFailureJumpPoint();
-			String backtrack = "c" + this.fid;
-			this.let("char*", backtrack, "ctx->cur");
-			this.file.writeIndent("while(1)");
-			this.openBlock();
-			visitExpression(e.get(0));
-			this.let(null, backtrack, "ctx->cur");
-			this.closeBlock();
-			this.popFailureJumpPoint(e);
-			this.let(null, "ctx->cur", backtrack);
+			writeRepetition(e.get(0));
 		}
 	}
 
 	@Override
 	public void visitRepetition1(Repetition1 e) {
 		visitExpression(e.get(0));
+		writeRepetition(e.get(0));
+	}
+
+	/* an iteration that consumes nothing fails, as in the VM */
+	private void writeRepetition(Expression inner) {
 		this.pushFailureJumpPoint();
 		String backtrack = "c" + this.fid;
+		String mark = "log" + this.fid;
 		this.let("char*", backtrack, "ctx->cur");
+		this.markLog(mark);
 		this.file.writeIndent("while(1)");
 		this.openBlock();
-		visitExpression(e.get(0));
+		visitExpression(inner);
+		this.file.writeIndent("if(ctx->cur == " + backtrack + ")");
+		this.openBlock();
+		this.jumpFailureJump();
+		this.closeBlock();
 		this.let(null, backtrack, "ctx->cur");
+		if(this.option.enabledASTConstruction) {
+			this.let(null, mark, "nez_markLogStack(ctx)");
+		}
 		this.closeBlock();
-		this.popFailureJumpPoint(e);
+		this.popFailureJumpPoint(inner);
 		this.let(null, "ctx->cur", backtrack);
+		this.abortLog(mark);
 	}
 
 	@Override
@@ -931,21 +917,23 @@ public class CParserGenerator extends ParserGenerator {
 			justPredictionCount++;
 			int fid = this.fid++;
 			String label = "EXIT_CHOICE" + fid;
-			HashMap<Integer, Expression> m = new HashMap<Integer, Expression>();
+			// labels are numbered per case; expression ids are not unique
+			IdentityHashMap<Expression, Integer> m = new IdentityHashMap<Expression, Integer>();
 			ArrayList<Expression> l = new ArrayList<Expression>();
 			this.file.writeIndent("void* jump_table" + formatId(fid) + "[] = {");
 			for(int ch = 0; ch < e.predictedCase.length; ch++) {
 				Expression pCase = e.predictedCase[ch];
 				if(pCase != null) {
-					Expression me = m.get(pCase.getId());
-					if(me == null) {
-						m.put(pCase.getId(), pCase);
+					Integer n = m.get(pCase);
+					if(n == null) {
 						l.add(pCase);
+						n = l.size();
+						m.put(pCase, n);
 					}
-					this.file.write("&&PREDICATE_JUMP" + formatId(fid) + "" + pCase.getId());
+					this.file.write("&&PREDICATE_JUMP" + formatId(fid) + "_" + n);
 				}
 				else {
-					this.file.write("&&PREDICATE_JUMP" + formatId(fid) + "" + 0);
+					this.file.write("&&PREDICATE_JUMP" + formatId(fid) + "_" + 0);
 				}
 				if(ch < e.predictedCase.length - 1) {
 					this.file.write(", ");
@@ -955,7 +943,7 @@ public class CParserGenerator extends ParserGenerator {
 			this.file.writeIndent("goto *jump_table" + formatId(fid) + "[(uint8_t)*ctx->cur];");
 			for(int i = 0; i < l.size(); i++) {
 				Expression pe = l.get(i);
-				this.exitLabel("PREDICATE_JUMP" + formatId(fid) + "" + pe.getId());
+				this.exitLabel("PREDICATE_JUMP" + formatId(fid) + "_" + (i + 1));
 				if(!(pe instanceof Choice)) {
 					this.choiceCount();
 				}
@@ -966,7 +954,7 @@ public class CParserGenerator extends ParserGenerator {
 				isPrediction = true;
 				this.gotoLabel(label);
 			}
-			this.exitLabel("PREDICATE_JUMP" + formatId(fid) + "" + 0);
+			this.exitLabel("PREDICATE_JUMP" + formatId(fid) + "_" + 0);
 			this.jumpFailureJump();
 			this.exitLabel(label);
 			justPredictionCount--;
@@ -975,7 +963,9 @@ public class CParserGenerator extends ParserGenerator {
 			this.fid++;
 			String label = "EXIT_CHOICE" + this.fid;
 			String backtrack = "c" + this.fid;
+			String mark = "log" + this.fid;
 			this.let("char*", backtrack, "ctx->cur");
+			this.markLog(mark);
 			for(int i = 0; i < e.size(); i++) {
 				this.pushFailureJumpPoint();
 				this.choiceCount();
@@ -983,6 +973,7 @@ public class CParserGenerator extends ParserGenerator {
 				this.gotoLabel(label);
 				this.popFailureJumpPoint(e.get(i));
 				this.let(null, "ctx->cur", backtrack);
+				this.abortLog(mark);
 			}
 			this.jumpFailureJump();
 			this.exitLabel(label);
@@ -998,7 +989,8 @@ public class CParserGenerator extends ParserGenerator {
 			String mark = "mark" + this.fid;
 			this.markStack.push(mark);
 			this.file.writeIndent("int " + mark + " = nez_markLogStack(ctx);");
-			this.file.writeIndent("nez_pushDataLog(ctx, LazyNew_T, ctx->cur - ctx->inputs, -1, NULL, NULL);");
+			String type = e.lefted ? "LazyLeftJoin_T" : "LazyNew_T";
+			this.file.writeIndent("nez_pushDataLog(ctx, " + type + ", ctx->cur - ctx->inputs + " + e.shift + ", -1, NULL, NULL);");
 		}
 	}
 
@@ -1006,7 +998,7 @@ public class CParserGenerator extends ParserGenerator {
 	public void visitCapture(Capture e) {
 		if(this.option.enabledASTConstruction) {
 			String label = "EXIT_CAPTURE" + this.fid++;
-			this.file.writeIndent("nez_pushDataLog(ctx, LazyCapture_T, ctx->cur - ctx->inputs, 0, NULL, NULL);");
+			this.file.writeIndent("nez_pushDataLog(ctx, LazyCapture_T, ctx->cur - ctx->inputs + " + e.shift + ", 0, NULL, NULL);");
 			this.gotoLabel(label);
 			this.popFailureJumpPoint(e);
 			this.file.writeIndent("nez_abortLog(ctx, " + this.markStack.pop() + ");");
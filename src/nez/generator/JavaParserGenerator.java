@@ -1,9 +1,13 @@
 package nez.generator;
 
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 
-import nez.ast.Tag;
+import nez.NezOption;
 import nez.lang.And;
 import nez.lang.AnyChar;
 import nez.lang.Block;
@@ -14,16 +18,16 @@ import nez.lang.CharMultiByte;
 import nez.lang.Choice;
 import nez.lang.DefIndent;
 import nez.lang.DefSymbol;
-import nez.lang.Empty;
 import nez.lang.ExistsSymbol;
 import nez.lang.Expression;
-import nez.lang.Failure;
 import nez.lang.Grammar;
+import nez.lang.GrammarOptimizer;
 import nez.lang.IsIndent;
 import nez.lang.IsSymbol;
 import nez.lang.Link;
 import nez.lang.LocalTable;
 import nez.lang.New;
+import nez.lang.NezTag;
 import nez.lang.NonTerminal;
 import nez.lang.Not;
 import nez.lang.Option;
@@ -34,490 +38,1559 @@ import nez.lang.Replace;
 import nez.lang.Sequence;
 import nez.lang.Tagging;
 import nez.lang.Typestate;
-import nez.util.StringUtils;
+import nez.util.FileBuilder;
+import nez.util.UList;
+
+/**
+ * JavaParserGenerator generates a standalone parser class in Java. The
+ * class loads no grammar at run time: each production is a static method,
+ * and a small runtime (NezContext, NezTree) is embedded for the AST log,
+ * the memo table and the symbol tables. Productions referenced more than
+ * twice are memoized with the adaptive policy of the VM (MemoPoint). Byte
+ * maps, strings and repetitions of bytes are specialized into table
+ * lookups and loops, and predicted choices into a switch.
+ */
 
 public class JavaParserGenerator extends ParserGenerator {
+	final static int FuncSizeLimit = 128;  // expression nodes written in one method
+	final static int Padding = 16;         // zero bytes after the input
 
 	@Override
 	public String getDesc() {
-		return "a Nez parser generator for Java (sample)" ;
+		return "a Nez parser generator for Java";
+	}
+
+	String className;
+	HashMap<String, String> funcNameMap;
+	HashMap<String, Integer> memoIdMap;
+	HashMap<String, Integer> tableMap;
+	HashMap<String, String> constMap;
+	UList<String> constList;
+	IdentityHashMap<Expression, String> funcMap;
+	ArrayDeque<Expression> funcQueue;
+	IdentityHashMap<Expression, Integer> sizeMap;
+	HashSet<String> treeSet;
+	Expression funcRoot;
+	int funcSize;
+	int fid;
+
+	@Override
+	public void generate(Grammar grammar, NezOption option, String fileName) {
+		this.setOption(option);
+		this.setOutputFile(fileName);
+		this.className = className(grammar, fileName);
+		this.generate(grammar);
+	}
+
+	/**
+	 * Returns the source of the parser class, named className.
+	 */
+	public String generateSource(Grammar grammar, NezOption option, String className) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		this.setOption(option);
+		this.file = new FileBuilder(out);
+		this.className = className;
+		this.generate(grammar);
+		try {
+			return out.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	private void generate(Grammar grammar) {
+		init(grammar);
+		makeHeader(grammar);
+		for(Production p : grammar.getProductionList()) {
+			visitProduction(p);
+		}
+		makeFooter(grammar);
+		file.writeNewLine();
+		file.flush();
+	}
+
+	private String className(Grammar grammar, String fileName) {
+		String name = fileName != null ? fileName : grammar.getStartProduction().getGrammarFile().getURN();
+		name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+		if(name.indexOf('.') > 0) {
+			name = name.substring(0, name.indexOf('.'));
+		}
+		name = identifier(name);
+		if(fileName == null) {
+			name = Character.toUpperCase(name.charAt(0)) + name.substring(1) + "Parser";
+		}
+		return name;
+	}
+
+	private static String identifier(String name) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			sb.append(ch < 128 && Character.isLetterOrDigit(ch) ? ch : '_');
+		}
+		if(sb.length() == 0 || Character.isDigit(sb.charAt(0))) {
+			sb.insert(0, '_');
+		}
+		return sb.toString();
+	}
+
+	private void init(Grammar grammar) {
+		this.funcNameMap = new HashMap<String, String>();
+		this.memoIdMap = new HashMap<String, Integer>();
+		this.tableMap = new HashMap<String, Integer>();
+		this.tableMap.put(NezTag.Indent.getName(), 0);
+		this.constMap = new HashMap<String, String>();
+		this.constList = new UList<String>(new String[16]);
+		this.funcMap = new IdentityHashMap<Expression, String>();
+		this.funcQueue = new ArrayDeque<Expression>();
+		this.sizeMap = new IdentityHashMap<Expression, Integer>();
+		this.fid = 0;
+		HashMap<String, Integer> refs = new HashMap<String, Integer>();
+		refs.put(grammar.getStartProduction().getUniqueName(), 1);
+		for(Production p : grammar.getProductionList()) {
+			countReference(refs, p.getExpression());
+		}
+		HashSet<String> names = new HashSet<String>();
+		for(Production p : grammar.getProductionList()) {
+			String name = "p" + identifier(p.getLocalName());
+			for(int n = 2; names.contains(name); n++) {
+				name = "p" + identifier(p.getLocalName()) + n;
+			}
+			names.add(name);
+			this.funcNameMap.put(p.getUniqueName(), name);
+			if(isMemoized(p, refs.get(p.getUniqueName()))) {
+				this.memoIdMap.put(p.getUniqueName(), this.memoIdMap.size());
+			}
+		}
+		this.treeSet = new HashSet<String>();
+		boolean changed = option.enabledASTConstruction;
+		while(changed) {
+			changed = false;
+			for(Production p : grammar.getProductionList()) {
+				if(!treeSet.contains(p.getUniqueName()) && isTreeConstruction(p.getExpression())) {
+					treeSet.add(p.getUniqueName());
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private void countReference(HashMap<String, Integer> refs, Expression e) {
+		if(e instanceof NonTerminal) {
+			String uname = ((NonTerminal) e).getProduction().getUniqueName();
+			Integer n = refs.get(uname);
+			refs.put(uname, n == null ? 1 : n + 1);
+		}
+		for(Expression sub : e) {
+			countReference(refs, sub);
+		}
+	}
+
+	/* the memo points of NezEncoder; a tree is not memoized (a miss in the VM) */
+	private boolean isMemoized(Production p, Integer ref) {
+		if(!option.enabledMemoization && !option.enabledPackratParsing) {
+			return false;
+		}
+		if(ref == null || (ref <= 2 && !option.enabledPackratParsing)) {
+			return false;
+		}
+		if(p.inferTypestate() == Typestate.OperationType || GrammarOptimizer.isSingleCharacter(p.getExpression())) {
+			return false;
+		}
+		return !option.enabledASTConstruction || p.isNoNTreeConstruction();
 	}
 
 	@Override
 	public void makeHeader(Grammar g) {
-		W("/* The following is generated by the Nez Grammar Generator */");
-		L("class P").Begin();
+		W("/* The following is generated by the Nez parser generator from ");
+		W(g.getStartProduction().getGrammarFile().getURN()).W(" */");
+		file.writeNewLine();
+		L("import java.io.IOException;");
+		L("import java.nio.charset.Charset;");
+		L("import java.nio.file.Files;");
+		L("import java.nio.file.Paths;");
+		L("import java.util.Arrays;");
+		file.writeNewLine();
+		L("public class " + className + " ").Begin();
 	}
-	
+
 	@Override
 	public void makeFooter(Grammar g) {
+		file.writeNewLine();
+		L("static final Charset UTF8 = Charset.forName(\"UTF-8\");");
+		L("static final int MemoPointSize = " + memoIdMap.size() + ";");
+		L("static final boolean AdaptiveMemo = " + !option.enabledPackratParsing + ";");
+		L("static final int TableSize = " + tableMap.size() + ";");
+		for(String c : constList) {
+			L(c);
+		}
+		file.writeNewLine();
+		L("public static NezTree parse(byte[] utf8) ").Begin();
+		Return("new NezContext(utf8).parse()");
+		End();
+		file.writeNewLine();
+		L("public static NezTree parse(String text) ").Begin();
+		Return("parse(text.getBytes(UTF8))");
+		End();
+		file.writeNewLine();
+		L("public static void main(String[] args) throws IOException ").Begin();
+		L("for(String file : args) ").Begin();
+		VarContext("c", "new NezContext(Files.readAllBytes(Paths.get(file)))");
+		L("NezTree t = c.parse();");
+		IfThen("t == null").Begin();
+		Statement("System.err.println(file + \": syntax error\")");
+		Statement("System.exit(1)");
+		End();
+		IfThen("c.hasUnconsumed()").Begin();
+		Statement("System.err.println(file + \": unconsumed at \" + c.getPosition())");
+		Statement("System.exit(1)");
+		End();
+		Statement("System.out.println(t)");
+		End();
+		End();
+		writeContext(funcNameMap.get(g.getStartProduction().getUniqueName()));
+		writeTree();
 		End();
 	}
 
-	String _func(Production rule) {
-		return rule.getLocalName();
+	private JavaParserGenerator VarContext(String n, String v) {
+		L("NezContext ").W(n).W(" = ").W(v).Semi();
+		return this;
 	}
 
-	String  _func(Expression e) {
-		return "e" + e.getId();
+	// constants
+
+	private String _const(String key, String prefix, String type, String init) {
+		String name = constMap.get(key);
+		if(name == null) {
+			name = prefix + constMap.size();
+			constMap.put(key, name);
+			constList.add("private static final " + type + " " + name + " = " + init + ";");
+		}
+		return name;
 	}
 
-	String  _ctx() { return "c";}
+	private String _map(boolean[] map) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 256; i += 4) {
+			int n = (map[i] ? 8 : 0) | (map[i + 1] ? 4 : 0) | (map[i + 2] ? 2 : 0) | (map[i + 3] ? 1 : 0);
+			sb.append(Character.forDigit(n, 16));
+		}
+		String name = _const("map:" + sb, "MAP", "boolean[]", "NezContext.byteMap(\"" + sb + "\")");
+		return name + "[" + _cur() + " & 0xff]";
+	}
 
-	String _call(Production p) {
-		return _func(p) + "(" + _ctx() + ")";
+	private String _text(byte[] text) {
+		StringBuilder sb = new StringBuilder("{ ");
+		for(int i = 0; i < text.length; i++) {
+			sb.append(i > 0 ? ", " : "").append(text[i]);
+		}
+		sb.append(" }");
+		return _const("text:" + sb, "TEXT", "byte[]", sb.toString());
 	}
 
-	String _call(Expression e) {
-		ensureFunc(e);
-		return "e" + e.getId() + "(" + _ctx() + ")";
+	private int _table(String name) {
+		Integer id = tableMap.get(name);
+		if(id == null) {
+			id = tableMap.size();
+			tableMap.put(name, id);
+		}
+		return id;
+	}
+
+	private static String _string(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for(int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			switch(ch) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if(ch < 0x20 || ch > 0x7e) {
+					sb.append(String.format("\\u%04x", (int)ch));
+				}
+				else {
+					sb.append(ch);
+				}
+			}
+		}
+		return sb.append("\"").toString();
 	}
 
-	String _not(String expr) { return "!(" + expr + ")"; }
+	private static boolean isPrintable(int ch) {
+		return ch >= 0x20 && ch < 0x7f && ch != '\'' && ch != '\\';
+	}
 
-	String _true() { return "true"; }
-	String _false() { return "false"; }
+	/* a byte compared with c.inputs[c.pos], which is signed */
+	private static String _byte(int ch) {
+		return isPrintable(ch) ? "'" + (char)ch + "'" : String.valueOf((byte)ch);
+	}
 
-	String _left() { return "left"; }
-	String _log() { return "log"; }
-	
-	String _cref(String n) { return _ctx() + "." + n + "()";}
-	String _ccall(String n) { return _ctx() + "." + n + "()";}
-	String _ccall(String n, String a) { return _ctx() + "." + n + "(" + a + ")";}
-	String _ccall(String n, String a, String a2) { return _ctx() + "." + n + "(" + a + "," + a2 + ")";}
-	
-	String _cleft() { return _cref("left"); }
-	String _clog() { return _cref("log"); }
-	
-	JavaParserGenerator VarNode(String n, String left) {
-		L("Object " + n + " = " + left).Semi();
-		return this;
+	private static String _case(int ch) {
+		return isPrintable(ch) ? "'" + (char)ch + "'" : String.valueOf(ch);
 	}
-	JavaParserGenerator Commit(String log, String left) {
-		Return(_ctx() + ".commit(" + log + ", " + left + ")");
-		return this;
+
+	private static String _cur() {
+		return "c.inputs[c.pos]";
 	}
-	JavaParserGenerator Abort(String log, String left) {
-		Return(_ctx() + ".abort(" + log + ", " + left + ")");
-		return this;
+
+	// failure labels
+
+	final static class FailLabel {
+		final String name;   // null for the method return
+		final FailLabel prev;
+		int uses = 0;
+		FailLabel(String name, FailLabel prev) {
+			this.name = name;
+			this.prev = prev;
+		}
 	}
 
-	String _match(int c) {
-		return _ccall("byte", ""+c);
+	FailLabel failLabel = null;
+	boolean reachable = true;   // javac rejects unreachable statements
+
+	private FailLabel pushFailLabel(String name) {
+		this.failLabel = new FailLabel(name, this.failLabel);
+		return this.failLabel;
 	}
 
-	String _match(boolean[] b) {
-		return _ccall("byte", ""+b);
+	private void popFailLabel() {
+		this.failLabel = this.failLabel.prev;
 	}
 
-	String _match() {
-		return _ccall("any");
+	private String _fail() {
+		failLabel.uses++;
+		return failLabel.name == null ? "return false;" : "break " + failLabel.name + ";";
 	}
-	
-	String _result() { return "result"; }
 
-	String _pos() { return "pos"; }
+	private void Fail() {
+		L(_fail());
+		this.reachable = false;
+	}
 
-	String _cpos() { return _cref("pos"); }
+	private void FailIf(String cond) {
+		IfThen(cond).W(_fail());
+	}
 
-	String _eq(String v, String v2) {
-		return "(" + v + " == " + v2 + ")";
+	/* the typestate is not enough; {@ e}? is typed as boolean */
+	private boolean needsLog(Expression e) {
+		return option.enabledASTConstruction && isTreeConstruction(e);
 	}
-	
-	protected JavaParserGenerator Save(Expression e) {
-		VarInt(_pos(), _cpos());
-		if(e.inferTypestate() != Typestate.BooleanType) {
-			VarInt(_log(), _clog());
+
+	private boolean isTreeConstruction(Expression e) {
+		if(e instanceof New || e instanceof Link || e instanceof Capture || e instanceof Tagging || e instanceof Replace) {
+			return true;
 		}
-		return this;
+		if(e instanceof NonTerminal) {
+			return treeSet.contains(((NonTerminal) e).getProduction().getUniqueName());
+		}
+		for(Expression sub : e) {
+			if(isTreeConstruction(sub)) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	protected JavaParserGenerator Rollback(Expression e) {
-		if(e.inferTypestate() != Typestate.BooleanType) {
-			Statement(_ccall("abort", _log()));
+	private int Save(boolean log) {
+		int id = this.fid++;
+		VarInt("pos" + id, "c.pos");
+		if(log) {
+			VarInt("log" + id, "c.logTop");
 		}
-		Statement(_ccall("setpos", _pos()));
-		return this;
+		return id;
 	}
 
-	protected JavaParserGenerator W(String word) {
-		file.write(word);
-		return this;
+	private void Rollback(int id, boolean log) {
+		Assign("c.pos", "pos" + id);
+		if(log) {
+			Assign("c.logTop", "log" + id);
+		}
 	}
 
-	protected JavaParserGenerator L() {
-		file.writeIndent();
-		return this;
+	// methods
+
+	@Override
+	public void visitProduction(Production p) {
+		String name = funcNameMap.get(p.getUniqueName());
+		Integer memoId = memoIdMap.get(p.getUniqueName());
+		file.writeNewLine();
+		LComment(p.getLocalName());
+		if(memoId != null) {
+			writeMemoProduction(p, name, memoId);
+			name = "_" + name;
+		}
+		L("private static boolean " + name + "(NezContext c) ").Begin();
+		writeBody(p.getExpression(), null);
+		End();
+		makeFunc();
 	}
 
-	protected JavaParserGenerator inc() {
-		file.incIndent();
-		return this;
+	private void writeMemoProduction(Production p, String name, int memoId) {
+		String state = p.isContextual() ? "c.state()" : "0";
+		String call = "_" + name + "(c)";
+		L("private static boolean " + name + "(NezContext c) ").Begin();
+		IfThen("c.memoOff[" + memoId + "]").Begin().Return(call).End();
+		VarInt("pos", "c.pos");
+		VarInt("length", "c.lookup(" + memoId + ", " + state + ")");
+		IfThen("length >= 0").Begin().Assign("c.pos", "pos + length").Return(_true()).End();
+		IfThen("length == NezContext.MemoFail").Begin().Return(_false()).End();
+		IfThen(call).Begin();
+		Statement("c.memoize(pos, " + memoId + ", c.pos - pos, " + state + ")");
+		Return(_true());
+		End();
+		Statement("c.memoize(pos, " + memoId + ", NezContext.MemoFail, " + state + ")");
+		Return(_false());
+		End();
+		file.writeNewLine();
 	}
 
-	protected JavaParserGenerator dec() {
-		file.decIndent();
-		return this;
+	private void writeBody(Expression e, Expression root) {
+		this.failLabel = new FailLabel(null, null);
+		this.reachable = true;
+		this.funcRoot = root;
+		this.funcSize = 0;
+		visitExpression(e);
+		if(this.reachable) {
+			Return(_true());
+		}
 	}
 
-	protected JavaParserGenerator L(String line) {
-		file.writeIndent(line);
-		return this;
+	/* an expression past the size of the method is written in its own method to keep methods compilable by the JIT */
+	private boolean writeCall(Expression e) {
+		if(e == this.funcRoot || this.funcSize + size(e) <= FuncSizeLimit) {
+			return false;
+		}
+		String name = funcMap.get(e);
+		if(name == null) {
+			name = "e" + funcMap.size();
+			funcMap.put(e, name);
+			funcQueue.add(e);
+		}
+		FailIf(_not(name + "(c)"));
+		return true;
+	}
+
+	private int size(Expression e) {
+		Integer size = sizeMap.get(e);
+		if(size == null) {
+			int n = 1;
+			if(!(e instanceof NonTerminal)) {
+				for(Expression sub : e) {
+					n += size(sub);
+				}
+			}
+			size = n;
+			sizeMap.put(e, size);
+		}
+		return size;
 	}
-	
-	protected JavaParserGenerator DefPublicFunc(String name) {
-		L("public static boolean ").W(name).W(" (NezContext ").W(_ctx()).W(") ");
-		return this;
+
+	private void makeFunc() {
+		while(!funcQueue.isEmpty()) {
+			Expression e = funcQueue.poll();
+			file.writeNewLine();
+			L("private static boolean " + funcMap.get(e) + "(NezContext c) ").Begin();
+			writeBody(e, e);
+			End();
+		}
 	}
 
-	protected JavaParserGenerator DefFunc(String name) {
-		L("private static boolean ").W(name).W(" (NezContext ").W(_ctx()).W(") ");
-		return this;
+	// expressions
+
+	@Override
+	public void visitExpression(Expression e) {
+		if(this.reachable) {
+			this.funcSize++;
+			e.encode(this, null, null);
+		}
 	}
 
-	protected JavaParserGenerator FuncName(Expression e) {
-		W("e" + e.getId());
-		return this;
+	@Override
+	public void visitEmpty(Expression e) {
 	}
 
-	protected JavaParserGenerator IfThen(String c) {
-		L("if (").W(c).W(") ");
-		return this;
+	@Override
+	public void visitFailure(Expression e) {
+		Fail();
 	}
 
-	protected JavaParserGenerator IfNotThen(String c) {
-		L("if (").W(_not(c)).W(") ");
-		return this;
+	@Override
+	public void visitAnyChar(AnyChar e) {
+		FailIf("c.pos >= c.length");
+		Statement("c.pos++");
 	}
-	
-	protected JavaParserGenerator Else() {
-		L("else");
-		return this;
+
+	@Override
+	public void visitByteChar(ByteChar e) {
+		FailIf(_cur() + " != " + _byte(e.byteChar));
+		Statement("c.pos++");
 	}
 
-	protected JavaParserGenerator Begin() {
-		W("{").inc();
-		return this;
+	@Override
+	public void visitByteMap(ByteMap e) {
+		FailIf(_not(_map(e.byteMap)));
+		Statement("c.pos++");
 	}
 
-	protected JavaParserGenerator End() {
-		dec().L("}");
-		return this;
+	@Override
+	public void visitCharMultiByte(CharMultiByte e) {
+		writeString(e.byteSeq);
 	}
 
-	protected JavaParserGenerator While(String c) {
-		L("while (").W(c).W(") ");
-		return this;
+	@Override
+	public void visitNonTerminal(NonTerminal e) {
+		Production p = e.getProduction();
+		if(GrammarOptimizer.isSingleCharacter(p.getExpression())) {
+			visitExpression(p.getExpression());
+			return;
+		}
+		FailIf(_not(funcNameMap.get(p.getUniqueName()) + "(c)"));
 	}
 
-	protected JavaParserGenerator Continue() {
-		L("continue").Semi();
-		return this;
+	@Override
+	public void visitSequence(Sequence e) {
+		if(writeCall(e)) {
+			return;
+		}
+		UList<Expression> l = new UList<Expression>(new Expression[8]);
+		flatten(e, l);
+		for(int i = 0; i < l.size() && this.reachable; i++) {
+			int n = specializeString(l, i);
+			if(n > 1) {
+				i += n - 1;
+				continue;
+			}
+			visitExpression(l.ArrayValues[i]);
+		}
 	}
 
-	protected JavaParserGenerator Break() {
-		L("break").Semi();
-		return this;
+	private void flatten(Expression e, UList<Expression> l) {
+		if(e instanceof Sequence) {
+			flatten(e.get(0), l);
+			flatten(e.get(1), l);
+		}
+		else {
+			l.add(e);
+		}
 	}
 
-	protected JavaParserGenerator VarInt(String n, String v) {
-		L("int ").W(n).W(" = ").W(v).Semi();
-		return this;
+	@Override
+	public void visitChoice(Choice e) {
+		if(writeCall(e)) {
+			return;
+		}
+		if(option.enabledPrediction && e.predictedCase != null) {
+			writePredictedChoice(e);
+		}
+		else {
+			writeChoice(e, false);
+		}
 	}
 
-	protected JavaParserGenerator VarBool(String n, String v) {
-		L("boolean ").W(n).W(" = ").W(v).Semi();
-		return this;
+	/* tries the alternatives of e; an option has the empty alternative at last */
+	private void writeChoice(Expression e, boolean optional) {
+		boolean log = needsLog(e);
+		int id = Save(log);
+		String exit = "C" + id;
+		int exits = 0;
+		L(exit + ": ").Begin();
+		for(int i = 0; i < e.size(); i++) {
+			if(i == e.size() - 1 && !optional) {
+				visitExpression(e.get(i));
+				break;
+			}
+			FailLabel alt = pushFailLabel("A" + id + "_" + i);
+			L(alt.name + ": ").Begin();
+			visitExpression(e.get(i));
+			if(this.reachable) {
+				L("break " + exit + ";");
+				exits++;
+			}
+			End();
+			popFailLabel();
+			this.reachable = alt.uses > 0;
+			if(!this.reachable) {
+				break;  // the rest are never tried
+			}
+			Rollback(id, log);
+		}
+		End();
+		this.reachable = this.reachable || exits > 0;
 	}
 
-	protected JavaParserGenerator Assign(String n, String v) {
-		L(n).W(" = ").W(v).Semi();
-		return this;
+	private void writePredictedChoice(Choice e) {
+		UList<Expression> cases = new UList<Expression>(new Expression[8]);
+		int[] index = new int[256];
+		for(int ch = 0; ch < 256; ch++) {
+			Expression p = e.predictedCase[ch];
+			index[ch] = p == null ? -1 : caseIndex(cases, p);
+		}
+		boolean exits = false;
+		L("switch (" + _cur() + " & 0xff) ").Begin();
+		for(int i = 0; i < cases.size(); i++) {
+			L();
+			for(int ch = 0; ch < 256; ch++) {
+				if(index[ch] == i) {
+					W("case " + _case(ch) + ": ");
+				}
+			}
+			Begin();
+			this.reachable = true;
+			Expression p = cases.ArrayValues[i];
+			if(p instanceof Choice) {
+				writeChoice(p, false);
+			}
+			else {
+				visitExpression(p);
+			}
+			if(this.reachable) {
+				Break();
+				exits = true;
+			}
+			End();
+		}
+		L("default: ").Begin();
+		this.reachable = true;
+		Fail();
+		End();
+		End();
+		this.reachable = exits;
 	}
-	
-	protected JavaParserGenerator Semi() {
-		W(";");
-		return this;
+
+	/* the same case as predictId() of NezCompiler2 */
+	private int caseIndex(UList<Expression> cases, Expression p) {
+		for(int i = 0; i < cases.size(); i++) {
+			Expression c = cases.ArrayValues[i];
+			if(c == p || (p.isInterned() ? p.getId() == c.getId() : p.equalsExpression(c))) {
+				return i;
+			}
+		}
+		cases.add(p);
+		return cases.size() - 1;
 	}
-	
-	protected JavaParserGenerator Statement(String expr) {
-		L(expr).Semi();
-		return this;
+
+	@Override
+	public void visitOption(Option e) {
+		if(writeCall(e) || specializeOption(e)) {
+			return;
+		}
+		writeChoice(e, true);
 	}
-	
-	protected JavaParserGenerator Return(String v) {
-		L("return ").W(v).Semi();
-		return this;
+
+	@Override
+	public void visitRepetition(Repetition e) {
+		if(writeCall(e) || specializeRepetition(e)) {
+			return;
+		}
+		writeRepetition(e.get(0));
 	}
-	
-	protected JavaParserGenerator Comment(Object s) {
-		W("/* ").W(s.toString()).W(" */");
-		return this;
+
+	@Override
+	public void visitRepetition1(Repetition1 e) {
+		if(writeCall(e)) {
+			return;
+		}
+		visitExpression(e.get(0));
+		if(this.reachable && !specializeRepetition(e)) {
+			writeRepetition(e.get(0));
+		}
 	}
 
-	protected JavaParserGenerator LComment(Object s) {
-		L("// ").W(s.toString());
-		return this;
+	private void writeRepetition(Expression inner) {
+		boolean log = needsLog(inner);
+		int id = this.fid++;
+		String loop = "R" + id;
+		L(loop + ": while (true) ").Begin();
+		VarInt("pos" + id, "c.pos");
+		if(log) {
+			VarInt("log" + id, "c.logTop");
+		}
+		FailLabel f = pushFailLabel("F" + id);
+		L(f.name + ": ").Begin();
+		visitExpression(inner);
+		if(this.reachable) {
+			FailIf("c.pos == pos" + id);  // no progress
+			L("continue " + loop + ";");
+		}
+		End();
+		popFailLabel();
+		boolean exits = f.uses > 0;
+		if(exits) {
+			Rollback(id, log);
+			L("break " + loop + ";");
+		}
+		End();
+		this.reachable = exits;
 	}
-	
-	public void writeLinkLogic(Link e) {
-		VarNode(_left(), _cleft());
-		VarInt(_log(), _clog());
-		IfThen(_call(e.get(0))).Begin().Commit(_log(), _left()).End();
-		Abort(_log(), _left());
+
+	@Override
+	public void visitAnd(And e) {
+		if(writeCall(e)) {
+			return;
+		}
+		int id = this.fid++;
+		VarInt("pos" + id, "c.pos");
+		visitExpression(e.get(0));
+		if(this.reachable) {
+			Assign("c.pos", "pos" + id);
+		}
 	}
 
-	HashMap<String, Object> funcMap = new HashMap<String, Object>();
-	
-	private void ensureFunc(Expression e) {
-		String key = _func(e);
-		if(!funcMap.containsKey(key)) {
-			funcMap.put(key, e);
+	@Override
+	public void visitNot(Not e) {
+		if(writeCall(e) || specializeNot(e)) {
+			return;
+		}
+		boolean log = needsLog(e.get(0));
+		int id = Save(log);
+		FailLabel f = pushFailLabel("N" + id);
+		L(f.name + ": ").Begin();
+		visitExpression(e.get(0));
+		popFailLabel();
+		if(this.reachable) {
+			Fail();
+		}
+		End();
+		this.reachable = f.uses > 0;
+		if(this.reachable) {
+			Rollback(id, log);
 		}
 	}
 
-	private void makeFunc() {
-		ArrayList<Expression> l = new ArrayList<Expression>(funcMap.size());
-		for(String key: funcMap.keySet()) {
-			Object o = funcMap.get(key);
-			if(o instanceof Expression) {
-				l.add((Expression)o);
-				funcMap.put(key, key);
+	// specialization
+
+	/* a set of bytes with the semantics of a single byte (EOF is 0) */
+	private boolean[] byteMap(Expression e) {
+		if(e instanceof ByteMap) {
+			return ((ByteMap) e).byteMap;
+		}
+		if(e instanceof Choice) {
+			boolean[] map = new boolean[257];
+			for(Expression sub : e) {
+				if(sub instanceof ByteChar) {
+					map[((ByteChar) sub).byteChar] = true;
+				}
+				else if(sub instanceof ByteMap) {
+					ByteMap.appendBitMap(map, ((ByteMap) sub).byteMap);
+				}
+				else {
+					return null;
+				}
 			}
+			return map;
 		}
-		for(Expression e: l) {
-			writeFunc(e);
+		return null;
+	}
+
+	/* the set of bytes accepted by (!X .), which fails at EOF */
+	private boolean[] runMap(Expression e) {
+		if(e instanceof Sequence && e.get(0) instanceof Not && e.get(1) instanceof AnyChar) {
+			Expression x = GrammarOptimizer.resolveNonTerminal(e.get(0).get(0));
+			boolean[] map = byteMap(x);
+			if(map == null && x instanceof ByteChar) {
+				map = new boolean[257];
+				map[((ByteChar) x).byteChar] = true;
+			}
+			if(map != null) {
+				boolean[] run = new boolean[257];
+				for(int ch = 0; ch < 256; ch++) {
+					run[ch] = !map[ch];
+				}
+				return run;
+			}
 		}
+		return null;
 	}
-	
-	private void writeFunc(Expression e) {
-		DefFunc(_func(e));
-		Begin(); Comment(e);
-		if(e instanceof Choice) {
-			writeChoiceLogic(e);
+
+	private byte[] text(Expression e) {
+		if(e instanceof CharMultiByte) {
+			return ((CharMultiByte) e).byteSeq;
 		}
-		else if(e instanceof Link) {
-			writeLinkLogic((Link)e);
+		if(e instanceof Sequence) {
+			UList<Expression> l = new UList<Expression>(new Expression[8]);
+			flatten(e, l);
+			byte[] text = new byte[l.size()];
+			for(int i = 0; i < l.size(); i++) {
+				if(!(l.ArrayValues[i] instanceof ByteChar)) {
+					return null;
+				}
+				text[i] = (byte)((ByteChar) l.ArrayValues[i]).byteChar;
+			}
+			return text;
 		}
-		else if(e instanceof Option) {
-			writeOptionLogic(e);
+		return null;
+	}
+
+	private int specializeString(UList<Expression> l, int start) {
+		if(!option.enabledLexicalOptimization) {
+			return 0;
 		}
-		else if(e instanceof Repetition || e instanceof Repetition1) {
-			writeRepetitionLogic(e);
+		int end = start;
+		while(end < l.size() && l.ArrayValues[end] instanceof ByteChar) {
+			end++;
 		}
-		else if(e instanceof Not || e instanceof And) {
-			writePredicateLogic(e);
+		if(end - start < 2) {
+			return 0;
 		}
-		else {
-			visitExpression(e);
-			Return(_true());
+		byte[] text = new byte[end - start];
+		for(int i = start; i < end; i++) {
+			text[i - start] = (byte)((ByteChar) l.ArrayValues[i]).byteChar;
 		}
-		End();
-		makeFunc();
+		writeString(text);
+		return text.length;
 	}
 
-	private void writeOptionLogic(Expression e) {
-		Save(e.get(0));
-		IfThen(_call(e.get(0))).Begin().Return(_true()).End();
-		Rollback(e.get(0));
-		Return(_true());
+	private void writeString(byte[] text) {
+		boolean inline = text.length <= 4;
+		for(byte b : text) {
+			inline = inline && b != 0;  // 0 would match the padding
+		}
+		if(inline) {
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < text.length; i++) {
+				sb.append(i > 0 ? " || " : "").append("c.inputs[c.pos");
+				sb.append(i > 0 ? " + " + i : "").append("] != ").append(_byte(text[i] & 0xff));
+			}
+			FailIf(sb.toString());
+			Statement(text.length == 1 ? "c.pos++" : "c.pos += " + text.length);
+		}
+		else {
+			FailIf(_not("c.text(" + _text(text) + ")"));
+		}
 	}
 
-	private void writeRepetitionLogic(Expression e) {
-		While(_true()).Begin();
-		Save(e.get(0));
-		ensureFunc(e.get(0));
-		IfThen(_call(e.get(0))).Begin();
-		IfThen(_eq(_pos(), _cpos())).Begin().Break().End();
-		Continue();
-		End();
-		Rollback(e.get(0));
-		Break();
-		End();
-		Return(_true());
+	private boolean specializeOption(Option e) {
+		if(!option.enabledLexicalOptimization) {
+			return false;
+		}
+		Expression inner = GrammarOptimizer.resolveNonTerminal(e.get(0));
+		if(inner instanceof ByteChar) {
+			IfThen(_cur() + " == " + _byte(((ByteChar) inner).byteChar)).W("c.pos++;");
+			return true;
+		}
+		boolean[] map = byteMap(inner);
+		if(map != null) {
+			IfThen(_map(map)).W("c.pos++;");
+			return true;
+		}
+		byte[] text = text(inner);
+		if(text != null) {
+			Statement("c.text(" + _text(text) + ")");
+			return true;
+		}
+		return false;
 	}
 
-	private void writeChoiceLogic(Expression e) {
-		Save(e);
-		for(Expression s: e) {
-			IfThen(_call(s)).Begin().Return(_true()).End();
-			Rollback(e);
+	private boolean specializeRepetition(Repetition e) {
+		if(!option.enabledLexicalOptimization) {
+			return false;
 		}
-		Return(_false());;
-	}
-	
-	private void writePredicateLogic(Expression e) {
-		Save(e.get(0));
-		VarBool(_result(), _call(e.get(0)));
-		Rollback(e.get(0));
-		Return(_result());
+		Expression inner = GrammarOptimizer.resolveNonTerminal(e.get(0));
+		if(inner instanceof AnyChar) {
+			IfThen("c.pos < c.length").W("c.pos = c.length;");
+			return true;
+		}
+		String cond = null;
+		boolean eof = false;
+		if(inner instanceof ByteChar) {
+			cond = _cur() + " == " + _byte(((ByteChar) inner).byteChar);
+			eof = ((ByteChar) inner).byteChar == 0;
+		}
+		else {
+			boolean[] map = byteMap(inner);
+			if(map == null) {
+				map = runMap(inner);
+			}
+			if(map != null) {
+				cond = _map(map);
+				eof = map[0];
+			}
+		}
+		if(cond == null) {
+			return false;
+		}
+		While(eof ? "c.pos < c.length && " + cond : cond).W("c.pos++;");
+		return true;
 	}
 
-	@Override
-	public void visitProduction(Production rule) {
-		DefPublicFunc(_func(rule)).Begin();
-		visitExpression(rule.getExpression());
-		Return(_true());
-		End();
-		makeFunc();
-	}	
-	
-	@Override
-	public void visitEmpty(Expression e) {
-
+	private boolean specializeNot(Not e) {
+		if(!option.enabledLexicalOptimization) {
+			return false;
+		}
+		Expression inner = GrammarOptimizer.resolveNonTerminal(e.get(0));
+		if(inner instanceof ByteChar) {
+			FailIf(_cur() + " == " + _byte(((ByteChar) inner).byteChar));
+			return true;
+		}
+		if(inner instanceof AnyChar) {
+			FailIf("c.pos < c.length");
+			return true;
+		}
+		boolean[] map = byteMap(inner);
+		if(map != null) {
+			FailIf(_map(map));
+			return true;
+		}
+		byte[] text = text(inner);
+		if(text != null) {
+			FailIf("c.startsWith(" + _text(text) + ")");
+			return true;
+		}
+		return false;
 	}
 
-	@Override
-	public void visitFailure(Expression e) {
-		Return(_false());
-	}
+	// AST construction
 
 	@Override
-	public void visitNonTerminal(NonTerminal e) {
-		IfThen(_not(_call(e.getProduction()))).Begin().Return(_false()).End();
+	public void visitLink(Link e) {
+		if(writeCall(e)) {
+			return;
+		}
+		int id = this.fid++;
+		VarInt("mark" + id, "c.beginLink()");
+		visitExpression(e.get(0));
+		if(this.reachable) {
+			Statement("c.storeNode(mark" + id + ", " + e.index + ")");
+		}
 	}
 
 	@Override
-	public void visitByteChar(ByteChar e) {
-		IfNotThen(_match(e.byteChar)).Begin().Return(_false()).End();
+	public void visitNew(New e) {
+		Statement((e.lefted ? "c.pushLeftNew(" : "c.pushNew(") + e.shift + ")");
 	}
 
 	@Override
-	public void visitByteMap(ByteMap e) {
-		IfNotThen(_match(e.byteMap)).Begin().Return(_false()).End();
+	public void visitCapture(Capture e) {
+		Statement("c.capture()");
 	}
-	
+
 	@Override
-	public void visitAnyChar(AnyChar e) {
-		IfNotThen(_match()).Begin().Return(_false()).End();
+	public void visitTagging(Tagging e) {
+		Statement("c.tag(" + _string(e.tag.getName()) + ")");
 	}
-	
+
 	@Override
-	public void visitCharMultiByte(CharMultiByte p) {
-		// TODO Auto-generated method stub
-		
+	public void visitReplace(Replace e) {
+		Statement("c.replace(" + _string(e.value) + ")");
 	}
 
+	// symbol tables
 
 	@Override
-	public void visitOption(Option e) {
-		Statement(_call(e));
+	public void visitBlock(Block e) {
+		if(writeCall(e)) {
+			return;
+		}
+		writeScope(e, "c.savePoint()");
 	}
-	
+
 	@Override
-	public void visitRepetition(Repetition e) {
-		Statement(_call(e));
+	public void visitLocalTable(LocalTable e) {
+		if(writeCall(e)) {
+			return;
+		}
+		writeScope(e, "c.saveHiddenPoint(" + _table(e.getTableName()) + ")");
 	}
-	
-	@Override
-	public void visitRepetition1(Repetition1 e) {
+
+	/* the symbols defined in e are rolled back after e */
+	private void writeScope(Expression e, String savePoint) {
+		int id = this.fid++;
+		VarInt("save" + id, savePoint);
+		String exit = "S" + id;
+		L(exit + ": ").Begin();
+		FailLabel f = pushFailLabel("F" + id);
+		L(f.name + ": ").Begin();
 		visitExpression(e.get(0));
-		Statement(_call(e));
+		boolean exits = this.reachable;
+		if(exits) {
+			Statement("c.rollBack(save" + id + ")");
+			L("break " + exit + ";");
+		}
+		End();
+		popFailLabel();
+		if(f.uses > 0) {
+			Statement("c.rollBack(save" + id + ")");
+			Fail();
+		}
+		End();
+		this.reachable = exits;
 	}
 
 	@Override
-	public void visitAnd(And e) {
-		IfNotThen(_call(e)).Begin().Return(_false()).End();
+	public void visitDefSymbol(DefSymbol e) {
+		int id = this.fid++;
+		VarInt("pos" + id, "c.pos");
+		visitExpression(e.get(0));
+		if(this.reachable) {
+			Statement("c.addSymbol(" + _table(e.getTableName()) + ", pos" + id + ")");
+		}
 	}
-	
+
 	@Override
-	public void visitNot(Not e) {
-		IfThen(_call(e)).Begin().Return(_false()).End();
+	public void visitExistsSymbol(ExistsSymbol e) {
+		FailIf("c.getSymbol(" + _table(e.getTableName()) + ") == null");
 	}
-	
+
 	@Override
-	public void visitSequence(Sequence e) {
-		for(Expression s: e) {
-			visitExpression(s);
+	public void visitIsSymbol(IsSymbol e) {
+		int table = _table(e.getTableName());
+		if(e.checkLastSymbolOnly) {
+			FailIf(_not("c.matchSymbol(" + table + ")"));
+			return;
+		}
+		Expression symbol = e.getSymbolExpression();
+		if(symbol == null) {
+			Fail();
+			return;
+		}
+		int id = this.fid++;
+		VarInt("pos" + id, "c.pos");
+		visitExpression(symbol);
+		if(this.reachable) {
+			FailIf(_not("c.containsSymbol(" + table + ", pos" + id + ")"));
 		}
 	}
 
 	@Override
-	public void visitChoice(Choice e) {
-		IfNotThen(_call(e)).Begin().Return(_false()).End();
+	public void visitDefIndent(DefIndent e) {
+		Statement("c.defIndent()");
 	}
-	
+
 	@Override
-	public void visitNew(New e) {
-		Statement(_ccall("new"));
+	public void visitIsIndent(IsIndent e) {
+		FailIf(_not("c.isIndent()"));
 	}
-	
+
 	@Override
-	public void visitCapture(Capture e) {
-		Statement(_ccall("capture"));
+	public void visitUndefined(Expression e) {
+		LComment("undefined " + e);
 	}
 
-	protected String _tag(Tag tag) {
-		return StringUtils.quoteString('"', tag.getName(), '"');
+	// runtime
+
+	private void writeContext(String start) {
+		file.writeNewLine();
+		L("public static final class NezContext ").Begin();
+		L("static final int MemoFail = -1;");
+		L("static final int MemoMiss = -2;");
+		L("static final int LazyLink = 0;");
+		L("static final int LazyCapture = 1;");
+		L("static final int LazyTag = 2;");
+		L("static final int LazyReplace = 3;");
+		L("static final int LazyLeftNew = 4;");
+		L("static final int LazyNew = 5;");
+		file.writeNewLine();
+		L("final byte[] inputs;");
+		L("final int length;");
+		L("int pos = 0;");
+		file.writeNewLine();
+		L("public NezContext(byte[] utf8) ").Begin();
+		Assign("this.inputs", "Arrays.copyOf(utf8, utf8.length + " + Padding + ")");
+		Assign("this.length", "utf8.length");
+		VarInt("size", "Integer.highestOneBit(Math.max(MemoPointSize * 64, 128)) * 2");
+		Assign("this.memoKeys", "new long[size]");
+		Assign("this.memoLengths", "new int[size]");
+		Assign("this.memoStates", "new int[size]");
+		Assign("this.memoMask", "size - 1");
+		End();
+		file.writeNewLine();
+		L("public boolean match() ").Begin();
+		Return(start + "(this)");
+		End();
+		file.writeNewLine();
+		L("public NezTree parse() ").Begin();
+		IfThen("!match()").Begin().Return("null").End();
+		L("for(int i = logTop - 1; i >= 0; i--) ").Begin();
+		IfThen("logTypes[i] == LazyNew").Begin();
+		Assign("left", "commit(i)");
+		Assign("logTop", "i");
+		Break();
+		End();
+		End();
+		Return("left != null ? left : new NezTree(null, inputs, 0, pos, 0, null)");
+		End();
+		file.writeNewLine();
+		L("public int getPosition() ").Begin().Return("pos").End();
+		file.writeNewLine();
+		L("public boolean hasUnconsumed() ").Begin().Return("pos < length").End();
+		file.writeNewLine();
+		L("static boolean[] byteMap(String bits) ").Begin();
+		L("boolean[] map = new boolean[256];");
+		L("for(int i = 0; i < 256; i++) ").Begin();
+		Assign("map[i]", "(Character.digit(bits.charAt(i / 4), 16) & (8 >> (i % 4))) != 0");
+		End();
+		Return("map");
+		End();
+		file.writeNewLine();
+		L("final boolean startsWith(byte[] text) ").Begin();
+		IfThen("pos + text.length > length").Begin().Return(_false()).End();
+		L("for(int i = 0; i < text.length; i++) ").Begin();
+		IfThen("inputs[pos + i] != text[i]").Begin().Return(_false()).End();
+		End();
+		Return(_true());
+		End();
+		file.writeNewLine();
+		L("final boolean text(byte[] text) ").Begin();
+		IfThen("startsWith(text)").Begin();
+		Statement("pos += text.length");
+		Return(_true());
+		End();
+		Return(_false());
+		End();
+		writeLog();
+		writeMemo();
+		writeSymbolTable();
+		End();
 	}
-	
-	@Override
-	public void visitTagging(Tagging e) {
-		Statement(_ccall("tag", _tag(e.tag)));
+
+	private void writeLog() {
+		file.writeNewLine();
+		L("/* AST construction */");
+		file.writeNewLine();
+		L("int[] logTypes = new int[64];");
+		L("int[] logPos = new int[64];");
+		L("Object[] logValues = new Object[64];");
+		L("int logTop = 0;");
+		L("NezTree left = null;");
+		file.writeNewLine();
+		L("private void push(int type, int pos, Object value) ").Begin();
+		IfThen("logTop == logTypes.length").Begin();
+		Assign("logTypes", "Arrays.copyOf(logTypes, logTop * 2)");
+		Assign("logPos", "Arrays.copyOf(logPos, logTop * 2)");
+		Assign("logValues", "Arrays.copyOf(logValues, logTop * 2)");
+		End();
+		Assign("logTypes[logTop]", "type");
+		Assign("logPos[logTop]", "pos");
+		Assign("logValues[logTop]", "value");
+		Statement("logTop++");
+		End();
+		file.writeNewLine();
+		L("final void pushNew(int shift) ").Begin().Statement("push(LazyNew, pos + shift, null)").End();
+		file.writeNewLine();
+		L("final void pushLeftNew(int shift) ").Begin().Statement("push(LazyLeftNew, pos + shift, null)").End();
+		file.writeNewLine();
+		L("final void capture() ").Begin().Statement("push(LazyCapture, pos, null)").End();
+		file.writeNewLine();
+		L("final void tag(String tag) ").Begin().Statement("push(LazyTag, 0, tag)").End();
+		file.writeNewLine();
+		L("final void replace(String value) ").Begin().Statement("push(LazyReplace, 0, value)").End();
+		file.writeNewLine();
+		L("final int beginLink() ").Begin();
+		Assign("left", "null");
+		Return("logTop");
+		End();
+		file.writeNewLine();
+		L("final void storeNode(int mark, int index) ").Begin();
+		IfThen("logTop > mark").Begin();
+		L("NezTree child = commit(mark);");
+		Assign("logTop", "mark");
+		IfThen("child != null").Begin().Statement("push(LazyLink, index, child)").End();
+		Assign("left", "child");
+		End();
+		End();
+		file.writeNewLine();
+		L("private NezTree commit(int start) ").Begin();
+		VarInt("spos", "logPos[start]");
+		VarInt("epos", "spos");
+		VarInt("size", "0");
+		L("String tag = null;");
+		L("Object value = null;");
+		L("NezTree left = null;");
+		L("for(int i = start + 1; i < logTop; i++) ").Begin();
+		L("switch (logTypes[i]) ").Begin();
+		L("case LazyLink:");
+		inc();
+		IfThen("logPos[i] == -1").Begin().Assign("logPos[i]", "size").Statement("size++").End();
+		L("else if(!(logPos[i] < size)) ").Begin().Assign("size", "logPos[i] + 1").End();
+		Break();
+		dec();
+		L("case LazyCapture:");
+		inc().Assign("epos", "logPos[i]").Break().dec();
+		L("case LazyTag:");
+		inc().Assign("tag", "(String)logValues[i]").Break().dec();
+		L("case LazyReplace:");
+		inc().Assign("value", "logValues[i]").Break().dec();
+		L("case LazyLeftNew:");
+		inc();
+		Assign("left", "newNode(start, i, spos, epos, size, left, tag, value)");
+		Assign("start", "i");
+		Assign("spos", "logPos[i]");
+		Assign("epos", "spos");
+		Assign("tag", "null");
+		Assign("value", "null");
+		Assign("size", "1");
+		Break();
+		dec();
+		End();
+		End();
+		Return("newNode(start, logTop, spos, epos, size, left, tag, value)");
+		End();
+		file.writeNewLine();
+		L("private NezTree newNode(int start, int end, int spos, int epos, int size, NezTree left, String tag, Object value) ").Begin();
+		L("NezTree node = new NezTree(tag, inputs, spos, epos, size, value);");
+		IfThen("left != null").Begin().Assign("node.subTree[0]", "left").End();
+		IfThen("size > 0").Begin();
+		L("for(int i = start + 1; i < end; i++) ").Begin();
+		IfThen("logTypes[i] == LazyLink").Begin().Assign("node.subTree[logPos[i]]", "(NezTree)logValues[i]").End();
+		End();
+		End();
+		Return("node");
+		End();
 	}
-	
-	@Override
-	public void visitReplace(Replace e) {
-		Statement(_ccall("replace", StringUtils.quoteString('"', e.value, '"')));
+
+	private void writeMemo() {
+		file.writeNewLine();
+		L("/* memoization; a memo point is turned off when lookups do not pay off */");
+		file.writeNewLine();
+		L("final long[] memoKeys;");
+		L("final int[] memoLengths;");
+		L("final int[] memoStates;");
+		L("final int memoMask;");
+		L("final int[] memoHits = new int[MemoPointSize];");
+		L("final int[] memoMisses = new int[MemoPointSize];");
+		L("final boolean[] memoOff = new boolean[MemoPointSize];");
+		file.writeNewLine();
+		L("final int lookup(int id, int state) ").Begin();
+		L("long key = (long)pos * MemoPointSize + id + 1;");
+		VarInt("i", "(int)key & memoMask");
+		IfThen("memoKeys[i] == key && memoStates[i] == state").Begin();
+		Statement("memoHits[id]++");
+		Return("memoLengths[i]");
+		End();
+		VarInt("miss", "++memoMisses[id]");
+		IfThen("AdaptiveMemo && miss % 32 == 0").Begin();
+		VarInt("hit", "memoHits[id]");
+		IfThen("hit < 2 || (miss >= 64 && miss / hit > 10)").Begin();
+		Assign("memoOff[id]", "true");
+		End();
+		End();
+		Return("MemoMiss");
+		End();
+		file.writeNewLine();
+		L("final void memoize(int pos, int id, int length, int state) ").Begin();
+		L("long key = (long)pos * MemoPointSize + id + 1;");
+		VarInt("i", "(int)key & memoMask");
+		Assign("memoKeys[i]", "key");
+		Assign("memoLengths[i]", "length");
+		Assign("memoStates[i]", "state");
+		End();
 	}
-	
-	@Override
-	public void visitLink(Link e) {
-		IfNotThen(_call(e)).Begin().Return(_false()).End();
+
+	private void writeSymbolTable() {
+		file.writeNewLine();
+		L("/* symbol tables, which are indexed as the SymbolTable of the VM */");
+		file.writeNewLine();
+		L("static final int NotIndexed = -2;");
+		L("int[] symTables = new int[64];");
+		L("long[] symCodes = new long[64];");
+		L("byte[][] symValues = new byte[64][];");
+		L("int[] symPrevTop = new int[64];");
+		L("int[] symPrevHash = new int[64];");
+		L("int symSize = 0;");
+		L("int stateValue = 0;");
+		L("int stateCount = 0;");
+		L("final int[] tableTops = newIndex(TableSize);");
+		L("int[] hashHeads = newIndex(256);");
+		L("int hashSize = 0;");
+		file.writeNewLine();
+		L("static int[] newIndex(int size) ").Begin();
+		L("int[] index = new int[size];");
+		Statement("Arrays.fill(index, -1)");
+		Return("index");
+		End();
+		file.writeNewLine();
+		L("static long hashCode(byte[] utf8) ").Begin();
+		L("long code = 0;");
+		L("for(int i = 0; i < utf8.length; i++) ").Begin().Assign("code", "code * 31 + (utf8[i] & 0xff)").End();
+		Return("code");
+		End();
+		file.writeNewLine();
+		L("private int bucket(long code) ").Begin();
+		Return("(int)(code ^ (code >>> 32)) & (hashHeads.length - 1)");
+		End();
+		file.writeNewLine();
+		L("private void pushSymbol(int table, long code, byte[] value) ").Begin();
+		IfThen("symSize == symTables.length").Begin();
+		Assign("symTables", "Arrays.copyOf(symTables, symSize * 2)");
+		Assign("symCodes", "Arrays.copyOf(symCodes, symSize * 2)");
+		Assign("symValues", "Arrays.copyOf(symValues, symSize * 2)");
+		Assign("symPrevTop", "Arrays.copyOf(symPrevTop, symSize * 2)");
+		Assign("symPrevHash", "Arrays.copyOf(symPrevHash, symSize * 2)");
+		End();
+		Assign("symTables[symSize]", "table");
+		Assign("symCodes[symSize]", "code");
+		Assign("symValues[symSize]", "value");
+		Assign("symPrevTop[symSize]", "NotIndexed");
+		Assign("symPrevHash[symSize]", "NotIndexed");
+		Statement("symSize++");
+		Statement("stateCount++");
+		Assign("stateValue", "stateCount");
+		End();
+		file.writeNewLine();
+		L("final int state() ").Begin().Return("stateValue").End();
+		file.writeNewLine();
+		L("final int savePoint() ").Begin();
+		Statement("pushSymbol(-1, stateValue, null)");
+		Return("symSize - 1");
+		End();
+		file.writeNewLine();
+		L("final int saveHiddenPoint(int table) ").Begin();
+		Statement("pushSymbol(table, stateValue, null)");
+		Return("symSize - 1");
+		End();
+		file.writeNewLine();
+		L("final void rollBack(int savePoint) ").Begin();
+		L("for(int i = symSize - 1; i >= savePoint; i--) ").Begin();
+		IfThen("symPrevTop[i] != NotIndexed").Begin().Assign("tableTops[symTables[i]]", "symPrevTop[i]").End();
+		IfThen("symPrevHash[i] != NotIndexed").Begin();
+		Assign("hashHeads[bucket(symCodes[i])]", "symPrevHash[i]");
+		Statement("hashSize--");
+		End();
+		End();
+		Assign("stateValue", "(int)symCodes[savePoint]");
+		Assign("symSize", "savePoint");
+		End();
+		file.writeNewLine();
+		L("final void addSymbol(int table, int spos) ").Begin();
+		Statement("addSymbol(table, Arrays.copyOfRange(inputs, spos, pos))");
+		End();
+		file.writeNewLine();
+		L("private void addSymbol(int table, byte[] value) ").Begin();
+		Statement("pushSymbol(table, hashCode(value), value)");
+		VarInt("i", "symSize - 1");
+		Assign("symPrevTop[i]", "tableTops[table]");
+		Assign("tableTops[table]", "i");
+		IfThen("hashSize * 4 > hashHeads.length * 3").Begin();
+		Assign("hashHeads", "newIndex(hashHeads.length * 2)");
+		Assign("hashSize", "0");
+		L("for(int j = 0; j < i; j++) ").Begin();
+		IfThen("symPrevHash[j] != NotIndexed").Begin().Statement("indexHash(j)").End();
+		End();
+		End();
+		Statement("indexHash(i)");
+		End();
+		file.writeNewLine();
+		L("private void indexHash(int i) ").Begin();
+		VarInt("b", "bucket(symCodes[i])");
+		Assign("symPrevHash[i]", "hashHeads[b]");
+		Assign("hashHeads[b]", "i");
+		Statement("hashSize++");
+		End();
+		file.writeNewLine();
+		L("final byte[] getSymbol(int table) ").Begin();
+		VarInt("i", "tableTops[table]");
+		Return("i != -1 ? symValues[i] : null");
+		End();
+		file.writeNewLine();
+		L("final boolean matchSymbol(int table) ").Begin();
+		L("byte[] symbol = getSymbol(table);");
+		Return("symbol != null && text(symbol)");
+		End();
+		file.writeNewLine();
+		L("final boolean containsSymbol(int table, int spos) ").Begin();
+		L("byte[] symbol = Arrays.copyOfRange(inputs, spos, pos);");
+		L("long code = hashCode(symbol);");
+		L("for(int i = hashHeads[bucket(code)]; i != -1; i = symPrevHash[i]) ").Begin();
+		IfThen("symCodes[i] == code && Arrays.equals(symValues[i], symbol)").Begin();
+		Return("symTables[i] == table");
+		End();
+		End();
+		Return(_false());
+		End();
+		file.writeNewLine();
+		L("final void defIndent() ").Begin();
+		VarInt("start", "Math.max(0, Math.min(pos, length - 1))");
+		L("while(start > 0) ").Begin();
+		IfThen("inputs[start] == '\\n'").Begin().Statement("start++").Break().End();
+		Statement("start--");
+		End();
+		L("byte[] indent = Arrays.copyOfRange(inputs, Math.min(start, pos), pos);");
+		L("for(int i = 0; i < indent.length; i++) ").Begin();
+		IfThen("indent[i] != '\\t'").Begin().Assign("indent[i]", "' '").End();
+		End();
+		Statement("addSymbol(0, indent)");
+		End();
+		file.writeNewLine();
+		L("final boolean isIndent() ").Begin();
+		IfThen("pos > 0 && inputs[pos - 1] != '\\n'").Begin().Return(_false()).End();
+		L("byte[] indent = getSymbol(0);");
+		Return("indent == null || text(indent)");
+		End();
 	}
 
-	@Override
-	public void visitUndefined(Expression e) {
-		LComment("undefined " + e);
+	private void writeTree() {
+		file.writeNewLine();
+		L("public static final class NezTree ").Begin();
+		L("final String tag;");
+		L("final byte[] inputs;");
+		L("final int pos;");
+		L("final int length;");
+		L("final NezTree[] subTree;");
+		L("Object value;");
+		file.writeNewLine();
+		L("NezTree(String tag, byte[] inputs, int pos, int epos, int size, Object value) ").Begin();
+		Assign("this.tag", "tag != null ? tag : size == 0 ? \"token\" : \"tree\"");
+		Assign("this.inputs", "inputs");
+		Assign("this.pos", "pos");
+		Assign("this.length", "epos - pos");
+		Assign("this.subTree", "size > 0 ? new NezTree[size] : null");
+		Assign("this.value", "value");
+		End();
+		file.writeNewLine();
+		L("public String getTag() ").Begin().Return("tag").End();
+		file.writeNewLine();
+		L("public int size() ").Begin().Return("subTree == null ? 0 : subTree.length").End();
+		file.writeNewLine();
+		L("public NezTree get(int index) ").Begin().Return("subTree[index]").End();
+		file.writeNewLine();
+		L("public int getSourcePosition() ").Begin().Return("pos").End();
+		file.writeNewLine();
+		L("public int getLength() ").Begin().Return("length").End();
+		file.writeNewLine();
+		L("public String getText() ").Begin();
+		IfThen("value == null").Begin().Assign("value", "new String(inputs, pos, length, UTF8)").End();
+		Return("value.toString()");
+		End();
+		file.writeNewLine();
+		L("@Override");
+		L("public String toString() ").Begin();
+		L("StringBuilder sb = new StringBuilder();");
+		Statement("stringfy(\"\", sb)");
+		Return("sb.toString()");
+		End();
+		file.writeNewLine();
+		L("private void stringfy(String indent, StringBuilder sb) ").Begin();
+		Statement("sb.append(\"\\n\").append(indent).append(\"#\").append(tag).append(\"[\")");
+		IfThen("subTree == null").Begin();
+		L("String text = getText();");
+		Statement("sb.append(\" '\")");
+		L("for(int i = 0; i < text.length(); i++) ").Begin();
+		L("char ch = text.charAt(i);");
+		IfThen("ch == '\\n'").Begin().Statement("sb.append(\"\\\\n\")").End();
+		L("else if(ch == '\\t') ").Begin().Statement("sb.append(\"\\\\t\")").End();
+		L("else if(ch == '\\'' || ch == '\\\\') ").Begin().Statement("sb.append('\\\\').append(ch)").End();
+		L("else ").Begin().Statement("sb.append(ch)").End();
+		End();
+		Statement("sb.append(\"']\")");
+		End();
+		L("else ").Begin();
+		L("String nindent = \"   \" + indent;");
+		L("for(int i = 0; i < subTree.length; i++) ").Begin();
+		IfThen("subTree[i] == null").Begin().Statement("sb.append(\"\\n\").append(nindent).append(\"null\")").End();
+		L("else ").Begin().Statement("subTree[i].stringfy(nindent, sb)").End();
+		End();
+		Statement("sb.append(\"\\n\").append(indent).append(\"]\")");
+		End();
+		End();
+		End();
 	}
 
-	@Override
-	public void visitExpression(Expression e) {
-		// TODO Auto-generated method stub
-		
+	// builder
+
+	String _not(String expr) {
+		return "!" + expr;
 	}
 
-	@Override
-	public void visitBlock(Block p) {
-		// TODO Auto-generated method stub
-		
+	String _true() {
+		return "true";
 	}
 
-	@Override
-	public void visitDefSymbol(DefSymbol p) {
-		// TODO Auto-generated method stub
-		
+	String _false() {
+		return "false";
 	}
 
-	@Override
-	public void visitIsSymbol(IsSymbol p) {
-		// TODO Auto-generated method stub
-		
+	protected JavaParserGenerator W(String word) {
+		file.write(word);
+		return this;
 	}
 
-	@Override
-	public void visitDefIndent(DefIndent p) {
-		// TODO Auto-generated method stub
-		
+	protected JavaParserGenerator L() {
+		file.writeIndent();
+		return this;
 	}
 
-	@Override
-	public void visitIsIndent(IsIndent p) {
-		// TODO Auto-generated method stub
-		
+	protected JavaParserGenerator inc() {
+		file.incIndent();
+		return this;
 	}
 
-	@Override
-	public void visitExistsSymbol(ExistsSymbol p) {
-		// TODO Auto-generated method stub
-		
+	protected JavaParserGenerator dec() {
+		file.decIndent();
+		return this;
 	}
 
-	@Override
-	public void visitLocalTable(LocalTable p) {
-		// TODO Auto-generated method stub
-		
+	protected JavaParserGenerator L(String line) {
+		file.writeIndent(line);
+		return this;
+	}
+
+	protected JavaParserGenerator IfThen(String c) {
+		L("if (").W(c).W(") ");
+		return this;
+	}
+
+	protected JavaParserGenerator Begin() {
+		W("{").inc();
+		return this;
+	}
+
+	protected JavaParserGenerator End() {
+		dec().L("}");
+		return this;
+	}
+
+	protected JavaParserGenerator While(String c) {
+		L("while (").W(c).W(") ");
+		return this;
+	}
+
+	protected JavaParserGenerator Break() {
+		L("break").Semi();
+		return this;
 	}
 
+	protected JavaParserGenerator VarInt(String n, String v) {
+		L("int ").W(n).W(" = ").W(v).Semi();
+		return this;
+	}
+
+	protected JavaParserGenerator Assign(String n, String v) {
+		L(n).W(" = ").W(v).Semi();
+		return this;
+	}
+
+	protected JavaParserGenerator Semi() {
+		W(";");
+		return this;
+	}
+
+	protected JavaParserGenerator Statement(String expr) {
+		L(expr).Semi();
+		return this;
+	}
+
+	protected JavaParserGenerator Return(String v) {
+		L("return ").W(v).Semi();
+		return this;
+	}
+
+	protected JavaParserGenerator LComment(Object s) {
+		L("// ").W(s.toString());
+		return this;
+	}
 
 }
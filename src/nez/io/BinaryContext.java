@@ -1,6 +1,8 @@
 package nez.io;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import nez.SourceContext;
 import nez.ast.Source;
@@ -9,6 +11,7 @@ import nez.util.StringUtils;
 public class BinaryContext extends SourceContext {
 	private byte[] bin;
 	long binLength;
+	private ByteBuffer words = null;
 
 	public BinaryContext(byte[] bin) {
 		this("(binary)", 1, bin);
@@ -38,6 +41,20 @@ public class BinaryContext extends SourceContext {
 		return this.binLength;
 	}
 
+	@Override
+	public final long skipByteMap(long pos, boolean[] byteMap, long[] stopWords) {
+		if(stopWords != null && pos < this.binLength) {
+			if(this.words == null) {
+				this.words = ByteBuffer.wrap(this.bin).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			pos = indexOfStopWords(this.words, (int)pos, (int)this.binLength, stopWords);
+		}
+		while(byteMap[this.byteAt(pos)]) {
+			pos++;
+		}
+		return pos;
+	}
+
 	@Override
 	public final byte[] subbyte(long startIndex, long endIndex) {
 		byte[] b = new byte[(int)(endIndex - startIndex)];
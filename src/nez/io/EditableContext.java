@@ -0,0 +1,125 @@
+package nez.io;
+
+import java.io.UnsupportedEncodingException;
+
+import nez.SourceContext;
+import nez.util.StringUtils;
+
+/**
+ * EditableContext is an in-memory text that can be edited between parses
+ * (Grammar.reparse). It records the end of the input read by each memoized
+ * production, so that the memo entries that did not read an edited range
+ * can be reused.
+ */
+
+public class EditableContext extends SourceContext {
+	private byte[] utf8;      // zero-terminated
+	private long textLength;
+
+	public EditableContext(String sourceText) {
+		this("(string)", StringUtils.toUtf8(sourceText));
+	}
+
+	public EditableContext(String resource, byte[] text) {
+		super(resource, 1);
+		this.utf8 = new byte[text.length + 1];
+		System.arraycopy(text, 0, this.utf8, 0, text.length);
+		this.textLength = text.length;
+	}
+
+	/**
+	 * Replaces removed bytes at offset with inserted bytes and resets the
+	 * position for the next parse.
+	 */
+	public final void edit(long offset, int removed, byte[] inserted) {
+		if(offset < 0 || removed < 0 || offset + removed > this.textLength) {
+			throw new IndexOutOfBoundsException("edit " + offset + "+" + removed + " in " + this.textLength);
+		}
+		int s = (int)offset;
+		int e = s + removed;
+		byte[] b = new byte[this.utf8.length - removed + inserted.length];
+		System.arraycopy(this.utf8, 0, b, 0, s);
+		System.arraycopy(inserted, 0, b, s, inserted.length);
+		System.arraycopy(this.utf8, e, b, s + inserted.length, this.utf8.length - e);
+		this.utf8 = b;
+		this.textLength = b.length - 1;
+		this.resetPosition();
+	}
+
+	@Override
+	public final boolean requiresInterpreter() {
+		return true;  // compiled code does not report examined bytes
+	}
+
+	@Override
+	public final long length() {
+		return this.textLength;
+	}
+
+	@Override
+	public final boolean hasUnconsumed() {
+		long pos = this.getPosition();
+		if(pos >= this.examined) {
+			this.examined = pos + 1;
+		}
+		return pos != this.textLength;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if(pos >= this.examined) {
+			this.examined = pos + 1;
+		}
+		return pos < this.textLength ? this.utf8[(int)pos] & 0xff : 0;
+	}
+
+	@Override
+	public final int EOF() {
+		return 0;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if(pos + text.length > this.examined) {
+			this.examined = pos + text.length;
+		}
+		if(pos + text.length > this.textLength) {
+			return false;
+		}
+		for(int i = 0; i < text.length; i++) {
+			if(text[i] != this.utf8[(int)pos + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final byte[] subbyte(long startIndex, long endIndex) {
+		byte[] b = new byte[(int)(endIndex - startIndex)];
+		System.arraycopy(this.utf8, (int)(startIndex), b, 0, b.length);
+		return b;
+	}
+
+	@Override
+	public final String substring(long startIndex, long endIndex) {
+		try {
+			return new String(this.utf8, (int)(startIndex), (int)(endIndex - startIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+		}
+		return null;
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		long count = this.startLineNum;
+		int end = (int)Math.min(pos, this.textLength);
+		for(int i = 0; i < end; i++) {
+			if(this.utf8[i] == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,201 @@
+package nez.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import nez.SourceContext;
+import nez.main.Verbose;
+import nez.util.StringUtils;
+
+/**
+ * MappedFileContext reads a file through memory mappings instead of a page
+ * cache of byte arrays. A file larger than a chunk (1 GiB) is mapped in
+ * several chunks; positions are split into a chunk index and an offset.
+ */
+
+public class MappedFileContext extends SourceContext {
+	final static int ChunkShift = 30;
+	final static long ChunkMask = (1L << ChunkShift) - 1;
+	final static int LineBlockShift = 16;   // a line count per 64 KiB
+
+	private final int chunkShift;
+	private final long chunkMask;
+	private final long fileLength;
+	private final ByteBuffer[] chunks;
+	private final ByteBuffer head;           // chunks[0]
+	private final long headLength;
+	private ByteBuffer words = null;         // head in the little endian order
+	private long[] lines;
+	private int linesComputed;
+
+	public MappedFileContext(String fileName) throws IOException {
+		this(fileName, ChunkShift);
+	}
+
+	/* smaller chunks put the chunk boundaries within a small file */
+	MappedFileContext(String fileName, int chunkShift) throws IOException {
+		super(fileName, 1);
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1L << chunkShift) - 1;
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			this.fileLength = channel.size();
+			int size = (int)((this.fileLength + this.chunkMask) >>> this.chunkShift);
+			this.chunks = new ByteBuffer[size == 0 ? 1 : size];
+			for(int i = 0; i < this.chunks.length; i++) {
+				long offset = (long)i << this.chunkShift;
+				long len = Math.min(this.chunkMask + 1, this.fileLength - offset);
+				this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+			}
+		}
+		catch(IOException e) {
+			Verbose.traceException(e);
+			throw e;
+		}
+		finally {
+			file.close();  // mappings remain valid
+		}
+		this.head = this.chunks[0];
+		this.headLength = this.head.limit();
+		this.lines = new long[(int)(this.fileLength >>> LineBlockShift) + 2];
+		this.lines[0] = this.startLineNum;
+		this.linesComputed = 0;
+	}
+
+	/**
+	 * Reads a region of a buffer that is already mapped, such as the source
+	 * embedded in a binary tree (see nez.ast.BinaryTree).
+	 */
+	public MappedFileContext(String resourceName, ByteBuffer buffer) {
+		super(resourceName, 1);
+		this.chunkShift = ChunkShift;
+		this.chunkMask = ChunkMask;
+		this.fileLength = buffer.remaining();
+		this.chunks = new ByteBuffer[] { buffer.slice() };
+		this.head = this.chunks[0];
+		this.headLength = this.fileLength;
+		this.lines = new long[(int)(this.fileLength >>> LineBlockShift) + 2];
+		this.lines[0] = this.startLineNum;
+		this.linesComputed = 0;
+	}
+
+	@Override
+	public final long length() {
+		return this.fileLength;
+	}
+
+	@Override
+	public final int EOF() {
+		return 0;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if(pos < this.headLength) {
+			return this.head.get((int)pos) & 0xff;
+		}
+		if(pos < this.fileLength) {
+			return this.chunks[(int)(pos >>> this.chunkShift)].get((int)(pos & this.chunkMask)) & 0xff;
+		}
+		return 0;
+	}
+
+	@Override
+	public final long skipByteMap(long pos, boolean[] byteMap, long[] stopWords) {
+		if(stopWords != null && pos < this.headLength) {
+			if(this.words == null) {
+				this.words = this.head.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			}
+			pos = indexOfStopWords(this.words, (int)pos, (int)this.headLength, stopWords);
+		}
+		while(byteMap[this.byteAt(pos)]) {  // the rest of the chunks byte by byte
+			pos++;
+		}
+		return pos;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if(pos + text.length > this.fileLength) {
+			return false;
+		}
+		if(pos + text.length <= this.headLength) {
+			int offset = (int)pos;
+			for(int i = 0; i < text.length; i++) {
+				if(text[i] != this.head.get(offset + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for(int i = 0; i < text.length; i++) {
+			if((text[i] & 0xff) != this.byteAt(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final byte[] subbyte(long startIndex, long endIndex) {
+		if(endIndex > this.fileLength) {
+			endIndex = this.fileLength;
+		}
+		if(!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int)(endIndex - startIndex)];
+		int copied = 0;
+		while(copied < b.length) {
+			long pos = startIndex + copied;
+			ByteBuffer chunk = this.chunks[(int)(pos >>> this.chunkShift)].duplicate();
+			chunk.position((int)(pos & this.chunkMask));
+			int len = Math.min(b.length - copied, chunk.remaining());
+			chunk.get(b, copied, len);
+			copied += len;
+		}
+		return b;
+	}
+
+	@Override
+	public final String substring(long startIndex, long endIndex) {
+		if(endIndex > startIndex) {
+			try {
+				return new String(this.subbyte(startIndex, endIndex), StringUtils.DefaultEncoding);
+			} catch (UnsupportedEncodingException e) {
+				e.printStackTrace();
+			}
+		}
+		return "";
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		if(pos > this.fileLength) {
+			pos = this.fileLength;
+		}
+		int block = (int)(pos >>> LineBlockShift);
+		while(this.linesComputed < block) {
+			long s = (long)this.linesComputed << LineBlockShift;
+			this.lines[this.linesComputed + 1] = this.lines[this.linesComputed] + countLines(s, s + (1 << LineBlockShift));
+			this.linesComputed++;
+		}
+		return this.lines[block] + countLines((long)block << LineBlockShift, pos);
+	}
+
+	private long countLines(long s, long e) {
+		long count = 0;
+		for(long i = s; i < e; i++) {
+			if(this.byteAt(i) == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -1,140 +1,122 @@
 package nez.io;
 
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 import nez.SourceContext;
+import nez.main.Verbose;
 import nez.util.StringUtils;
 
+/**
+ * StreamContext parses an InputStream (stdin, pipes, sockets) without
+ * knowing its length. Only a sliding window of the input is buffered;
+ * when the window is full, the bytes before the oldest position that the
+ * parser may still read (Context.getLivePosition) are discarded. Token
+ * text is copied when a node is committed. Reading a discarded position
+ * throws IllegalStateException rather than parsing the wrong bytes.
+ */
+
 public class StreamContext extends SourceContext {
-	public final static int PageSize = 4096;
+	public final static int WindowSize = 64 * 1024;
+	final static int LookBehind = 256;  // kept for error messages
 
-	private RandomAccessFile file;
-	private long fileLength = 0;
-	private long buffer_offset;
+	private InputStream in;
+	private boolean eof = false;
 	private byte[] buffer;
-	private long lines[];
-
-	private final int FifoSize = 8; 
-	private LinkedHashMap<Long, byte[]> fifoMap = null;
+	private long bufferStart = 0;   // input position of buffer[0]
+	private long bufferEnd = 0;     // input position of the end of data
+	private long discardedLines = 0;
 
 	public StreamContext(String fileName) throws IOException {
-		super(fileName, 1);
-		this.file = new RandomAccessFile(fileName, "r");
-		this.fileLength = this.file.length();
-		this.buffer_offset = 0;
-		lines = new long[((int)this.fileLength / PageSize) + 1];
-		lines[0] = 1;
-		if(this.FifoSize > 0) {
-			this.fifoMap = new LinkedHashMap<Long, byte[]>(FifoSize) {  //FIFO
-				private static final long serialVersionUID = 6725894996600788028L;
-				@Override
-				protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest)  {
-					if(this.size() > FifoSize) {
-						return true;			
-					}
-					return false;
-				}
-			};
-			this.buffer = null;
-		}
-		else {
-			this.fifoMap = null;
-			this.buffer = new byte[PageSize];
-		}
-		this.readMainBuffer(this.buffer_offset);
+		this(fileName, new FileInputStream(fileName));
+	}
 
+	public StreamContext(String resource, InputStream in) {
+		super(resource, 1);
+		this.in = in;
+		this.buffer = new byte[WindowSize];
+		this.streaming = true;
 	}
+
+	/**
+	 * The length is not known until the stream ends; until then, a length
+	 * beyond the current position is returned.
+	 */
 	@Override
 	public final long length() {
-		return this.fileLength;
+		long pos = this.getPosition();
+		if(!this.eof && !(pos < this.bufferEnd)) {
+			this.fill(pos);
+		}
+		return this.eof ? this.bufferEnd : Long.MAX_VALUE;
 	}
 
-	private long buffer_alignment(long pos) {
-		return (pos / PageSize) * PageSize;
+	@Override
+	public final int EOF() {
+		return 0;
 	}
 
 	@Override
 	public final int byteAt(long pos) {
-		int buffer_pos = (int)(pos - this.buffer_offset);
-		if(!(buffer_pos >= 0 && buffer_pos < PageSize)) {
-			this.buffer_offset = buffer_alignment(pos);
-			this.readMainBuffer(this.buffer_offset);
-			buffer_pos = (int)(pos - this.buffer_offset);
+		if(pos >= this.bufferStart && pos < this.bufferEnd) {
+			return this.buffer[(int)(pos - this.bufferStart)] & 0xff;
 		}
-		return this.buffer[buffer_pos] & 0xff;
-	}
-
-	@Override
-	public final int EOF() {
-		return 0;  //
+		if(pos < this.bufferStart) {
+			throw new IllegalStateException("discarded input: " + pos + " < " + this.bufferStart);
+		}
+		this.fill(pos);
+		if(pos < this.bufferEnd) {
+			return this.buffer[(int)(pos - this.bufferStart)] & 0xff;
+		}
+		return 0;
 	}
 
 	@Override
 	public final boolean match(long pos, byte[] text) {
-		int offset = (int)(pos - this.buffer_offset);
-		if(offset >= 0 && offset + text.length <= PageSize) {
-			switch(text.length) {
-			case 0:
-				break;
-			case 1:
-				if(text[0] == this.buffer[offset]) {
-					return true;
-				}
-				return false;
-			case 2:
-				if(text[0] == this.buffer[offset] && text[1] == this.buffer[offset+1]) {
-					return true;
-				}
-				return false;
-			case 3:
-				if(text[0] == this.buffer[offset] && text[1] == this.buffer[offset+1] && text[2] == this.buffer[offset+2]) {
-					return true;
-				}
-				return false;
-			case 4:
-				if(text[0] == this.buffer[offset] && text[1] == this.buffer[offset+1] && text[2] == this.buffer[offset+2] && text[3] == this.buffer[offset+3]) {
-					return true;
-				}
+		if(pos + text.length > this.bufferEnd) {
+			this.fill(pos + text.length - 1);
+			if(pos + text.length > this.bufferEnd) {
 				return false;
-			default:
-				for(int i = 0; i < text.length; i++) {
-					if(text[i] != this.buffer[offset+i]) {
-						return false;
-					}
-				}
 			}
-			return true;
 		}
+		if(pos < this.bufferStart) {
+			throw new IllegalStateException("discarded input: " + pos + " < " + this.bufferStart);
+		}
+		int offset = (int)(pos - this.bufferStart);
 		for(int i = 0; i < text.length; i++) {
-			if((text[i] & 0xff) != this.byteAt(pos + i)) {
+			if(text[i] != this.buffer[offset + i]) {
 				return false;
 			}
 		}
 		return true;
 	}
 
+	@Override
+	public final byte[] subbyte(long startIndex, long endIndex) {
+		if(endIndex > this.bufferEnd) {
+			this.fill(endIndex - 1);
+			if(endIndex > this.bufferEnd) {
+				endIndex = this.bufferEnd;
+			}
+		}
+		if(!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		if(startIndex < this.bufferStart) {
+			throw new IllegalStateException("discarded input: " + startIndex + " < " + this.bufferStart);
+		}
+		byte[] b = new byte[(int)(endIndex - startIndex)];
+		System.arraycopy(this.buffer, (int)(startIndex - this.bufferStart), b, 0, b.length);
+		return b;
+	}
+
 	@Override
 	public final String substring(long startIndex, long endIndex) {
 		if(endIndex > startIndex) {
 			try {
-				long off_s = buffer_alignment(startIndex);
-				long off_e = buffer_alignment(endIndex);
-				if(off_s == off_e) {
-					if(this.buffer_offset != off_s) {
-						this.buffer_offset = off_s;
-						this.readMainBuffer(this.buffer_offset);
-					}
-					return new String(this.buffer, (int)(startIndex - this.buffer_offset), (int)(endIndex - startIndex), StringUtils.DefaultEncoding);
-				}
-				else {
-					byte[] b = new byte[(int)(endIndex - startIndex)];
-					this.readStringBuffer(startIndex, b);
-					return new String(b, StringUtils.DefaultEncoding);
-				}
+				return new String(this.subbyte(startIndex, endIndex), StringUtils.DefaultEncoding);
 			} catch (UnsupportedEncodingException e) {
 				e.printStackTrace();
 			}
@@ -143,123 +125,72 @@ public class StreamContext extends SourceContext {
 	}
 
 	@Override
-	public final byte[] subbyte(long startIndex, long endIndex) {
-		byte[] b = null;
-		if(endIndex > startIndex) {
-			long off_s = buffer_alignment(startIndex);
-			long off_e = buffer_alignment(endIndex);
-			b = new byte[(int)(endIndex - startIndex)];
-			if(off_s == off_e) {
-				if(this.buffer_offset != off_s) {
-					this.buffer_offset = off_s;
-					this.readMainBuffer(this.buffer_offset);
-				}
-				System.arraycopy(this.buffer, (int)(startIndex - this.buffer_offset), b, 0, b.length);
-			}
-			else {
-				this.readStringBuffer(startIndex, b);
+	public final long linenum(long pos) {
+		if(pos >= this.bufferEnd) {
+			this.fill(pos);
+		}
+		long count = this.startLineNum + this.discardedLines;
+		long end = Math.min(pos, this.bufferEnd);
+		for(long i = this.bufferStart; i < end; i++) {
+			if(this.buffer[(int)(i - this.bufferStart)] == '\n') {
+				count++;
 			}
 		}
-		return b;
+		return count;
 	}
 
+	/* window */
 
-	private int lineIndex(long pos) {
-		return (int)(pos / PageSize);
+	@Override
+	public final long getWindowStart() {
+		return this.bufferStart;
 	}
 
-	private long startLineNum(long pos) {
-		int index = lineIndex(pos);
-		return this.lines[index];
+	public final long getBufferedSize() {
+		return this.bufferEnd - this.bufferStart;
 	}
 
-	@Override
-	public final long linenum(long pos) {
-		long count = startLineNum(pos);
-		byteAt(pos); // restore buffer at pos
-		int offset = (int)(pos - this.buffer_offset);
-		for(int i = 0; i < offset; i++) {
-			if(this.buffer[i] == '\n') {
-				count++;
+	private void fill(long pos) {
+		while(pos >= this.bufferEnd && !this.eof) {
+			int used = (int)(this.bufferEnd - this.bufferStart);
+			if(used == this.buffer.length) {
+				this.slide();
+				used = (int)(this.bufferEnd - this.bufferStart);
 			}
-		}
-		return count;
-	}
-
-	private void readMainBuffer(long pos) {
-		int index = lineIndex(pos);
-		if(this.lines[index] == 0) {
-			long count = this.lines[index-1];
-			for(int i = 0; i < this.buffer.length; i++) {
-				if(this.buffer[i] == '\n') {
-					count++;
+			try {
+				int n = this.in.read(this.buffer, used, this.buffer.length - used);
+				if(n == -1) {
+					this.eof = true;
+					this.in.close();
+				}
+				else {
+					this.bufferEnd += n;
 				}
 			}
-			this.lines[index] = count;
-		}
-		if(this.fifoMap != null) {
-			Long key = pos;
-			byte[] buf = this.fifoMap.get(key);
-			if(buf == null) {
-				buf = new byte[PageSize];
-				this.readBuffer(pos, buf);
-				this.fifoMap.put(key, buf);
-				this.buffer = buf;
-			}
-			else {
-				this.buffer = buf;
+			catch(IOException e) {
+				Verbose.traceException(e);
+				this.eof = true;
 			}
 		}
-		else {
-			this.readBuffer(pos, this.buffer);
-		}
 	}
 
-	private void readBuffer(long pos, byte[] b) {
-		try {
-			this.file.seek(pos);
-			int readsize = this.file.read(b);
-			for(int i = readsize; i < b.length; i++) {
-				b[i] = 0;
-			}
-			//		if(this.stat != null) {
-			//			stat.readFile(b.length);
-			//		}
-		} catch (IOException e) {
-			e.printStackTrace();
+	private void slide() {
+		long live = this.getLivePosition() - LookBehind;
+		int shift = (int)(Math.max(live, this.bufferStart) - this.bufferStart);
+		if(shift < this.buffer.length / 4) {
+			byte[] newbuf = new byte[this.buffer.length * 2];  // the live window is too large
+			System.arraycopy(this.buffer, 0, newbuf, 0, this.buffer.length);
+			this.buffer = newbuf;
+			return;
 		}
-	}
-
-	private void readStringBuffer(long pos, byte[] buf) {
-		if(this.fifoMap != null) {
-			int copied = 0;
-			long start = pos;
-			long end = pos + buf.length;
-			while(start < end) {
-				long offset = this.buffer_alignment(start);
-				if(this.buffer_offset != offset) {
-					this.buffer_offset = offset;
-					this.readMainBuffer(offset);
-				}
-				int start_off = (int)(start - offset);
-				int end_off = (int)(end - offset);				
-				if(end_off <= PageSize) {
-					int len = end_off - start_off;
-					System.arraycopy(this.buffer, start_off, buf, copied, len);
-					copied += len;
-					assert(copied == buf.length);
-					return;
-				}
-				else {
-					int len = PageSize - start_off;
-					System.arraycopy(this.buffer, start_off, buf, copied, len);
-					copied += len;
-					start += len;
-				}
+		for(int i = 0; i < shift; i++) {
+			if(this.buffer[i] == '\n') {
+				this.discardedLines++;
 			}
 		}
-		else {
-			this.readBuffer(pos, buf);
-		}
+		int used = (int)(this.bufferEnd - this.bufferStart);
+		System.arraycopy(this.buffer, shift, this.buffer, 0, used - shift);
+		this.bufferStart += shift;
 	}
+
 }
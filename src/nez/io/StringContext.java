@@ -1,6 +1,8 @@
 package nez.io;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import nez.SourceContext;
 import nez.util.StringUtils;
@@ -8,6 +10,7 @@ import nez.util.StringUtils;
 public class StringContext extends SourceContext {
 	private byte[] utf8;
 	long textLength;
+	private ByteBuffer words = null;
 
 	public StringContext(String sourceText) {
 		super("(string)", 1);
@@ -43,6 +46,21 @@ public class StringContext extends SourceContext {
 		return 0;
 	}
 
+	@Override
+	public final long skipByteMap(long pos, boolean[] byteMap, long[] stopWords) {
+		int i = (int)pos;
+		if(stopWords != null) {
+			if(this.words == null) {
+				this.words = ByteBuffer.wrap(this.utf8).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			i = indexOfStopWords(this.words, i, (int)this.textLength, stopWords);
+		}
+		while(byteMap[this.utf8[i] & 0xff]) {
+			i++;
+		}
+		return i;
+	}
+
 	@Override
 	public final byte[] subbyte(long startIndex, long endIndex) {
 		byte[] b = new byte[(int)(endIndex - startIndex)];
@@ -1,13 +1,19 @@
 package nez.lang;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.TreeMap;
 
 import nez.NezOption;
 import nez.SourceContext;
+import nez.ast.ColumnarTree;
+import nez.ast.ColumnarTreeTransducer;
 import nez.ast.CommonTree;
 import nez.ast.CommonTreeTransducer;
+import nez.ast.EventTreeTransducer;
+import nez.ast.TreeListener;
 import nez.ast.TreeTransducer;
+import nez.io.EditableContext;
 import nez.main.Command;
 import nez.main.NezProfier;
 import nez.main.Verbose;
@@ -15,7 +21,12 @@ import nez.util.ConsoleUtils;
 import nez.util.UFlag;
 import nez.util.UList;
 import nez.util.UMap;
+import nez.vm.BacktrackProfiler;
+import nez.vm.HotPathProfiler;
+import nez.vm.IncrementalMemoTable;
 import nez.vm.Instruction;
+import nez.vm.JitCompiler;
+import nez.vm.JitParser;
 import nez.vm.Machine;
 import nez.vm.MemoPoint;
 import nez.vm.MemoTable;
@@ -24,15 +35,21 @@ import nez.vm.NezCompiler;
 import nez.vm.NezDebugger;
 import nez.vm.NezCompiler1;
 import nez.vm.NezCompiler2;
+import nez.vm.ParseSession;
+import nez.vm.PackedCode;
 
 public class Grammar {
-	Production start;
+	volatile Production start;
 	UList<Production>          productionList;
 	UMap<Production>           productionMap;
 	TreeMap<String, Boolean>   conditionMap;
+	final String urn;
+	final String startName;
 	
 	Grammar(Production start, NezOption option) {
 		this.start = start;
+		this.urn = start.getGrammarFile().getURN();
+		this.startName = start.getLocalName();
 		this.productionList = new UList<Production>(new Production[4]);
 		this.productionMap = new UMap<Production>();
 		this.setOption(option);
@@ -49,13 +66,64 @@ public class Grammar {
 		}
 	}	
 	
+	/**
+	 * A grammar of the code read from GrammarCache. The productions are
+	 * loaded when they are needed, and so are the instructions when the
+	 * interpreter is needed.
+	 */
+	Grammar(String urn, String startName, NezOption option, PackedCode code) {
+		this.urn = urn;
+		this.startName = startName;
+		this.setOption(option);
+		this.packedCode = code;
+		this.compiledCode = new NezCode(code.getMemoPointList());
+	}
+
 	public final Production getStartProduction() {
+		if(this.start == null) {
+			this.loadProductions();
+		}
 		return this.start;
 	}
 
 	public final List<Production> getProductionList() {
+		if(this.start == null) {
+			this.loadProductions();
+		}
 		return this.productionList;
 	}
+
+	/* the grammar file and the start production, known without the productions */
+	public final String getURN() {
+		return this.urn;
+	}
+
+	public final String getStartName() {
+		return this.startName;
+	}
+
+	public final boolean isCached() {
+		return this.start == null || (this.compiledCode != null && this.compiledCode.getStartPoint() == null);
+	}
+
+	private synchronized void loadProductions() {
+		if(this.start == null) {
+			Grammar g = null;
+			try {
+				g = GrammarFile.loadGrammarFile(this.urn, this.option).newGrammar(this.startName, this.option);
+			}
+			catch(IOException e) {
+				Verbose.traceException(e);
+			}
+			if(g == null) {
+				ConsoleUtils.exit(1, "cannot load " + this.urn);
+			}
+			this.productionList = g.productionList;
+			this.productionMap = g.productionMap;
+			this.conditionMap = g.conditionMap;
+			this.start = g.start;
+		}
+	}
 		
 	private void analyze(Production p, TreeMap<String, Boolean> conditionMap) {
 		String uname = p.getUniqueName();
@@ -88,13 +156,33 @@ public class Grammar {
 		this.prof = prof;
 		if(prof != null) {
 			this.compile();
-			prof.setFile("G.File", this.start.getGrammarFile().getURN());
+			prof.setFile("G.File", this.getStartProduction().getGrammarFile().getURN());
 			prof.setCount("G.Production", this.productionMap.size());
 			prof.setCount("G.Instruction", this.compiledCode.getInstructionSize());
 			prof.setCount("G.MemoPoint", this.compiledCode.getMemoPointSize());
 		}
 	}
 
+	private HotPathProfiler hotPath = null;
+
+	/* counts the cost of each call path (nez hotpath); the interpreter is used */
+	public void setHotPathProfiler(HotPathProfiler hotPath) {
+		this.hotPath = hotPath;
+		if(hotPath != null) {
+			this.compile();
+		}
+	}
+
+	private BacktrackProfiler backtrack = null;
+
+	/* records the failures by their sites (nez backtrack); the interpreter is used */
+	public void setBacktrackProfiler(BacktrackProfiler backtrack) {
+		this.backtrack = backtrack;
+		if(backtrack != null) {
+			this.compile();
+		}
+	}
+
 	public NezProfier getProfiler() {
 		return this.prof;
 	}
@@ -109,7 +197,10 @@ public class Grammar {
 	/* memoization configuration */
 	
 	private NezOption option;
-	private NezCode compiledCode = null;
+	private volatile NezCode compiledCode = null;
+	private JitParser jitCode = null;
+	private PackedCode packedCode = null;
+	private ThreadLocal<ParseSession> sessionPool = null;
 	
 	public final NezOption getNezOption() {
 		return this.option;
@@ -118,44 +209,158 @@ public class Grammar {
 	private void setOption (NezOption option) {
 		this.option = option;
 		this.compiledCode = null;
+		this.jitCode = null;
+		this.packedCode = null;
+		this.sessionPool = new ThreadLocal<ParseSession>();
 	}
 	
 	private MemoTable getMemoTable(SourceContext sc) {
-		return MemoTable.newTable(option, sc.length(), 32, this.compiledCode.getMemoPointSize());
+		if(option.enabledAutoMemo) {
+			return getMemoTuning(sc).newTable(sc.length());
+		}
+		return MemoTable.newTable(option, sc.length(), this.compiledCode.getMemoPointSize());
 	}
 
+	private MemoTuning memoTuning = null;
+
+	/**
+	 * Returns the memo table chosen for this grammar (automemo); the
+	 * first input is sampled unless an earlier choice has been saved.
+	 */
+	private synchronized MemoTuning getMemoTuning(SourceContext sc) {
+		if(this.memoTuning == null) {
+			int size = this.compiledCode.getMemoPointSize();
+			this.memoTuning = MemoTuning.load(this, size);
+			if(this.memoTuning == null) {
+				this.memoTuning = MemoTuning.tune(this, sc, size);
+				this.compiledCode.reactivateMemoPoints();
+				if(MemoTuning.isSavable(sc)) {
+					this.memoTuning.save(this);
+				}
+			}
+			MemoTuning.trace(this.memoTuning.toString());
+		}
+		return this.memoTuning;
+	}
+
+	/* a sample parse with the given table, for MemoTuning */
+	final MemoTable sample(SourceContext s, MemoTable table) {
+		ParseSession session = new ParseSession(table, this.compiledCode.getMemoPointSize());
+		session.disableAdaptiveMemo();
+		this.compiledCode.reactivateMemoPoints();
+		match(s, session);
+		return table;
+	}
+
+	/**
+	 * Compiles the grammar once; the compiled code is shared by all threads
+	 * that parse with this grammar.
+	 */
 	public final Instruction compile() {
-		if(compiledCode == null) {
-			NezCompiler bc = Command.ReleasePreview ? new NezCompiler2(this.option) : new NezCompiler1(this.option);
-			compiledCode = bc.compile(this);
-//			if(Verbose.VirtualMachine) {
-//				bc.dump(this.productionList);
-//			}
+		NezCode code = this.compiledCode;
+		if(code == null || code.getStartPoint() == null) {
+			synchronized(this) {
+				code = this.compiledCode;
+				if(code == null || code.getStartPoint() == null) {
+					this.getStartProduction();  // loaded if cached
+					NezCompiler bc = Command.ReleasePreview ? new NezCompiler2(this.option) : new NezCompiler1(this.option);
+					code = bc.compile(this);
+					if(option.enabledJIT) {
+						jitCode = JitCompiler.compile(code);
+					}
+					else if(option.enabledPackedCode || option.enabledGrammarCache) {
+						packedCode = PackedCode.encode(code);
+					}
+//					if(Verbose.VirtualMachine) {
+//						bc.dump(this.productionList);
+//					}
+					this.compiledCode = code;  // published after jitCode and packedCode
+				}
+			}
+		}
+		return code.getStartPoint();
+	}
+
+	/* the compiled code; a cached grammar has no instructions until compile() */
+	public final NezCode getCode() {
+		if(this.compiledCode == null) {
+			this.compile();
 		}
-		return compiledCode.getStartPoint();
+		return this.compiledCode;
+	}
+
+	final PackedCode getPackedCode() {
+		return this.packedCode;
 	}
-			
+
+	/**
+	 * Returns the parse session of the current thread. A nested parse on
+	 * the same thread gets a temporary session.
+	 */
+	private ParseSession getSession(SourceContext sc) {
+		ParseSession session = this.sessionPool.get();
+		if(session == null || session.isActive()) {
+			ParseSession newSession = new ParseSession(getMemoTable(sc), this.compiledCode.getMemoPointSize());
+			if(session == null) {
+				this.sessionPool.set(newSession);
+			}
+			return newSession;
+		}
+		return session;
+	}
+
+	/**
+	 * Parses the source. A grammar can be shared by threads; each thread
+	 * parses in its own ParseSession and merges the statistics at the end.
+	 */
 	public final boolean match(SourceContext s) {
+		this.getCode();
+		if(option.enabledMemoReactivation) {
+			this.compiledCode.reactivateMemoPoints();
+		}
+		return match(s, getSession(s));
+	}
+
+	private boolean match(SourceContext s, ParseSession session) {
 		boolean matched;
-		Instruction pc = this.compile();
-		s.initJumpStack(getMemoTable(s));
+		this.getCode();
+		s.initJumpStack(session);
 		if(prof != null) {
 			s.startProfiling(prof);
 		}
-		if(Verbose.Debug) {
-			matched = Machine.debug(pc, s);
-		}
-		else {
-			matched = Machine.run(pc, s);
+		try {
+			boolean compiled = prof == null && hotPath == null && backtrack == null && !s.requiresInterpreter();  // streams need the interpreter's stack
+			if(Verbose.Debug) {
+				matched = Machine.debug(this.compile(), s);
+			}
+			else if(hotPath != null) {
+				matched = Machine.profile(this.compile(), s, this.startName, hotPath);
+			}
+			else if(backtrack != null) {
+				matched = Machine.backtrack(this.compile(), s, backtrack);
+			}
+			else if(jitCode != null && compiled) {
+				matched = jitCode.parse(s);
+			}
+			else if(packedCode != null && compiled) {
+				matched = packedCode.run(s);
+			}
+			else {
+				matched = Machine.run(this.compile(), s);
+			}
+			if(matched) {
+				s.newTopLevelNode();
+			}
 		}
-		if(matched) {
-			s.newTopLevelNode();
+		finally {
+			s.endJumpStack();
 		}
+		session.flushMemoStat(this.compiledCode);
 		if(prof != null) {
 			s.doneProfiling(prof);
-			if(Verbose.PackratParsing) {
-				this.compiledCode.dumpMemoPointList();
-			}
+		}
+		if(Verbose.PackratParsing) {
+			this.compiledCode.dumpMemoPointList();
 		}
 		return matched;
 	}
@@ -163,9 +368,10 @@ public class Grammar {
 	public final boolean debug(SourceContext s) {
 		boolean matched;
 		Instruction pc;
-		s.initJumpStack(getMemoTable(s));
-		NezCompiler c = new NezCompiler1(this.option);
-		pc = c.compile(this).getStartPoint();
+		NezCode code = new NezCompiler1(this.option).compile(this);
+		int size = code.getMemoPointSize();  // the debugger runs its own code
+		s.initJumpStack(new ParseSession(MemoTable.newTable(option, s.length(), size), size));
+		pc = code.getStartPoint();
 		NezDebugger debugger = new NezDebugger(this, pc, s);
 		matched = debugger.exec();
 //		if(matched) {
@@ -211,4 +417,81 @@ public class Grammar {
 		return (CommonTree)this.parse(sc, new CommonTreeTransducer());
 	}
 
+	/**
+	 * Parses into a ColumnarTree, which takes much less memory than a
+	 * CommonTree.
+	 */
+	public final ColumnarTree parseColumnarTree(SourceContext sc) {
+		ColumnarTreeTransducer treeFactory = new ColumnarTreeTransducer();
+		Object node = this.parse(sc, treeFactory);
+		return node == null ? null : treeFactory.getTree(node);
+	}
+
+	/**
+	 * Parses and sends the tree to a listener as events, without building
+	 * tree objects; the events are sent after the whole input is parsed.
+	 */
+	public final boolean parse(SourceContext sc, TreeListener listener) {
+		EventTreeTransducer treeFactory = new EventTreeTransducer(listener);
+		Object node = this.parse(sc, treeFactory);
+		if(node == null) {
+			return false;
+		}
+		treeFactory.emit(node);
+		return true;
+	}
+
+	/* incremental parsing */
+
+	/**
+	 * Parses an EditableContext and keeps all memo entries in the memo table
+	 * of the source, which is passed to reparse() after an edit. Subtrees are
+	 * memoized if the grammar is compiled with the incremental option.
+	 */
+	public final CommonTree parseIncremental(EditableContext sc) {
+		this.getCode();
+		return parseIncremental(sc, new IncrementalMemoTable(sc));
+	}
+
+	/**
+	 * Reparses the source of a tree from parseIncremental() after the removed
+	 * bytes at offset are replaced by inserted bytes. The memo entries that
+	 * did not read the edited range are reused with their subtrees, which are
+	 * moved into the new tree; the previous tree must not be used afterward.
+	 */
+	public final CommonTree reparse(CommonTree prev, MemoTable memo, long offset, int removed, byte[] inserted) {
+		if(!(prev.getSource() instanceof EditableContext)) {
+			throw new IllegalArgumentException("not parsed by parseIncremental");
+		}
+		return reparse((EditableContext)prev.getSource(), memo, offset, removed, inserted);
+	}
+
+	/**
+	 * Reparses after an edit; the previous parse may have failed.
+	 */
+	public final CommonTree reparse(EditableContext sc, MemoTable memo, long offset, int removed, byte[] inserted) {
+		if(!(memo instanceof IncrementalMemoTable)) {
+			throw new IllegalArgumentException("not parsed by parseIncremental");
+		}
+		IncrementalMemoTable table = (IncrementalMemoTable)memo;
+		table.edit(offset, removed, inserted.length);
+		sc.edit(offset, removed, inserted);
+		return parseIncremental(sc, table);
+	}
+
+	private CommonTree parseIncremental(EditableContext sc, IncrementalMemoTable table) {
+		TreeTransducer treeFactory = new CommonTreeTransducer();
+		sc.setTreeTransducer(treeFactory);
+		if(!this.match(sc, new ParseSession(table, this.compiledCode.getMemoPointSize()))) {
+			return null;
+		}
+		Object node = sc.getLeftObject();
+		if(node == null) {
+			node = treeFactory.newNode(null, sc, 0, sc.getPosition(), 0, null);
+		}
+		CommonTree tree = (CommonTree)treeFactory.commit(node);
+		table.setTree(tree);
+		return tree;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+package nez.lang;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import nez.NezOption;
+import nez.main.Command;
+import nez.main.Verbose;
+import nez.util.UList;
+import nez.vm.PackedCode;
+
+/**
+ * GrammarCache keeps the compiled code of grammars (--option:cache) in
+ * ~/.nez/cache, or in the directory of the nez.cache property. A file is
+ * named after the grammar, the start production, the options and the
+ * compiler, and records the digests of the grammar and its imports; it
+ * is used only while they are unchanged. On a hit no grammar is parsed:
+ * the grammar runs the packed code, and the productions are loaded only
+ * if they are asked for (the interpreter, the profiler, or a generator).
+ */
+
+public class GrammarCache {
+	final static int Magic = 0x4e657a43;   // NezC
+	final static int FormatVersion = 2;
+
+	/**
+	 * Returns the grammar of start in the file urn, from the cache if
+	 * possible; null if the grammar cannot be cached.
+	 */
+	public static Grammar load(String urn, String start, NezOption option) throws IOException {
+		if(!urn.endsWith(".nez") || option.enabledJIT) {
+			return null;
+		}
+		File file = getFile(urn, start, option);
+		Grammar g = read(file, urn, start, option);
+		if(g != null) {
+			trace("hit " + file);
+			return g;
+		}
+		boolean loaded = GrammarFile.isLoaded(urn);  // maybe older than the file
+		GrammarFile gfile = GrammarFile.loadGrammarFile(urn, option);
+		g = gfile.newGrammar(start, option);
+		if(g == null) {
+			return null;
+		}
+		g.compile();
+		if(loaded) {
+			return g;
+		}
+		try {
+			write(file, g, gfile);
+			trace("saved " + file);
+		}
+		catch(IOException e) {
+			Verbose.traceException(e);   // still usable without the cache
+		}
+		return g;
+	}
+
+	static void trace(String msg) {
+		if(Verbose.Grammar) {
+			Verbose.println("cache: " + msg);
+		}
+	}
+
+	static File getDirectory() {
+		String dir = System.getProperty("nez.cache");
+		if(dir != null) {
+			return new File(dir);
+		}
+		return new File(new File(System.getProperty("user.home"), ".nez"), "cache");
+	}
+
+	static File getFile(String urn, String start, NezOption option) {
+		File f = new File(urn);
+		String key = FormatVersion + "\n" + getCompilerStamp() + "\n" + getPath(urn) + "\n" + start + "\n" + option + "\n" + Command.ReleasePreview;
+		return new File(getDirectory(), f.getName() + "." + start + "." + hex(digest(key.getBytes())).substring(0, 16) + ".cache");
+	}
+
+	/* a file is recorded by its canonical path, a bundled grammar by its name */
+	static String getPath(String urn) {
+		File f = new File(urn);
+		if(f.isFile()) {
+			try {
+				return f.getCanonicalPath();
+			}
+			catch(IOException e) {
+			}
+		}
+		return urn;
+	}
+
+	/* the cache is rebuilt when nez itself is rebuilt */
+	private static String getCompilerStamp() {
+		CodeSource cs = GrammarCache.class.getProtectionDomain().getCodeSource();
+		if(cs != null && cs.getLocation() != null) {
+			URL url = cs.getLocation();
+			File f = new File(url.getPath());
+			return url.toString() + "@" + f.lastModified();
+		}
+		return "";
+	}
+
+	/* reading */
+
+	static Grammar read(File file, String urn, String start, NezOption option) {
+		if(!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if(in.readInt() != Magic || in.readInt() != FormatVersion) {
+					return null;
+				}
+				int size = in.readInt();
+				for(int i = 0; i < size; i++) {
+					String dep = in.readUTF();
+					String hash = in.readUTF();
+					byte[] text = readSource(dep);
+					if(text == null || !hash.equals(hex(digest(text)))) {
+						trace("changed " + dep);
+						return null;
+					}
+				}
+				return new Grammar(urn, start, option, PackedCode.read(in));
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch(IOException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+	}
+
+	/* writing */
+
+	static void write(File file, Grammar g, GrammarFile gfile) throws IOException {
+		PackedCode code = g.getPackedCode();
+		if(code == null) {
+			return;
+		}
+		UList<GrammarFile> deps = new UList<GrammarFile>(new GrammarFile[4]);
+		addDependency(deps, gfile);
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(Magic);
+			out.writeInt(FormatVersion);
+			out.writeInt(deps.size());
+			for(GrammarFile dep : deps) {
+				String path = getPath(dep.getURN());
+				byte[] text = readSource(path);
+				if(text == null) {
+					throw new IOException("cannot read " + path);
+				}
+				out.writeUTF(path);
+				out.writeUTF(hex(digest(text)));
+			}
+			code.write(out);
+		}
+		finally {
+			out.close();
+		}
+		file.delete();
+		if(!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot rename " + temp);
+		}
+	}
+
+	private static void addDependency(UList<GrammarFile> deps, GrammarFile gfile) {
+		if(gfile.getURN() != null && !deps.contains(gfile)) {
+			deps.add(gfile);
+			for(GrammarFile f : gfile.getImportList()) {
+				addDependency(deps, f);
+			}
+		}
+	}
+
+	/* the bytes of a grammar file, or a bundled grammar as in SourceContext */
+	static byte[] readSource(String urn) throws IOException {
+		InputStream in = null;
+		File f = new File(urn);
+		if(f.isFile()) {
+			in = new FileInputStream(f);
+		}
+		else {
+			in = GrammarCache.class.getResourceAsStream("/nez/lib/" + urn);
+			if(in == null) {
+				return null;
+			}
+		}
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			byte[] b = new byte[8192];
+			int n;
+			while((n = in.read(b)) > 0) {
+				buf.write(b, 0, n);
+			}
+			return buf.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	static byte[] digest(byte[] text) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(text);
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for(int i = 0; i < b.length; i++) {
+			sb.append(String.format("%02x", b[i] & 0xff));
+		}
+		return sb.toString();
+	}
+}
@@ -125,6 +125,25 @@ public class GrammarFile extends GrammarFactory {
 		return this.urn;
 	}
 	
+	private UList<GrammarFile> importList;
+
+	final void addImport(GrammarFile file) {
+		if(importList == null) {
+			importList = new UList<GrammarFile>(new GrammarFile[2]);
+		}
+		if(!importList.contains(file)) {
+			importList.add(file);
+		}
+	}
+
+	/* imported files, for the dependencies of GrammarCache */
+	public final List<GrammarFile> getImportList() {
+		if(importList == null) {
+			return new UList<GrammarFile>(new GrammarFile[0]);
+		}
+		return importList;
+	}
+
 	public final boolean isEmpty() {
 		return this.ruleMap.size() == 0;
 	}
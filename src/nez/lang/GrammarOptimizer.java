@@ -145,8 +145,8 @@ public class GrammarOptimizer extends GrammarReshaper {
 			AnyChar any = (AnyChar)next;
 			isBinary = any.isBinary();
 			bany = ByteMap.newMap(true);
-			if(isBinary) {
-				bany[0] = false;
+			if(!isBinary) {
+				bany[0] = false;  // EOF
 			}
 		}
 		if(next instanceof ByteMap) {
@@ -0,0 +1,160 @@
+package nez.lang;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import nez.SourceContext;
+import nez.main.Verbose;
+import nez.vm.MemoTable;
+
+/**
+ * MemoTuning chooses the memo table of a grammar (--option:automemo) from
+ * sample parses of a prefix of the first input. A packrat table shows how
+ * many lookups can hit at all; the smallest elastic window that keeps
+ * most of them is chosen, no table if they are too few, and the packrat
+ * table if no window is large enough. The choice is saved next to the
+ * grammar file (NAME.nez.memo), or in ~/.nez if that is not writable,
+ * and reused until the number of memo points changes.
+ */
+
+public class MemoTuning {
+	final static int SampleSize = 256 * 1024;
+	final static int MinSampleSize = 16 * 1024;   // smaller samples are not saved
+	final static int[] WindowSizes = { 8, 16, 32, 64, 128, 256 };
+	final static double MinHitRatio = 0.01;        // hits per stored entry
+	final static double EnoughHits = 0.95;         // of the packrat hits
+
+	final String table;     // null, elastic or packrat
+	final int windowSize;
+	final int memoPointSize;
+
+	MemoTuning(String table, int windowSize, int memoPointSize) {
+		this.table = table;
+		this.windowSize = windowSize;
+		this.memoPointSize = memoPointSize;
+	}
+
+	final MemoTable newTable(long length) {
+		return MemoTable.newTable(this.table, length, this.windowSize, this.memoPointSize);
+	}
+
+	@Override
+	public String toString() {
+		return this.table.equals("elastic") ? this.table + ":window=" + this.windowSize : this.table;
+	}
+
+	/* tuning */
+
+	static MemoTuning tune(Grammar g, SourceContext input, int memoPointSize) {
+		long length = Math.min(input.length(), SampleSize);
+		SourceContext sample = SourceContext.newStringSourceContext(input.getResourceName(), 1, input.substring(0, length));
+		MemoTable packrat = g.sample(sample, MemoTable.newTable("packrat", length, 32, memoPointSize));
+		long hits = packrat.getUsedCount();
+		trace("packrat stored=" + packrat.getStoredCount() + " used=" + hits + " invalidated=" + packrat.getInvalidatedCount());
+		if(hits == 0 || hits < MinHitRatio * packrat.getStoredCount()) {
+			return new MemoTuning("null", 0, memoPointSize);
+		}
+		for(int w : WindowSizes) {
+			sample = SourceContext.newStringSourceContext(input.getResourceName(), 1, input.substring(0, length));
+			MemoTable elastic = g.sample(sample, MemoTable.newTable("elastic", length, w, memoPointSize));
+			trace("window=" + w + " used=" + elastic.getUsedCount() + " invalidated=" + elastic.getInvalidatedCount());
+			if(elastic.getUsedCount() >= EnoughHits * hits) {
+				return new MemoTuning("elastic", w, memoPointSize);
+			}
+		}
+		return new MemoTuning("packrat", 32, memoPointSize);
+	}
+
+	static void trace(String msg) {
+		if(Verbose.PackratParsing) {
+			Verbose.println("automemo: " + msg);
+		}
+	}
+
+	static boolean isSavable(SourceContext input) {
+		return input.length() >= MinSampleSize;
+	}
+
+	/* persistence */
+
+	static File getFile(Grammar g) {
+		File grammarFile = new File(g.getURN());
+		File dir = grammarFile.getAbsoluteFile().getParentFile();
+		if(grammarFile.isFile() && dir != null && dir.canWrite()) {
+			return new File(grammarFile.getPath() + ".memo");
+		}
+		return new File(new File(System.getProperty("user.home"), ".nez"), grammarFile.getName() + ".memo");
+	}
+
+	static MemoTuning load(Grammar g, int memoPointSize) {
+		File f = getFile(g);
+		if(!f.isFile()) {
+			return null;
+		}
+		Properties p = new Properties();
+		try {
+			InputStream in = new FileInputStream(f);
+			try {
+				p.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch(IOException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+		String key = g.getStartName();
+		String table = p.getProperty(key + ".table");
+		if(table == null || !String.valueOf(memoPointSize).equals(p.getProperty(key + ".memopoints"))) {
+			return null;  // the grammar has been changed
+		}
+		int w = 32;
+		try {
+			w = Integer.parseInt(p.getProperty(key + ".window", "32"));
+		}
+		catch(NumberFormatException e) {
+		}
+		return new MemoTuning(table, w, memoPointSize);
+	}
+
+	final void save(Grammar g) {
+		File f = getFile(g);
+		Properties p = new Properties();
+		try {
+			if(f.isFile()) {
+				InputStream in = new FileInputStream(f);
+				try {
+					p.load(in);   // other start productions
+				}
+				finally {
+					in.close();
+				}
+			}
+			else if(f.getParentFile() != null) {
+				f.getParentFile().mkdirs();
+			}
+			String key = g.getStartName();
+			p.setProperty(key + ".table", this.table);
+			p.setProperty(key + ".window", String.valueOf(this.windowSize));
+			p.setProperty(key + ".memopoints", String.valueOf(this.memoPointSize));
+			OutputStream out = new FileOutputStream(f);
+			try {
+				p.store(out, "memo tables chosen by nez --option:automemo");
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch(IOException e) {
+			Verbose.traceException(e);  // tuned again next time
+		}
+	}
+
+}
@@ -139,6 +139,7 @@ public class NezParser extends CommonTreeVisitor {
 		String urn = path(node.getSource().getResourceName(), node.textAt(1, ""));
 		try {
 			GrammarFile source = GrammarFile.loadNezFile(urn, NezOption.newDefaultOption());
+			loaded.addImport(source);
 			if(name.equals("*")) {
 				int c = 0;
 				for(String n : source.getNonterminalList()) {
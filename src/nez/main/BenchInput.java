@@ -0,0 +1,340 @@
+package nez.main;
+
+import java.util.Random;
+
+/**
+ * BenchInput generates the inputs of the benchmark suite (LCsuite) for the
+ * bundled grammars. An input is built from a fixed seed, so that the same
+ * size gives the same text on every run and every machine.
+ */
+
+class BenchInput {
+	final static String[] Grammars = { "json.nez", "xml.nez", "java.nez", "js.nez", "csv.nez", "math.nez" };
+	final static long Seed = 20150601L;
+
+	private final Random r = new Random(Seed);
+	private final StringBuilder sb = new StringBuilder();
+
+	static boolean isSupported(String grammar) {
+		for(String g : Grammars) {
+			if(g.equals(grammar)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a text of about size bytes in the language of the grammar.
+	 */
+	static String generate(String grammar, int size) {
+		BenchInput g = new BenchInput();
+		if(grammar.equals("json.nez")) {
+			g.json(size);
+		}
+		else if(grammar.equals("xml.nez")) {
+			g.xml(size);
+		}
+		else if(grammar.equals("java.nez")) {
+			g.java(size);
+		}
+		else if(grammar.equals("js.nez")) {
+			g.js(size);
+		}
+		else if(grammar.equals("csv.nez")) {
+			g.csv(size);
+		}
+		else if(grammar.equals("math.nez")) {
+			g.math(size);
+		}
+		return g.sb.toString();
+	}
+
+	/**
+	 * Returns a JSON text of about size bytes whose values are mostly long
+	 * string literals, the input of the scan benchmark (LCscan).
+	 */
+	static String generateStrings(int size) {
+		BenchInput g = new BenchInput();
+		g.jsonStrings(size);
+		return g.sb.toString();
+	}
+
+	private String name() {
+		String[] names = { "name", "value", "id", "list", "count", "data", "item", "next", "text", "size" };
+		return names[r.nextInt(names.length)] + r.nextInt(100);
+	}
+
+	private String word() {
+		String[] words = { "alpha", "beta", "gamma", "delta", "nez", "parsing", "expression", "grammar", "tree", "memo" };
+		return words[r.nextInt(words.length)];
+	}
+
+	private void indent(int depth) {
+		for(int i = 0; i < depth; i++) {
+			sb.append("  ");
+		}
+	}
+
+	/* json.nez */
+
+	private void json(int size) {
+		sb.append("[\n");
+		while(sb.length() < size) {
+			indent(1);
+			jsonValue(1, 0);
+			sb.append(",\n");
+		}
+		indent(1);
+		sb.append("null\n]\n");
+	}
+
+	private void jsonValue(int depth, int level) {
+		int k = level < 3 ? r.nextInt(8) : r.nextInt(5);
+		switch(k) {
+		case 0:
+			sb.append(r.nextInt(100000));
+			break;
+		case 1:
+			sb.append(r.nextInt(1000)).append('.').append(r.nextInt(100)).append("e-").append(r.nextInt(5));
+			break;
+		case 2:
+			sb.append('"').append(word()).append(' ').append(word()).append(" \u00e9").append('"');
+			break;
+		case 3:
+			sb.append(r.nextBoolean() ? "true" : "false");
+			break;
+		case 4:
+			sb.append("null");
+			break;
+		case 5:
+		case 6:
+			sb.append("{\n");
+			int n = 1 + r.nextInt(4);
+			for(int i = 0; i < n; i++) {
+				indent(depth + 1);
+				sb.append('"').append(name()).append("\": ");
+				jsonValue(depth + 1, level + 1);
+				sb.append(i + 1 < n ? ",\n" : "\n");
+			}
+			indent(depth);
+			sb.append('}');
+			break;
+		default:
+			sb.append('[');
+			int m = r.nextInt(5);
+			for(int i = 0; i < m; i++) {
+				jsonValue(depth + 1, level + 1);
+				sb.append(i + 1 < m ? ", " : "");
+			}
+			sb.append(']');
+		}
+	}
+
+	private void jsonStrings(int size) {
+		sb.append("[\n");
+		while(sb.length() < size) {
+			sb.append("  { \"").append(name()).append("\": \"");
+			int n = 16 + r.nextInt(48);
+			for(int i = 0; i < n; i++) {
+				sb.append(i > 0 ? " " : "").append(word());
+				if(r.nextInt(16) == 0) {
+					sb.append("\\\"");   // an escaped quote
+				}
+			}
+			sb.append("\", \"id\": ").append(r.nextInt(1000)).append(" },\n");
+		}
+		sb.append("  null\n]\n");
+	}
+
+	/* xml.nez */
+
+	private void xml(int size) {
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root>\n");
+		while(sb.length() < size) {
+			xmlElement(1, 0);
+		}
+		sb.append("</root>\n");
+	}
+
+	private void xmlElement(int depth, int level) {
+		String tag = name();
+		indent(depth);
+		sb.append('<').append(tag);
+		int attrs = r.nextInt(3);
+		for(int i = 0; i < attrs; i++) {
+			sb.append(' ').append(name()).append("=\"").append(word()).append('"');
+		}
+		int k = level < 4 ? r.nextInt(4) : r.nextInt(2);
+		if(k == 0) {
+			sb.append("/>\n");
+			return;
+		}
+		sb.append('>');
+		if(k == 1) {
+			sb.append(word()).append(' ').append(word()).append(" &amp; ").append(r.nextInt(1000));
+		}
+		else {
+			sb.append('\n');
+			int n = 1 + r.nextInt(4);
+			for(int i = 0; i < n; i++) {
+				xmlElement(depth + 1, level + 1);
+			}
+			indent(depth);
+		}
+		sb.append("</").append(tag).append(">\n");
+	}
+
+	/* java.nez */
+
+	private void java(int size) {
+		sb.append("package nez.bench;\n\nimport java.util.List;\nimport java.util.ArrayList;\n\n");
+		int c = 0;
+		while(sb.length() < size) {
+			sb.append("public class C").append(c++).append(" extends Object {\n");
+			int fields = 1 + r.nextInt(3);
+			for(int i = 0; i < fields; i++) {
+				sb.append("  private int ").append(name()).append(" = ").append(r.nextInt(100)).append(";\n");
+			}
+			int methods = 1 + r.nextInt(4);
+			for(int i = 0; i < methods; i++) {
+				sb.append("\n  public int m").append(i).append("(int a, String b, List<String> c) {\n");
+				sb.append("    int x = a * ").append(r.nextInt(10)).append(" + ").append(r.nextInt(10)).append(";\n");
+				javaStatements(2, 0);
+				sb.append("    return x;\n  }\n");
+			}
+			sb.append("}\n\n");
+		}
+	}
+
+	private void javaStatements(int depth, int level) {
+		int n = 1 + r.nextInt(4);
+		for(int i = 0; i < n; i++) {
+			indent(depth);
+			int k = level < 2 ? r.nextInt(5) : r.nextInt(3);
+			switch(k) {
+			case 0:
+				sb.append("x = x + a * (").append(r.nextInt(100)).append(" - b.length());\n");
+				break;
+			case 1:
+				sb.append("b = b + \"").append(word()).append("\" + x;\n");
+				break;
+			case 2:
+				sb.append("c.add(String.valueOf(x));\n");
+				break;
+			case 3:
+				sb.append("if (x > ").append(r.nextInt(100)).append(" && b != null) {\n");
+				javaStatements(depth + 1, level + 1);
+				indent(depth);
+				sb.append("} else {\n");
+				javaStatements(depth + 1, level + 1);
+				indent(depth);
+				sb.append("}\n");
+				break;
+			default:
+				sb.append("for (int i = 0; i < ").append(r.nextInt(100)).append("; i++) {\n");
+				javaStatements(depth + 1, level + 1);
+				indent(depth);
+				sb.append("}\n");
+			}
+		}
+	}
+
+	/* js.nez */
+
+	private void js(int size) {
+		int f = 0;
+		while(sb.length() < size) {
+			sb.append("function f").append(f++).append("(a, b) {\n");
+			sb.append("  var x = a * ").append(r.nextInt(10)).append(" + ").append(r.nextInt(10)).append(";\n");
+			jsStatements(1, 0);
+			sb.append("  return { key: x, text: \"").append(word()).append("\", list: [1, 2, x] };\n}\n\n");
+		}
+	}
+
+	private void jsStatements(int depth, int level) {
+		int n = 1 + r.nextInt(4);
+		for(int i = 0; i < n; i++) {
+			indent(depth);
+			int k = level < 2 ? r.nextInt(5) : r.nextInt(3);
+			switch(k) {
+			case 0:
+				sb.append("x = x + a * (").append(r.nextInt(100)).append(" - b.length);\n");
+				break;
+			case 1:
+				sb.append("b = b + '").append(word()).append("' + x;\n");
+				break;
+			case 2:
+				sb.append("console.log(b, x, [").append(r.nextInt(10)).append(", \"").append(word()).append("\"]);\n");
+				break;
+			case 3:
+				sb.append("if (x > ").append(r.nextInt(100)).append(" && b !== null) {\n");
+				jsStatements(depth + 1, level + 1);
+				indent(depth);
+				sb.append("} else {\n");
+				jsStatements(depth + 1, level + 1);
+				indent(depth);
+				sb.append("}\n");
+				break;
+			default:
+				sb.append("for (var i = 0; i < ").append(r.nextInt(100)).append("; i++) {\n");
+				jsStatements(depth + 1, level + 1);
+				indent(depth);
+				sb.append("}\n");
+			}
+		}
+	}
+
+	/* csv.nez */
+
+	private void csv(int size) {
+		sb.append("id,name,text,price,date\n");
+		int row = 0;
+		while(sb.length() < size) {
+			sb.append(row++).append(',').append(word()).append(',');
+			if(r.nextBoolean()) {
+				sb.append('"').append(word()).append(", \"\"").append(word()).append("\"\"\"");
+			}
+			else {
+				sb.append(word()).append(' ').append(word());
+			}
+			sb.append(',').append(r.nextInt(10000)).append('.').append(r.nextInt(100));
+			sb.append(",2015-").append(1 + r.nextInt(12)).append('-').append(1 + r.nextInt(28)).append('\n');
+		}
+	}
+
+	/* math.nez */
+
+	private void math(int size) {
+		mathTerm(0);
+		while(sb.length() < size) {
+			sb.append(r.nextBoolean() ? " + " : " - ");
+			mathTerm(0);
+		}
+		sb.append('\n');
+	}
+
+	private void mathTerm(int level) {
+		int n = 1 + r.nextInt(3);
+		for(int i = 0; i < n; i++) {
+			if(i > 0) {
+				sb.append("*/%".charAt(r.nextInt(3)));
+			}
+			int k = level < 3 ? r.nextInt(4) : r.nextInt(2);
+			if(k == 0) {
+				sb.append(r.nextInt(1000));
+			}
+			else if(k == 1) {
+				sb.append(name());
+			}
+			else {
+				sb.append('(');
+				mathTerm(level + 1);
+				sb.append(r.nextBoolean() ? "+" : "-");
+				mathTerm(level + 1);
+				sb.append(')');
+			}
+		}
+	}
+
+}
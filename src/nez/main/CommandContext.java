@@ -7,6 +7,7 @@ import nez.SourceContext;
 import nez.generator.GeneratorLoader;
 import nez.generator.NezGenerator;
 import nez.lang.Grammar;
+import nez.lang.GrammarCache;
 import nez.lang.GrammarFile;
 import nez.lang.NezCombinator;
 import nez.util.ConsoleUtils;
@@ -47,6 +48,9 @@ class CommandContext {
 	// -o, --output
 	public String OutputFileName = null;
 
+	// --embed-source
+	public boolean EmbedSource = false;
+
 	// -W
 	public int CheckerLevel = 1;
 
@@ -56,18 +60,25 @@ class CommandContext {
 	// --verbose
 	public boolean VerboseMode = false;
 
+	// -j, --jobs
+	public int Jobs = 1;
+
 	void showUsage(String Message) {
 		ConsoleUtils.println("nez <command> optional files");
 		ConsoleUtils.println("  -p | --peg <filename>      Specify an Nez grammar file");
 		ConsoleUtils.println("  -e | --expr  <text>        Specify an Nez parsing expression");
-		ConsoleUtils.println("  -i | --input <filenames>   Specify input file(s)");
+		ConsoleUtils.println("  -i | --input <filenames>   Specify input file(s) (-: stdin)");
 		ConsoleUtils.println("  -t | --text  <string>      Specify an input text");
-		ConsoleUtils.println("  -o | --output <filename>   Specify an output file");
+		ConsoleUtils.println("  -o | --output <filename>   Specify an output file (.EXT: <input>.EXT for each input)");
+		ConsoleUtils.println("                             *.nezb writes the binary AST format (ast)");
+		ConsoleUtils.println("  --embed-source             Write the input text into the binary AST");
 		ConsoleUtils.println("  -s | --start <NAME>        Specify Non-Terminal as the starting point (default: File)");
+		ConsoleUtils.println("  -j | --jobs <N>            Parse input files in N threads (0: all cores)");
 		ConsoleUtils.println("  --option:(+enable:-disable)*");
 		ConsoleUtils.println("     grammars: +ast +symbol");
-		ConsoleUtils.println("     optimize: +lex +inline predict dfa");
-		ConsoleUtils.println("     packrat:  packrat +sliding trace");
+		ConsoleUtils.println("     optimize: +lex +swar +inline predict dfa");
+		ConsoleUtils.println("     runtime:  jit packed cache lazy");
+		ConsoleUtils.println("     packrat:  packrat +sliding trace arraymemo window=N ways=N -adaptive reactivate automemo");
 		ConsoleUtils.println("  --verbose                  Printing Debug infomation");
 		ConsoleUtils.println("  --verbose:memo             Printing Memoization information");
 		ConsoleUtils.println("  -X <class>                 Specify an extension class");
@@ -117,7 +128,7 @@ class CommandContext {
 			}
 			else if((argument.equals("-i") || argument.equals("--input")) && (index < args.length)) {
 				inputFileLists = new UList<String>(new String[4]);
-				while (index < args.length && !args[index].startsWith("-")) {
+				while (index < args.length && (!args[index].startsWith("-") || args[index].equals("-"))) {
 					inputFileLists.add(args[index]);
 					index = index + 1;
 					InputFileIndex = 0;
@@ -131,6 +142,16 @@ class CommandContext {
 				startingProduction = args[index];
 				index = index + 1;
 			}
+			else if((argument.equals("-j") || argument.equals("--jobs")) && (index < args.length)) {
+				Jobs = StringUtils.parseInt(args[index], 1);
+				if(Jobs < 1) {
+					Jobs = Runtime.getRuntime().availableProcessors();
+				}
+				index = index + 1;
+			}
+			else if(argument.equals("--embed-source")) {
+				EmbedSource = true;
+			}
 			else if(argument.startsWith("-W")) {
 				CheckerLevel = StringUtils.parseInt(argument.substring(2), 0);
 			}
@@ -300,7 +321,17 @@ class CommandContext {
 		if(start == null) {
 			start = this.startingProduction;
 		}
-		Grammar g = getGrammarFile(false).newGrammar(start, option);
+		Grammar g = null;
+		if(option.enabledGrammarCache && !option.enabledProfiling && grammarFile != null && !grammarFile.equals("nez")) {
+			try {
+				g = GrammarCache.load(grammarFile, start, option);
+			} catch (IOException e) {
+				ConsoleUtils.exit(1, "cannot open " + grammarFile + "; " + e.getMessage());
+			}
+		}
+		if(g == null) {
+			g = getGrammarFile(false).newGrammar(start, option);
+		}
 		if(g == null) {
 			ConsoleUtils.exit(1, "undefined production: " + start);
 		}
@@ -348,6 +379,9 @@ class CommandContext {
 		if(this.InputFileIndex < this.inputFileLists.size()) {
 			String f = this.inputFileLists.ArrayValues[this.InputFileIndex];
 			this.InputFileIndex++;
+			if(f.equals("-")) {
+				return SourceContext.newStreamContext("(stdin)", System.in);
+			}
 			try {
 				return SourceContext.newFileContext(f);
 			} catch (IOException e) {
@@ -358,7 +392,13 @@ class CommandContext {
 	}
 
 	public String getOutputFileName(SourceContext input) {
-		return null;
+		if(this.OutputFileName != null && this.OutputFileName.startsWith(".") && input != null) {
+			return input.getResourceName() + this.OutputFileName;  // -o .nezb
+		}
+		if(this.OutputFileName != null && this.inputFileLists.size() > 1) {
+			ConsoleUtils.exit(1, "-o " + this.OutputFileName + " is written for each input; use -o .EXT with several inputs");
+		}
+		return this.OutputFileName;
 	}
 
 	public final String getOutputFileName() {
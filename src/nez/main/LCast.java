@@ -1,6 +1,7 @@
 package nez.main;
 
 import nez.SourceContext;
+import nez.ast.BinaryTreeWriter;
 import nez.ast.CommonTree;
 import nez.ast.CommonTreeWriter;
 import nez.lang.Grammar;
@@ -13,23 +14,33 @@ public class LCast extends Command {
 	}
 
 	@Override
-	public void exec(CommandContext config) {
+	public void exec(final CommandContext config) {
 		Grammar g = config.getGrammar();
-		while(config.hasInputSource()) {
-			SourceContext source = config.nextInputSource();
-			CommonTree node = g.parse(source);
-			if(node == null) {
-				ConsoleUtils.println(source.getSyntaxErrorMessage());
-				continue;
+		new ParallelParser<CommonTree>(g) {
+			@Override
+			CommonTree parse(SourceContext source) {
+				return grammar.parse(source);
 			}
-			if(source.hasUnconsumed()) {
-				ConsoleUtils.println(source.getUnconsumedMessage());
+			@Override
+			void done(SourceContext source, CommonTree node, long time) {
+				if(node == null) {
+					ConsoleUtils.println(source.getSyntaxErrorMessage());
+					return;
+				}
+				if(source.hasUnconsumed()) {
+					ConsoleUtils.println(source.getUnconsumedMessage());
+				}
+				record(grammar.getProfiler(), node);
+				grammar.logProfiler();
+				String path = config.getOutputFileName(source);
+				if(path != null && path.endsWith(".nezb")) {
+					new BinaryTreeWriter(config.EmbedSource).transform(path, node);
+				}
+				else {
+					new CommonTreeWriter().transform(path, node);
+				}
 			}
-			source = null;
-			record(g.getProfiler(), node);
-			g.logProfiler();
-			new CommonTreeWriter().transform(config.getOutputFileName(source), node);
-		}
+		}.exec(config);
 	}
 	
 	private void record(NezProfier prof, CommonTree node) {
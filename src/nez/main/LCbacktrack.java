@@ -0,0 +1,39 @@
+package nez.main;
+
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.util.ConsoleUtils;
+import nez.vm.BacktrackProfiler;
+
+/**
+ * LCbacktrack parses the inputs and shows the choices, options,
+ * repetitions and predictions that waste most work by backtracking, with
+ * their places in the grammar; --option:prof adds the totals to the log.
+ */
+
+public class LCbacktrack extends Command {
+	final static int ReportSize = 40;
+
+	@Override
+	public String getDesc() {
+		return "a profiler of backtracking";
+	}
+
+	@Override
+	public void exec(CommandContext config) {
+		Grammar g = config.getGrammar();
+		BacktrackProfiler prof = new BacktrackProfiler();
+		g.setBacktrackProfiler(prof);
+		while(config.hasInputSource()) {
+			SourceContext source = config.nextInputSource();
+			if(!g.match(source)) {
+				ConsoleUtils.println(source.getSyntaxErrorMessage());
+			}
+		}
+		prof.printReport(g, ReportSize);
+		if(g.getProfiler() != null) {
+			prof.record(g, g.getProfiler());
+			g.logProfiler();
+		}
+	}
+}
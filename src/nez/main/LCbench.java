@@ -0,0 +1,77 @@
+package nez.main;
+
+import java.io.IOException;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+
+public class LCbench extends Command {
+	final static int WarmupCount = 5;
+	final static int RunCount = 10;
+
+	@Override
+	public String getDesc() {
+		return "a parser runtime benchmark";
+	}
+
+	@Override
+	public void exec(CommandContext conf) {
+		Grammar g0 = conf.getGrammar();
+		UList<String> files = new UList<String>(new String[4]);
+		while(conf.hasInputSource()) {
+			SourceContext source = conf.nextInputSource();
+			if(!g0.match(source)) {
+				ConsoleUtils.println(source.getSyntaxErrorMessage());
+				continue;
+			}
+			files.add(source.getResourceName());
+		}
+		String[] names = { "interpreter", "packed", "jit" };
+		double base = 0;
+		ConsoleUtils.println("runtime\ttime[ms]\tMiB/s\tspeedup");
+		for(String name : names) {
+			NezOption option = conf.getNezOption().clone();
+			option.enabledJIT = name.equals("jit");
+			option.enabledPackedCode = name.equals("packed");
+			Grammar g = conf.getGrammar(null, option);
+			g.compile();
+			long length = 0;
+			long time = 0;
+			for(String file : files) {
+				run(g, file, WarmupCount);
+				time += run(g, file, RunCount);
+				length += newSource(file).length();
+			}
+			double ms = time / 1000000.0 / RunCount;
+			if(base == 0) {
+				base = ms;
+			}
+			double mibs = length / (1024.0 * 1024.0) / (ms / 1000.0);
+			ConsoleUtils.println(String.format("%s\t%.3f\t%.3f\t%.2f", name, ms, mibs, base / ms));
+		}
+	}
+
+	private long run(Grammar g, String file, int count) {
+		SourceContext[] sources = new SourceContext[count];
+		for(int i = 0; i < count; i++) {
+			sources[i] = newSource(file);
+		}
+		long t1 = System.nanoTime();
+		for(SourceContext source : sources) {
+			g.match(source);
+		}
+		return System.nanoTime() - t1;
+	}
+
+	private SourceContext newSource(String file) {
+		try {
+			return SourceContext.newFileContext(file);
+		} catch (IOException e) {
+			ConsoleUtils.exit(1, "cannot open: " + file);
+		}
+		return null;
+	}
+}
@@ -22,71 +22,104 @@ public class LCcheck extends Command {
 		GrammarFile gfile = conf.getGrammarFile(true);
 		Grammar g = conf.getGrammar();
 		
+		Checker c = new Checker(gfile, g);
+		c.exec(conf);
+		int totalCount = c.totalCount, parsedCount = c.parsedCount, formatCount = c.formatCount, matchCount = c.matchCount;
+		UList<String> unparsedInputs = c.unparsedInputs;
+		UList<String> unformatedInputs = c.unformatedInputs;
+		UList<String> mismatchedInputs = c.mismatchedInputs;
+		
+		if(totalCount > 1){
+			Verbose.println(
+					totalCount + " files, " +
+					parsedCount + " parsed, " +
+					formatCount + " formatted, " +
+					matchCount + " matched, " +
+					StringUtils.formatParcentage(matchCount, totalCount) + "% matched.");
+		}
+		if(unparsedInputs.size() > 0) {
+			Verbose.println("unparsed: " + unparsedInputs);
+		}
+		if(unformatedInputs.size() > 0) {
+			Verbose.println("unformatted: " + unformatedInputs);
+		}
+		if(mismatchedInputs.size() > 0) {
+			ConsoleUtils.exit(1, "mismatched: " + mismatchedInputs);
+		}
+
+	}
+
+	static class Checked {
+		CommonTree node;
+		String formatted;
+		SourceContext source2;
+		CommonTree node2;
+		String formatted2;
+	}
+
+	/* parsing and formatting run in parallel; counting runs in the input order */
+
+	static class Checker extends ParallelParser<Checked> {
+		final GrammarFile gfile;
 		UList<String> unparsedInputs = new UList<String>(new String[4]);
 		UList<String> unformatedInputs = new UList<String>(new String[4]);
 		UList<String> mismatchedInputs = new UList<String>(new String[4]);
-		
 		int totalCount = 0, parsedCount = 0, formatCount = 0, matchCount = 0;
-//		long consumed = 0;
-//		long time = 0;
 
-		while(conf.hasInputSource()) {
+		Checker(GrammarFile gfile, Grammar g) {
+			super(g);
+			this.gfile = gfile;
+		}
+
+		@Override
+		Checked parse(SourceContext source) {
+			Checked c = new Checked();
+			c.node = grammar.parse(source);
+			if(c.node != null) {
+				c.formatted = gfile.formatCommonTree(c.node);
+				c.source2 = SourceContext.newStringSourceContext("(formatted)", 1, c.formatted);
+				c.node2 = grammar.parse(c.source2);
+				if(c.node2 != null && !c.source2.hasUnconsumed()) {
+					c.formatted2 = gfile.formatCommonTree(c.node2);
+				}
+			}
+			return c;
+		}
+
+		@Override
+		void done(SourceContext source, Checked c, long time) {
 			totalCount++;
-			SourceContext source = conf.nextInputSource();
 			String urn = source.getResourceName();
-			CommonTree node = g.parse(source);
-			if(node == null) {
+			if(c.node == null) {
 				ConsoleUtils.println(source.getSyntaxErrorMessage());
 				unparsedInputs.add(urn);
-				continue;
+				return;
 			}
 			if(source.hasUnconsumed()) {
 				ConsoleUtils.println(source.getUnconsumedMessage());
 			}
-			g.logProfiler();
+			grammar.logProfiler();
 
 			parsedCount++;
-			String formatted = gfile.formatCommonTree(node);
-			source = SourceContext.newStringSourceContext("(formatted)", 1, formatted);
-			CommonTree node2 = g.parse(source);
-			if(node2 == null) {
+			source = c.source2;
+			if(c.node2 == null) {
 				ConsoleUtils.println(source.getSyntaxErrorMessage());
 				unformatedInputs.add(urn);
-				continue;
+				return;
 			}
 			if(source.hasUnconsumed()) {
 				ConsoleUtils.println(source.getUnconsumedMessage());
 				unformatedInputs.add(urn);
-				continue;
+				return;
 			}
 			formatCount++;
-			String formatted2 = gfile.formatCommonTree(node2);
-			if(!formatted.equals(formatted2)) {
+			if(!c.formatted.equals(c.formatted2)) {
 				ConsoleUtils.println("[FAILED] mismatched " + urn);
 				mismatchedInputs.add(urn);
-				continue;
+				return;
 			}
 			matchCount++;
 		}
-		
-		if(totalCount > 1){
-			Verbose.println(
-					totalCount + " files, " +
-					parsedCount + " parsed, " +
-					formatCount + " formatted, " +
-					matchCount + " matched, " +
-					StringUtils.formatParcentage(matchCount, totalCount) + "% matched.");
-		}
-		if(unparsedInputs.size() > 0) {
-			Verbose.println("unparsed: " + unparsedInputs);
-		}
-		if(unformatedInputs.size() > 0) {
-			Verbose.println("unformatted: " + unformatedInputs);
-		}
-		if(mismatchedInputs.size() > 0) {
-			ConsoleUtils.exit(1, "mismatched: " + mismatchedInputs);
-		}
-
 	}
-	
+
 }
@@ -1,7 +1,15 @@
 package nez.main;
 
 import nez.lang.Grammar;
-import nez.vm.DfaOptimizer;
+import nez.lang.Production;
+import nez.util.ConsoleUtils;
+import nez.vm.Dfa;
+import nez.vm.DfaConverter;
+
+/**
+ * LCdfa prints the transition tables of the regular productions, and why
+ * the others are not converted by --option:dfa.
+ */
 
 class LCdfa extends Command {
 	@Override
@@ -10,7 +18,16 @@ class LCdfa extends Command {
 	}
 	@Override
 	public void exec(CommandContext config) {
-		Grammar p = config.getGrammar();
-		DfaOptimizer.optimize(p);
+		Grammar g = config.getGrammar();
+		DfaConverter c = new DfaConverter(config.getNezOption().enabledASTConstruction);
+		for(Production p : g.getProductionList()) {
+			Dfa dfa = c.convert(p);
+			if(dfa != null) {
+				ConsoleUtils.println(Verbose.VirtualMachine ? dfa.toString() : dfa.getName() + ": " + dfa.getStateSize() + " states");
+			}
+			else {
+				ConsoleUtils.println(p.getLocalName() + ": " + c.getReason());
+			}
+		}
 	}
-}
\ No newline at end of file
+}
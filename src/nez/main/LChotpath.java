@@ -0,0 +1,51 @@
+package nez.main;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.util.ConsoleUtils;
+import nez.vm.HotPathProfiler;
+
+/**
+ * LChotpath parses the inputs with the instrumented interpreter and shows
+ * the productions that cost most; the call paths are written in the
+ * collapsed stack format (-o, nezprof.folded by default), for example
+ * flamegraph.pl nezprof.folded > nezprof.svg
+ */
+
+public class LChotpath extends Command {
+	final static int TableSize = 40;
+
+	@Override
+	public String getDesc() {
+		return "a profiler of productions";
+	}
+
+	@Override
+	public void exec(CommandContext config) {
+		Grammar g = config.getGrammar();
+		HotPathProfiler prof = new HotPathProfiler();
+		g.setHotPathProfiler(prof);
+		while(config.hasInputSource()) {
+			SourceContext source = config.nextInputSource();
+			if(!g.match(source)) {
+				ConsoleUtils.println(source.getSyntaxErrorMessage());
+			}
+		}
+		String file = config.getOutputFileName() != null ? config.getOutputFileName() : "nezprof.folded";
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			prof.writeCollapsedStacks(out);
+			out.close();
+		}
+		catch(IOException e) {
+			ConsoleUtils.exit(1, "cannot write " + file + ": " + e.getMessage());
+		}
+		prof.printTable(TableSize);
+		Verbose.println("call paths: " + file);
+	}
+}
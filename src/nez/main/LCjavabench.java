@@ -0,0 +1,161 @@
+package nez.main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.ast.CommonTree;
+import nez.generator.JavaParserGenerator;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+
+/**
+ * LCjavabench compares the parser generated by JavaParserGenerator with
+ * the VM on the bundled grammars. The parser is compiled in process (it
+ * needs a JDK). start[ms] is the time to load the grammar, or the class,
+ * and to parse the first input; the throughput is measured as in LCsuite.
+ */
+
+public class LCjavabench extends Command {
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	@Override
+	public String getDesc() {
+		return "a benchmark of generated Java parsers against the VM";
+	}
+
+	@Override
+	public void exec(CommandContext conf) {
+		String[] grammars = BenchInput.Grammars;
+		if(conf.grammarFile != null) {
+			if(!BenchInput.isSupported(conf.grammarFile)) {
+				ConsoleUtils.exit(1, "no generated input for " + conf.grammarFile);
+			}
+			grammars = new String[] { conf.grammarFile };
+		}
+		ConsoleUtils.println("grammar\tbuild[ms]\tstart[ms]\tjava.start[ms]\tsize\tMiB/s\tjava.MiB/s\tspeedup");
+		for(String grammar : grammars) {
+			NezOption option = conf.getNezOption().clone();
+			String first = BenchInput.generate(grammar, LCsuite.Sizes[0]);
+			try {
+				long t1 = System.nanoTime();
+				Grammar g = GrammarFile.loadGrammarFile(grammar, option).newGrammar("File", option);
+				CommonTree vmTree = g.parse(SourceContext.newStringContext(first));
+				long t2 = System.nanoTime();
+				String source = new JavaParserGenerator().generateSource(g, option, "BenchParser");
+				Method parse = compile("BenchParser", source).getMethod("parse", byte[].class);
+				long t3 = System.nanoTime();
+				Object javaTree = parse.invoke(null, first.getBytes(UTF8));
+				long t4 = System.nanoTime();
+				if(vmTree == null || javaTree == null || !vmTree.toString().equals(javaTree.toString())) {
+					ConsoleUtils.println(grammar + "\tdifferent trees");
+					continue;
+				}
+				for(int size : LCsuite.Sizes) {
+					String input = BenchInput.generate(grammar, size);
+					double vm = throughput(g, null, input);
+					double java = throughput(null, parse, input);
+					ConsoleUtils.println(String.format("%s\t%.1f\t%.1f\t%.1f\t%d\t%.3f\t%.3f\t%.2f", grammar, (t3 - t2) / 1000000.0,
+							(t2 - t1) / 1000000.0, (t4 - t3) / 1000000.0, size, vm, java, java / vm));
+				}
+			}
+			catch(IOException e) {
+				ConsoleUtils.exit(1, grammar + ": " + e.getMessage());
+			}
+			catch(ReflectiveOperationException e) {
+				ConsoleUtils.exit(1, grammar + ": " + e);
+			}
+		}
+	}
+
+	/* MiB/s of the median run; either g or parse is null */
+	private double throughput(Grammar g, Method parse, String text) throws ReflectiveOperationException {
+		byte[] utf8 = text.getBytes(UTF8);
+		long start = System.nanoTime();
+		int count = 0;
+		while(count < LCsuite.MinRunCount || System.nanoTime() - start < LCsuite.WarmupTime) {
+			parse(g, parse, text, utf8);
+			count++;
+		}
+		UList<Long> times = new UList<Long>(new Long[16]);
+		long total = 0;
+		while(times.size() < LCsuite.MinRunCount || total < LCsuite.MeasureTime) {
+			long t = System.nanoTime();
+			parse(g, parse, text, utf8);
+			t = System.nanoTime() - t;
+			total += t;
+			times.add(t);
+		}
+		Long[] sorted = Arrays.copyOf(times.ArrayValues, times.size());
+		Arrays.sort(sorted);
+		return utf8.length / (1024.0 * 1024.0) / (sorted[sorted.length / 2] / 1000000000.0);
+	}
+
+	private Object parse(Grammar g, Method parse, String text, byte[] utf8) throws ReflectiveOperationException {
+		if(g != null) {
+			return g.parse(SourceContext.newStringSourceContext("(generated)", 1, text));
+		}
+		return parse.invoke(null, utf8);
+	}
+
+	/**
+	 * Compiles the source of a generated parser into a temporary directory
+	 * and loads the class, with its nested classes; the directory is deleted
+	 * afterward. Throws IOException if no compiler is available or the
+	 * source does not compile.
+	 */
+	public static Class<?> compile(String className, String source) throws IOException, ClassNotFoundException {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if(javac == null) {
+			throw new IOException("no Java compiler (a JDK is needed)");
+		}
+		File dir = File.createTempFile("nez", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			File file = new File(dir, className + ".java");
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(source.getBytes(UTF8));
+			out.close();
+			if(javac.run(null, null, null, "-nowarn", "-encoding", "UTF-8", "-d", dir.getPath(), file.getPath()) != 0) {
+				throw new IOException("cannot compile " + className);
+			}
+			URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() }, LCjavabench.class.getClassLoader());
+			Class<?> c = loader.loadClass(className);
+			for(File f : dir.listFiles()) {  // nested classes are loaded before the files are gone
+				String name = f.getName();
+				if(name.endsWith(".class")) {
+					loader.loadClass(name.substring(0, name.length() - 6));
+				}
+			}
+			loader.close();
+			return c;
+		}
+		finally {
+			delete(dir);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+
+}
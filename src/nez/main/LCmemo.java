@@ -0,0 +1,88 @@
+package nez.main;
+
+import java.io.IOException;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+import nez.vm.MemoTable;
+
+public class LCmemo extends Command {
+	final static int WarmupCount = 5;
+	final static int RunCount = 10;
+
+	@Override
+	public String getDesc() {
+		return "a memo table benchmark";
+	}
+
+	@Override
+	public void exec(CommandContext conf) {
+		UList<String> files = new UList<String>(new String[4]);
+		while(conf.hasInputSource()) {
+			files.add(conf.nextInputSource().getResourceName());
+		}
+		String[] configs = {
+			"-arraymemo", "arraymemo",
+			"-arraymemo:window=64", "arraymemo:window=64", "arraymemo:window=64:ways=2", "arraymemo:window=64:ways=4",
+			"-arraymemo:window=16", "arraymemo:window=16", "arraymemo:window=16:ways=2", "arraymemo:window=16:ways=4",
+		};
+		for(String config : configs) {
+			run(conf, files, config, false);  // warmup
+		}
+		ConsoleUtils.println("table\twindow\tways\ttime[ms]\tstored\thit[%]\tevicted");
+		for(String config : configs) {
+			run(conf, files, config, true);
+		}
+	}
+
+	private void run(CommandContext conf, UList<String> files, String config, boolean report) {
+		{
+			NezOption option = conf.getNezOption().clone();
+			option.setOption(config);
+			Grammar g = conf.getGrammar(null, option);
+			long time = 0;
+			long stored = 0, used = 0, evicted = 0;
+			for(String file : files) {
+				run(g, file, WarmupCount);
+				time += run(g, file, RunCount);
+				SourceContext source = newSource(file);
+				g.match(source);
+				MemoTable m = source.getMemoTable();
+				stored += m.getStoredCount();
+				used += m.getUsedCount();
+				evicted += m.getEvictedCount();
+			}
+			if(!report) {
+				return;
+			}
+			double ms = time / 1000000.0 / RunCount;
+			String table = option.enabledArrayMemo ? "array" : "elastic";
+			double hit = used + stored == 0 ? 0.0 : 100.0 * used / (used + stored);  // a miss is stored once
+			ConsoleUtils.println(String.format("%s\t%d\t%d\t%.3f\t%d\t%.2f\t%d", table, option.memoWindowSize, option.enabledArrayMemo ? option.memoAssociativity : 1, ms, stored, hit, evicted));
+		}
+	}
+
+	private long run(Grammar g, String file, int count) {
+		SourceContext[] sources = new SourceContext[count];
+		for(int i = 0; i < count; i++) {
+			sources[i] = newSource(file);
+		}
+		long t1 = System.nanoTime();
+		for(SourceContext source : sources) {
+			g.match(source);
+		}
+		return System.nanoTime() - t1;
+	}
+
+	private SourceContext newSource(String file) {
+		try {
+			return SourceContext.newFileContext(file);
+		} catch (IOException e) {
+			ConsoleUtils.exit(1, "cannot open: " + file);
+		}
+		return null;
+	}
+}
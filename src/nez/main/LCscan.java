@@ -0,0 +1,44 @@
+package nez.main;
+
+import nez.NezOption;
+import nez.util.ConsoleUtils;
+
+/**
+ * LCscan is a microbenchmark of the word-at-a-time scanning of byte runs
+ * (--option:swar). It parses a JSON text of long string literals
+ * (BenchInput) with json.nez, with and without the scanning, on each
+ * runtime.
+ */
+
+class LCscan extends Command {
+	final static String Grammar = "json.nez";
+	final static int Size = 4 * 1024 * 1024;
+	final static String[] Runtimes = { "interpreter", "packed", "jit" };
+
+	@Override
+	public String getDesc() {
+		return "a microbenchmark of word-at-a-time scanning";
+	}
+
+	@Override
+	public void exec(CommandContext conf) {
+		String input = BenchInput.generateStrings(Size);
+		LCsuite suite = new LCsuite();
+		ConsoleUtils.println("runtime\t-swar[MiB/s]\tswar[MiB/s]\tspeedup");
+		for(String runtime : Runtimes) {
+			double[] mibs = new double[2];
+			for(int i = 0; i < 2; i++) {
+				NezOption option = conf.getNezOption().clone();
+				option.enabledJIT = runtime.equals("jit");
+				option.enabledPackedCode = runtime.equals("packed");
+				option.enabledWordScan = i == 1;
+				LCsuite.Result r = suite.run(Grammar, option, input);
+				if(r == null) {
+					ConsoleUtils.exit(1, "syntax error");
+				}
+				mibs[i] = r.throughput;
+			}
+			ConsoleUtils.println(String.format("%s\t%.3f\t%.3f\t%.2f", runtime, mibs[0], mibs[1], mibs[1] / mibs[0]));
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package nez.main;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.util.ConsoleUtils;
+import nez.util.FileBuilder;
+import nez.util.UList;
+import nez.vm.MemoTable;
+
+/**
+ * LCsuite benchmarks the bundled grammars over generated inputs
+ * (BenchInput) of several sizes, with one option turned over at a time.
+ * It reports the median throughput, the allocation rate and the memo hit
+ * ratio. -o writes the result as a table; -i compares with the result
+ * of an earlier run and fails if a throughput has dropped.
+ */
+
+public class LCsuite extends Command {
+	final static int[] Sizes = { 16 * 1024, 256 * 1024, 2 * 1024 * 1024 };
+	final static String[] Configs = { "default", "-memo", "packrat", "-predict", "-inline", "-lex", "-ast", "dfa" };
+	final static long WarmupTime = 300L * 1000000;    // ns
+	final static long MeasureTime = 1000L * 1000000;
+	final static int MinRunCount = 5;
+	final static double RegressionRatio = 0.10;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	@Override
+	public String getDesc() {
+		return "a benchmark suite over the bundled grammars";
+	}
+
+	@Override
+	public void exec(CommandContext conf) {
+		String[] grammars = BenchInput.Grammars;
+		if(conf.grammarFile != null) {
+			if(!BenchInput.isSupported(conf.grammarFile)) {
+				ConsoleUtils.exit(1, "no generated input for " + conf.grammarFile);
+			}
+			grammars = new String[] { conf.grammarFile };
+		}
+		HashMap<String, Double> baseline = loadBaseline(conf.inputFileLists);
+		FileBuilder fb = conf.getOutputFileName() == null ? null : new FileBuilder(conf.getOutputFileName());
+		String header = "grammar\tsize\tconfig\tMiB/s\terr[%]\talloc[MiB/s]\talloc[B/B]\thit[%]";
+		ConsoleUtils.println(header + (baseline.isEmpty() ? "" : "\tdelta[%]"));
+		if(fb != null) {
+			fb.write(header);
+			fb.writeNewLine();
+		}
+		int regressions = 0;
+		for(String grammar : grammars) {
+			for(int size : Sizes) {
+				String input = BenchInput.generate(grammar, size);
+				for(String config : Configs) {
+					NezOption option = conf.getNezOption().clone();
+					if(!config.equals("default")) {
+						option.setOption(config);
+					}
+					String row = grammar + "\t" + size + "\t" + config;
+					Result r = run(grammar, option, input);
+					if(r == null) {
+						ConsoleUtils.println(row + "\tsyntax error");
+						continue;
+					}
+					String line = String.format("%s\t%.3f\t%.1f\t%.1f\t%.1f\t%.2f", row, r.throughput, r.error, r.allocRate, r.allocPerByte, r.hitRatio);
+					Double base = baseline.get(row);
+					if(base != null) {
+						double delta = (r.throughput - base) / base;
+						boolean regressed = delta < -RegressionRatio;
+						if(regressed) {
+							regressions++;
+						}
+						ConsoleUtils.println(String.format("%s\t%+.1f%s", line, delta * 100, regressed ? "\t<<" : ""));
+					}
+					else {
+						ConsoleUtils.println(line);
+					}
+					if(fb != null) {
+						fb.write(line);
+						fb.writeNewLine();
+					}
+				}
+			}
+		}
+		if(fb != null) {
+			fb.flush();
+		}
+		if(regressions > 0) {
+			ConsoleUtils.exit(1, regressions + " regression(s) over " + (int)(RegressionRatio * 100) + "%");
+		}
+	}
+
+	static class Result {
+		double throughput;   // MiB/s of the median run
+		double error;        // the half range of the middle runs, in percent
+		double allocRate;    // MiB/s
+		double allocPerByte;
+		double hitRatio;
+	}
+
+	Result run(String grammar, NezOption option, String input) {
+		Grammar g = null;
+		try {
+			g = GrammarFile.loadGrammarFile(grammar, option).newGrammar("File", option);
+		} catch (IOException e) {
+			ConsoleUtils.exit(1, "cannot open " + grammar + "; " + e.getMessage());
+		}
+		SourceContext first = newSource(input);
+		long length = first.length();
+		if(!parse(g, option, first) || first.hasUnconsumed()) {
+			return null;
+		}
+		long start = System.nanoTime();
+		int count = 0;
+		while(count < MinRunCount || System.nanoTime() - start < WarmupTime) {
+			parse(g, option, newSource(input));
+			count++;
+		}
+		UList<Long> times = new UList<Long>(new Long[16]);
+		long allocated = 0;
+		long total = 0;
+		SourceContext last = null;
+		while(times.size() < MinRunCount || total < MeasureTime) {
+			last = newSource(input);
+			long a = allocatedBytes();
+			long t = System.nanoTime();
+			parse(g, option, last);
+			t = System.nanoTime() - t;
+			allocated += allocatedBytes() - a;
+			total += t;
+			times.add(t);
+		}
+		Long[] sorted = Arrays.copyOf(times.ArrayValues, times.size());
+		Arrays.sort(sorted);
+		double median = sorted[sorted.length / 2] / 1000000000.0;
+		double q1 = sorted[sorted.length / 4] / 1000000000.0;
+		double q3 = sorted[sorted.length * 3 / 4] / 1000000000.0;
+		Result r = new Result();
+		r.throughput = length / (1024.0 * 1024.0) / median;
+		r.error = 100.0 * (q3 - q1) / 2 / median;
+		r.allocRate = allocated / (1024.0 * 1024.0) / (total / 1000000000.0);
+		r.allocPerByte = (double)allocated / sorted.length / length;
+		MemoTable m = last.getMemoTable();
+		long used = m.getUsedCount();
+		long stored = m.getStoredCount();
+		r.hitRatio = used + stored == 0 ? 0.0 : 100.0 * used / (used + stored);  // a miss is stored once
+		return r;
+	}
+
+	private boolean parse(Grammar g, NezOption option, SourceContext source) {
+		if(option.enabledASTConstruction) {
+			return g.parse(source) != null;
+		}
+		return g.match(source);
+	}
+
+	private SourceContext newSource(String input) {
+		return SourceContext.newStringSourceContext("(generated)", 1, input);
+	}
+
+	/* the allocated bytes of this thread, or 0 if the JVM has no counter */
+	private long allocatedBytes() {
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private HashMap<String, Double> loadBaseline(UList<String> files) {
+		HashMap<String, Double> m = new HashMap<String, Double>();
+		for(String file : files) {
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] c = line.split("\t");
+					if(c.length > 3 && !c[0].equals("grammar")) {
+						try {
+							m.put(c[0] + "\t" + c[1] + "\t" + c[2], Double.parseDouble(c[3]));
+						}
+						catch(NumberFormatException e) {
+						}
+					}
+				}
+				reader.close();
+			} catch (IOException e) {
+				ConsoleUtils.exit(1, "cannot open: " + file);
+			}
+		}
+		return m;
+	}
+
+}
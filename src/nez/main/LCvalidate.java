@@ -17,24 +17,50 @@ class LCvalidate extends Command {
 		config.getNezOption().setOption("ast", false);
 		Grammar g = config.getGrammar();
 
+		Validator v = new Validator(g);
+		v.exec(config);
+		if(v.totalCount > 1){
+			Verbose.println(
+					v.totalCount + " files, " +
+					StringUtils.formatMPS(v.consumed, v.time) + " MiB/s, " + 
+					(config.Jobs > 1 ? StringUtils.formatMPS(v.consumed, v.elapsedTime) + " MiB/s with " + config.Jobs + " jobs, " : "") +
+					v.failureCount + " failed, " +
+					v.unconsumedCount + " uncosumed, " +
+					StringUtils.formatParcentage(v.totalCount - (v.unconsumedCount+v.failureCount), v.totalCount) + "% passed.");
+		}
+		if(v.unconsumedInputs.size() > 0) {
+			Verbose.println("unconsumed: " + v.unconsumedInputs);
+		}
+		if(v.failedInputs.size() > 0) {
+			ConsoleUtils.exit(1, "failed: " + v.failedInputs);
+		}
+	}
+
+	static class Validator extends ParallelParser<Boolean> {
 		UList<String> failedInputs = new UList<String>(new String[4]);
 		UList<String> unconsumedInputs = new UList<String>(new String[4]);
 		
 		int totalCount = 0, failureCount = 0, unconsumedCount = 0;
 		long consumed = 0;
 		long time = 0;
-		
-		while(config.hasInputSource()) {
-			SourceContext file = config.nextInputSource();
+
+		Validator(Grammar g) {
+			super(g);
+		}
+
+		@Override
+		Boolean parse(SourceContext file) {
+			return grammar.match(file);
+		}
+
+		@Override
+		void done(SourceContext file, Boolean result, long t) {
 			totalCount++;
-			long t = System.nanoTime();
-			boolean result = g.match(file);
-			long t2 = System.nanoTime();
 			if(!result) {
 				ConsoleUtils.println(file.getSyntaxErrorMessage());
 				failedInputs.add(file.getResourceName());
 				failureCount++;
-				continue;
+				return;
 			}
 			if(file.hasUnconsumed()) {
 				ConsoleUtils.println(file.getUnconsumedMessage());
@@ -42,22 +68,8 @@ class LCvalidate extends Command {
 				unconsumedCount++;
 			}
 			consumed += file.getPosition();
-			time += (t2 - t);
-			g.logProfiler();
-		}
-		if(totalCount > 1){
-			Verbose.println(
-					totalCount + " files, " +
-					StringUtils.formatMPS(consumed, time) + " MiB/s, " + 
-					failureCount + " failed, " +
-					unconsumedCount + " uncosumed, " +
-					StringUtils.formatParcentage(totalCount - (unconsumedCount+failureCount), totalCount) + "% passed.");
-		}
-		if(unconsumedInputs.size() > 0) {
-			Verbose.println("unconsumed: " + unconsumedInputs);
-		}
-		if(failedInputs.size() > 0) {
-			ConsoleUtils.exit(1, "failed: " + failedInputs);
+			time += t;
+			grammar.logProfiler();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+package nez.main;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nez.SourceContext;
+import nez.lang.Grammar;
+
+/**
+ * ParallelParser parses the input sources of a command (--jobs N) with a
+ * fork-join pool over one shared Grammar. parse() runs on worker threads;
+ * done() runs on the calling thread in the input order, so that the
+ * output is identical to the sequential run.
+ */
+
+abstract class ParallelParser<R> {
+	final Grammar grammar;
+	long elapsedTime = 0;
+
+	ParallelParser(Grammar grammar) {
+		this.grammar = grammar;
+	}
+
+	abstract R parse(SourceContext source);
+	abstract void done(SourceContext source, R result, long time);
+
+	final void exec(CommandContext config) {
+		int jobs = config.Jobs;
+		if(jobs > 1 && grammar.getProfiler() != null) {
+			Verbose.println("profiling runs in a single job");
+			jobs = 1;
+		}
+		long t1 = System.nanoTime();
+		if(jobs > 1) {
+			execParallel(config, jobs);
+		}
+		else {
+			while(config.hasInputSource()) {
+				SourceContext source = config.nextInputSource();
+				long t = System.nanoTime();
+				R result = parse(source);
+				done(source, result, System.nanoTime() - t);
+			}
+		}
+		this.elapsedTime = System.nanoTime() - t1;
+	}
+
+	private void execParallel(CommandContext config, int jobs) {
+		ForkJoinPool pool = new ForkJoinPool(jobs);
+		ArrayDeque<Job> queue = new ArrayDeque<Job>();
+		int window = jobs * 4;  // bounds open files and pending results
+		try {
+			while(config.hasInputSource() || !queue.isEmpty()) {
+				while(queue.size() < window && config.hasInputSource()) {
+					Job job = new Job(config.nextInputSource());
+					queue.add(job);
+					pool.execute(job);
+				}
+				Job job = queue.poll();
+				job.join();
+				done(job.source, job.result, job.time);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class Job extends RecursiveAction {
+		final SourceContext source;
+		R result;
+		long time;
+
+		Job(SourceContext source) {
+			this.source = source;
+		}
+
+		@Override
+		protected void compute() {
+			long t = System.nanoTime();
+			this.result = parse(source);
+			this.time = System.nanoTime() - t;
+		}
+	}
+}
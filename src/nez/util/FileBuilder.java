@@ -19,6 +19,10 @@ public class FileBuilder {
 		this.out = null;
 	}
 
+	public FileBuilder(OutputStream out) {
+		this.out = out;
+	}
+
 	public FileBuilder(String fileName) {
 		try {
 			this.out = new BufferedOutputStream(new FileOutputStream(fileName));
@@ -0,0 +1,268 @@
+package nez.vm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import nez.ast.SourcePosition;
+import nez.lang.Choice;
+import nez.lang.Expression;
+import nez.lang.Grammar;
+import nez.lang.NonTerminal;
+import nez.lang.Option;
+import nez.lang.Production;
+import nez.lang.Repetition;
+import nez.main.NezProfier;
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+
+/**
+ * BacktrackProfiler measures the work thrown away by failures (nez
+ * backtrack). A failure caught by the frame of an IFailPush (an
+ * alternative of a choice, an option, a repetition or a not-predicate)
+ * wastes the bytes between the position of the frame and the failed
+ * position, and the instructions executed since the frame was pushed;
+ * a failure that unwinds an IPredictDispatch before its choice is done
+ * wastes those of the predicted alternative. The instructions of nested
+ * sites are included in the outer ones; the bytes are counted once.
+ */
+
+public class BacktrackProfiler {
+
+	static class Site {
+		final Instruction inst;
+		long tries = 0;
+		long fails = 0;
+		long wastedBytes = 0;
+		long wastedInstructions = 0;
+
+		Site(Instruction inst) {
+			this.inst = inst;
+		}
+
+		final String getKind() {
+			if(inst instanceof IPredictDispatch) {
+				return "predict";
+			}
+			if(inst instanceof INotFailPush) {
+				return "not";
+			}
+			Expression e = inst.getExpression();
+			if(e instanceof Repetition) {
+				return "repeat";
+			}
+			if(e instanceof Option) {
+				return "option";
+			}
+			return "choice";
+		}
+
+		/* interned expressions have no position; that of the production is used */
+		final String getLocation(IdentityHashMap<Expression, Production> owners) {
+			Expression e = inst.getExpression();
+			SourcePosition s = e != null ? e.getSourcePosition() : null;
+			if(s != null) {
+				return s.formatDebugSourceMessage("");
+			}
+			Production p = owners.get(e);
+			if(p != null && p.getSourcePosition() != null) {
+				return p.getSourcePosition().formatDebugSourceMessage(" " + p.getLocalName());
+			}
+			return p != null ? p.getLocalName() : "(unknown)";
+		}
+
+		final void merge(Site s) {
+			this.tries += s.tries;
+			this.fails += s.fails;
+			this.wastedBytes += s.wastedBytes;
+			this.wastedInstructions += s.wastedInstructions;
+		}
+	}
+
+	/* the counters of a parse, set to the Context by Machine.backtrack() */
+	static class Recorder {
+		final IdentityHashMap<Instruction, Site> siteMap = new IdentityHashMap<Instruction, Site>();
+		long instructions = 0;
+		long wastedBytes = 0;
+		private Site[] frames = new Site[64];  // by the index of catch frames
+		private long[] frameCounts = new long[64];
+		int dispatchTop = 0;
+		private Site[] dispatches = new Site[16];
+		private Instruction[] joins = new Instruction[16];
+		private int[] levels = new int[16];
+		private long[] dispatchPos = new long[16];
+		private long[] dispatchCounts = new long[16];
+
+		private Site site(Instruction inst) {
+			Site s = siteMap.get(inst);
+			if(s == null) {
+				s = new Site(inst);
+				siteMap.put(inst, s);
+			}
+			return s;
+		}
+
+		/* a catch frame pushed by inst, or by another instruction if null */
+		final void push(int index, Instruction inst) {
+			if(index >= frames.length) {
+				frames = Arrays.copyOf(frames, index * 2);
+				frameCounts = Arrays.copyOf(frameCounts, index * 2);
+			}
+			frames[index] = inst != null ? site(inst) : null;
+			frameCounts[index] = instructions;
+			if(inst != null) {
+				frames[index].tries++;
+			}
+		}
+
+		/* a repetition has moved its frame to the next iteration */
+		final void skip(int index) {
+			if(index < frames.length) {
+				frameCounts[index] = instructions;
+			}
+		}
+
+		/* a failure caught by the frame of index; called by Context */
+		final void caught(int index, long backPos, long headPos) {
+			long len = headPos - backPos;
+			this.wastedBytes += len;
+			Site s = index < frames.length ? frames[index] : null;
+			if(s != null) {
+				s.fails++;
+				s.wastedBytes += len;
+				s.wastedInstructions += instructions - frameCounts[index];
+				frames[index] = null;
+			}
+			while(dispatchTop > 0 && levels[dispatchTop - 1] >= index) {
+				dispatchTop--;
+				Site d = dispatches[dispatchTop];
+				d.fails++;
+				d.wastedBytes += headPos - dispatchPos[dispatchTop];
+				d.wastedInstructions += instructions - dispatchCounts[dispatchTop];
+			}
+		}
+
+		/* an alternative predicted at the frame of level */
+		final void dispatch(IPredictDispatch inst, int level, long pos) {
+			if(dispatchTop == dispatches.length) {
+				int n = dispatchTop * 2;
+				dispatches = Arrays.copyOf(dispatches, n);
+				joins = Arrays.copyOf(joins, n);
+				levels = Arrays.copyOf(levels, n);
+				dispatchPos = Arrays.copyOf(dispatchPos, n);
+				dispatchCounts = Arrays.copyOf(dispatchCounts, n);
+			}
+			Site d = site(inst);
+			d.tries++;
+			dispatches[dispatchTop] = d;
+			joins[dispatchTop] = inst.join;
+			levels[dispatchTop] = level;
+			dispatchPos[dispatchTop] = pos;
+			dispatchCounts[dispatchTop] = instructions;
+			dispatchTop++;
+		}
+
+		/* the predicted alternatives that have reached the end of the choice */
+		final void joined(Instruction inst) {
+			while(dispatchTop > 0 && joins[dispatchTop - 1] == inst) {
+				dispatchTop--;
+			}
+		}
+	}
+
+	private final IdentityHashMap<Instruction, Site> siteMap = new IdentityHashMap<Instruction, Site>();
+	private long instructions = 0;
+	private long wastedBytes = 0;
+
+	final synchronized void merge(Recorder rec) {
+		this.instructions += rec.instructions;
+		this.wastedBytes += rec.wastedBytes;
+		for(Site s : rec.siteMap.values()) {
+			Site t = this.siteMap.get(s.inst);
+			if(t == null) {
+				t = new Site(s.inst);
+				this.siteMap.put(s.inst, t);
+			}
+			t.merge(s);
+		}
+	}
+
+	/* the sites that have failed, by the wasted instructions */
+	final synchronized Site[] getSites() {
+		UList<Site> l = new UList<Site>(new Site[this.siteMap.size()]);
+		for(Site s : this.siteMap.values()) {
+			if(s.fails > 0) {
+				l.add(s);
+			}
+		}
+		Site[] sites = l.compactArray();
+		Arrays.sort(sites, new Comparator<Site>() {
+			@Override
+			public int compare(Site s1, Site s2) {
+				int c = Long.compare(s2.wastedInstructions, s1.wastedInstructions);
+				return c != 0 ? c : Long.compare(s2.wastedBytes, s1.wastedBytes);
+			}
+		});
+		return sites;
+	}
+
+	public final synchronized long getWastedBytes() {
+		return this.wastedBytes;
+	}
+
+	public final synchronized long getInstructions() {
+		return this.instructions;
+	}
+
+	/* the productions that contain the expressions */
+	static IdentityHashMap<Expression, Production> owners(Grammar g) {
+		IdentityHashMap<Expression, Production> m = new IdentityHashMap<Expression, Production>();
+		for(Production p : g.getProductionList()) {
+			owners(m, p.getExpression(), p);
+		}
+		return m;
+	}
+
+	private static void owners(IdentityHashMap<Expression, Production> m, Expression e, Production p) {
+		if(e == null || m.containsKey(e) || e instanceof NonTerminal) {
+			return;
+		}
+		m.put(e, p);
+		for(Expression sub : e) {
+			owners(m, sub, p);
+		}
+		if(e instanceof Choice && ((Choice) e).predictedCase != null) {
+			for(Expression c : ((Choice) e).predictedCase) {
+				owners(m, c, p);
+			}
+		}
+	}
+
+	public final void printReport(Grammar g, int limit) {
+		IdentityHashMap<Expression, Production> owners = owners(g);
+		Site[] sites = getSites();
+		long total = getInstructions();
+		ConsoleUtils.println("Site\tKind\tExpression\tTries\tFails\tFail%\tWasted.Bytes\tWasted.Inst\tWasted%");
+		for(int i = 0; i < sites.length && i < limit; i++) {
+			Site s = sites[i];
+			String e = String.valueOf(s.inst.getExpression());
+			if(e.length() > 40) {
+				e = e.substring(0, 37) + "...";
+			}
+			ConsoleUtils.println(String.format("%s\t%s\t%s\t%d\t%d\t%.1f\t%d\t%d\t%.1f", s.getLocation(owners), s.getKind(), e, s.tries, s.fails,
+					s.fails * 100.0 / s.tries, s.wastedBytes, s.wastedInstructions, total == 0 ? 0.0 : s.wastedInstructions * 100.0 / total));
+		}
+		ConsoleUtils.println(String.format("total: %d instructions, %d bytes backtracked", total, getWastedBytes()));
+	}
+
+	public final void record(Grammar g, NezProfier rec) {
+		Site[] sites = getSites();
+		rec.setCount("B.Instructions", getInstructions());
+		rec.setCount("B.WastedBytes", getWastedBytes());
+		rec.setCount("B.FailedSites", sites.length);
+		if(sites.length > 0) {
+			rec.setText("B.WorstSite", sites[0].getLocation(owners(g)));
+			rec.setRatio("B.WorstSiteWaste", sites[0].wastedInstructions, getInstructions());
+		}
+	}
+}
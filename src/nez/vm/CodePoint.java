@@ -13,6 +13,8 @@ public class CodePoint {
 	boolean     inlining = false;
 	MemoPoint   memoPoint = null;
 	Instruction memoStart = null;
+	ILazyEntry  lazyEntry = null;      // until compiled (--option:lazy)
+	ILazyEntry  lazyMemoEntry = null;
 	CodePoint(Production p, Expression local) {
 		this.production = p;
 		this.localExpression = local;
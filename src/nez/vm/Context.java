@@ -1,5 +1,8 @@
 package nez.vm;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import nez.ast.TreeTransducer;
 import nez.ast.Source;
 import nez.ast.Tag;
@@ -132,6 +135,9 @@ public abstract class Context implements Source {
 	}
 
 	private Object commitNode(ASTLog start, ASTLog end, long spos, long epos, int objectSize, Object left, Tag tag, Object value) {
+		if(this.streaming && objectSize == 0 && value == null && this.treeTransducer.requires(tag)) {
+			value = this.substring(spos, epos);  // the input will be discarded
+		}
 		Object newnode = this.treeTransducer.newNode(tag, this, spos, epos, objectSize, value);
 		if(left != null) {
 			this.treeTransducer.link(newnode, 0, left);
@@ -170,7 +176,7 @@ public abstract class Context implements Source {
 	/* <block e> <indent> */
 	/* <def T e>, <is T>, <isa T> */
 
-	private final SymbolTable symbolTable = new SymbolTable();
+	private SymbolTable symbolTable = new SymbolTable();
 	
 	public final SymbolTable getSymbolTable() {
 		return this.symbolTable;
@@ -188,11 +194,19 @@ public abstract class Context implements Source {
 	private int usedStackTop;
 	private int catchStackTop;
 	
-	public final void initJumpStack(MemoTable memoTable) {
+	private ParseSession session = null;
+
+	public final void initJumpStack(ParseSession session) {
+		session.begin();
+		this.session = session;
 		this.lastAppendedLog = new ASTLog();
-		this.contextStacks = new ContextStack[StackSize];
-		for(int i = 0; i < StackSize; i++) {
-			this.contextStacks[i] = new ContextStack();
+		this.unusedDataLog = session.unusedDataLog;
+		this.contextStacks = session.contextStacks;
+		if(this.contextStacks == null) {
+			this.contextStacks = new ContextStack[StackSize];
+			for(int i = 0; i < StackSize; i++) {
+				this.contextStacks[i] = new ContextStack();
+			}
 		}
 		this.contextStacks[0].jump = new IExit(false);
 		//this.contextStacks[0].debugFailStackFlag = true;
@@ -205,12 +219,113 @@ public abstract class Context implements Source {
 		if(this.treeTransducer == null) {
 			treeTransducer = new NoTreeTransducer();
 		}
-		this.memoTable = memoTable;
+		this.memoTable = session.memoTable;
+		this.symbolTable = session.symbolTable;
 		if(Verbose.PackratParsing) {
 			Verbose.println("MemoTable: " + this.memoTable.getClass().getSimpleName());
 		}
 	}
 
+	/**
+	 * Returns the reusable buffers to the session; the parse result
+	 * (getLeftObject) remains available.
+	 */
+	public final void endJumpStack() {
+		if(this.session != null) {
+			this.session.end(this.contextStacks, this.unusedDataLog);
+			this.session = null;
+			this.contextStacks = null;
+			this.unusedDataLog = null;
+		}
+	}
+
+	/* streaming input (StreamContext) */
+
+	protected boolean streaming = false;
+	final static Instruction PosMark = new IExit(false);  // a frame of IPosPush
+
+	public final boolean isStreaming() {
+		return this.streaming;
+	}
+
+	/**
+	 * Returns true if the input must be parsed by the interpreter, which
+	 * keeps the parsing state in this context.
+	 */
+	public boolean requiresInterpreter() {
+		return this.streaming;
+	}
+
+	/**
+	 * Returns the first input position that can still be read; a stream
+	 * discards the input before it.
+	 */
+	public long getWindowStart() {
+		return 0;
+	}
+
+	/* examined input (EditableContext) */
+
+	protected long examined = 0;  // the end of the input read by the current memo frame
+
+	protected final void resetPosition() {
+		this.pos = 0;
+		this.head_pos = 0;
+		this.examined = 0;
+	}
+
+	/**
+	 * Returns the oldest input position that the running parser may read
+	 * again: a backtrack point, a position saved by IPosPush, or the start
+	 * of an uncommitted node that has no child yet.
+	 */
+	protected final long getLivePosition() {
+		long min = this.pos;
+		if(this.contextStacks == null) {
+			return min;
+		}
+		for(int i = this.catchStackTop; i > 0; i = this.contextStacks[i].prevFailCatch) {
+			if(this.contextStacks[i].pos < min) {
+				min = this.contextStacks[i].pos;
+			}
+		}
+		for(int i = 2; i <= this.usedStackTop; i++) {
+			ContextStack s = this.contextStacks[i];
+			if(s.jump == PosMark && s.pos < min) {
+				min = s.pos;
+			}
+		}
+		if(this.treeTransducer instanceof NoTreeTransducer) {
+			return min;  // no text is copied
+		}
+		boolean linked = false;
+		for(ASTLog cur = this.lastAppendedLog; cur != null; cur = cur.prev) {
+			switch(cur.type) {
+			case ASTLog.LazyLink:
+				linked = true;
+				break;
+			case ASTLog.LazyNew:
+				if(!linked && cur.pos < min) {
+					min = cur.pos;
+				}
+				linked = false;
+				break;
+			case ASTLog.LazyLeftNew:
+				linked = false;
+				break;
+			}
+		}
+		return min;
+	}
+
+	final int getUsedStackIndex() {
+		return usedStackTop;
+	}
+
+	final int getCatchStackIndex() {
+		return catchStackTop;
+	}
+
 	public final ContextStack getUsedStackTop() {
 		return contextStacks[usedStackTop];
 	}
@@ -254,6 +369,9 @@ public abstract class Context implements Source {
 	
 	public final Instruction opIFailCatch() {
 		ContextStack stackTop = contextStacks[catchStackTop];
+		if(this.backtrackRecorder != null) {
+			this.backtrackRecorder.caught(catchStackTop, stackTop.pos, this.pos);
+		}
 		//assert(stackTop.debugFailStackFlag);
 		usedStackTop = catchStackTop - 1;
 		catchStackTop = stackTop.prevFailCatch;
@@ -317,6 +435,7 @@ public abstract class Context implements Source {
 	
 	public final Instruction opIPosPush(IPosPush op) {
 		ContextStack top = newUnusedLocalStack();
+		top.jump = PosMark;
 		top.pos = pos;
 		return op.next;
 	}
@@ -371,6 +490,7 @@ public abstract class Context implements Source {
 
 	public final Instruction opNodePush(Instruction op) {
 		ContextStack top = newUnusedLocalStack();
+		top.jump = null;
 		top.topASTLog = this.lastAppendedLog;
 		this.left = null;
 		return op.next;
@@ -456,6 +576,10 @@ public abstract class Context implements Source {
 
 	// Memoization
 	MemoTable memoTable;
+
+	public final MemoTable getMemoTable() {
+		return this.memoTable;
+	}
 	
 	public final void setMemo(long pos, int memoId, boolean failed, Object result, int consumed, boolean state) {
 		memoTable.setMemo(pos, memoId, failed, result, consumed, state ? symbolTable.getState() : 0);
@@ -467,6 +591,18 @@ public abstract class Context implements Source {
 				memoTable.getMemo(this.pos, memoId);
 	}
 
+	final void memoHit(MemoPoint mp, int consumed) {
+		session.memoHit(mp.id, consumed);
+	}
+
+	final void memoFailHit(MemoPoint mp) {
+		session.memoFailHit(mp.id);
+	}
+
+	final void memoMiss(MemoPoint mp) {
+		session.memoMiss(mp);
+	}
+
 	public final Instruction opILookup(ILookup op) {
 		MemoPoint mp = op.memoPoint;
 		MemoEntry entry = op.state ? 
@@ -474,17 +610,17 @@ public abstract class Context implements Source {
 				memoTable.getMemo(this.pos, mp.id);
 		if(entry != null) {
 			if(entry.failed) {
-				mp.failHit();
+				session.memoFailHit(mp.id);
 				return opIFailCatch();
 			}
-			mp.memoHit(entry.consumed);
+			session.memoHit(mp.id, entry.consumed);
 			this.consume(entry.consumed);
 			if(op.node) {
 				this.left = entry.result;
 			}
 			return op.skip;
 		}
-		mp.miss();
+		session.memoMiss(mp);
 		if(op.node) {
 			this.opITry(op);
 			return this.opNodePush(op);
@@ -634,14 +770,61 @@ public abstract class Context implements Source {
 	// Specialization 
 	
 	public final Instruction opRepeatedByteMap(IRepeatedByteMap op) {
-		while(true) {
-			int c = this.byteAt(this.pos);
-			if(!op.byteMap[c]) {
-				break;
+		this.pos = this.skipByteMap(this.pos, op.byteMap, op.stopWords);
+		return op.next;
+	}
+
+	/**
+	 * Returns the first position from pos whose byte is not in byteMap.
+	 * Sources backed by a buffer override this to look for the stopWords
+	 * (the bytes out of byteMap, see stopWords) eight bytes at a time.
+	 */
+	public long skipByteMap(long pos, boolean[] byteMap, long[] stopWords) {
+		while(byteMap[this.byteAt(pos)]) {
+			pos++;
+		}
+		return pos;
+	}
+
+	final static int MaxStopBytes = 4;
+
+	/**
+	 * Returns the bytes out of byteMap, each repeated over a word, or null
+	 * if there are more than MaxStopBytes of them (a short run is likely).
+	 */
+	static long[] stopWords(boolean[] byteMap) {
+		long[] words = new long[MaxStopBytes];
+		int n = 0;
+		for(int c = 0; c < 256; c++) {
+			if(!byteMap[c]) {
+				if(n == MaxStopBytes) {
+					return null;
+				}
+				words[n++] = c * 0x0101010101010101L;
 			}
-			this.consume(1);
 		}
-		return op.next;
+		return n == 0 ? null : Arrays.copyOf(words, n);
+	}
+
+	/**
+	 * Returns the first index from the index from of b whose byte is one of
+	 * the stopWords, or an index less than 8 bytes before to if there is no
+	 * such byte. b is in the little endian order.
+	 */
+	protected final static int indexOfStopWords(ByteBuffer b, int from, int to, long[] stopWords) {
+		int i = from;
+		for(; i + 8 <= to; i += 8) {
+			long w = b.getLong(i);
+			long found = 0;
+			for(long s : stopWords) {
+				long x = w ^ s;  // a stop byte is 0
+				found |= (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+			}
+			if(found != 0) {
+				return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		return i;
 	}
 
 	public final Instruction opNotByteMap(INotByteMap op) {
@@ -661,11 +844,73 @@ public abstract class Context implements Source {
 
 //	public final Instruction opMultiChar(IMultiChar op) {
 //	}
-	
-	
+
+	// Compiled code (JitParser, PackedCode) ---------------------------------
+
+	final ASTLog getLastLog() {
+		return this.lastAppendedLog;
+	}
+
+	final void abortLog(ASTLog checkPoint) {
+		if(checkPoint != this.lastAppendedLog) {
+			this.logAbort(checkPoint, true);
+		}
+	}
+
+	final void storeNode(ASTLog top, int index) {
+		if(top.next != null) {
+			Object child = this.logCommit(top.next);
+			logAbort(top, false);
+			if(child != null) {
+				pushDataLog(ASTLog.LazyLink, index, child);
+			}
+			this.left = child;
+		}
+	}
+
+	final void commitNode(ASTLog top) {
+		if(top.next != null) {
+			Object child = this.logCommit(top.next);
+			logAbort(top, false);
+			this.left = child;
+		}
+	}
+
+	final void linkNode(int index) {
+		if(this.left != null) {
+			pushDataLog(ASTLog.LazyLink, index, this.left);
+		}
+	}
+
+	final void pushLog(int type, long pos, Object value) {
+		pushDataLog(type, pos, value);
+	}
+
+	final void pushInterpreterFrame(Instruction failjump, Instruction ret) {
+		ContextStack stackTop = newUnusedStack();
+		stackTop.prevFailCatch = catchStackTop;
+		catchStackTop = usedStackTop;
+		stackTop.jump = failjump;
+		stackTop.pos = this.pos;
+		stackTop.topASTLog = this.lastAppendedLog;
+		newUnusedStack().jump = ret;
+	}
+
+	final void popInterpreterFrame() {
+		ContextStack stackTop = contextStacks[catchStackTop];
+		usedStackTop = catchStackTop - 1;
+		catchStackTop = stackTop.prevFailCatch;
+	}
+
+
 	// Profiling ------------------------------------------------------------
 	
 	private LocalProfiler lprof;
+	private BacktrackProfiler.Recorder backtrackRecorder = null;
+
+	final void setBacktrackRecorder(BacktrackProfiler.Recorder rec) {
+		this.backtrackRecorder = rec;
+	}
 	
 	public final void startProfiling(NezProfier prof) {
 		if(prof != null) {
@@ -678,8 +923,10 @@ public abstract class Context implements Source {
 
 	public final void doneProfiling(NezProfier prof) {
 		if(prof != null) {
-			this.lprof.parsed(prof, this.getPosition());
-			this.memoTable.record(prof);
+			synchronized(prof) {  // counters are local until here
+				this.lprof.parsed(prof, this.getPosition());
+				this.memoTable.record(prof);
+			}
 		}
 	}
 
@@ -794,6 +1041,10 @@ class ASTLog {
 }
 
 class NoTreeTransducer extends TreeTransducer {
+	@Override
+	public boolean requires(Tag tag) {
+		return false;
+	}
 	@Override
 	public Object newNode(Tag tag, Source s, long spos, long epos, int size, Object value) {
 		return null;
@@ -0,0 +1,165 @@
+package nez.vm;
+
+/**
+ * Dfa is the transition table of a regular production, built by
+ * DfaConverter. A row has 257 entries, one for each byte and the last for
+ * the end of input; an entry is the next row, an action and the mark
+ * registers of the action. A choice that cannot be decided by the current
+ * byte sets a mark register, and the scan goes back to the mark if the
+ * first alternative fails later.
+ */
+
+public final class Dfa {
+	final static int Width = 257;
+	final static int EndOfInput = 256;
+
+	/* actions */
+	final static int Fail = 0;
+	final static int Accept = 1;
+	final static int Consume = 2;
+	final static int Mark = 3;      // set the registers, and consume
+	final static int Rewind = 4;    // back to the register
+
+	final String name;
+	final int[] table;   // row offset << 9 | registers << 3 | action
+	final int stateSize;
+
+	Dfa(String name, int[] table) {
+		this.name = name;
+		this.table = table;
+		this.stateSize = table.length / Width;
+	}
+
+	public final String getName() {
+		return this.name;
+	}
+
+	public final int getStateSize() {
+		return this.stateSize;
+	}
+
+	/* registers is a bit set of the registers from 1 for Mark, a register for Rewind */
+	final static int entry(int state, int action, int registers) {
+		return (state * Width) << 9 | registers << 3 | action;
+	}
+
+	/**
+	 * Returns the end position of the match from pos, or -1. The furthest
+	 * position read is left in the head position of a failed scan.
+	 */
+	final long scan(Context sc, long pos) {
+		final int[] table = this.table;
+		final long length = sc.length();
+		long m1 = pos, m2 = pos, m3 = pos, m4 = pos;
+		long far = pos;
+		int row = 0;
+		while(true) {
+			int t = table[row + (pos < length ? sc.byteAt(pos) : EndOfInput)];
+			switch(t & 7) {
+			case Consume:
+				pos++;
+				row = t >>> 9;
+				continue;
+			case Mark: {
+				if((t & (1 << 3)) != 0) {
+					m1 = pos;
+				}
+				if((t & (1 << 4)) != 0) {
+					m2 = pos;
+				}
+				if((t & (1 << 5)) != 0) {
+					m3 = pos;
+				}
+				if((t & (1 << 6)) != 0) {
+					m4 = pos;
+				}
+				pos++;
+				row = t >>> 9;
+				continue;
+			}
+			case Accept:
+				return pos;
+			case Rewind:
+				if(far < pos) {
+					far = pos;
+				}
+				switch((t >>> 3) & 63) {
+				case 1:
+					pos = m1;
+					break;
+				case 2:
+					pos = m2;
+					break;
+				case 3:
+					pos = m3;
+					break;
+				default:
+					pos = m4;
+				}
+				row = t >>> 9;
+				continue;
+			default:
+				if(far < pos) {
+					far = pos;
+				}
+				if(sc.head_pos < far) {
+					sc.head_pos = far;
+				}
+				return -1;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(": ").append(stateSize).append(" states");
+		for(int s = 0; s < stateSize; s++) {
+			sb.append("\n  ").append(s).append(":");
+			int c = 0;
+			while(c < Width) {
+				int t = table[s * Width + c];
+				int end = c + 1;
+				while(end < Width && table[s * Width + end] == t) {
+					end++;
+				}
+				if((t & 7) != Fail) {
+					sb.append(' ').append(label(c, end - 1)).append(action(t));
+				}
+				c = end;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String label(int c, int end) {
+		if(c == end) {
+			return label(c);
+		}
+		return "[" + label(c) + "-" + label(end) + "]";
+	}
+
+	private static String label(int c) {
+		if(c == EndOfInput) {
+			return "EOF";
+		}
+		if(c > 32 && c < 127) {
+			return String.valueOf((char)c);
+		}
+		return String.format("\\x%02x", c);
+	}
+
+	private static String action(int t) {
+		switch(t & 7) {
+		case Accept:
+			return "=>accept";
+		case Consume:
+			return "->" + (t >>> 9) / Width;
+		case Mark:
+			return "->" + (t >>> 9) / Width + "*" + Integer.toBinaryString((t >>> 3) & 63);
+		case Rewind:
+			return "=>back" + ((t >>> 3) & 63) + " " + (t >>> 9) / Width;
+		}
+		return "";
+	}
+}
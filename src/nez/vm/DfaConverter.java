@@ -0,0 +1,670 @@
+package nez.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import nez.lang.And;
+import nez.lang.AnyChar;
+import nez.lang.ByteChar;
+import nez.lang.ByteMap;
+import nez.lang.Capture;
+import nez.lang.CharMultiByte;
+import nez.lang.Choice;
+import nez.lang.Empty;
+import nez.lang.Expression;
+import nez.lang.Failure;
+import nez.lang.IfFlag;
+import nez.lang.Link;
+import nez.lang.Match;
+import nez.lang.New;
+import nez.lang.NonTerminal;
+import nez.lang.Not;
+import nez.lang.OnFlag;
+import nez.lang.Option;
+import nez.lang.Production;
+import nez.lang.Repetition;
+import nez.lang.Repetition1;
+import nez.lang.Replace;
+import nez.lang.Sequence;
+import nez.lang.Tagging;
+import nez.util.UList;
+
+/**
+ * DfaConverter determinizes a regular production (--option:dfa), one that
+ * builds no tree, uses no symbol table and is not recursive. A state is
+ * the rest of the expression to be matched, and a transition is its
+ * derivative by a byte under the ordered choice, the greedy repetition and
+ * the predicates of PEGs. Alternatives that consume the same byte are
+ * followed together. An alternative that accepts nothing while another
+ * consumes is kept in a mark register to go back to; a production that
+ * needs more than MaxMarks registers, or a larger table than MaxStateSize,
+ * is not converted.
+ */
+
+public class DfaConverter {
+	final static int MaxStateSize = 1024;
+	final static int MaxTermSize = 4096;
+	final static int MaxMarks = 4;
+
+	@SuppressWarnings("serial")
+	static class DfaException extends RuntimeException {
+		DfaException(String msg) {
+			super(msg);
+		}
+	}
+
+	private final boolean ast;
+	private String reason = null;
+
+	public DfaConverter(boolean ast) {
+		this.ast = ast;
+	}
+
+	/**
+	 * Returns the transition table of p, or null if p is not regular.
+	 */
+	public final Dfa convert(Production p) {
+		return convert(p.getLocalName(), p.getExpression());
+	}
+
+	final Dfa convert(String name, Expression e) {
+		try {
+			this.reason = null;
+			return build(name, toTerm(e));
+		}
+		catch(DfaException ex) {
+			this.reason = ex.getMessage();
+			return null;
+		}
+		finally {
+			this.terms.clear();
+			this.prodMap.clear();
+			this.visiting.clear();
+			this.states.clear(0);
+			this.stateMap.clear();
+			this.init();
+		}
+	}
+
+	/**
+	 * Returns why the last conversion failed.
+	 */
+	public final String getReason() {
+		return this.reason;
+	}
+
+	/* terms */
+
+	final static int EpsOp = 0;
+	final static int FailOp = 1;
+	final static int MarkOp = 2;     // accepted at the mark
+	final static int SetOp = 3;
+	final static int SeqOp = 4;
+	final static int AltOp = 5;
+	final static int StarOp = 6;
+	final static int NotOp = 7;      // !left right
+	final static int AndOp = 8;      // &left right
+
+	final static class Term {
+		final int op;
+		final Term left;
+		final Term right;
+		final boolean[] set;   // 257 entries; the last is the end of input
+		final int mark;        // the register of MarkOp
+		final int hash;
+		int id;
+		int size;
+		int marks;             // the registers in use, as bits
+		boolean total;         // never fails
+
+		Term(int op, Term left, Term right, boolean[] set, int mark) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+			this.set = set;
+			this.mark = mark;
+			int h = op * 31 + mark;
+			h = h * 31 + (left == null ? 0 : left.id + 1);
+			h = h * 31 + (right == null ? 0 : right.id + 1);
+			this.hash = set == null ? h : h * 31 + Arrays.hashCode(set);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			Term t = (Term)o;
+			return op == t.op && mark == t.mark && left == t.left && right == t.right && (set == t.set || Arrays.equals(set, t.set));
+		}
+	}
+
+	private final HashMap<Term, Term> terms = new HashMap<Term, Term>();
+	private Term eps;
+	private Term fail;
+
+	{
+		init();
+	}
+
+	private void init() {
+		this.eps = intern(EpsOp, null, null, null, 0);
+		this.fail = intern(FailOp, null, null, null, 0);
+	}
+
+	private Term intern(int op, Term left, Term right, boolean[] set, int mark) {
+		Term t = new Term(op, left, right, set, mark);
+		Term u = terms.get(t);
+		if(u != null) {
+			return u;
+		}
+		t.id = terms.size();
+		t.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+		if(t.size > MaxTermSize) {
+			throw new DfaException("too many alternatives");
+		}
+		t.marks = (op == MarkOp ? 1 << mark : 0) | (left == null ? 0 : left.marks) | (right == null ? 0 : right.marks);
+		switch(op) {
+		case EpsOp:
+		case StarOp:
+			t.total = true;
+			break;
+		case SeqOp:
+			t.total = left.total && right.total;
+			break;
+		case AltOp:
+			t.total = left.total || right.total;
+			break;
+		}
+		terms.put(t, t);
+		return t;
+	}
+
+	private Term set(boolean[] set) {
+		return intern(SetOp, null, null, set, 0);
+	}
+
+	private Term mark(int register) {
+		return intern(MarkOp, null, null, null, register);
+	}
+
+	private Term seq(Term a, Term k) {
+		if(a == fail || a.op == MarkOp || k == eps) {
+			return a;
+		}
+		if(a == eps) {
+			return k;
+		}
+		if(a.op == SeqOp) {
+			return seq(a.left, seq(a.right, k));
+		}
+		if(a.op == NotOp) {
+			return not(a.left, seq(a.right, k));
+		}
+		if(a.op == AndOp) {
+			return and(a.left, seq(a.right, k));
+		}
+		return intern(SeqOp, a, k, null, 0);
+	}
+
+	private Term alt(Term a, Term b) {
+		if(a == fail) {
+			return b;
+		}
+		if(b == fail || a.total) {
+			return a;
+		}
+		if(a.op == AltOp) {
+			return alt(a.left, alt(a.right, b));
+		}
+		return intern(AltOp, a, b, null, 0);
+	}
+
+	private Term star(Term a) {
+		return intern(StarOp, a, null, null, 0);
+	}
+
+	private Term not(Term g, Term k) {
+		if(g == fail) {
+			return k;
+		}
+		if(g.total || k == fail) {
+			return fail;
+		}
+		return intern(NotOp, g, k, null, 0);
+	}
+
+	private Term and(Term g, Term k) {
+		if(g == fail || k == fail) {
+			return fail;
+		}
+		if(g.total) {
+			return k;
+		}
+		return intern(AndOp, g, k, null, 0);
+	}
+
+	private Term guard(int op, Term g, Term k) {
+		return op == NotOp ? not(g, k) : and(g, k);
+	}
+
+	/* expressions to terms */
+
+	private final HashMap<String, Term> prodMap = new HashMap<String, Term>();
+	private final HashSet<String> visiting = new HashSet<String>();
+
+	private Term toTerm(Expression e) {
+		if(e instanceof NonTerminal) {
+			Production p = ((NonTerminal) e).getProduction();
+			if(p == null) {
+				throw new DfaException("undefined " + ((NonTerminal) e).getLocalName());
+			}
+			String uname = p.getUniqueName();
+			Term t = prodMap.get(uname);
+			if(t == null) {
+				if(!visiting.add(uname)) {
+					throw new DfaException("recursive " + p.getLocalName());
+				}
+				t = toTerm(p.getExpression());
+				visiting.remove(uname);
+				prodMap.put(uname, t);
+			}
+			return t;
+		}
+		if(e instanceof Empty || e instanceof IfFlag) {
+			return eps;   // as encoded
+		}
+		if(e instanceof Failure) {
+			return fail;
+		}
+		if(e instanceof ByteChar) {
+			checkText(((ByteChar) e).isBinary());
+			boolean[] b = new boolean[Dfa.Width];
+			b[((ByteChar) e).byteChar] = true;
+			b[Dfa.EndOfInput] = b[0];
+			return set(b);
+		}
+		if(e instanceof ByteMap) {
+			checkText(((ByteMap) e).isBinary());
+			boolean[] b = new boolean[Dfa.Width];
+			System.arraycopy(((ByteMap) e).byteMap, 0, b, 0, 256);
+			b[Dfa.EndOfInput] = b[0];
+			return set(b);
+		}
+		if(e instanceof AnyChar) {
+			checkText(((AnyChar) e).isBinary());
+			boolean[] b = new boolean[Dfa.Width];
+			Arrays.fill(b, 0, 256, true);
+			return set(b);
+		}
+		if(e instanceof CharMultiByte) {
+			checkText(((CharMultiByte) e).isBinary());
+			byte[] utf8 = ((CharMultiByte) e).byteSeq;
+			Term t = eps;
+			for(int i = utf8.length - 1; i >= 0; i--) {
+				boolean[] b = new boolean[Dfa.Width];
+				b[utf8[i] & 0xff] = true;
+				t = seq(set(b), t);
+			}
+			return t;
+		}
+		if(e instanceof Sequence) {
+			Term t = eps;
+			for(int i = e.size() - 1; i >= 0; i--) {
+				t = seq(toTerm(e.get(i)), t);
+			}
+			return t;
+		}
+		if(e instanceof Choice) {
+			Term t = fail;
+			for(int i = e.size() - 1; i >= 0; i--) {
+				t = alt(toTerm(e.get(i)), t);
+			}
+			return t;
+		}
+		if(e instanceof Option) {
+			return alt(toTerm(e.get(0)), eps);
+		}
+		if(e instanceof Repetition1) {
+			Term t = toTerm(e.get(0));
+			return seq(t, star(t));
+		}
+		if(e instanceof Repetition) {
+			return star(toTerm(e.get(0)));
+		}
+		if(e instanceof And) {
+			return and(toTerm(e.get(0)), eps);
+		}
+		if(e instanceof Not) {
+			return not(toTerm(e.get(0)), eps);
+		}
+		if(e instanceof Match || e instanceof OnFlag) {
+			return toTerm(e.get(0));
+		}
+		if(!ast) {
+			if(e instanceof Link) {
+				return toTerm(e.get(0));
+			}
+			if(e instanceof New || e instanceof Capture || e instanceof Tagging || e instanceof Replace) {
+				return eps;
+			}
+		}
+		throw new DfaException("not regular: " + e.getClass().getSimpleName());
+	}
+
+	private void checkText(boolean binary) {
+		if(binary) {
+			throw new DfaException("binary");
+		}
+	}
+
+	/* derivatives */
+
+	final static int Failed = 0;
+	final static int Accepted = 1;   // without consuming the byte
+	final static int Stepped = 2;
+	final static int Rewound = 3;
+
+	final static class Derivative {
+		final int kind;
+		final Term next;
+		final int mark;          // the register of Rewound
+		final Term[] fallbacks;  // new marks: the term before the step, as if the mark were taken
+
+		Derivative(int kind, Term next, int mark, Term[] fallbacks) {
+			this.kind = kind;
+			this.next = next;
+			this.mark = mark;
+			this.fallbacks = fallbacks;
+		}
+	}
+
+	private final static Derivative FailedResult = new Derivative(Failed, null, 0, null);
+	private final static Derivative AcceptedResult = new Derivative(Accepted, null, 0, null);
+
+	private Derivative step(Term next, Term[] fallbacks) {
+		return new Derivative(Stepped, next, 0, fallbacks);
+	}
+
+	private int usedMarks;  // the registers that are live or taken in this step
+
+	private int newMark() {
+		for(int r = 1; r <= MaxMarks; r++) {
+			if((usedMarks & (1 << r)) == 0) {
+				usedMarks |= 1 << r;
+				return r;
+			}
+		}
+		throw new DfaException("too many marks");
+	}
+
+	/* shapes of the terms around a fallback */
+	final static int SeqLeft = 0;
+	final static int AltLeft = 1;
+	final static int AltRight = 2;
+	final static int GuardLeft = 3;
+	final static int GuardRight = 4;
+	final static int StarBody = 5;
+
+	private Term[] wrap(Term[] fallbacks, int shape, Term t) {
+		if(fallbacks == null) {
+			return null;
+		}
+		Term[] a = new Term[fallbacks.length];
+		for(int i = 0; i < a.length; i++) {
+			Term fb = fallbacks[i];
+			if(fb != null) {
+				switch(shape) {
+				case SeqLeft:
+					a[i] = seq(fb, t.right);
+					break;
+				case AltLeft:
+					a[i] = alt(fb, t.right);
+					break;
+				case AltRight:
+					a[i] = alt(t.left, fb);
+					break;
+				case GuardLeft:
+					a[i] = guard(t.op, fb, t.right);
+					break;
+				case GuardRight:
+					a[i] = guard(t.op, t.left, fb);
+					break;
+				case StarBody:
+					a[i] = alt(seq(fb, t), eps);
+					break;
+				}
+			}
+		}
+		return a;
+	}
+
+	private Term[] merge(Term[] a, Term[] b) {
+		if(a == null) {
+			return b;
+		}
+		if(b != null) {
+			for(int i = 0; i < a.length; i++) {
+				if(b[i] != null) {
+					a[i] = b[i];
+				}
+			}
+		}
+		return a;
+	}
+
+	private Term[] fallback(int register, Term fb) {
+		Term[] a = new Term[MaxMarks + 1];
+		a[register] = fb;
+		return a;
+	}
+
+	private Derivative derive(Term t, int c) {
+		switch(t.op) {
+		case EpsOp:
+			return AcceptedResult;
+		case FailOp:
+			return FailedResult;
+		case MarkOp:
+			return new Derivative(Rewound, null, t.mark, null);
+		case SetOp:
+			return t.set[c] ? step(eps, null) : FailedResult;
+		case SeqOp: {
+			Derivative a = derive(t.left, c);
+			if(a.kind == Accepted) {
+				return derive(t.right, c);
+			}
+			if(a.kind == Stepped) {
+				return step(seq(a.next, t.right), wrap(a.fallbacks, SeqLeft, t));
+			}
+			return a;
+		}
+		case AltOp: {
+			Derivative a = derive(t.left, c);
+			if(a.kind == Failed) {
+				return derive(t.right, c);
+			}
+			if(a.kind != Stepped) {
+				return a;
+			}
+			if(isTotal(t.left, c)) {
+				return step(a.next, wrap(a.fallbacks, AltLeft, t));
+			}
+			Derivative b = derive(t.right, c);
+			switch(b.kind) {
+			case Failed:
+				return step(a.next, wrap(a.fallbacks, AltLeft, t));
+			case Stepped:
+				return step(alt(a.next, b.next), merge(wrap(a.fallbacks, AltLeft, t), wrap(b.fallbacks, AltRight, t)));
+			case Accepted: {
+				/* b is taken from here if a fails later */
+				int r = newMark();
+				return step(alt(a.next, mark(r)), merge(wrap(a.fallbacks, AltLeft, t), fallback(r, t.right)));
+			}
+			}
+			/* b has been accepted at an earlier mark */
+			return step(alt(a.next, mark(b.mark)), wrap(a.fallbacks, AltLeft, t));
+		}
+		case StarOp: {
+			Derivative a = derive(t.left, c);
+			switch(a.kind) {
+			case Failed:
+			case Accepted:  // an empty iteration ends the loop
+				return AcceptedResult;
+			case Stepped:
+				if(a.next.total) {
+					return step(seq(a.next, t), wrap(a.fallbacks, StarBody, t));
+				}
+				int r = newMark();
+				return step(alt(seq(a.next, t), mark(r)), merge(wrap(a.fallbacks, StarBody, t), fallback(r, eps)));
+			}
+			return a;
+		}
+		case NotOp:
+		case AndOp: {
+			boolean not = t.op == NotOp;
+			Derivative a = derive(t.left, c);
+			switch(a.kind) {
+			case Failed:
+				return not ? derive(t.right, c) : FailedResult;
+			case Accepted:
+				return not ? FailedResult : derive(t.right, c);
+			case Rewound:
+				return a;
+			}
+			Derivative k = derive(t.right, c);
+			switch(k.kind) {
+			case Failed:
+				return FailedResult;
+			case Stepped:
+				return step(guard(t.op, a.next, k.next), merge(wrap(a.fallbacks, GuardLeft, t), wrap(k.fallbacks, GuardRight, t)));
+			case Accepted: {
+				/* accepted here if the predicate is settled later */
+				int r = newMark();
+				return step(guard(t.op, a.next, mark(r)), merge(wrap(a.fallbacks, GuardLeft, t), fallback(r, eps)));
+			}
+			}
+			return step(guard(t.op, a.next, mark(k.mark)), wrap(a.fallbacks, GuardLeft, t));
+		}
+		}
+		throw new DfaException("unknown term " + t.op);
+	}
+
+	/* t never fails before c, once the predicates are settled by c */
+	private boolean isTotal(Term t, int c) {
+		if(t.total) {
+			return true;
+		}
+		int used = this.usedMarks;
+		try {
+			switch(t.op) {
+			case SeqOp:
+				return t.right.total && isTotal(t.left, c);
+			case AltOp:
+				return isTotal(t.left, c) || isTotal(t.right, c);
+			case NotOp:
+				return derive(t.left, c).kind == Failed && isTotal(t.right, c);
+			case AndOp:
+				return derive(t.left, c).kind == Accepted && isTotal(t.right, c);
+			}
+			return false;
+		}
+		finally {
+			this.usedMarks = used;
+		}
+	}
+
+	/* states */
+
+	private final UList<Term[]> states = new UList<Term[]>(new Term[16][]);  // the term and its fallbacks
+	private final HashMap<String, Integer> stateMap = new HashMap<String, Integer>();
+
+	private Dfa build(String name, Term start) {
+		int[] table = new int[Dfa.Width * 16];
+		state(new Term[] { start, null, null, null, null });
+		for(int s = 0; s < states.size(); s++) {
+			Term[] st = states.ArrayValues[s];
+			int used = liveMarks(st);
+			if(table.length < (s + 1) * Dfa.Width) {
+				table = Arrays.copyOf(table, table.length * 2);
+			}
+			for(int c = 0; c < Dfa.Width; c++) {
+				this.usedMarks = used;
+				Derivative d = derive(st[0], c);
+				int entry = Dfa.entry(0, Dfa.Fail, 0);
+				switch(d.kind) {
+				case Accepted:
+					entry = Dfa.entry(0, Dfa.Accept, 0);
+					break;
+				case Rewound: {
+					Term[] next = st.clone();
+					next[0] = st[d.mark];
+					next[d.mark] = null;
+					entry = Dfa.entry(state(next), Dfa.Rewind, d.mark);
+					break;
+				}
+				case Stepped: {
+					Term[] next = st.clone();
+					next[0] = d.next;
+					merge(next, d.fallbacks);
+					int taken = liveMarks(next) & ~used;
+					int ns = state(next);
+					if(taken != 0) {
+						entry = Dfa.entry(ns, Dfa.Mark, taken >> 1);
+					}
+					else {
+						entry = Dfa.entry(ns, Dfa.Consume, 0);
+					}
+					break;
+				}
+				}
+				table[s * Dfa.Width + c] = entry;
+			}
+		}
+		Dfa dfa = new Dfa(name, Arrays.copyOf(table, states.size() * Dfa.Width));
+		states.clear(0);
+		stateMap.clear();
+		return dfa;
+	}
+
+	/* the registers that the term or a live fallback may go back to */
+	private int liveMarks(Term[] st) {
+		int live = st[0].marks;
+		for(int r = MaxMarks; r > 0; r--) {
+			if((live & (1 << r)) != 0) {
+				if(st[r] == null) {
+					throw new DfaException("no mark");
+				}
+				live |= st[r].marks;
+			}
+		}
+		return live;
+	}
+
+	private int state(Term[] st) {
+		int live = liveMarks(st);
+		StringBuilder sb = new StringBuilder();
+		sb.append(st[0].id);
+		for(int r = 1; r <= MaxMarks; r++) {
+			if((live & (1 << r)) == 0) {
+				st[r] = null;
+			}
+			sb.append(',').append(st[r] == null ? -1 : st[r].id);
+		}
+		String key = sb.toString();
+		Integer s = stateMap.get(key);
+		if(s == null) {
+			if(states.size() == MaxStateSize) {
+				throw new DfaException("too many states");
+			}
+			s = states.size();
+			stateMap.put(key, s);
+			states.add(st);
+		}
+		return s;
+	}
+
+}
@@ -0,0 +1,210 @@
+package nez.vm;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+import nez.util.UMap;
+
+/**
+ * HotPathProfiler collects the cost of each call path of productions
+ * (nez hotpath). Machine.profile() counts, for each path, the calls, the
+ * failed calls, the bytes consumed by the successful calls, and the
+ * instructions executed and the bytes matched (backtracked or not) in
+ * the production itself; the clock is read every SampleInterval instructions
+ * and the elapsed time is given to the current path. A parse counts into
+ * its own tree, which is merged at the end, so a grammar can be profiled
+ * by parallel parses.
+ */
+
+public class HotPathProfiler {
+	final static int SampleInterval = 1024;  // instructions
+
+	static class Path {
+		final Path parent;
+		final String name;
+		UList<Path> children = null;
+		long calls = 0;
+		long fails = 0;
+		long bytes = 0;        // consumed by the successful calls
+		long scanned = 0;      // matched by the instructions of this production
+		long instructions = 0; // executed in this production
+		long time = 0;         // [ns] sampled
+
+		Path(Path parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+
+		final Path child(String name) {
+			if(children == null) {
+				children = new UList<Path>(new Path[4]);
+			}
+			for(Path p : children) {
+				if(p.name.equals(name)) {
+					return p;
+				}
+			}
+			Path p = new Path(this, name);
+			children.add(p);
+			return p;
+		}
+
+		final void merge(Path p) {
+			this.calls += p.calls;
+			this.fails += p.fails;
+			this.bytes += p.bytes;
+			this.scanned += p.scanned;
+			this.instructions += p.instructions;
+			this.time += p.time;
+			if(p.children != null) {
+				for(Path c : p.children) {
+					this.child(c.name).merge(c);
+				}
+			}
+		}
+
+		final long totalScanned() {
+			long n = this.scanned;
+			if(children != null) {
+				for(Path c : children) {
+					n += c.totalScanned();
+				}
+			}
+			return n;
+		}
+
+		final long totalInstructions() {
+			long n = this.instructions;
+			if(children != null) {
+				for(Path c : children) {
+					n += c.totalInstructions();
+				}
+			}
+			return n;
+		}
+
+		final long totalTime() {
+			long n = this.time;
+			if(children != null) {
+				for(Path c : children) {
+					n += c.totalTime();
+				}
+			}
+			return n;
+		}
+
+		final boolean isRecursive() {
+			for(Path p = this.parent; p != null; p = p.parent) {
+				if(this.name.equals(p.name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final Path root = new Path(null, "");
+
+	final synchronized void merge(Path local) {
+		this.root.merge(local);
+	}
+
+	/**
+	 * Writes the instructions of each call path in the collapsed stack
+	 * format (File;Expr;Term 1234) that flame graph tools read.
+	 */
+	public final synchronized void writeCollapsedStacks(PrintWriter out) {
+		if(root.children != null) {
+			for(Path p : root.children) {
+				writeCollapsedStacks(out, p, p.name);
+			}
+		}
+		out.flush();
+	}
+
+	private void writeCollapsedStacks(PrintWriter out, Path p, String stack) {
+		if(p.instructions > 0) {
+			out.println(stack + " " + p.instructions);
+		}
+		if(p.children != null) {
+			for(Path c : p.children) {
+				writeCollapsedStacks(out, c, stack + ";" + c.name);
+			}
+		}
+	}
+
+	/* the table of productions */
+
+	static class Entry {
+		final String name;
+		long calls, fails, bytes, scanned, totalScanned, instructions, totalInstructions, time, totalTime;
+		Entry(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Returns the cost of productions summed over the call paths, in the
+	 * descending order of the instructions. The inclusive numbers count a
+	 * recursive call once.
+	 */
+	final Entry[] getEntries() {
+		UMap<Entry> map = new UMap<Entry>();
+		if(root.children != null) {
+			for(Path p : root.children) {
+				count(map, p);
+			}
+		}
+		Entry[] entries = map.values(new Entry[map.size()]).compactArray();
+		Arrays.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				return Long.compare(e2.instructions, e1.instructions);
+			}
+		});
+		return entries;
+	}
+
+	private void count(UMap<Entry> map, Path p) {
+		Entry e = map.get(p.name);
+		if(e == null) {
+			e = new Entry(p.name);
+			map.put(p.name, e);
+		}
+		e.calls += p.calls;
+		e.fails += p.fails;
+		e.scanned += p.scanned;
+		e.instructions += p.instructions;
+		e.time += p.time;
+		if(!p.isRecursive()) {
+			e.bytes += p.bytes;
+			e.totalScanned += p.totalScanned();
+			e.totalInstructions += p.totalInstructions();
+			e.totalTime += p.totalTime();
+		}
+		if(p.children != null) {
+			for(Path c : p.children) {
+				count(map, c);
+			}
+		}
+	}
+
+	public final synchronized void printTable(int limit) {
+		Entry[] entries = getEntries();
+		long total = root.totalInstructions();
+		ConsoleUtils.println("Production\tCalls\tFails\tFail%\tBytes\tScanned\tSelf.Scanned\tInst\tSelf.Inst\tSelf%\tTime[ms]\tSelf.Time[ms]");
+		for(int i = 0; i < entries.length && i < limit; i++) {
+			Entry e = entries[i];
+			ConsoleUtils.println(String.format("%s\t%d\t%d\t%.1f\t%d\t%d\t%d\t%d\t%d\t%.1f\t%.1f\t%.1f", e.name, e.calls, e.fails,
+					percent(e.fails, e.calls), e.bytes, e.totalScanned, e.scanned, e.totalInstructions, e.instructions, percent(e.instructions, total),
+					e.totalTime / 1000000.0, e.time / 1000000.0));
+		}
+	}
+
+	private static double percent(long n, long total) {
+		return total == 0 ? 0.0 : n * 100.0 / total;
+	}
+}
@@ -0,0 +1,437 @@
+package nez.vm;
+
+import java.util.HashMap;
+
+import nez.ast.CommonTree;
+import nez.util.UList;
+
+/**
+ * IncrementalMemoTable keeps every memo entry of a parse together with the
+ * end of the input that the memoized production read. After a text edit,
+ * edit() drops the entries that read the edited range and moves the
+ * entries behind it, so that the next parse reuses their results
+ * (including subtrees) instead of parsing them again.
+ *
+ * Entries are grouped into blocks of the text and keyed by the position
+ * relative to the base of their block. An edit splits the edited block,
+ * checks the entries that read across a block end, and moves the following
+ * blocks by changing their base; only the entries of the smaller part of
+ * the split block are rekeyed.
+ */
+
+public class IncrementalMemoTable extends MemoTable {
+	final static int BlockSize = 1024;
+
+	private final Context source;
+	private HashMap<Long, IncrementalMemoEntry> memoMap = new HashMap<Long, IncrementalMemoEntry>();
+	private UList<MemoBlock> blocks = new UList<MemoBlock>(new MemoBlock[16]);
+	private int blockId = 0;
+	private int cachedBlock = 0;
+	private int size = 0;
+	private CommonTree tree = null;  // the last parsed tree, moved by edit()
+	private long[] examinedStack = new long[64];  // examined of the outer memo frames
+	private int examinedTop = 0;
+
+	public IncrementalMemoTable(Context source) {
+		this.source = source;
+		this.blocks.add(new MemoBlock(blockId++, 0));
+		this.initStat();
+	}
+
+	@Override
+	public MemoTable newMemoTable(long len, int w, int n) {
+		return new IncrementalMemoTable(this.source);
+	}
+
+	@Override
+	void clear() {
+		this.memoMap.clear();
+		this.blocks.clear(0);
+		this.blocks.add(new MemoBlock(blockId++, 0));
+		this.cachedBlock = 0;
+		this.size = 0;
+		this.examinedTop = 0;
+		this.tree = null;
+		this.initStat();
+	}
+
+	public final void setTree(CommonTree tree) {
+		this.tree = tree;
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	/* blocks */
+
+	private long blockEnd(int index) {
+		return index + 1 < this.blocks.size() ? this.blocks.ArrayValues[index + 1].start : Long.MAX_VALUE;
+	}
+
+	private int blockIndex(long pos) {
+		int i = this.cachedBlock;
+		if(i < this.blocks.size() && this.blocks.ArrayValues[i].start <= pos && pos < blockEnd(i)) {
+			return i;
+		}
+		int low = 0, high = this.blocks.size() - 1;
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if(this.blocks.ArrayValues[mid].start <= pos) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		this.cachedBlock = low;
+		return low;
+	}
+
+	/* a block is appended when a parse reaches a new BlockSize range */
+	private int appendBlock(long pos) {
+		int i = blockIndex(pos);
+		MemoBlock last = this.blocks.ArrayValues[i];
+		if(i == this.blocks.size() - 1 && pos >= last.start + BlockSize) {
+			long start = pos - pos % BlockSize;
+			for(IncrementalMemoEntry m : last.entries) {
+				if(m.block == last && !m.crossing && last.base + m.examined > start) {
+					m.crossing = true;
+					last.crossings.add(m);
+				}
+			}
+			this.blocks.add(new MemoBlock(blockId++, start));
+			i = i + 1;
+			this.cachedBlock = i;
+		}
+		return i;
+	}
+
+	private static long key(MemoBlock b, long pos) {
+		return (pos - b.base) * 0x9E3779B97F4A7C15L + b.id;  // spread for Long.hashCode
+	}
+
+	private IncrementalMemoEntry find(MemoBlock b, long pos, int memoPoint) {
+		IncrementalMemoEntry m = this.memoMap.get(key(b, pos));
+		while(m != null && m.memoPoint != memoPoint) {
+			m = m.next;
+		}
+		return m;
+	}
+
+	private void put(MemoBlock b, IncrementalMemoEntry m) {
+		m.block = b;
+		m.next = this.memoMap.put(key(b, b.base + m.rel), m);
+		b.entries.add(m);
+		if(m.crossing) {
+			b.crossings.add(m);
+		}
+		this.size++;
+	}
+
+	private void remove(IncrementalMemoEntry m) {
+		long key = key(m.block, m.block.base + m.rel);
+		IncrementalMemoEntry head = this.memoMap.get(key);
+		if(head == m) {
+			if(m.next == null) {
+				this.memoMap.remove(key);
+			}
+			else {
+				this.memoMap.put(key, m.next);
+			}
+		}
+		else {
+			while(head.next != m) {
+				head = head.next;
+			}
+			head.next = m.next;
+		}
+		m.block = null;  // removed
+		this.size--;
+	}
+
+	/* lookup */
+
+	private MemoEntry hit(IncrementalMemoEntry m, long pos) {
+		if(m.result instanceof CommonTree && ((CommonTree)m.result).getSourcePosition() != pos + m.resultOffset) {
+			remove(m);  // a subtree out of the last tree, not moved by edit()
+			return miss(pos);
+		}
+		this.CountUsed += 1;
+		long examined = m.block.base + m.examined;
+		if(examined > this.source.examined) {
+			this.source.examined = examined;
+		}
+		return m;
+	}
+
+	/* a miss opens a frame that is closed by setMemo */
+	private MemoEntry miss(long pos) {
+		if(this.examinedTop == this.examinedStack.length) {
+			long[] a = new long[this.examinedStack.length * 2];
+			System.arraycopy(this.examinedStack, 0, a, 0, this.examinedStack.length);
+			this.examinedStack = a;
+		}
+		this.examinedStack[this.examinedTop++] = this.source.examined;
+		this.source.examined = pos;
+		return null;
+	}
+
+	@Override
+	MemoEntry getMemo(long pos, int memoPoint) {
+		IncrementalMemoEntry m = find(this.blocks.ArrayValues[blockIndex(pos)], pos, memoPoint);
+		return m != null ? hit(m, pos) : miss(pos);
+	}
+
+	@Override
+	MemoEntry getMemo2(long pos, int memoPoint, int stateValue) {
+		IncrementalMemoEntry m = find(this.blocks.ArrayValues[blockIndex(pos)], pos, memoPoint);
+		if(m != null) {
+			if(m.stateValue == stateValue) {
+				return hit(m, pos);
+			}
+			this.CountInvalidated += 1;
+		}
+		return miss(pos);
+	}
+
+	@Override
+	void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue) {
+		long examined = Math.max(this.source.examined, pos + consumed);
+		if(this.examinedTop > 0) {
+			long outer = this.examinedStack[--this.examinedTop];
+			this.source.examined = Math.max(outer, examined);
+		}
+		int i = appendBlock(pos);
+		MemoBlock b = this.blocks.ArrayValues[i];
+		IncrementalMemoEntry m = find(b, pos, memoPoint);
+		if(m == null) {
+			m = new IncrementalMemoEntry();
+			m.rel = pos - b.base;
+			m.memoPoint = memoPoint;
+			put(b, m);
+		}
+		m.failed = failed;
+		m.result = result;
+		m.consumed = consumed;
+		m.stateValue = stateValue;
+		m.examined = examined - b.base;
+		if(result instanceof CommonTree) {
+			m.resultOffset = ((CommonTree)result).getSourcePosition() - pos;
+		}
+		if(examined > blockEnd(i) && !m.crossing) {
+			m.crossing = true;
+			b.crossings.add(m);
+		}
+		this.CountStored += 1;
+	}
+
+	/* edit */
+
+	/**
+	 * Applies a text edit: removed bytes at offset are replaced by inserted
+	 * bytes. The entries that read the edited range or depend on a symbol
+	 * table state (numbered per parse) are dropped. The entries behind the
+	 * edit are moved, and so are the nodes of the last parsed tree; an entry
+	 * whose subtree is not in that tree is dropped when it is hit.
+	 */
+	public final void edit(long offset, int removed, int inserted) {
+		long end = offset + removed;
+		long delta = inserted - removed;
+		int k = blockIndex(offset);
+		int j = removed > 0 ? blockIndex(end - 1) : k;
+		/* entries that read across the end of an earlier block */
+		for(int i = 0; i < k; i++) {
+			MemoBlock b = this.blocks.ArrayValues[i];
+			if(b.crossings.size() > 0) {
+				compact(b.crossings, b, offset, end);
+			}
+		}
+		/* the edited blocks; k keeps the entries before the edit and j the entries behind it */
+		MemoBlock head = this.blocks.ArrayValues[k];
+		MemoBlock tail = this.blocks.ArrayValues[j];
+		for(int i = k; i <= j; i++) {
+			MemoBlock b = this.blocks.ArrayValues[i];
+			compact(b.entries, b, offset, end);
+			compact(b.crossings, b, offset, end);
+		}
+		if(k == j) {
+			UList<IncrementalMemoEntry> crossings = head.crossings;
+			UList<IncrementalMemoEntry> before = new UList<IncrementalMemoEntry>(new IncrementalMemoEntry[head.entries.size()]);
+			UList<IncrementalMemoEntry> behind = new UList<IncrementalMemoEntry>(new IncrementalMemoEntry[head.entries.size()]);
+			for(IncrementalMemoEntry m : head.entries) {
+				if(head.base + m.rel < offset) {
+					before.add(m);
+				}
+				else {
+					behind.add(m);
+				}
+			}
+			if(before.size() <= behind.size()) {
+				head = new MemoBlock(blockId++, head.start);
+				tail.entries = behind;
+				move(before, tail, head);
+			}
+			else {
+				tail = new MemoBlock(blockId++, end);
+				head.entries = before;
+				move(behind, head, tail);
+			}
+			head.crossings = select(head, crossings);
+			tail.crossings = select(tail, crossings);
+		}
+		tail.start = end;
+		UList<MemoBlock> newBlocks = new UList<MemoBlock>(new MemoBlock[this.blocks.size() + 1]);
+		for(int i = 0; i < k; i++) {
+			newBlocks.add(this.blocks.ArrayValues[i]);
+		}
+		if(head.start < offset || head.entries.size() > 0) {
+			newBlocks.add(head);
+		}
+		else {
+			tail.start = head.start;  // the edit starts at the head
+		}
+		newBlocks.add(tail);
+		for(int i = j + 1; i < this.blocks.size(); i++) {
+			newBlocks.add(this.blocks.ArrayValues[i]);
+		}
+		for(int i = newBlocks.size() - 1; i >= 0; i--) {
+			MemoBlock b = newBlocks.ArrayValues[i];
+			if(b == tail) {
+				if(b.start >= end) {
+					b.start += delta;
+				}
+				b.base += delta;
+				break;
+			}
+			b.start += delta;
+			b.base += delta;
+		}
+		this.blocks = newBlocks;
+		this.cachedBlock = 0;
+		this.examinedTop = 0;
+		if(this.blocks.size() > 4 * (this.source.length() / BlockSize) + 16) {
+			this.rebuild();
+		}
+		if(this.tree != null && delta != 0) {
+			move(this.tree, end, delta);
+		}
+	}
+
+	/* removes the entries that read the edited range or are removed */
+	private void compact(UList<IncrementalMemoEntry> list, MemoBlock b, long offset, long end) {
+		int n = 0;
+		for(int c = 0; c < list.size(); c++) {
+			IncrementalMemoEntry m = list.ArrayValues[c];
+			if(m.block != b) {
+				continue;
+			}
+			long pos = b.base + m.rel;
+			if(m.stateValue != 0 || (pos < end && (pos >= offset || b.base + m.examined > offset))) {
+				remove(m);
+				this.CountInvalidated += 1;
+				continue;
+			}
+			list.ArrayValues[n++] = m;
+		}
+		list.clear(n);
+	}
+
+	/* rekeys entries from a block to another */
+	private void move(UList<IncrementalMemoEntry> entries, MemoBlock from, MemoBlock to) {
+		for(IncrementalMemoEntry m : entries) {
+			long pos = from.base + m.rel;
+			long examined = from.base + m.examined;
+			remove(m);
+			m.rel = pos - to.base;
+			m.examined = examined - to.base;
+			m.block = to;
+			m.next = this.memoMap.put(key(to, pos), m);
+			to.entries.add(m);
+			this.size++;
+		}
+	}
+
+	private static UList<IncrementalMemoEntry> select(MemoBlock b, UList<IncrementalMemoEntry> list) {
+		UList<IncrementalMemoEntry> l = new UList<IncrementalMemoEntry>(new IncrementalMemoEntry[4]);
+		for(IncrementalMemoEntry m : list) {
+			if(m.block == b) {
+				l.add(m);
+			}
+		}
+		return l;
+	}
+
+	/* merges blocks split by edits */
+	private void rebuild() {
+		UList<MemoBlock> old = this.blocks;
+		this.memoMap = new HashMap<Long, IncrementalMemoEntry>();
+		this.blocks = new UList<MemoBlock>(new MemoBlock[16]);
+		this.blocks.add(new MemoBlock(blockId++, 0));
+		this.cachedBlock = 0;
+		this.size = 0;
+		for(MemoBlock b : old) {
+			for(IncrementalMemoEntry m : b.entries) {
+				if(m.block == b) {
+					long pos = b.base + m.rel;
+					long examined = b.base + m.examined;
+					int i = appendBlock(pos);
+					MemoBlock nb = this.blocks.ArrayValues[i];
+					m.rel = pos - nb.base;
+					m.examined = examined - nb.base;
+					m.crossing = false;
+					put(nb, m);
+				}
+			}
+		}
+		for(int i = 0; i < this.blocks.size() - 1; i++) {
+			MemoBlock b = this.blocks.ArrayValues[i];
+			long limit = blockEnd(i);
+			for(IncrementalMemoEntry m : b.entries) {
+				if(!m.crossing && b.base + m.examined > limit) {
+					m.crossing = true;
+					b.crossings.add(m);
+				}
+			}
+		}
+	}
+
+	private static void move(CommonTree node, long end, long delta) {
+		long pos = node.getSourcePosition();
+		if(pos >= end) {
+			node.shiftPosition(delta);
+		}
+		else if(pos + node.getLength() < end) {
+			return;  // before the edit
+		}
+		for(CommonTree sub : node) {
+			if(sub != null) {
+				move(sub, end, delta);
+			}
+		}
+	}
+
+}
+
+class MemoBlock {
+	final int id;
+	long start;    // the first position of the block
+	long base;     // the position that entry keys are relative to
+	UList<IncrementalMemoEntry> entries = new UList<IncrementalMemoEntry>(new IncrementalMemoEntry[64]);
+	UList<IncrementalMemoEntry> crossings = new UList<IncrementalMemoEntry>(new IncrementalMemoEntry[4]);
+	MemoBlock(int id, long base) {
+		this.id = id;
+		this.start = base;
+		this.base = base;
+	}
+}
+
+class IncrementalMemoEntry extends MemoEntry {
+	MemoBlock block;       // null if removed
+	long rel;              // the position relative to the block
+	long examined;         // the end of the input read, relative to the block
+	long resultOffset;     // the node position relative to the entry
+	boolean crossing;      // examined beyond the block end
+	int  memoPoint;
+	IncrementalMemoEntry next;
+}
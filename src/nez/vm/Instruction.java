@@ -199,6 +199,34 @@ class ICallPush extends Instruction implements StackOperation {
 	}
 }
 
+/*
+ * The entry of a production that is compiled on its first call
+ * (--option:lazy). The call sites keep jumping through the entry; the
+ * compiled code is published by a volatile field, so that a parsing
+ * thread never follows a jump to instructions that it sees half built.
+ */
+class ILazyEntry extends Instruction {
+	final NezCompiler1 compiler;
+	final CodePoint codePoint;
+	final boolean memo;
+	volatile Instruction compiled = null;
+	ILazyEntry(NezCompiler1 compiler, CodePoint codePoint, boolean memo) {
+		super(codePoint.production, null);
+		this.compiler = compiler;
+		this.codePoint = codePoint;
+		this.memo = memo;
+	}
+	@Override
+	protected String getOperand() {
+		return codePoint.production.getLocalName();
+	}
+	@Override
+	Instruction exec(Context sc) throws TerminationException {
+		Instruction compiled = this.compiled;
+		return compiled != null ? compiled : compiler.compileLazily(codePoint, memo);
+	}
+}
+
 class IRet extends Instruction implements StackOperation {
 	IRet(Production e) {
 		super(e, null);
@@ -227,47 +255,28 @@ class IMemoCall extends Instruction implements StackOperation {
 		return label(returnPoint) + "   ## " + production.getLocalName();
 	}
 	void resolveJumpAddress() {
+		resolveJumpAddress(codePoint.memoStart, codePoint.nonmemoStart);
+	}
+	void resolveJumpAddress(Instruction memoCodePoint, Instruction nonMemoCodePoint) {
 		assert(this.returnPoint == null);
 		assert(this.codePoint != null);
-		this.memoCodePoint = codePoint.memoStart;
-		this.nonMemoCodePoint = codePoint.nonmemoStart;
+		this.memoCodePoint = memoCodePoint;
+		this.nonMemoCodePoint = nonMemoCodePoint;
 		this.memoPoint = codePoint.memoPoint;
 		this.returnPoint = labeling(this.next);
 		this.next = labeling(memoCodePoint);
+		labeling(nonMemoCodePoint);
 		this.codePoint = null;
+		this.memoPoint.addCallSite(this);
 	}
 	@Override
 	Instruction exec(Context sc) throws TerminationException {
 		ContextStack top = sc.newUnusedLocalStack();
 		top.jump = this.returnPoint;
-		return this.next;
-	}
-	void deactivateMemo() {
-		this.next = nonMemoCodePoint;
-	}
-}
-
-class IMemoRet extends Instruction implements StackOperation {
-	public IMemoCall callPoint = null;
-	IMemoRet(Production p, IMemoCall callPoint) {
-		super(p, null);
-		this.callPoint = callPoint;
-	}
-	@Override
-	Instruction exec(Context sc) throws TerminationException {
-		Instruction returnPoint = sc.popLocalStack().jump;
-		if(this.callPoint != null) {
-			if(callPoint.memoPoint.checkDeactivation()) {
-				callPoint.deactivateMemo();
-				callPoint = null;
-			}
-		}
-		return returnPoint;
+		return this.next;  // nonMemoCodePoint while the memo point is deactivated
 	}
 }
 
-
-
 class IPosPush extends Instruction {
 	IPosPush(Expression e, Instruction next) {
 		super(e, next);
@@ -407,26 +416,39 @@ class IBacktrack extends Instruction {
 
 class IPredictDispatch extends Instruction {
 	Instruction[] jumpTable;
+	Instruction join = null;  // where the alternatives continue
+	final int offset;         // of the byte ahead of the position
 	IPredictDispatch(Expression e, Instruction next) {
+		this(e, next, 0);
+	}
+	IPredictDispatch(Expression e, Instruction next, int offset) {
 		super(e, next);
+		this.offset = offset;
 		jumpTable = new Instruction[257];
 		Arrays.fill(jumpTable, next);
 	}
 	void setJumpTable(int ch, Instruction inst) {
-		if(inst instanceof IPredictDispatch) {
+		if(inst instanceof IPredictDispatch && ((IPredictDispatch) inst).offset == this.offset) {
 			jumpTable[ch] = ((IPredictDispatch) inst).jumpTable[ch];
 		}
 		else {
 			jumpTable[ch] = Instruction.labeling(inst);
 		}
 	}
+	final Instruction select(Context sc) {
+		return jumpTable[sc.byteAt(sc.getPosition() + offset)];
+	}
 	@Override
 	Instruction exec(Context sc) throws TerminationException {
-		int ch = sc.byteAt(sc.getPosition());
+		int ch = sc.byteAt(sc.getPosition() + offset);
 		//sc.consume(1);
 		//System.out.println("ch="+(char)ch + " " + jumpTable[ch]);
 		return jumpTable[ch].exec(sc);
 	}
+	@Override
+	protected String getOperand() {
+		return offset > 0 ? String.valueOf(offset) : null;
+	}
 }
 
 interface Construction {
@@ -597,17 +619,17 @@ class ILookup extends IFailPush implements Memoization {
 		MemoEntry entry = sc.getMemo(memoId, state); 
 		if(entry != null) {
 			if(entry.failed) {
-				memoPoint.failHit();
+				sc.memoFailHit(memoPoint);
 				return sc.opIFailCatch();
 			}
-			memoPoint.memoHit(entry.consumed);
+			sc.memoHit(memoPoint, entry.consumed);
 			sc.consume(entry.consumed);
 			if(node) {
 				sc.setLeftObject(entry.result);
 			}
 			return this.skip;
 		}
-		memoPoint.miss();
+		sc.memoMiss(memoPoint);
 		if(node) {
 			sc.opITry(this);
 			return sc.opNodePush(this);
@@ -678,6 +700,7 @@ class IBeginSymbolScope extends IFailPush {
 	Instruction exec(Context sc) throws TerminationException {
 		sc.opITry(this);
 		ContextStack top = sc.newUnusedLocalStack();
+		top.jump = null;
 		top.pos = sc.getSymbolTable().savePoint();
 		return this.next;
 	}
@@ -693,6 +716,7 @@ class IBeginLocalScope extends IFailPush {
 	Instruction exec(Context sc) throws TerminationException {
 		sc.opITry(this);
 		ContextStack top = sc.newUnusedLocalStack();
+		top.jump = null;
 		top.pos = sc.getSymbolTable().saveHiddenPoint(tableName);
 		return this.next;
 	}
@@ -784,9 +808,7 @@ class IIsaSymbol extends Instruction {
 		ContextStack top = sc.popLocalStack();
 		byte[] captured = sc.subbyte(top.pos, sc.getPosition());
 		if(sc.getSymbolTable().contains2(this.tableName, captured)) {
-			sc.consume(captured.length);
-			return this.next;
-			
+			return this.next;  // captured is already consumed
 		}
 		return sc.opIFailCatch();
 	}
@@ -799,14 +821,15 @@ class IDefIndent extends Instruction {
 		super(e, next);
 	}
 	final long getLineStartPosition(Context sc, long fromPostion) {
+		long start = sc.getWindowStart();
 		long startIndex = fromPostion;
 		if(!(startIndex < sc.length())) {
 			startIndex = sc.length() - 1;
 		}
-		if(startIndex < 0) {
-			startIndex = 0;
+		if(startIndex < start) {
+			startIndex = start;
 		}
-		while(startIndex > 0) {
+		while(startIndex > start) {
 			int ch = sc.byteAt(startIndex);
 			if(ch == '\n') {
 				startIndex = startIndex + 1;
@@ -882,6 +905,7 @@ class INotByteMap extends Instruction {
 
 class IRepeatedByteMap extends Instruction {
 	public final boolean[] byteMap;
+	long[] stopWords = null;   // scanned a word at a time
 	IRepeatedByteMap(ByteMap e, Instruction next) {
 		super(e, next);
 		this.byteMap = e.byteMap;
@@ -891,6 +915,10 @@ class IRepeatedByteMap extends Instruction {
 		this.byteMap = ByteMap.newMap(false);
 		this.byteMap[e.byteChar] = true;
 	}
+	IRepeatedByteMap(Expression e, boolean[] byteMap, Instruction next) {
+		super(e, next);
+		this.byteMap = byteMap;
+	}
 	@Override
 	protected String getOperand() {
 		return StringUtils.stringfyCharacterClass(byteMap);
@@ -901,6 +929,26 @@ class IRepeatedByteMap extends Instruction {
 	}
 }
 
+class IDfaScan extends Instruction {
+	final Dfa dfa;
+	IDfaScan(Expression e, Dfa dfa, Instruction next) {
+		super(e, next);
+		this.dfa = dfa;
+	}
+	@Override
+	protected String getOperand() {
+		return dfa.getName() + " " + dfa.getStateSize();
+	}
+	@Override
+	Instruction exec(Context sc) throws TerminationException {
+		long end = dfa.scan(sc, sc.getPosition());
+		if(end >= 0) {
+			sc.consume((int)(end - sc.getPosition()));
+			return this.next;
+		}
+		return sc.opIFailCatch();
+	}
+}
 
 class IMultiChar extends Instruction {
 	final boolean optional;
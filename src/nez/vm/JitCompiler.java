@@ -0,0 +1,938 @@
+package nez.vm;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import nez.ast.Tag;
+import nez.main.Verbose;
+import nez.util.UList;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * JitCompiler translates the instruction graph of NezCode into JVM bytecode.
+ * Every production becomes a method of a JitParser subclass; the parsing
+ * position is kept in a local variable, and IFailPush/IFailPop are resolved
+ * statically into local variables and direct branches.
+ */
+
+public class JitCompiler implements Opcodes {
+	private final static String BaseClass = "nez/vm/JitParser";
+	private final static String SourceClass = "nez/SourceContext";
+	private final static String MethodDesc = "(Lnez/SourceContext;)Z";
+	private final static int MethodSizeLimit = 256;  // instructions
+	private final static int HugeMethodSize = 8000;  // bytes; HotSpot does not compile larger methods
+	private static int classCount = 0;
+
+	public final static JitParser compile(NezCode code) {
+		long t = System.nanoTime();
+		try {
+			JitCompiler c = new JitCompiler(code);
+			JitParser p = c.generate();
+			Verbose.printElapsedTime("JitCompilingTime", t, System.nanoTime());
+			return p;
+		}
+		catch(RuntimeException e) {
+			Verbose.println("jit: fallback to the interpreter; " + e.getMessage());
+		}
+		return null;
+	}
+
+	@SuppressWarnings("serial")
+	static class JitException extends RuntimeException {
+		JitException(String msg) {
+			super(msg);
+		}
+	}
+
+	private final NezCode code;
+	private final String className;
+	private ClassWriter cw;
+	private IdentityHashMap<Instruction, String> methodMap = new IdentityHashMap<Instruction, String>();
+	private IdentityHashMap<MemoPoint, String> memoMap = new IdentityHashMap<MemoPoint, String>();
+	private ArrayDeque<Instruction> methodQueue = new ArrayDeque<Instruction>();
+	private int methodCount = 0;
+
+	private UList<boolean[]> byteMapPool = new UList<boolean[]>(new boolean[16][]);
+	private UList<byte[]> textPool = new UList<byte[]>(new byte[16][]);
+	private UList<Tag> tagPool = new UList<Tag>(new Tag[16]);
+	private UList<MemoPoint> memoPool = new UList<MemoPoint>(new MemoPoint[16]);
+	private UList<Instruction> codePool = new UList<Instruction>(new Instruction[4]);
+
+	JitCompiler(NezCode code) {
+		this.code = code;
+		classCount++;
+		this.className = "nez/vm/JitParser" + classCount;
+	}
+
+	JitParser generate() {
+		cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, BaseClass, null);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, BaseClass, "<init>", "()V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		String start = methodName(code.getStartPoint());
+		mv = cw.visitMethod(ACC_PUBLIC, "parse", MethodDesc, null, null);
+		mv.visitCode();
+		Label failed = new Label();
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKESTATIC, BaseClass, "getPosition", "(Lnez/vm/Context;)J");
+		mv.visitVarInsn(LSTORE, 2);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKEVIRTUAL, className, start, MethodDesc);
+		mv.visitJumpInsn(IFEQ, failed);
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IRETURN);
+		mv.visitLabel(failed);  // back to the start, as the interpreter does
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(LLOAD, 2);
+		mv.visitMethodInsn(INVOKESTATIC, BaseClass, "setPosition", "(Lnez/vm/Context;J)V");
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		while(!methodQueue.isEmpty()) {
+			Instruction inst = methodQueue.poll();
+			compileMethod(methodMap.get(inst), inst);
+		}
+		cw.visitEnd();
+		byte[] b = cw.toByteArray();
+		try {
+			Class<?> c = new JitClassLoader().define(className.replace('/', '.'), b);
+			JitParser p = (JitParser)c.newInstance();
+			p.byteMaps = byteMapPool.compactArray();
+			p.texts = textPool.compactArray();
+			p.tags = tagPool.compactArray();
+			p.memoPoints = memoPool.compactArray();
+			p.codes = codePool.compactArray();
+			return p;
+		}
+		catch(InstantiationException e) {
+			throw new JitException(e.toString());
+		}
+		catch(IllegalAccessException e) {
+			throw new JitException(e.toString());
+		}
+	}
+
+	static class JitClassLoader extends ClassLoader {
+		JitClassLoader() {
+			super(JitParser.class.getClassLoader());
+		}
+		Class<?> define(String name, byte[] b) {
+			return this.defineClass(name, b, 0, b.length);
+		}
+	}
+
+	private String methodName(Instruction start) {
+		String name = methodMap.get(start);
+		if(name == null) {
+			name = "p" + (methodCount++);
+			methodMap.put(start, name);
+			methodQueue.add(start);
+		}
+		return name;
+	}
+
+	private void compileMethod(String name, Instruction start) {
+		int size = MethodSizeLimit;
+		MethodCompiler mc = new MethodCompiler(name, size);
+		MethodNode node = mc.compile(start);
+		while(isHuge(node) && size > 16) {
+			/* split more often, so that the JVM compiles it */
+			size = size / 2;
+			MethodCompiler mc2 = new MethodCompiler(name, size);
+			MethodNode node2 = mc2.compile(start);
+			if(!isHuge(node2)) {
+				mc = mc2;
+				node = node2;
+			}
+		}
+		if(fitsMethod(node)) {
+			mc.register();
+			node.accept(cw);
+		}
+		else {
+			compileInterpreterCall(name, start);
+		}
+	}
+
+	private static <T> int poolIndex(UList<T> pool, T value) {
+		for(int i = 0; i < pool.size(); i++) {
+			if(pool.ArrayValues[i] == value) {
+				return i;
+			}
+		}
+		pool.add(value);
+		return pool.size() - 1;
+	}
+
+	private void compileMemoMethod(String name, String inner, int memoIndex) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, name, MethodDesc, null, null);
+		mv.visitCode();
+		Label miss = new Label();
+		Label failed = new Label();
+		loadPool(mv, "memoPoints", "[Lnez/vm/MemoPoint;", memoIndex);
+		mv.visitVarInsn(ASTORE, 4);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ALOAD, 4);
+		mv.visitMethodInsn(INVOKESTATIC, BaseClass, "lookup", "(Lnez/vm/Context;Lnez/vm/MemoPoint;)I");
+		mv.visitInsn(DUP);
+		mv.visitJumpInsn(IFLT, miss);
+		mv.visitInsn(IRETURN);
+		mv.visitLabel(miss);
+		mv.visitInsn(POP);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKESTATIC, BaseClass, "getPosition", "(Lnez/vm/Context;)J");
+		mv.visitVarInsn(LSTORE, 2);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKEVIRTUAL, className, inner, MethodDesc);
+		mv.visitJumpInsn(IFEQ, failed);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ALOAD, 4);
+		mv.visitVarInsn(LLOAD, 2);
+		mv.visitMethodInsn(INVOKESTATIC, BaseClass, "memoize", "(Lnez/vm/Context;Lnez/vm/MemoPoint;J)V");
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IRETURN);
+		mv.visitLabel(failed);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ALOAD, 4);
+		mv.visitVarInsn(LLOAD, 2);
+		mv.visitMethodInsn(INVOKESTATIC, BaseClass, "memoizeFail", "(Lnez/vm/Context;Lnez/vm/MemoPoint;J)V");
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private boolean fitsMethod(MethodNode node) {
+		ClassWriter w = new ClassWriter(0);
+		w.visit(V1_6, ACC_PUBLIC, className, null, BaseClass, null);
+		node.accept(w);
+		try {
+			w.toByteArray();
+			return true;
+		}
+		catch(RuntimeException e) {
+			return false;  // Method code too large
+		}
+	}
+
+	private static boolean isHuge(MethodNode node) {
+		CodeSizeEvaluator size = new CodeSizeEvaluator(null);
+		node.accept(size);
+		return size.getMaxSize() > HugeMethodSize;
+	}
+
+	private void compileInterpreterCall(String name, Instruction start) {
+		if(Verbose.VirtualMachine) {
+			Verbose.println("jit: interpreting " + start.getExpression());
+		}
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, name, MethodDesc, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 1);
+		loadPool(mv, "codes", "[Lnez/vm/Instruction;", poolIndex(codePool, start));
+		mv.visitMethodInsn(INVOKESTATIC, BaseClass, "interpret", "(Lnez/vm/Context;Lnez/vm/Instruction;)Z");
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private void loadPool(MethodVisitor mv, String field, String desc, int index) {
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, BaseClass, field, desc);
+		pushInt(mv, index);
+		mv.visitInsn(AALOAD);
+	}
+
+	private static void pushInt(MethodVisitor mv, int n) {
+		if(n >= -1 && n <= 5) {
+			mv.visitInsn(ICONST_0 + n);
+		}
+		else if(n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, n);
+		}
+		else if(n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, n);
+		}
+		else {
+			mv.visitLdcInsn(n);
+		}
+	}
+
+	/* static stack of a compiled method */
+
+	final static int FailFrame  = 0;
+	final static int PosFrame   = 1;
+	final static int NodeFrame  = 2;
+	final static int ScopeFrame = 3;
+
+	static class Frame {
+		final int kind;
+		final Frame prev;
+		int slot;         // saved position, node log, or symbol save point
+		int logSlot;      // FailFrame only
+		Instruction failjump;
+		Label handler;
+		Frame(int kind, Frame prev) {
+			this.kind = kind;
+			this.prev = prev;
+		}
+	}
+
+	static class Visit {
+		final Label label;
+		final Frame stack;
+		Visit(Label label, Frame stack) {
+			this.label = label;
+			this.stack = stack;
+		}
+	}
+
+	static class Pending {
+		final Label label;
+		final Instruction inst;
+		final Frame stack;
+		final Frame handler;
+		Pending(Label label, Instruction inst, Frame stack, Frame handler) {
+			this.label = label;
+			this.inst = inst;
+			this.stack = stack;
+			this.handler = handler;
+		}
+	}
+
+	class MethodCompiler {
+		final static int Self = 0;
+		final static int Source = 1;
+		final static int Pos = 2;
+		final String name;
+		final int splitSize;  // instructions before the rest is split off
+		MethodVisitor mv;
+		int localSize = 4;
+		Label returnFalse = new Label();
+		IdentityHashMap<Instruction, Visit> visitMap = new IdentityHashMap<Instruction, Visit>();
+		HashMap<Instruction, Integer> scopeMap = new HashMap<Instruction, Integer>();
+		ArrayDeque<Pending> pendingQueue = new ArrayDeque<Pending>();
+
+		/* the methods that this method calls; registered if it is kept */
+		IdentityHashMap<Instruction, String> newMethods = new IdentityHashMap<Instruction, String>();
+		IdentityHashMap<MemoPoint, Instruction> newMemos = new IdentityHashMap<MemoPoint, Instruction>();
+
+		MethodCompiler(String name, int splitSize) {
+			this.name = name;
+			this.splitSize = splitSize;
+		}
+
+		String methodName(Instruction start) {
+			String name = methodMap.get(start);
+			if(name == null) {
+				name = newMethods.get(start);
+				if(name == null) {
+					name = "p" + (methodCount++);
+					newMethods.put(start, name);
+				}
+			}
+			return name;
+		}
+
+		String memoMethodName(MemoPoint mp, Instruction start) {
+			if(!memoMap.containsKey(mp)) {
+				methodName(start);
+				newMemos.put(mp, start);
+			}
+			return "m" + poolIndex(memoPool, mp);
+		}
+
+		void register() {
+			for(Instruction start : newMethods.keySet()) {
+				methodMap.put(start, newMethods.get(start));
+				methodQueue.add(start);
+			}
+			for(MemoPoint mp : newMemos.keySet()) {
+				int index = poolIndex(memoPool, mp);
+				memoMap.put(mp, "m" + index);
+				compileMemoMethod("m" + index, methodMap.get(newMemos.get(mp)), index);
+			}
+		}
+
+		MethodNode compile(Instruction start) {
+			MethodNode node = new MethodNode(ACC_PUBLIC | ACC_FINAL, name, MethodDesc, null, null);
+			mv = node;
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, Source);
+			mv.visitMethodInsn(INVOKESTATIC, BaseClass, "getPosition", "(Lnez/vm/Context;)J");
+			mv.visitVarInsn(LSTORE, Pos);
+			emit(start, null);
+			while(!pendingQueue.isEmpty()) {
+				Pending p = pendingQueue.poll();
+				mv.visitLabel(p.label);
+				if(p.handler != null) {
+					emitHandler(p.handler);
+				}
+				emit(p.inst, p.stack);
+			}
+			mv.visitLabel(returnFalse);
+			syncPosition();
+			mv.visitInsn(ICONST_0);
+			mv.visitInsn(IRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			return node;
+		}
+
+		int newLocal(int size) {
+			int n = localSize;
+			localSize += size;
+			return n;
+		}
+
+		Label branch(Instruction inst, Frame stack) {
+			if(isFail(inst)) {
+				return failLabel(stack);
+			}
+			Visit v = visitMap.get(inst);
+			if(v != null) {
+				checkStack(inst, v, stack);
+				return v.label;
+			}
+			Label l = new Label();
+			pendingQueue.add(new Pending(l, inst, stack, null));
+			return l;
+		}
+
+		void checkStack(Instruction inst, Visit v, Frame stack) {
+			if(v.stack != stack) {
+				throw new JitException("unbalanced stack at " + inst);
+			}
+		}
+
+		Frame innerFail(Frame stack) {
+			while(stack != null) {
+				if(stack.kind == FailFrame) {
+					return stack;
+				}
+				stack = stack.prev;
+			}
+			return null;
+		}
+
+		Label failLabel(Frame stack) {
+			Frame f = innerFail(stack);
+			return f == null ? returnFalse : f.handler;
+		}
+
+		Frame pushFail(Frame stack, Instruction failjump) {
+			Frame f = new Frame(FailFrame, stack);
+			f.slot = newLocal(2);
+			f.logSlot = newLocal(1);
+			f.failjump = failjump;
+			f.handler = new Label();
+			mv.visitVarInsn(LLOAD, Pos);
+			mv.visitVarInsn(LSTORE, f.slot);
+			mv.visitVarInsn(ALOAD, Source);
+			mv.visitMethodInsn(INVOKESTATIC, BaseClass, "lastLog", "(Lnez/vm/Context;)Ljava/lang/Object;");
+			mv.visitVarInsn(ASTORE, f.logSlot);
+			pendingQueue.add(new Pending(f.handler, failjump, stack, f));
+			return f;
+		}
+
+		Frame popFail(Frame stack, Instruction inst) {
+			Frame f = innerFail(stack);
+			if(f == null) {
+				throw new JitException("no fail frame at " + inst);
+			}
+			return f.prev;
+		}
+
+		Frame pop(Frame stack, int kind, Instruction inst) {
+			if(stack == null || stack.kind != kind) {
+				throw new JitException("unexpected stack at " + inst);
+			}
+			return stack;
+		}
+
+		void emitHandler(Frame f) {
+			mv.visitVarInsn(ALOAD, Source);
+			mv.visitVarInsn(LLOAD, Pos);
+			mv.visitMethodInsn(INVOKESTATIC, BaseClass, "rollback", "(Lnez/vm/Context;J)V");
+			mv.visitVarInsn(LLOAD, f.slot);
+			mv.visitVarInsn(LSTORE, Pos);
+			mv.visitVarInsn(ALOAD, Source);
+			mv.visitVarInsn(ALOAD, f.logSlot);
+			mv.visitMethodInsn(INVOKESTATIC, BaseClass, "abortLog", "(Lnez/vm/Context;Ljava/lang/Object;)V");
+		}
+
+		void syncPosition() {
+			mv.visitVarInsn(ALOAD, Source);
+			mv.visitVarInsn(LLOAD, Pos);
+			mv.visitMethodInsn(INVOKESTATIC, BaseClass, "setPosition", "(Lnez/vm/Context;J)V");
+		}
+
+		void reloadPosition() {
+			mv.visitVarInsn(ALOAD, Source);
+			mv.visitMethodInsn(INVOKESTATIC, BaseClass, "getPosition", "(Lnez/vm/Context;)J");
+			mv.visitVarInsn(LSTORE, Pos);
+		}
+
+		void consume(int len) {
+			mv.visitVarInsn(LLOAD, Pos);
+			if(len == 1) {
+				mv.visitInsn(LCONST_1);
+			}
+			else {
+				mv.visitLdcInsn((long)len);
+			}
+			mv.visitInsn(LADD);
+			mv.visitVarInsn(LSTORE, Pos);
+		}
+
+		void consumeInt() {  // int on the operand stack
+			mv.visitInsn(I2L);
+			mv.visitVarInsn(LLOAD, Pos);
+			mv.visitInsn(LADD);
+			mv.visitVarInsn(LSTORE, Pos);
+		}
+
+		void loadByte() {
+			loadByte(0);
+		}
+
+		void loadByte(int offset) {
+			mv.visitVarInsn(ALOAD, Source);
+			mv.visitVarInsn(LLOAD, Pos);
+			if(offset > 0) {
+				mv.visitLdcInsn((long)offset);
+				mv.visitInsn(LADD);
+			}
+			mv.visitMethodInsn(INVOKEVIRTUAL, SourceClass, "byteAt", "(J)I");
+		}
+
+		void loadByteMap(boolean[] byteMap) {
+			loadPool(mv, "byteMaps", "[[Z", poolIndex(byteMapPool, byteMap));
+		}
+
+		void loadTag(Tag tag) {
+			loadPool(mv, "tags", "[Lnez/ast/Tag;", poolIndex(tagPool, tag));
+		}
+
+		void callHelper(String name, String desc) {
+			mv.visitMethodInsn(INVOKESTATIC, BaseClass, name, desc);
+		}
+
+		boolean isFail(Instruction inst) {
+			return inst instanceof IFail && !(inst instanceof IMemoizeFail);
+		}
+
+		void emit(Instruction inst, Frame stack) {
+			while(inst != null) {
+				if(isFail(inst)) {
+					/* IFail is shared (commonFailure), and is stack-dependent */
+					mv.visitJumpInsn(GOTO, failLabel(stack));
+					return;
+				}
+				Visit v = visitMap.get(inst);
+				if(v != null) {
+					checkStack(inst, v, stack);
+					mv.visitJumpInsn(GOTO, v.label);
+					return;
+				}
+				if(stack == null && visitMap.size() > splitSize && !(inst instanceof IRet)) {
+					/* no frame is open, so the rest is compiled as another method */
+					syncPosition();
+					mv.visitVarInsn(ALOAD, Self);
+					mv.visitVarInsn(ALOAD, Source);
+					mv.visitMethodInsn(INVOKEVIRTUAL, className, methodName(inst), MethodDesc);
+					mv.visitInsn(IRETURN);
+					return;
+				}
+				Label l = new Label();
+				mv.visitLabel(l);
+				visitMap.put(inst, new Visit(l, stack));
+				Frame next = emitInstruction(inst, stack);
+				if(next == Terminated) {
+					return;
+				}
+				stack = next;
+				inst = nextInstruction(inst);
+			}
+			throw new JitException("unterminated code in " + name);
+		}
+
+		Instruction nextInstruction(Instruction inst) {
+			if(inst instanceof ICallPush) {
+				return ((ICallPush) inst).jump;
+			}
+			if(inst instanceof IMemoCall) {
+				return ((IMemoCall) inst).returnPoint;
+			}
+			return inst.next;
+		}
+
+		Frame emitInstruction(Instruction inst, Frame stack) {
+			if(inst instanceof ILookup || inst instanceof IMemoize || inst instanceof IMemoizeFail || inst instanceof IExit) {
+				throw new JitException("unsupported instruction " + inst);
+			}
+			if(inst instanceof IBeginSymbolScope || inst instanceof IBeginLocalScope) {
+				Frame f = pushFail(stack, ((IFailPush) inst).failjump);
+				Frame s = new Frame(ScopeFrame, f);
+				s.slot = newLocal(1);
+				mv.visitVarInsn(ALOAD, Source);
+				if(inst instanceof IBeginLocalScope) {
+					loadTag(((IBeginLocalScope) inst).tableName);
+					callHelper("saveHiddenPoint", "(Lnez/vm/Context;Lnez/ast/Tag;)I");
+				}
+				else {
+					callHelper("savePoint", "(Lnez/vm/Context;)I");
+				}
+				mv.visitVarInsn(ISTORE, s.slot);
+				scopeMap.put(((IFailPush) inst).failjump, s.slot);
+				return s;
+			}
+			if(inst instanceof IFailPush) {
+				return pushFail(stack, ((IFailPush) inst).failjump);
+			}
+			if(inst instanceof IFailPop) {
+				return popFail(stack, inst);
+			}
+			if(inst instanceof IFailSkip) {
+				Frame f = innerFail(stack);
+				if(f == null) {
+					throw new JitException("no fail frame at " + inst);
+				}
+				if(inst instanceof IFailCheckSkip) {
+					mv.visitVarInsn(LLOAD, Pos);
+					mv.visitVarInsn(LLOAD, f.slot);
+					mv.visitInsn(LCMP);
+					mv.visitJumpInsn(IFEQ, f.handler);
+				}
+				mv.visitVarInsn(LLOAD, Pos);
+				mv.visitVarInsn(LSTORE, f.slot);
+				mv.visitVarInsn(ALOAD, Source);
+				callHelper("lastLog", "(Lnez/vm/Context;)Ljava/lang/Object;");
+				mv.visitVarInsn(ASTORE, f.logSlot);
+				return stack;
+			}
+			if(inst instanceof ICallPush) {
+				syncPosition();
+				mv.visitVarInsn(ALOAD, Self);
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitMethodInsn(INVOKEVIRTUAL, className, methodName(inst.next), MethodDesc);
+				reloadPosition();
+				mv.visitJumpInsn(IFEQ, failLabel(stack));
+				return stack;
+			}
+			if(inst instanceof IMemoCall) {
+				IMemoCall call = (IMemoCall) inst;
+				syncPosition();
+				mv.visitVarInsn(ALOAD, Self);
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitMethodInsn(INVOKEVIRTUAL, className, memoMethodName(call.memoPoint, call.nonMemoCodePoint), MethodDesc);
+				reloadPosition();
+				mv.visitJumpInsn(IFEQ, failLabel(stack));
+				return stack;
+			}
+			if(inst instanceof IRet) {
+				if(stack != null) {
+					throw new JitException("unbalanced stack at " + inst);
+				}
+				syncPosition();
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(IRETURN);
+				return Terminated;
+			}
+			if(inst instanceof IPosPush) {
+				Frame f = new Frame(PosFrame, stack);
+				f.slot = newLocal(2);
+				mv.visitVarInsn(LLOAD, Pos);
+				mv.visitVarInsn(LSTORE, f.slot);
+				return f;
+			}
+			if(inst instanceof IPosBack) {
+				Frame f = pop(stack, PosFrame, inst);
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("rollback", "(Lnez/vm/Context;J)V");
+				mv.visitVarInsn(LLOAD, f.slot);
+				mv.visitVarInsn(LSTORE, Pos);
+				return f.prev;
+			}
+			if(inst instanceof IAnyChar || inst instanceof INotAnyChar) {
+				mv.visitVarInsn(LLOAD, Pos);
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitMethodInsn(INVOKEVIRTUAL, SourceClass, "length", "()J");
+				mv.visitInsn(LCMP);
+				if(inst instanceof IAnyChar) {
+					mv.visitJumpInsn(IFEQ, failLabel(stack));
+					consume(1);
+				}
+				else {
+					mv.visitJumpInsn(IFNE, failLabel(stack));
+				}
+				return stack;
+			}
+			if(inst instanceof IByteChar) {
+				loadByte();
+				pushInt(mv, ((IByteChar) inst).byteChar);
+				if(inst instanceof IOptionByteChar) {
+					Label skip = new Label();
+					mv.visitJumpInsn(IF_ICMPNE, skip);
+					consume(1);
+					mv.visitLabel(skip);
+				}
+				else {
+					mv.visitJumpInsn(IF_ICMPNE, failLabel(stack));
+					consume(1);
+				}
+				return stack;
+			}
+			if(inst instanceof IByteMap) {
+				loadByteMap(((IByteMap) inst).byteMap);
+				loadByte();
+				mv.visitInsn(BALOAD);
+				if(inst instanceof IOptionByteMap) {
+					Label skip = new Label();
+					mv.visitJumpInsn(IFEQ, skip);
+					consume(1);
+					mv.visitLabel(skip);
+				}
+				else {
+					mv.visitJumpInsn(IFEQ, failLabel(stack));
+					consume(1);
+				}
+				return stack;
+			}
+			if(inst instanceof INotByteMap) {
+				loadByteMap(((INotByteMap) inst).byteMap);
+				loadByte();
+				mv.visitInsn(BALOAD);
+				mv.visitJumpInsn(IFNE, failLabel(stack));
+				return stack;
+			}
+			if(inst instanceof IRepeatedByteMap && ((IRepeatedByteMap) inst).stopWords != null) {
+				mv.visitVarInsn(ALOAD, Source);
+				loadPool(mv, "codes", "[Lnez/vm/Instruction;", poolIndex(codePool, inst));
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("skipByteMap", "(Lnez/vm/Context;Lnez/vm/Instruction;J)J");
+				mv.visitVarInsn(LSTORE, Pos);
+				return stack;
+			}
+			if(inst instanceof IRepeatedByteMap) {
+				int map = newLocal(1);
+				loadByteMap(((IRepeatedByteMap) inst).byteMap);
+				mv.visitVarInsn(ASTORE, map);
+				Label loop = new Label();
+				Label end = new Label();
+				mv.visitLabel(loop);
+				mv.visitVarInsn(ALOAD, map);
+				loadByte();
+				mv.visitInsn(BALOAD);
+				mv.visitJumpInsn(IFEQ, end);
+				consume(1);
+				mv.visitJumpInsn(GOTO, loop);
+				mv.visitLabel(end);
+				return stack;
+			}
+			if(inst instanceof IDfaScan) {
+				mv.visitVarInsn(ALOAD, Source);
+				loadPool(mv, "codes", "[Lnez/vm/Instruction;", poolIndex(codePool, inst));
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("dfaScan", "(Lnez/vm/Context;Lnez/vm/Instruction;J)I");
+				emitConsumeOrFail(stack);
+				return stack;
+			}
+			if(inst instanceof IMultiChar) {
+				IMultiChar op = (IMultiChar) inst;
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(LLOAD, Pos);
+				loadPool(mv, "texts", "[[B", poolIndex(textPool, op.utf8));
+				mv.visitMethodInsn(INVOKEVIRTUAL, SourceClass, "match", "(J[B)Z");
+				if(inst instanceof INotMultiChar) {
+					mv.visitJumpInsn(IFNE, failLabel(stack));
+				}
+				else if(op.optional) {
+					Label skip = new Label();
+					mv.visitJumpInsn(IFEQ, skip);
+					consume(op.len);
+					mv.visitLabel(skip);
+				}
+				else {
+					mv.visitJumpInsn(IFEQ, failLabel(stack));
+					consume(op.len);
+				}
+				return stack;
+			}
+			if(inst instanceof IConsume) {
+				consume(1);
+				return stack;
+			}
+			if(inst instanceof IBacktrack) {
+				consume(-1);
+				return stack;
+			}
+			if(inst instanceof IPredictDispatch) {
+				Instruction[] jumpTable = ((IPredictDispatch) inst).jumpTable;
+				Label[] labels = new Label[jumpTable.length];
+				IdentityHashMap<Instruction, Label> m = new IdentityHashMap<Instruction, Label>();
+				for(int ch = 0; ch < jumpTable.length; ch++) {
+					Label l = m.get(jumpTable[ch]);
+					if(l == null) {
+						l = branch(jumpTable[ch], stack);
+						m.put(jumpTable[ch], l);
+					}
+					labels[ch] = l;
+				}
+				loadByte(((IPredictDispatch) inst).offset);
+				mv.visitTableSwitchInsn(0, labels.length - 1, labels[0], labels);
+				return Terminated;
+			}
+			/* AST construction */
+			if(inst instanceof INodePush) {
+				Frame f = new Frame(NodeFrame, stack);
+				f.slot = newLocal(1);
+				mv.visitVarInsn(ALOAD, Source);
+				callHelper("nodePush", "(Lnez/vm/Context;)Ljava/lang/Object;");
+				mv.visitVarInsn(ASTORE, f.slot);
+				return f;
+			}
+			if(inst instanceof INodeStore) {
+				Frame f = pop(stack, NodeFrame, inst);
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(ALOAD, f.slot);
+				pushInt(mv, ((INodeStore) inst).index);
+				callHelper("nodeStore", "(Lnez/vm/Context;Ljava/lang/Object;I)V");
+				return f.prev;
+			}
+			if(inst instanceof ICommit) {
+				Frame f = pop(stack, NodeFrame, inst);
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(ALOAD, f.slot);
+				callHelper("commit", "(Lnez/vm/Context;Ljava/lang/Object;)V");
+				return f.prev;
+			}
+			if(inst instanceof ILink) {
+				mv.visitVarInsn(ALOAD, Source);
+				pushInt(mv, ((ILink) inst).index);
+				callHelper("link", "(Lnez/vm/Context;I)V");
+				return stack;
+			}
+			if(inst instanceof INew || inst instanceof ILeftNew || inst instanceof ICapture) {
+				int shift = (inst instanceof INew) ? ((INew) inst).shift : (inst instanceof ILeftNew) ? ((ILeftNew) inst).shift : 0;
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(LLOAD, Pos);
+				if(shift != 0) {
+					mv.visitLdcInsn((long)shift);
+					mv.visitInsn(LADD);
+				}
+				String helper = (inst instanceof INew) ? "newNode" : (inst instanceof ILeftNew) ? "leftNewNode" : "capture";
+				callHelper(helper, "(Lnez/vm/Context;J)V");
+				return stack;
+			}
+			if(inst instanceof ITag) {
+				mv.visitVarInsn(ALOAD, Source);
+				loadTag(((ITag) inst).tag);
+				callHelper("tag", "(Lnez/vm/Context;Lnez/ast/Tag;)V");
+				return stack;
+			}
+			if(inst instanceof IReplace) {
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitLdcInsn(((IReplace) inst).value);
+				callHelper("replace", "(Lnez/vm/Context;Ljava/lang/String;)V");
+				return stack;
+			}
+			/* symbol table */
+			if(inst instanceof IEndSymbolScope) {
+				if(((IEndSymbolScope) inst).fail) {
+					Integer slot = scopeMap.get(inst);
+					if(slot == null) {
+						throw new JitException("unresolved scope at " + inst);
+					}
+					mv.visitVarInsn(ALOAD, Source);
+					mv.visitVarInsn(ILOAD, slot);
+					callHelper("rollBack", "(Lnez/vm/Context;I)V");
+					mv.visitJumpInsn(GOTO, failLabel(stack));
+					return Terminated;
+				}
+				Frame s = pop(stack, ScopeFrame, inst);
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(ILOAD, s.slot);
+				callHelper("rollBack", "(Lnez/vm/Context;I)V");
+				return popFail(s.prev, inst);
+			}
+			if(inst instanceof IDefSymbol) {
+				Frame f = pop(stack, PosFrame, inst);
+				mv.visitVarInsn(ALOAD, Source);
+				loadTag(((IDefSymbol) inst).tableName);
+				mv.visitVarInsn(LLOAD, f.slot);
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("defSymbol", "(Lnez/vm/Context;Lnez/ast/Tag;JJ)V");
+				return f.prev;
+			}
+			if(inst instanceof IExistsSymbol) {
+				mv.visitVarInsn(ALOAD, Source);
+				loadTag(((IExistsSymbol) inst).tableName);
+				callHelper("existsSymbol", "(Lnez/vm/Context;Lnez/ast/Tag;)Z");
+				mv.visitJumpInsn(IFEQ, failLabel(stack));
+				return stack;
+			}
+			if(inst instanceof IIsSymbol) {
+				mv.visitVarInsn(ALOAD, Source);
+				loadTag(((IIsSymbol) inst).tableName);
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("isSymbol", "(Lnez/vm/Context;Lnez/ast/Tag;J)I");
+				emitConsumeOrFail(stack);
+				return stack;
+			}
+			if(inst instanceof IIsaSymbol) {
+				Frame f = pop(stack, PosFrame, inst);
+				mv.visitVarInsn(ALOAD, Source);
+				loadTag(((IIsaSymbol) inst).tableName);
+				mv.visitVarInsn(LLOAD, f.slot);
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("isaSymbol", "(Lnez/vm/Context;Lnez/ast/Tag;JJ)I");
+				emitConsumeOrFail(f.prev);
+				return f.prev;
+			}
+			if(inst instanceof IDefIndent) {
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("defIndent", "(Lnez/vm/Context;J)V");
+				return stack;
+			}
+			if(inst instanceof IIsIndent) {
+				mv.visitVarInsn(ALOAD, Source);
+				mv.visitVarInsn(LLOAD, Pos);
+				callHelper("isIndent", "(Lnez/vm/Context;J)I");
+				emitConsumeOrFail(stack);
+				return stack;
+			}
+			throw new JitException("unsupported instruction " + inst);
+		}
+
+		void emitConsumeOrFail(Frame stack) {
+			int len = newLocal(1);
+			mv.visitVarInsn(ISTORE, len);
+			mv.visitVarInsn(ILOAD, len);
+			mv.visitJumpInsn(IFLT, failLabel(stack));
+			mv.visitVarInsn(ILOAD, len);
+			consumeInt();
+		}
+	}
+
+	private final static Frame Terminated = new Frame(-1, null);
+
+}
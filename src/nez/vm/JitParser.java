@@ -0,0 +1,228 @@
+package nez.vm;
+
+import nez.SourceContext;
+import nez.ast.Tag;
+import nez.lang.NezTag;
+
+/**
+ * JitParser is the base class of parsers generated by JitCompiler.
+ * Each production is compiled into a method of a subclass; the static
+ * methods below are the entry points into Context that generated code uses.
+ */
+
+public abstract class JitParser {
+	protected boolean[][] byteMaps;
+	protected byte[][]    texts;
+	protected Tag[]       tags;
+	protected MemoPoint[] memoPoints;
+	protected Instruction[] codes;
+
+	public abstract boolean parse(SourceContext sc);
+
+	/* position */
+
+	protected final static long getPosition(Context sc) {
+		return sc.pos;
+	}
+
+	protected final static void setPosition(Context sc, long pos) {
+		sc.pos = pos;
+	}
+
+	protected final static void rollback(Context sc, long pos) {
+		if(sc.head_pos < pos) {
+			sc.head_pos = pos;
+		}
+	}
+
+	protected final static Object lastLog(Context sc) {
+		return sc.getLastLog();
+	}
+
+	protected final static void abortLog(Context sc, Object checkPoint) {
+		sc.abortLog((ASTLog)checkPoint);
+	}
+
+	/* AST construction */
+
+	protected final static Object nodePush(Context sc) {
+		sc.setLeftObject(null);
+		return sc.getLastLog();
+	}
+
+	protected final static void nodeStore(Context sc, Object top, int index) {
+		sc.storeNode((ASTLog)top, index);
+	}
+
+	protected final static void commit(Context sc, Object top) {
+		sc.commitNode((ASTLog)top);
+	}
+
+	protected final static void link(Context sc, int index) {
+		sc.linkNode(index);
+	}
+
+	protected final static void newNode(Context sc, long pos) {
+		sc.pushLog(ASTLog.LazyNew, pos, null);
+	}
+
+	protected final static void leftNewNode(Context sc, long pos) {
+		sc.pushLog(ASTLog.LazyLeftNew, pos, null);
+	}
+
+	protected final static void capture(Context sc, long pos) {
+		sc.pushLog(ASTLog.LazyCapture, pos, null);
+	}
+
+	protected final static void tag(Context sc, Tag tag) {
+		sc.pushLog(ASTLog.LazyTag, 0, tag);
+	}
+
+	protected final static void replace(Context sc, String value) {
+		sc.pushLog(ASTLog.LazyReplace, 0, value);
+	}
+
+	/* symbol table */
+
+	protected final static int savePoint(Context sc) {
+		return sc.getSymbolTable().savePoint();
+	}
+
+	protected final static int saveHiddenPoint(Context sc, Tag table) {
+		return sc.getSymbolTable().saveHiddenPoint(table);
+	}
+
+	protected final static void rollBack(Context sc, int savePoint) {
+		sc.getSymbolTable().rollBack(savePoint);
+	}
+
+	protected final static void defSymbol(Context sc, Tag table, long spos, long pos) {
+		sc.getSymbolTable().addTable(table, sc.subbyte(spos, pos));
+	}
+
+	protected final static boolean existsSymbol(Context sc, Tag table) {
+		return sc.getSymbolTable().getSymbol(table) != null;
+	}
+
+	protected final static int isSymbol(Context sc, Tag table, long pos) {
+		byte[] t = sc.getSymbolTable().getSymbol(table);
+		if(t != null && sc.match(pos, t)) {
+			return t.length;
+		}
+		return -1;
+	}
+
+	protected final static int isaSymbol(Context sc, Tag table, long spos, long pos) {
+		byte[] captured = sc.subbyte(spos, pos);
+		if(sc.getSymbolTable().contains2(table, captured)) {
+			return 0;  // captured is already consumed
+		}
+		return -1;
+	}
+
+	protected final static void defIndent(Context sc, long pos) {
+		long spos = pos;
+		if(!(spos < sc.length())) {
+			spos = sc.length() - 1;
+		}
+		if(spos < 0) {
+			spos = 0;
+		}
+		while(spos > 0) {
+			if(sc.byteAt(spos) == '\n') {
+				spos = spos + 1;
+				break;
+			}
+			spos = spos - 1;
+		}
+		byte[] b = sc.subbyte(spos, pos);
+		for(int i = 0; i < b.length; i++) {
+			if(b[i] != '\t') {
+				b[i] = ' ';
+			}
+		}
+		sc.getSymbolTable().addTable(NezTag.Indent, b);
+	}
+
+	protected final static int isIndent(Context sc, long pos) {
+		if(pos > 0) {
+			if(sc.byteAt(pos-1) != '\n') {
+				return -1;
+			}
+		}
+		byte[] b = sc.getSymbolTable().getSymbol(NezTag.Indent);
+		if(b != null) {
+			return sc.match(pos, b) ? b.length : -1;
+		}
+		return 0;  // empty entry is allowable
+	}
+
+	protected final static long skipByteMap(Context sc, Instruction inst, long pos) {
+		IRepeatedByteMap op = (IRepeatedByteMap) inst;
+		return sc.skipByteMap(pos, op.byteMap, op.stopWords);
+	}
+
+	protected final static int dfaScan(Context sc, Instruction inst, long pos) {
+		long end = ((IDfaScan) inst).dfa.scan(sc, pos);
+		return end < 0 ? -1 : (int)(end - pos);
+	}
+
+	/* productions that are too large to compile */
+
+	private final static Instruction Failed = new IExit(false);
+	private final static Instruction Returned = new IExit(true);
+
+	public final int getInterpretedMethodSize() {
+		return this.codes.length;
+	}
+
+	protected final static boolean interpret(Context sc, Instruction code) {
+		sc.pushInterpreterFrame(Failed, Returned);
+		try {
+			while(code != Returned) {
+				if(code == Failed) {
+					return false;
+				}
+				code = code.exec(sc);
+			}
+		}
+		catch(TerminationException e) {
+			return e.status;
+		}
+		sc.popInterpreterFrame();
+		return true;
+	}
+
+	/* memoization */
+
+	protected final static int lookup(Context sc, MemoPoint mp) {
+		if(!mp.isActive()) {
+			return -1;
+		}
+		MemoEntry entry = sc.getMemo(mp.id, mp.contextSensitive);
+		if(entry != null) {
+			if(entry.failed) {
+				sc.memoFailHit(mp);
+				return 0;
+			}
+			sc.memoHit(mp, entry.consumed);
+			sc.consume(entry.consumed);
+			return 1;
+		}
+		sc.memoMiss(mp);
+		return -1;
+	}
+
+	protected final static void memoize(Context sc, MemoPoint mp, long spos) {
+		if(mp.isActive()) {
+			sc.setMemo(spos, mp.id, false, null, (int)(sc.pos - spos), mp.contextSensitive);
+		}
+	}
+
+	protected final static void memoizeFail(Context sc, MemoPoint mp, long spos) {
+		if(mp.isActive()) {
+			sc.setMemo(spos, mp.id, true, null, 0, mp.contextSensitive);
+		}
+	}
+
+}
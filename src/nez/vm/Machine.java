@@ -1,5 +1,7 @@
 package nez.vm;
 
+import java.util.Arrays;
+
 import nez.SourceContext;
 import nez.util.ConsoleUtils;
 import nez.util.UList;
@@ -18,6 +20,138 @@ public class Machine {
 		return result;
 	}
 
+	/**
+	 * Runs the code as run() does, and counts the cost of each call path
+	 * into prof; the frames of the productions are those of ICallPush and
+	 * IMemoCall, ended by their IRet or by a failure that unwinds the
+	 * stack. The ICallPush inside a memo lookup is not a frame of its own,
+	 * so a production is counted the same whether its memo point is
+	 * active or deactivated.
+	 */
+	public static boolean profile(Instruction code, SourceContext sc, String start, HotPathProfiler prof) {
+		Context ctx = sc;
+		HotPathProfiler.Path root = new HotPathProfiler.Path(null, "");
+		HotPathProfiler.Path[] paths = new HotPathProfiler.Path[64];
+		int[] stacks = new int[64];
+		long[] starts = new long[64];
+		int top = 0;
+		paths[0] = root.child(start);
+		paths[0].calls++;
+		starts[0] = sc.getPosition();
+		int countdown = HotPathProfiler.SampleInterval;
+		long time = System.nanoTime();
+		boolean result = false;
+		Instruction prev = null;
+		try {
+			while (true) {
+				Instruction op = code;
+				int stackTop = ctx.getUsedStackIndex();
+				long pos = sc.getPosition();
+				paths[top].instructions++;
+				code = op.exec(sc);
+				if(sc.getPosition() > pos) {
+					paths[top].scanned += sc.getPosition() - pos;
+				}
+				String name = null;
+				if(op instanceof ICallPush && !(prev instanceof ILookup)) {
+					name = ((ICallPush) op).rule.getLocalName();
+				}
+				else if(op instanceof IMemoCall) {
+					name = ((IMemoCall) op).production.getLocalName();
+				}
+				prev = op;
+				if(name != null) {
+					top++;
+					if(top == paths.length) {
+						paths = Arrays.copyOf(paths, top * 2);
+						stacks = Arrays.copyOf(stacks, top * 2);
+						starts = Arrays.copyOf(starts, top * 2);
+					}
+					paths[top] = paths[top - 1].child(name);
+					paths[top].calls++;
+					stacks[top] = ctx.getUsedStackIndex();
+					starts[top] = sc.getPosition();
+				}
+				else if(top > 0 && ctx.getUsedStackIndex() < stacks[top]) {
+					if(op instanceof IRet && stackTop == stacks[top]) {
+						paths[top].bytes += sc.getPosition() - starts[top];
+						top--;
+					}
+					while(top > 0 && ctx.getUsedStackIndex() < stacks[top]) {
+						paths[top].fails++;
+						top--;
+					}
+				}
+				if(--countdown == 0) {
+					long now = System.nanoTime();
+					paths[top].time += now - time;
+					time = now;
+					countdown = HotPathProfiler.SampleInterval;
+				}
+			}
+		} catch (TerminationException e) {
+			result = e.status;
+		}
+		paths[top].time += System.nanoTime() - time;
+		for(; top > 0; top--) {
+			paths[top].fails++;
+		}
+		if(result) {
+			paths[0].bytes += sc.getPosition() - starts[0];
+		}
+		else {
+			paths[0].fails++;
+		}
+		prof.merge(root);
+		return result;
+	}
+
+	/**
+	 * Runs the code as run() does, and records the failures into prof by
+	 * the sites that have pushed the catch frames.
+	 */
+	public static boolean backtrack(Instruction code, SourceContext sc, BacktrackProfiler prof) {
+		Context ctx = sc;
+		BacktrackProfiler.Recorder rec = new BacktrackProfiler.Recorder();
+		ctx.setBacktrackRecorder(rec);
+		boolean result = false;
+		try {
+			while (true) {
+				Instruction op = code;
+				Instruction target = op;
+				int catchTop = ctx.getCatchStackIndex();
+				if(rec.dispatchTop > 0) {
+					rec.joined(op);
+				}
+				if(op instanceof IPredictDispatch) {
+					IPredictDispatch dispatch = (IPredictDispatch) op;
+					target = dispatch.select(sc);  // executed by the dispatch
+					while(target instanceof IPredictDispatch) {
+						target = ((IPredictDispatch) target).select(sc);
+					}
+					if(!(target instanceof IFail) && target != dispatch.join) {
+						rec.dispatch(dispatch, catchTop, sc.getPosition());
+					}
+				}
+				rec.instructions++;
+				code = op.exec(sc);
+				if(ctx.getCatchStackIndex() > catchTop) {
+					rec.push(ctx.getCatchStackIndex(), target instanceof IFailPush ? target : null);
+				}
+				else if(op instanceof IFailSkip && ctx.getCatchStackIndex() == catchTop) {
+					rec.skip(catchTop);
+				}
+			}
+		} catch (TerminationException e) {
+			result = e.status;
+		}
+		finally {
+			ctx.setBacktrackRecorder(null);
+		}
+		prof.merge(rec);
+		return result;
+	}
+
 	public static boolean debug(Instruction code, SourceContext sc) {
 		boolean result = false;
 		String u = "Start";
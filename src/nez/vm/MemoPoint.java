@@ -1,12 +1,29 @@
 package nez.vm;
 
 import nez.lang.Expression;
+import nez.util.UList;
+
+/**
+ * MemoPoint is a memoized production. An adaptive memo point deactivates
+ * itself when lookups do not pay off; its call sites are then patched to
+ * call the production directly, and patched back on reactivation.
+ */
 
 public final class MemoPoint {
 	public final int id;
 	public final String label;
 	public final Expression e;
 	final boolean contextSensitive;
+	final boolean adaptive;
+
+	private volatile boolean active = true;
+	int  deactivated = 0;
+	int  reactivated = 0;
+	private long baseHit = 0;   // counts before the last reactivation
+	private long baseMiss = 0;
+	private UList<IMemoCall> callSites = null;
+	private int[] packedCode = null;
+	private UList<int[]> packedSites = null;  // {pc, memo addr, nonmemo addr}
 
 	int  memoHit = 0;
 	int  memoFailHit = 0;
@@ -14,28 +31,23 @@ public final class MemoPoint {
 	int  maxLength = 0;
 	int  memoMiss = 0;
 	
-	MemoPoint(int id, String label, Expression e, boolean contextSensitive) {
+	MemoPoint(int id, String label, Expression e, boolean contextSensitive, boolean adaptive) {
 		this.id = id;
 		this.label = label;
 		this.e = e;
 		this.contextSensitive = contextSensitive;
+		this.adaptive = adaptive;
 	}
 	
-	void memoHit(int consumed) {
-		this.memoHit += 1;
-		this.hitLength += consumed;
-		if(this.maxLength < consumed) {
-			this.maxLength = consumed;
+	synchronized void merge(long hit, long failHit, long miss, long length, long max) {
+		this.memoHit += (int)hit;
+		this.memoFailHit += (int)failHit;
+		this.memoMiss += (int)miss;
+		this.hitLength += length;
+		if(this.maxLength < max) {
+			this.maxLength = (int)max;
 		}
 	}
-
-	void failHit() {
-		this.memoFailHit += 1;
-	}
-
-	void miss() {
-		this.memoMiss ++;
-	}
 	
 	public final double hitRatio() {
 		if(this.memoMiss == 0) return 0.0;
@@ -56,28 +68,107 @@ public final class MemoPoint {
 		return this.memoMiss + this.memoFailHit + this.memoHit;
 	}
 
-	protected final boolean checkDeactivation() {
-		if(this.memoMiss == 32) {
-			if(this.memoHit < 2) {          
-				return true;
+	public final boolean isActive() {
+		return this.active;
+	}
+
+	/* the call sites, in the instructions and in the packed code */
+	public final synchronized int countCallSites() {
+		return (this.callSites != null ? this.callSites.size() : 0) + (this.packedSites != null ? this.packedSites.size() : 0);
+	}
+
+	/* the call sites that jump to the memoized code, not to the production */
+	public final synchronized int countMemoCallSites() {
+		int n = 0;
+		if(this.callSites != null) {
+			for(IMemoCall site : this.callSites) {
+				if(site.next == site.memoCodePoint) n++;
 			}
 		}
-		if(this.memoMiss % 64 == 0) {
-			if(this.memoHit == 0) {
-				return true;
-			}
-//			if(this.hitLength < this.memoHit) {
-//				enableMemo = false;
-//				disabledMemo();
-//				return;
-//			}
-			if(this.memoMiss / this.memoHit > 10) {
-				return true;
+		if(this.packedSites != null) {
+			for(int[] site : this.packedSites) {
+				if(this.packedCode[site[0]] == site[1]) n++;
 			}
 		}
+		return n;
+	}
+
+	final synchronized void addCallSite(IMemoCall site) {
+		if(this.callSites == null) {
+			this.callSites = new UList<IMemoCall>(new IMemoCall[2]);
+		}
+		this.callSites.add(site);
+	}
+
+	final synchronized void addPackedSite(int[] code, int pc, int memoAddr, int nonMemoAddr) {
+		if(this.packedSites == null) {
+			this.packedSites = new UList<int[]>(new int[2][]);
+		}
+		this.packedCode = code;
+		this.packedSites.add(new int[] { pc, memoAddr, nonMemoAddr });
+	}
+
+	/* {pc, memo addr, nonmemo addr} of the packed call sites, for PackedCode.write */
+	final synchronized int[][] getPackedSites() {
+		if(this.packedSites == null) {
+			return new int[0][];
+		}
+		return this.packedSites.compactArray();
+	}
+
+	/**
+	 * Checks the counts of a session, added to the merged counts, at every
+	 * 32 misses of the session.
+	 */
+	final void check(long sessionHit, long sessionMiss) {
+		long hit = this.memoHit + this.memoFailHit + sessionHit - this.baseHit;
+		long miss = this.memoMiss + sessionMiss - this.baseMiss;
+		if(this.active && checkDeactivation(hit, miss)) {
+			this.deactivate();
+		}
+	}
+
+	static boolean checkDeactivation(long hit, long miss) {
+		if(miss >= 32 && hit < 2) {
+			return true;
+		}
+		if(miss >= 64 && miss / hit > 10) {
+			return true;
+		}
 		return false;
 	}
-	
+
+	final synchronized void deactivate() {
+		if(this.active) {
+			this.active = false;
+			this.deactivated++;
+			this.patch(false);
+		}
+	}
+
+	final synchronized void reactivate() {
+		if(!this.active) {
+			this.active = true;
+			this.reactivated++;
+			this.baseHit = this.memoHit + this.memoFailHit;
+			this.baseMiss = this.memoMiss;
+			this.patch(true);
+		}
+	}
+
+	private void patch(boolean memo) {
+		if(this.callSites != null) {
+			for(IMemoCall site : this.callSites) {
+				site.next = memo ? site.memoCodePoint : site.nonMemoCodePoint;
+			}
+		}
+		if(this.packedSites != null) {
+			for(int[] site : this.packedSites) {
+				this.packedCode[site[0]] = memo ? site[1] : site[2];
+			}
+		}
+	}
+
 	public String toString() {
 		return this.label + "[id=" + this.id +"]";
 	}
@@ -1,5 +1,6 @@
 package nez.vm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 import nez.NezOption;
@@ -11,15 +12,18 @@ public abstract class MemoTable {
 	abstract void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue);
 	abstract MemoEntry getMemo(long pos, int memoPoint);
 	abstract MemoEntry getMemo2(long pos, int memoPoint, int stateValue);
+	abstract void clear();
 
 	int CountStored;
 	int CountUsed;
 	int CountInvalidated;
+	int CountEvicted;
 
 	void initStat() {
 		this.CountStored = 0;
 		this.CountUsed = 0;
 		this.CountInvalidated = 0;
+		this.CountEvicted = 0;
 	}
 	
 	public static MemoTable newTable(NezOption option, long length, int windowSize, int memoPointSize) {
@@ -29,6 +33,26 @@ public abstract class MemoTable {
 		if(option.enabledPackratParsing) {
 			return new PackratHashTable(length, windowSize, memoPointSize);
 		}
+		if(option.enabledArrayMemo) {
+			return new ElasticArrayTable(length, windowSize, memoPointSize, option.memoAssociativity);
+		}
+		return new ElasticTable(length, windowSize, memoPointSize);
+	}
+
+	public static MemoTable newTable(NezOption option, long length, int memoPointSize) {
+		return newTable(option, length, option.memoWindowSize, memoPointSize);
+	}
+
+	/**
+	 * Returns a table by name: null, elastic or packrat.
+	 */
+	public static MemoTable newTable(String type, long length, int windowSize, int memoPointSize) {
+		if(memoPointSize == 0 || type.equals("null")) {
+			return new NullTable(length, windowSize, memoPointSize);
+		}
+		if(type.equals("packrat")) {
+			return new PackratHashTable(length, windowSize, memoPointSize);
+		}
 		return new ElasticTable(length, windowSize, memoPointSize);
 	}
 
@@ -37,6 +61,23 @@ public abstract class MemoTable {
 		rec.setCount("M.MemoStored", this.CountStored);
 		rec.setRatio("M.MemoHit", this.CountUsed, this.CountStored);
 		rec.setCount("M.Invalidated", this.CountInvalidated);
+		rec.setCount("M.Evicted", this.CountEvicted);
+	}
+
+	public final int getStoredCount() {
+		return this.CountStored;
+	}
+
+	public final int getUsedCount() {
+		return this.CountUsed;
+	}
+
+	public final int getInvalidatedCount() {
+		return this.CountInvalidated;
+	}
+
+	public final int getEvictedCount() {
+		return this.CountEvicted;
 	}
 
 }
@@ -62,6 +103,10 @@ class NullTable extends MemoTable {
 	MemoEntry getMemo2(long pos, int id, int stateValue) {
 		return null;
 	}
+	@Override
+	void clear() {
+		this.initStat();
+	}
 }
 
 class ElasticTable extends MemoTable {
@@ -78,6 +123,16 @@ class ElasticTable extends MemoTable {
 		this.initStat();
 	}
 
+	@Override
+	void clear() {
+		for(int i = 0; i < this.memoArray.length; i++) {
+			MemoEntryKey m = this.memoArray[i];
+			m.key = -1;
+			m.result = null;
+		}
+		this.initStat();
+	}
+
 	@Override
 	public
 	MemoTable newMemoTable(long len, int w, int n) {
@@ -93,6 +148,9 @@ class ElasticTable extends MemoTable {
 		long key = longkey(pos, memoPoint, shift);
 		int hash =  (int)(key % memoArray.length);
 		MemoEntryKey m = this.memoArray[hash];
+		if(m.key != key && m.key != -1) {
+			this.CountEvicted += 1;
+		}
 		m.key = key;
 		m.failed = failed;
 		m.result = result;
@@ -130,6 +188,130 @@ class ElasticTable extends MemoTable {
 
 }
 
+/**
+ * ElasticArrayTable is an ElasticTable laid out in parallel arrays, with
+ * 1-, 2- or 4-way sets. A set is kept in the order of insertion; the
+ * oldest entry of a full set is evicted. getMemo returns a shared entry
+ * that is valid until the next call.
+ */
+
+class ElasticArrayTable extends MemoTable {
+	private final long[] keys;
+	private final int[]  consumed;  // -1 if failed
+	private final int[]  states;
+	private Object[]     results = null;  // allocated at the first AST result
+	private final int sets;
+	private final int ways;
+	private final int shift;
+	private final MemoEntry entry = new MemoEntry();
+
+	ElasticArrayTable(long len, int w, int n, int ways) {
+		this.ways = (ways == 2 || ways == 4) ? ways : 1;
+		this.sets = (w * n) / this.ways + 1;
+		int size = this.sets * this.ways;
+		this.keys = new long[size];
+		Arrays.fill(this.keys, -1);
+		this.consumed = new int[size];
+		this.states = new int[size];
+		this.shift = (int)(Math.log(n) / Math.log(2.0)) + 1;
+		this.initStat();
+	}
+
+	@Override
+	public
+	MemoTable newMemoTable(long len, int w, int n) {
+		return new ElasticArrayTable(len, w, n, this.ways);
+	}
+
+	@Override
+	void clear() {
+		Arrays.fill(this.keys, -1);
+		if(this.results != null) {
+			Arrays.fill(this.results, null);
+		}
+		this.initStat();
+	}
+
+	private int find(long key) {
+		int base = (int)(key % this.sets) * this.ways;
+		for(int i = base; i < base + this.ways; i++) {
+			if(this.keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue) {
+		long key = ((pos << shift) | memoPoint) & Long.MAX_VALUE;
+		int slot = (int)(key % this.sets) * this.ways;
+		if(this.ways > 1 && this.keys[slot] != key) {
+			int found = find(key);
+			if(found == -1) {
+				int last = slot + this.ways - 1;
+				if(this.keys[last] != -1) {
+					this.CountEvicted += 1;
+				}
+				System.arraycopy(this.keys, slot, this.keys, slot + 1, this.ways - 1);
+				System.arraycopy(this.consumed, slot, this.consumed, slot + 1, this.ways - 1);
+				System.arraycopy(this.states, slot, this.states, slot + 1, this.ways - 1);
+				if(this.results != null) {
+					System.arraycopy(this.results, slot, this.results, slot + 1, this.ways - 1);
+				}
+			}
+			else {
+				slot = found;
+			}
+		}
+		else if(this.keys[slot] != key && this.keys[slot] != -1) {
+			this.CountEvicted += 1;
+		}
+		this.keys[slot] = key;
+		this.consumed[slot] = failed ? -1 : consumed;
+		this.states[slot] = stateValue;
+		if(result != null && this.results == null) {
+			this.results = new Object[this.keys.length];
+		}
+		if(this.results != null) {
+			this.results[slot] = result;
+		}
+		this.CountStored += 1;
+	}
+
+	private MemoEntry entry(int slot) {
+		int c = this.consumed[slot];
+		this.entry.failed = c < 0;
+		this.entry.consumed = c < 0 ? 0 : c;
+		this.entry.result = this.results == null ? null : this.results[slot];
+		this.entry.stateValue = this.states[slot];
+		return this.entry;
+	}
+
+	@Override
+	final MemoEntry getMemo(long pos, int memoPoint) {
+		int slot = find(((pos << shift) | memoPoint) & Long.MAX_VALUE);
+		if(slot != -1) {
+			this.CountUsed += 1;
+			return entry(slot);
+		}
+		return null;
+	}
+
+	@Override
+	final MemoEntry getMemo2(long pos, int memoPoint, int stateValue) {
+		int slot = find(((pos << shift) | memoPoint) & Long.MAX_VALUE);
+		if(slot != -1) {
+			if(this.states[slot] == stateValue) {
+				this.CountUsed += 1;
+				return entry(slot);
+			}
+			this.CountInvalidated += 1;
+		}
+		return null;
+	}
+}
+
 class PackratHashTable extends MemoTable {
 	HashMap<Long, MemoEntryList> memoMap;
 	private MemoEntryList UnusedMemo = null;
@@ -137,6 +319,12 @@ class PackratHashTable extends MemoTable {
 	PackratHashTable(long len, int w, int n) {
 		this.memoMap = new HashMap<Long, MemoEntryList>(w * n);
 	}
+
+	@Override
+	void clear() {
+		this.memoMap.clear();
+		this.initStat();
+	}
 	
 	@Override
 	public
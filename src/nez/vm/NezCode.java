@@ -9,11 +9,24 @@ import nez.util.UList;
 public class NezCode {
 	final Instruction startPoint;
 	final int instructionSize;
+	final Instruction[] codeList;
 	final List<MemoPoint> memoPointList;
 
-	public NezCode(Instruction instruction, int instSize, List<MemoPoint> memoPointList) {
-		this.startPoint = instruction;
-		this.instructionSize = instSize;
+	public NezCode(Instruction[] codeList, List<MemoPoint> memoPointList) {
+		this.startPoint = codeList[0];
+		this.instructionSize = codeList.length;
+		this.codeList = codeList;
+		this.memoPointList = memoPointList;
+	}
+
+	/**
+	 * A code without instructions, for a PackedCode read from a file; it
+	 * has the memo points only.
+	 */
+	public NezCode(List<MemoPoint> memoPointList) {
+		this.startPoint = null;
+		this.instructionSize = 0;
+		this.codeList = new Instruction[0];
 		this.memoPointList = memoPointList;
 	}
 
@@ -25,20 +38,41 @@ public class NezCode {
 		return instructionSize;
 	}
 
+	final Instruction[] getCodeList() {
+		return codeList;
+	}
+
 	public final int getMemoPointSize() {
 		return this.memoPointList != null ? this.memoPointList.size() : 0;
 	}
 	
+	public final List<MemoPoint> getMemoPointList() {
+		return this.memoPointList;
+	}
+
 	public final void dumpMemoPointList() {
 		if(this.memoPointList != null) {
-			ConsoleUtils.println("ID\tPEG\tCount\tHit\tFail\tMean");
+			ConsoleUtils.println("ID\tPEG\tCount\tHit\tFail\tMean\tMemo\tOff\tOn");
 			for(MemoPoint p: this.memoPointList) {
-				String s = String.format("%d\t%s\t%d\t%f\t%f\t%f", p.id, p.label, p.count(), p.hitRatio(), p.failHitRatio(), p.meanLength());
+				String s = String.format("%d\t%s\t%d\t%f\t%f\t%f\t%s\t%d\t%d", p.id, p.label, p.count(), p.hitRatio(), p.failHitRatio(), p.meanLength(),
+						p.isActive() ? "on" : "call", p.deactivated, p.reactivated);
 				ConsoleUtils.println(s);
 			}
 			ConsoleUtils.println("");
 		}
 	}
 
+	/**
+	 * Reactivates the deactivated memo points (at a new input) so that they
+	 * are measured again.
+	 */
+	public final void reactivateMemoPoints() {
+		if(this.memoPointList != null) {
+			for(MemoPoint p: this.memoPointList) {
+				p.reactivate();
+			}
+		}
+	}
+
 	
 }
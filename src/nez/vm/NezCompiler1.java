@@ -53,11 +53,15 @@ public class NezCompiler1 extends NezCompiler {
 		return null;
 	}
 	
+	protected Instruction encodeCodePoint(CodePoint code, Instruction next) {
+		return encodeExpression(code.localExpression, next, null/*failjump*/);
+	}
+
 	protected void encodeProduction(UList<Instruction> codeList, Production p, Instruction next) {
 		String uname = p.getUniqueName();
 		CodePoint code = this.codePointMap.get(uname);
 		if(code != null) {
-			code.nonmemoStart = encodeExpression(code.localExpression, next, null/*failjump*/);
+			code.nonmemoStart = encodeCodePoint(code, next);
 			code.start = codeList.size();
 			this.layoutCode(codeList, code.nonmemoStart);
 			code.end = codeList.size();
@@ -75,33 +79,91 @@ public class NezCompiler1 extends NezCompiler {
 		if(option.enabledMemoization || option.enabledPackratParsing) {
 			memoPointList = new UList<MemoPoint>(new MemoPoint[4]);
 		}
+		/* the packed and JIT code are encoded from all instructions */
+		boolean lazy = option.enabledLazyCompilation && !option.enabledJIT && !option.enabledPackedCode && !option.enabledGrammarCache;
 		initCodeMap(grammar, memoPointList);
 		UList<Instruction> codeList = new UList<Instruction>(new Instruction[64]);
 		Production start = grammar.getStartProduction();
 		this.encodeProduction(codeList, start, new IRet(start));
-		for(Production p : grammar.getProductionList()) {
-			if(p != start) {
-				this.encodeProduction(codeList, p, new IRet(p));
+		if(!lazy) {
+			for(Production p : grammar.getProductionList()) {
+				if(p != start) {
+					this.encodeProduction(codeList, p, new IRet(p));
+				}
 			}
 		}
-		for(Instruction inst : codeList) {
+		this.resolveCalls(codeList, 0, lazy);
+		long t2 = System.nanoTime();
+		Verbose.printElapsedTime("CompilingTime", t, t2);
+		if(lazy) {
+			this.lazyCodeList = codeList;  // compileLazily() appends to it
+		}
+		else {
+			this.codePointMap = null;
+		}
+		return new NezCode(codeList.compactArray(), memoPointList);
+	}
+
+	private void resolveCalls(UList<Instruction> codeList, int start, boolean lazy) {
+		for(int i = start; i < codeList.size(); i++) {
+			Instruction inst = codeList.ArrayValues[i];
 			if(inst instanceof ICallPush) {
 				CodePoint deref = this.codePointMap.get(((ICallPush) inst).rule.getUniqueName());
 				if(deref == null) {
 					Verbose.debug("no deref: " + ((ICallPush) inst).rule.getUniqueName());
 				}
-				((ICallPush) inst).setResolvedJump(deref.nonmemoStart);
+				if(lazy && deref.nonmemoStart == null) {
+					((ICallPush) inst).setResolvedJump(lazyEntry(deref, false));
+				}
+				else {
+					((ICallPush) inst).setResolvedJump(deref.nonmemoStart);
+				}
 			}
 			if(inst instanceof IMemoCall) {
-				((IMemoCall) inst).resolveJumpAddress();
+				CodePoint deref = ((IMemoCall) inst).codePoint;
+				if(lazy && deref.nonmemoStart == null) {
+					((IMemoCall) inst).resolveJumpAddress(lazyEntry(deref, true), lazyEntry(deref, false));
+				}
+				else {
+					((IMemoCall) inst).resolveJumpAddress();
+				}
 			}
 		}
-		long t2 = System.nanoTime();
-		Verbose.printElapsedTime("CompilingTime", t, t2);
-		this.codePointMap = null;
-		return new NezCode(codeList.ArrayValues[0], codeList.size(), memoPointList);
 	}
 
+	/* lazy compilation (--option:lazy) */
+
+	private UList<Instruction> lazyCodeList = null;
+
+	private Instruction lazyEntry(CodePoint cp, boolean memo) {
+		if(cp.lazyEntry == null) {
+			cp.lazyEntry = new ILazyEntry(this, cp, false);
+			cp.lazyMemoEntry = new ILazyEntry(this, cp, true);
+		}
+		return memo ? cp.lazyMemoEntry : cp.lazyEntry;
+	}
+
+	/**
+	 * Compiles the production of cp at its first call. The code is built
+	 * under the lock and then published through the volatile fields of
+	 * the lazy entries; the call sites are not patched, since a plain
+	 * write to their next would not be safely seen by other threads.
+	 */
+	final synchronized Instruction compileLazily(CodePoint cp, boolean memo) {
+		if(cp.nonmemoStart == null) {
+			long t = System.nanoTime();
+			int start = lazyCodeList.size();
+			this.encodeProduction(lazyCodeList, cp.production, new IRet(cp.production));
+			this.resolveCalls(lazyCodeList, start, true);
+			cp.lazyMemoEntry.compiled = cp.memoStart;
+			cp.lazyEntry.compiled = cp.nonmemoStart;
+			if(Verbose.VirtualMachine) {
+				Verbose.println("lazy: " + cp.production.getLocalName() + " " + (lazyCodeList.size() - start) + " instructions "
+						+ (System.nanoTime() - t) / 1000 + "us");
+			}
+		}
+		return memo ? cp.memoStart : cp.nonmemoStart;
+	}
 
 	protected void optimizedUnary(Expression p) {
 		Verbose.noticeOptimize("specialization", p);
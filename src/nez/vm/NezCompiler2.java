@@ -1,8 +1,11 @@
 package nez.vm;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import nez.NezOption;
+import nez.ast.Source;
 import nez.lang.AnyChar;
 import nez.lang.ByteChar;
 import nez.lang.ByteMap;
@@ -13,9 +16,12 @@ import nez.lang.Link;
 import nez.lang.NonTerminal;
 import nez.lang.Not;
 import nez.lang.Option;
+import nez.lang.PossibleAcceptance;
 import nez.lang.Production;
 import nez.lang.Repetition;
+import nez.lang.Repetition1;
 import nez.lang.Sequence;
+import nez.main.Verbose;
 import nez.util.UFlag;
 
 public class NezCompiler2 extends NezCompiler1 {
@@ -24,6 +30,55 @@ public class NezCompiler2 extends NezCompiler1 {
 		super(option);
 	}
 
+	/* regular productions (--option:dfa) */
+
+	private HashMap<String, Dfa> dfaMap = null;
+	private DfaConverter dfaConverter = null;
+
+	protected final Dfa getDfa(CodePoint cp) {
+		if(!option.enabledDFAConversion || isSingleInstruction(cp.localExpression)) {
+			return null;
+		}
+		if(dfaMap == null) {
+			dfaMap = new HashMap<String, Dfa>();
+			dfaConverter = new DfaConverter(option.enabledASTConstruction);
+		}
+		String uname = cp.production.getUniqueName();
+		if(!dfaMap.containsKey(uname)) {
+			Dfa dfa = dfaConverter.convert(cp.production.getLocalName(), cp.localExpression);
+			if(Verbose.VirtualMachine) {
+				Verbose.println(dfa != null ? "dfa: " + dfa.getName() + " " + dfa.getStateSize() + " states"
+						: "dfa: " + cp.production.getLocalName() + " " + dfaConverter.getReason());
+			}
+			dfaMap.put(uname, dfa);
+		}
+		return dfaMap.get(uname);
+	}
+
+	/* a table scan is no faster than the lexical instructions */
+	private boolean isSingleInstruction(Expression e) {
+		if(e instanceof Option || e instanceof Repetition || e instanceof Repetition1 || e instanceof Not) {
+			e = GrammarOptimizer.resolveNonTerminal(e.get(0));
+		}
+		return e instanceof ByteChar || e instanceof ByteMap || e instanceof AnyChar || e.size() == 0;
+	}
+
+	@Override
+	protected void checkMemoizing(CodePoint cp, List<MemoPoint> memoPointList) {
+		if(getDfa(cp) == null) {
+			super.checkMemoizing(cp, memoPointList);  // a scan is cheaper than a lookup
+		}
+	}
+
+	@Override
+	protected Instruction encodeCodePoint(CodePoint cp, Instruction next) {
+		Dfa dfa = getDfa(cp);
+		if(dfa != null) {
+			return new IDfaScan(cp.production, dfa, next);
+		}
+		return super.encodeCodePoint(cp, next);
+	}
+
 	protected Instruction encodeMemoizingProduction(CodePoint cp) {
 		if(cp.memoPoint != null) {
 			Production p = cp.production;
@@ -60,12 +115,67 @@ public class NezCompiler2 extends NezCompiler1 {
 			}
 			if(inner instanceof ByteMap) {
 				this.optimizedUnary(p);
-				return new IRepeatedByteMap((ByteMap) inner, next);
+				return scan(new IRepeatedByteMap((ByteMap) inner, next));
+			}
+			if(option.enabledWordScan) {
+				boolean[] run = runMap(inner);
+				if(run != null) {
+					return encodeRunRepetition(p, run, next);
+				}
 			}
 		}
 		return super.encodeRepetition(p, next);
 	}
 
+	/* word-at-a-time scanning (--option:swar) */
+
+	private IRepeatedByteMap scan(IRepeatedByteMap inst) {
+		if(option.enabledWordScan) {
+			inst.stopWords = Context.stopWords(inst.byteMap);
+		}
+		return inst;
+	}
+
+	/*
+	 * (A / B / !'"' .)*: the bytes that only the last alternative accepts
+	 * are skipped as a run before each iteration.
+	 */
+	private boolean[] runMap(Expression e) {
+		int size = e instanceof Choice ? e.size() : 1;
+		Expression last = e instanceof Choice ? GrammarOptimizer.resolveNonTerminal(e.get(size - 1)) : e;
+		boolean[] run = ByteMap.newMap(false);
+		for(int c = 1; c < 256; c++) {  // 0 may be the end of input
+			run[c] = acceptsOneByte(last, c);
+			for(int i = 0; run[c] && i < size - 1; i++) {
+				run[c] = e.get(i).acceptByte(c) == PossibleAcceptance.Reject;
+			}
+		}
+		return Context.stopWords(run) != null ? run : null;
+	}
+
+	/* e consumes c and no more: [..] or !X . */
+	private boolean acceptsOneByte(Expression e, int c) {
+		if(e instanceof ByteMap) {
+			return ((ByteMap) e).byteMap[c];
+		}
+		if(e instanceof Sequence && e.size() == 2 && e.get(0) instanceof Not) {
+			Expression any = GrammarOptimizer.resolveNonTerminal(e.get(1));
+			if(any instanceof AnyChar && !((AnyChar) any).isBinary()) {
+				return e.get(0).get(0).acceptByte(c) == PossibleAcceptance.Reject;
+			}
+		}
+		return false;
+	}
+
+	private Instruction encodeRunRepetition(Repetition p, boolean[] run, Instruction next) {
+		IFailSkip skip = new IFailCheckSkip(p);
+		IFailSkip mark = new IFailSkip(p);
+		mark.next = encodeExpression(p.get(0), skip, next);
+		Instruction start = scan(new IRepeatedByteMap(p, run, mark));
+		skip.next = start;
+		return new IFailPush(p, next, start);
+	}
+
 	public final Instruction encodeNot(Not p, Instruction next, Instruction failjump) {
 		if(option.enabledLexicalOptimization) {
 			Expression inner = GrammarOptimizer.resolveNonTerminal(p.get(0));
@@ -93,30 +203,39 @@ public class NezCompiler2 extends NezCompiler1 {
 		if(option.enabledPrediction && p.predictedCase != null) {
 			return encodePredicatedChoice(p, next, failjump);
 		}
+		if(option.enabledPrediction) {
+			/* choices made after the optimizer (e.g. conditional productions) */
+			return encodePrefixChoice(p, allAlternatives(p), new int[MaxPrefix], 0, next, failjump, new HashMap<String, Instruction>());
+		}
 		return this.encodeUnoptimizedChoice(p, next, failjump);
 	}
 
 	private final Instruction encodePredicatedChoice(Choice choice, Instruction next, Instruction failjump) {
 		HashMap<Integer, Instruction> m = new HashMap<Integer, Instruction>();
+		HashMap<String, Instruction> leafMap = new HashMap<String, Instruction>();
 		IPredictDispatch dispatch = new IPredictDispatch(choice, commonFailure);
+		dispatch.join = next;
+		int[] prefix = new int[MaxPrefix];
+		int[][] selectedCase = null;
 		for(int ch = 0; ch < choice.predictedCase.length; ch++) {
 			Expression predicted = choice.predictedCase[ch];
 			if(predicted == null) {
 				continue;
 			}
+			if(predicted instanceof Choice) {
+				/* the alternatives that share the first byte are predicted by the next bytes */
+				if(selectedCase == null) {
+					selectedCase = selectAlternatives(choice, allAlternatives(choice), prefix, 0);
+				}
+				prefix[0] = ch;
+				dispatch.setJumpTable(ch, encodePrefixChoice(choice, selectedCase[ch], prefix, 1, next, failjump, leafMap));
+				continue;
+			}
 			int id = predictId(choice.predictedCase, ch, predicted);
 			Instruction inst = m.get(id);
 			if(inst == null) {
 				//System.out.println("creating '" + (char)ch + "'("+ch+"): " + e);
-				if(predicted instanceof Choice) {
-//					if(predicated == choice) {
-					/* this is a rare case where the selected choice is the parent choice */
-					/* this cause the repeated calls of the same matchers */
-					inst = this.encodeUnoptimizedChoice(choice, next, failjump);
-				}
-				else {
-					inst = encodeExpression(predicted, next, failjump);
-				}
+				inst = encodeExpression(predicted, next, failjump);
 				m.put(id, inst);
 			}
 			dispatch.setJumpTable(ch, inst);
@@ -124,6 +243,116 @@ public class NezCompiler2 extends NezCompiler1 {
 		return dispatch;
 	}
 
+	/* prediction by the bytes ahead */
+	final static int MaxPrefix = 4;
+	final static int MaxBranches = 8;  // prefixes extended beyond the first byte
+
+	private Instruction encodePrefixChoice(Choice choice, int[] selected, int[] prefix, int len, Instruction next, Instruction failjump,
+			HashMap<String, Instruction> leafMap) {
+		if(selected.length < 2 || len == MaxPrefix || len > 0 && (prefix[len - 1] == 0 || prefix[len - 1] == Source.BinaryEOF)) {
+			return encodeAlternatives(choice, selected, next, failjump, leafMap);  // nothing is read beyond the end
+		}
+		int[][] selectedCase = selectAlternatives(choice, selected, prefix, len);
+		int branches = 0;
+		int count = 0;
+		int total = 0;
+		boolean reduced = false;
+		for(int ch = 0; ch < selectedCase.length; ch++) {
+			if(selectedCase[ch].length > 1) {
+				branches++;
+			}
+			if(selectedCase[ch].length < selected.length) {
+				reduced = true;
+			}
+			if(selectedCase[ch].length > 0) {
+				count++;
+				total += selectedCase[ch].length;
+			}
+		}
+		if(len == 0) {
+			/* the cost-based reduction of GrammarOptimizer */
+			if(count == 0 || (double) total / count / selected.length > 0.55) {
+				return encodeAlternatives(choice, selected, next, failjump, leafMap);
+			}
+			branches = 0;  // every first byte is extended
+		}
+		if(!reduced && branches > MaxBranches) {
+			return encodeAlternatives(choice, selected, next, failjump, leafMap);
+		}
+		IPredictDispatch dispatch = new IPredictDispatch(choice, commonFailure, len);
+		dispatch.join = next;
+		boolean predicted = reduced;
+		for(int ch = 0; ch < selectedCase.length; ch++) {
+			Instruction inst;
+			if(selectedCase[ch].length > 1 && branches <= MaxBranches) {
+				prefix[len] = ch;
+				inst = encodePrefixChoice(choice, selectedCase[ch], prefix, len + 1, next, failjump, leafMap);
+				predicted |= inst instanceof IPredictDispatch;
+			}
+			else {
+				inst = encodeAlternatives(choice, selectedCase[ch], next, failjump, leafMap);
+			}
+			dispatch.setJumpTable(ch, inst);
+		}
+		return predicted ? dispatch : encodeAlternatives(choice, selected, next, failjump, leafMap);
+	}
+
+	private int[] allAlternatives(Choice choice) {
+		int[] all = new int[choice.size()];
+		for(int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		return all;
+	}
+
+	/* the analyses of productions are shared by the choices with the same prefix */
+	private HashMap<String, PrefixAcceptance> prefixMap = new HashMap<String, PrefixAcceptance>();
+
+	/* the alternatives that accept each byte after the prefix */
+	private int[][] selectAlternatives(Choice choice, int[] selected, int[] prefix, int len) {
+		String key = Arrays.toString(Arrays.copyOf(prefix, len));
+		PrefixAcceptance a = prefixMap.get(key);
+		if(a == null) {
+			a = new PrefixAcceptance(prefix, len);
+			prefixMap.put(key, a);
+		}
+		long[][] nextBytes = new long[selected.length][];
+		for(int i = 0; i < selected.length; i++) {
+			nextBytes[i] = a.nextBytes(choice.get(selected[i]));
+		}
+		int[][] selectedCase = new int[257][];
+		int[] buf = new int[selected.length];
+		for(int ch = 0; ch < selectedCase.length; ch++) {
+			int size = 0;
+			for(int i = 0; i < selected.length; i++) {
+				if(PrefixAcceptance.contains(nextBytes[i], ch)) {
+					buf[size++] = selected[i];
+				}
+			}
+			selectedCase[ch] = size == selected.length ? selected : Arrays.copyOf(buf, size);
+		}
+		return selectedCase;
+	}
+
+	/* the selected alternatives in order; the same selection shares the code */
+	private Instruction encodeAlternatives(Choice choice, int[] selected, Instruction next, Instruction failjump,
+			HashMap<String, Instruction> leafMap) {
+		if(selected.length == 0) {
+			return commonFailure;
+		}
+		String key = Arrays.toString(selected);
+		Instruction inst = leafMap.get(key);
+		if(inst == null) {
+			inst = encodeExpression(choice.get(selected[selected.length - 1]), next, failjump);
+			for(int i = selected.length - 2; i >= 0; i--) {
+				Expression e = choice.get(selected[i]);
+				inst = new IFailPush(e, inst, encodeExpression(e, new IFailPop(e, next), inst));
+			}
+			leafMap.put(key, inst);
+		}
+		return inst;
+	}
+
 	private int predictId(Expression[] predictedCase, int max, Expression predicted) {
 		if(predicted.isInterned()) {
 			return predicted.getId();
@@ -145,6 +374,10 @@ public class NezCompiler2 extends NezCompiler1 {
 		CodePoint cp = this.getCodePoint(r);
 		if(cp.inlining) {
 			this.optimizedInline(r);
+			Dfa dfa = getDfa(cp);
+			if(dfa != null) {
+				return new IDfaScan(r, dfa, next);
+			}
 			return encodeExpression(cp.localExpression, next, failjump);
 		}
 		if(cp.memoPoint != null) {
@@ -158,6 +391,13 @@ public class NezCompiler2 extends NezCompiler1 {
 	// AST Construction
 
 	public final Instruction encodeLink(Link p, Instruction next, Instruction failjump) {
+		if(option.enabledIncrementalParsing && p.get(0) instanceof NonTerminal) {
+			Production r = ((NonTerminal) p.get(0)).getProduction();
+			CodePoint cp = this.getCodePoint(r);
+			if(cp.memoPoint != null && isTreeProduction(r)) {
+				return new IMemoCall(cp, new ILink(p, next));  // the memoized subtree is linked
+			}
+		}
 		if(!option.enabledASTConstruction && p.get(0) instanceof NonTerminal) {
 			next = new ICommit(p, new ILink(p, next));
 			next = encodeNonTerminal((NonTerminal) p.get(0), next, failjump);
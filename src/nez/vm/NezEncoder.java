@@ -2,6 +2,7 @@ package nez.vm;
 
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import nez.NezOption;
@@ -127,6 +128,9 @@ public abstract class NezEncoder {
 	
 	protected void checkInlining(CodePoint cp) {
 		//Verbose.debug("ref " + cp.production.getLocalName() + " " + cp.ref);
+		if(isReusedProduction(cp.production)) {
+			return;  // memoized to reuse the subtree
+		}
 		if(cp.ref == 1 || GrammarOptimizer.isSingleCharacter(cp.localExpression)) {
 			cp.inlining = true;
 		}
@@ -137,9 +141,14 @@ public abstract class NezEncoder {
 			return ;
 		}
 		Production p = cp.production;
-		if(cp.ref > 2 && p.inferTypestate() != Typestate.OperationType) {
+		if(option.enabledIncrementalParsing && definesSymbol(p)) {
+			return;  // a reused entry would skip the definition
+		}
+		boolean reused = isReusedProduction(p);
+		if((cp.ref > 2 || reused) && p.inferTypestate() != Typestate.OperationType) {
 			int memoId = memoPointList.size();
-			cp.memoPoint = new MemoPoint(memoId, p.getLocalName(), cp.localExpression, p.isContextual());
+			boolean adaptive = option.enabledAdaptiveMemo && !option.enabledPackratParsing && !option.enabledIncrementalParsing;
+			cp.memoPoint = new MemoPoint(memoId, p.getLocalName(), cp.localExpression, p.isContextual(), adaptive);
 			memoPointList.add(cp.memoPoint);
 			if(Verbose.PackratParsing) {
 				Verbose.debug("memo " + cp.memoPoint + " ref="+ cp.ref + " pure? " + p.isNoNTreeConstruction() + " rec? " + p.isRecursive());
@@ -147,6 +156,43 @@ public abstract class NezEncoder {
 		}
 	}
 
+	protected final boolean isTreeProduction(Production p) {
+		return option.enabledASTConstruction && p.inferTypestate() == Typestate.ObjectType;
+	}
+
+	/* the subtree is reused by incremental parsing, unless it depends on symbols */
+	protected final boolean isReusedProduction(Production p) {
+		return option.enabledIncrementalParsing && isTreeProduction(p) && !p.isContextual() && !definesSymbol(p);
+	}
+
+	private HashMap<String, Boolean> definesMap = new HashMap<String, Boolean>();
+
+	/* whether p reaches an expression that changes the symbol table */
+	protected final boolean definesSymbol(Production p) {
+		Boolean b = definesMap.get(p.getUniqueName());
+		if(b == null) {
+			b = definesSymbol(p.getExpression(), new HashSet<String>());
+			definesMap.put(p.getUniqueName(), b);
+		}
+		return b;
+	}
+
+	private boolean definesSymbol(Expression e, HashSet<String> visited) {
+		if(e instanceof DefSymbol || e instanceof DefIndent || e instanceof Block || e instanceof LocalTable) {
+			return true;
+		}
+		if(e instanceof NonTerminal) {
+			Production p = ((NonTerminal) e).getProduction();
+			return p != null && visited.add(p.getUniqueName()) && definesSymbol(p.getExpression(), visited);
+		}
+		for(Expression sub : e) {
+			if(definesSymbol(sub, visited)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	// encoding
 
 //	private Instruction failed = new IFail(null);
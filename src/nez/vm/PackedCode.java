@@ -0,0 +1,989 @@
+package nez.vm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import nez.SourceContext;
+import nez.ast.Tag;
+import nez.main.Verbose;
+import nez.util.UList;
+
+/**
+ * PackedCode is the NezCode encoded into a flat int[] array. Each
+ * instruction is an opcode followed by its operands; jumps are indexes
+ * into the array and byte maps, tags and strings are kept in constant
+ * pools. run() interprets it in a single switch loop with primitive
+ * stacks in place of ContextStack objects.
+ */
+
+public class PackedCode {
+	/* opcodes */
+	final static int Exit = 0;           // status
+	final static int Jump = 1;           // addr
+	final static int Fail = 2;
+	final static int FailPush = 3;       // failjump
+	final static int FailPop = 4;
+	final static int FailSkip = 5;
+	final static int FailCheckSkip = 6;
+	final static int Call = 7;           // addr, return addr
+	final static int Ret = 8;
+	final static int PosPush = 9;
+	final static int PosBack = 10;
+	final static int AnyChar = 11;
+	final static int NotAnyChar = 12;
+	final static int ByteChar = 13;      // byte
+	final static int OptionByteChar = 14; // byte
+	final static int ByteMap = 15;       // map
+	final static int OptionByteMap = 16; // map
+	final static int NotByteMap = 17;    // map
+	final static int RepeatedByteMap = 18; // map
+	final static int MultiChar = 19;     // text, optional
+	final static int NotMultiChar = 20;  // text
+	final static int Consume = 21;
+	final static int Backtrack = 22;
+	final static int Dispatch = 23;      // addr * 257
+	final static int NodePush = 24;
+	final static int NodeStore = 25;     // index
+	final static int Commit = 26;
+	final static int Link = 27;          // index
+	final static int New = 28;           // shift
+	final static int LeftNew = 29;       // shift
+	final static int Capture = 30;
+	final static int Tagging = 31;       // tag
+	final static int Replace = 32;       // string
+	final static int Lookup = 33;        // memo, node, state, skip, failjump
+	final static int Memoize = 34;       // memo, node, state
+	final static int MemoizeFail = 35;   // memo, state
+	final static int BeginSymbolScope = 36; // failjump
+	final static int BeginLocalScope = 37;  // failjump, tag
+	final static int EndSymbolScope = 38;   // fail
+	final static int DefSymbol = 39;     // tag
+	final static int ExistsSymbol = 40;  // tag
+	final static int IsSymbol = 41;      // tag
+	final static int IsaSymbol = 42;     // tag
+	final static int DefIndent = 43;
+	final static int IsIndent = 44;
+	final static int DfaScan = 45;       // dfa
+	final static int ScanByteMap = 46;   // inst (IRepeatedByteMap with stop words)
+	final static int DispatchAt = 47;    // offset, addr * 257
+
+	final static int ExitFalse = 0;
+	final static int ExitTrue = 2;
+
+	private static int StackSize = 64;
+
+	final int[] code;
+	final int   startPoint;
+	final boolean[][] byteMaps;
+	final Object[]    values;
+	final MemoPoint[] memoPoints;
+	final List<MemoPoint> memoPointList;   // all memo points of the NezCode
+
+	PackedCode(int[] code, int startPoint, boolean[][] byteMaps, Object[] values, MemoPoint[] memoPoints, List<MemoPoint> memoPointList) {
+		this.code = code;
+		this.startPoint = startPoint;
+		this.byteMaps = byteMaps;
+		this.values = values;
+		this.memoPoints = memoPoints;
+		this.memoPointList = memoPointList;
+	}
+
+	public final int getCodeSize() {
+		return this.code.length;
+	}
+
+	public final List<MemoPoint> getMemoPointList() {
+		return this.memoPointList;
+	}
+
+	/* value kinds in a file */
+	final static int TagValue = 0;
+	final static int StringValue = 1;
+	final static int BytesValue = 2;
+	final static int DfaValue = 3;
+	final static int ScanValue = 4;
+
+	/**
+	 * Writes the code, with the constant pools and the memo points, so that
+	 * read() can restore it without the grammar. The memo call sites are
+	 * written unpatched.
+	 */
+	public final void write(DataOutputStream out) throws IOException {
+		int[] code = this.code.clone();
+		out.writeInt(this.memoPointList.size());
+		for(MemoPoint mp : this.memoPointList) {
+			out.writeInt(mp.id);
+			out.writeUTF(mp.label);
+			out.writeBoolean(mp.contextSensitive);
+			out.writeBoolean(mp.adaptive);
+			int[][] sites = mp.getPackedSites();
+			out.writeInt(sites.length);
+			for(int[] site : sites) {
+				code[site[0]] = site[1];
+				out.writeInt(site[0]);
+				out.writeInt(site[1]);
+				out.writeInt(site[2]);
+			}
+		}
+		out.writeInt(this.startPoint);
+		writeInts(out, code);
+		out.writeInt(this.byteMaps.length);
+		for(boolean[] map : this.byteMaps) {
+			writeMap(out, map);
+		}
+		out.writeInt(this.values.length);
+		for(Object v : this.values) {
+			if(v instanceof Tag) {
+				out.writeByte(TagValue);
+				out.writeUTF(((Tag) v).getName());
+			}
+			else if(v instanceof String) {
+				out.writeByte(StringValue);
+				out.writeUTF((String) v);
+			}
+			else if(v instanceof byte[]) {
+				out.writeByte(BytesValue);
+				out.writeInt(((byte[]) v).length);
+				out.write((byte[]) v);
+			}
+			else if(v instanceof Dfa) {
+				out.writeByte(DfaValue);
+				out.writeUTF(((Dfa) v).name);
+				writeInts(out, ((Dfa) v).table);
+			}
+			else if(v instanceof IRepeatedByteMap) {
+				IRepeatedByteMap op = (IRepeatedByteMap) v;
+				out.writeByte(ScanValue);
+				writeMap(out, op.byteMap);
+				out.writeInt(op.stopWords.length);
+				for(long w : op.stopWords) {
+					out.writeLong(w);
+				}
+			}
+			else {
+				throw new IOException("unsupported value: " + v);
+			}
+		}
+		out.writeInt(this.memoPoints.length);
+		for(MemoPoint mp : this.memoPoints) {
+			out.writeInt(this.memoPointList.indexOf(mp));
+		}
+	}
+
+	public final static PackedCode read(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		UList<MemoPoint> memoPointList = new UList<MemoPoint>(new MemoPoint[size]);
+		int[][][] sites = new int[size][][];
+		for(int i = 0; i < size; i++) {
+			memoPointList.add(new MemoPoint(in.readInt(), in.readUTF(), null, in.readBoolean(), in.readBoolean()));
+			sites[i] = new int[in.readInt()][];
+			for(int j = 0; j < sites[i].length; j++) {
+				sites[i][j] = new int[] { in.readInt(), in.readInt(), in.readInt() };
+			}
+		}
+		int startPoint = in.readInt();
+		int[] code = readInts(in);
+		boolean[][] byteMaps = new boolean[in.readInt()][];
+		for(int i = 0; i < byteMaps.length; i++) {
+			byteMaps[i] = readMap(in);
+		}
+		Object[] values = new Object[in.readInt()];
+		for(int i = 0; i < values.length; i++) {
+			switch(in.readByte()) {
+			case TagValue:
+				values[i] = Tag.tag(in.readUTF());
+				break;
+			case StringValue:
+				values[i] = in.readUTF();
+				break;
+			case BytesValue: {
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				values[i] = b;
+				break;
+			}
+			case DfaValue:
+				values[i] = new Dfa(in.readUTF(), readInts(in));
+				break;
+			case ScanValue: {
+				IRepeatedByteMap op = new IRepeatedByteMap(null, readMap(in), null);
+				op.stopWords = new long[in.readInt()];
+				for(int j = 0; j < op.stopWords.length; j++) {
+					op.stopWords[j] = in.readLong();
+				}
+				values[i] = op;
+				break;
+			}
+			default:
+				throw new IOException("broken value at " + i);
+			}
+		}
+		MemoPoint[] memoPoints = new MemoPoint[in.readInt()];
+		for(int i = 0; i < memoPoints.length; i++) {
+			memoPoints[i] = memoPointList.get(in.readInt());
+		}
+		for(int i = 0; i < size; i++) {
+			for(int[] site : sites[i]) {
+				memoPointList.get(i).addPackedSite(code, site[0], site[1], site[2]);
+			}
+		}
+		return new PackedCode(code, startPoint, byteMaps, values, memoPoints, memoPointList);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+		out.writeInt(a.length);
+		for(int n : a) {
+			out.writeInt(n);
+		}
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] a = new int[in.readInt()];
+		for(int i = 0; i < a.length; i++) {
+			a[i] = in.readInt();
+		}
+		return a;
+	}
+
+	private static void writeMap(DataOutputStream out, boolean[] map) throws IOException {
+		out.writeShort(map.length);
+		for(int i = 0; i < map.length; i += 8) {
+			int b = 0;
+			for(int j = 0; j < 8 && i + j < map.length; j++) {
+				if(map[i + j]) {
+					b |= 1 << j;
+				}
+			}
+			out.writeByte(b);
+		}
+	}
+
+	private static boolean[] readMap(DataInputStream in) throws IOException {
+		boolean[] map = new boolean[in.readUnsignedShort()];
+		for(int i = 0; i < map.length; i += 8) {
+			int b = in.readUnsignedByte();
+			for(int j = 0; j < 8 && i + j < map.length; j++) {
+				map[i + j] = (b & (1 << j)) != 0;
+			}
+		}
+		return map;
+	}
+
+	public final static PackedCode encode(NezCode code) {
+		try {
+			return new Encoder().encode(code);
+		}
+		catch(RuntimeException e) {
+			Verbose.println("packed: fallback to the interpreter; " + e.getMessage());
+			return null;
+		}
+	}
+
+	public final boolean run(SourceContext s) {
+		Context sc = s;
+		final int[] code = this.code;
+		long pos = sc.pos;
+		long head = sc.head_pos;
+		int[]     jumps = new int[StackSize];
+		long[]    poses = new long[StackSize];
+		ASTLog[]  logs  = new ASTLog[StackSize];
+		int[]     prevs = new int[StackSize];
+		jumps[0] = ExitFalse;
+		poses[0] = pos;
+		logs[0] = sc.getLastLog();
+		jumps[1] = ExitTrue;
+		int sp = 1, fp = 0, limit = StackSize;
+		int pc = this.startPoint;
+		while(true) {
+			if(sp + 2 >= limit) {
+				limit = jumps.length * 2;
+				jumps = grow(jumps, limit);
+				poses = grow(poses, limit);
+				logs = grow(logs, limit);
+				prevs = grow(prevs, limit);
+			}
+			switch(code[pc]) {
+			case Exit:
+				sc.pos = pos;
+				sc.head_pos = head;
+				return code[pc+1] == 1;
+			case Jump:
+				pc = code[pc+1];
+				continue;
+			case Fail:
+				break;
+			case FailPush:
+				sp++;
+				prevs[sp] = fp; fp = sp;
+				jumps[sp] = code[pc+1];
+				poses[sp] = pos;
+				logs[sp] = sc.getLastLog();
+				pc += 2;
+				continue;
+			case FailPop:
+				sp = fp - 1;
+				fp = prevs[fp];
+				pc += 1;
+				continue;
+			case FailCheckSkip:
+				if(pos == poses[fp]) {
+					break;
+				}
+			case FailSkip:
+				poses[fp] = pos;
+				logs[fp] = sc.getLastLog();
+				pc += 1;
+				continue;
+			case Call:
+				sp++;
+				jumps[sp] = code[pc+2];
+				pc = code[pc+1];
+				continue;
+			case Ret:
+				pc = jumps[sp];
+				sp--;
+				continue;
+			case PosPush:
+				sp++;
+				poses[sp] = pos;
+				pc += 1;
+				continue;
+			case PosBack:
+				if(head < pos) {
+					head = pos;
+				}
+				pos = poses[sp];
+				sp--;
+				pc += 1;
+				continue;
+			case AnyChar:
+				if(pos < sc.length()) {
+					pos++;
+					pc += 1;
+					continue;
+				}
+				break;
+			case NotAnyChar:
+				if(pos == sc.length()) {
+					pc += 1;
+					continue;
+				}
+				break;
+			case ByteChar:
+				if(sc.byteAt(pos) == code[pc+1]) {
+					pos++;
+					pc += 2;
+					continue;
+				}
+				break;
+			case OptionByteChar:
+				if(sc.byteAt(pos) == code[pc+1]) {
+					pos++;
+				}
+				pc += 2;
+				continue;
+			case ByteMap:
+				if(byteMaps[code[pc+1]][sc.byteAt(pos)]) {
+					pos++;
+					pc += 2;
+					continue;
+				}
+				break;
+			case OptionByteMap:
+				if(byteMaps[code[pc+1]][sc.byteAt(pos)]) {
+					pos++;
+				}
+				pc += 2;
+				continue;
+			case NotByteMap:
+				if(!byteMaps[code[pc+1]][sc.byteAt(pos)]) {
+					pc += 2;
+					continue;
+				}
+				break;
+			case RepeatedByteMap: {
+				boolean[] byteMap = byteMaps[code[pc+1]];
+				while(byteMap[sc.byteAt(pos)]) {
+					pos++;
+				}
+				pc += 2;
+				continue;
+			}
+			case ScanByteMap: {
+				IRepeatedByteMap op = (IRepeatedByteMap)values[code[pc+1]];
+				pos = sc.skipByteMap(pos, op.byteMap, op.stopWords);
+				pc += 2;
+				continue;
+			}
+			case DfaScan: {
+				long end = ((Dfa)values[code[pc+1]]).scan(sc, pos);
+				if(end >= 0) {
+					pos = end;
+					pc += 2;
+					continue;
+				}
+				if(head < sc.head_pos) {
+					head = sc.head_pos;
+				}
+				break;
+			}
+			case MultiChar: {
+				byte[] utf8 = (byte[])values[code[pc+1]];
+				if(sc.match(pos, utf8)) {
+					pos += utf8.length;
+					pc += 3;
+					continue;
+				}
+				if(code[pc+2] == 1) {
+					pc += 3;
+					continue;
+				}
+				break;
+			}
+			case NotMultiChar:
+				if(!sc.match(pos, (byte[])values[code[pc+1]])) {
+					pc += 2;
+					continue;
+				}
+				break;
+			case Consume:
+				pos++;
+				pc += 1;
+				continue;
+			case Backtrack:
+				pos--;
+				pc += 1;
+				continue;
+			case Dispatch:
+				pc = code[pc + 1 + sc.byteAt(pos)];
+				continue;
+			case DispatchAt:
+				pc = code[pc + 2 + sc.byteAt(pos + code[pc+1])];
+				continue;
+			case NodePush:
+				sp++;
+				logs[sp] = sc.getLastLog();
+				sc.setLeftObject(null);
+				pc += 1;
+				continue;
+			case NodeStore:
+				sc.storeNode(logs[sp], code[pc+1]);
+				sp--;
+				pc += 2;
+				continue;
+			case Commit:
+				sc.commitNode(logs[sp]);
+				sp--;
+				pc += 1;
+				continue;
+			case Link:
+				sc.linkNode(code[pc+1]);
+				pc += 2;
+				continue;
+			case New:
+				sc.pushLog(ASTLog.LazyNew, pos + code[pc+1], null);
+				pc += 2;
+				continue;
+			case LeftNew:
+				sc.pushLog(ASTLog.LazyLeftNew, pos + code[pc+1], null);
+				pc += 2;
+				continue;
+			case Capture:
+				sc.pushLog(ASTLog.LazyCapture, pos, null);
+				pc += 1;
+				continue;
+			case Tagging:
+				sc.pushLog(ASTLog.LazyTag, 0, values[code[pc+1]]);
+				pc += 2;
+				continue;
+			case Replace:
+				sc.pushLog(ASTLog.LazyReplace, 0, values[code[pc+1]]);
+				pc += 2;
+				continue;
+			case Lookup: {
+				MemoPoint mp = memoPoints[code[pc+1]];
+				boolean node = code[pc+2] == 1;
+				MemoEntry entry = code[pc+3] == 1 ?
+						sc.memoTable.getMemo2(pos, mp.id, sc.getSymbolTable().getState()) :
+						sc.memoTable.getMemo(pos, mp.id);
+				if(entry != null) {
+					if(entry.failed) {
+						sc.memoFailHit(mp);
+						break;
+					}
+					sc.memoHit(mp, entry.consumed);
+					pos += entry.consumed;
+					if(node) {
+						sc.setLeftObject(entry.result);
+					}
+					pc = code[pc+4];
+					continue;
+				}
+				sc.memoMiss(mp);
+				sp++;
+				prevs[sp] = fp; fp = sp;
+				jumps[sp] = code[pc+5];
+				poses[sp] = pos;
+				logs[sp] = sc.getLastLog();
+				if(node) {
+					sp++;
+					logs[sp] = logs[sp-1];
+					sc.setLeftObject(null);
+				}
+				pc += 6;
+				continue;
+			}
+			case Memoize: {
+				MemoPoint mp = memoPoints[code[pc+1]];
+				boolean node = code[pc+2] == 1;
+				if(node) {
+					sc.commitNode(logs[sp]);
+					sp--;
+				}
+				long spos = poses[sp];
+				int state = code[pc+3] == 1 ? sc.getSymbolTable().getState() : 0;
+				sc.memoTable.setMemo(spos, mp.id, false, node ? sc.getLeftObject() : null, (int)(pos - spos), state);
+				sp = fp - 1;
+				fp = prevs[fp];
+				pc += 4;
+				continue;
+			}
+			case MemoizeFail: {
+				int state = code[pc+2] == 1 ? sc.getSymbolTable().getState() : 0;
+				sc.memoTable.setMemo(pos, memoPoints[code[pc+1]].id, true, null, 0, state);
+				break;
+			}
+			case BeginSymbolScope:
+			case BeginLocalScope:
+				sp++;
+				prevs[sp] = fp; fp = sp;
+				jumps[sp] = code[pc+1];
+				poses[sp] = pos;
+				logs[sp] = sc.getLastLog();
+				sp++;
+				if(code[pc] == BeginSymbolScope) {
+					poses[sp] = sc.getSymbolTable().savePoint();
+					pc += 2;
+				}
+				else {
+					poses[sp] = sc.getSymbolTable().saveHiddenPoint((Tag)values[code[pc+2]]);
+					pc += 3;
+				}
+				continue;
+			case EndSymbolScope:
+				sc.getSymbolTable().rollBack((int)poses[sp]);
+				sp--;
+				if(code[pc+1] == 1) {
+					break;
+				}
+				sp = fp - 1;
+				fp = prevs[fp];
+				pc += 2;
+				continue;
+			case DefSymbol:
+				sc.getSymbolTable().addTable((Tag)values[code[pc+1]], sc.subbyte(poses[sp], pos));
+				sp--;
+				pc += 2;
+				continue;
+			case ExistsSymbol:
+				if(JitParser.existsSymbol(sc, (Tag)values[code[pc+1]])) {
+					pc += 2;
+					continue;
+				}
+				break;
+			case IsSymbol: {
+				int len = JitParser.isSymbol(sc, (Tag)values[code[pc+1]], pos);
+				if(len >= 0) {
+					pos += len;
+					pc += 2;
+					continue;
+				}
+				break;
+			}
+			case IsaSymbol: {
+				int len = JitParser.isaSymbol(sc, (Tag)values[code[pc+1]], poses[sp], pos);
+				sp--;
+				if(len >= 0) {
+					pos += len;
+					pc += 2;
+					continue;
+				}
+				break;
+			}
+			case DefIndent:
+				JitParser.defIndent(sc, pos);
+				pc += 1;
+				continue;
+			case IsIndent: {
+				int len = JitParser.isIndent(sc, pos);
+				if(len >= 0) {
+					pos += len;
+					pc += 1;
+					continue;
+				}
+				break;
+			}
+			}
+			/* failure */
+			if(head < pos) {
+				head = pos;
+			}
+			pos = poses[fp];
+			sc.abortLog(logs[fp]);
+			pc = jumps[fp];
+			sp = fp - 1;
+			fp = prevs[fp];
+		}
+	}
+
+	private static int[] grow(int[] a, int size) {
+		int[] n = new int[size];
+		System.arraycopy(a, 0, n, 0, a.length);
+		return n;
+	}
+
+	private static long[] grow(long[] a, int size) {
+		long[] n = new long[size];
+		System.arraycopy(a, 0, n, 0, a.length);
+		return n;
+	}
+
+	private static ASTLog[] grow(ASTLog[] a, int size) {
+		ASTLog[] n = new ASTLog[size];
+		System.arraycopy(a, 0, n, 0, a.length);
+		return n;
+	}
+
+	static class Encoder {
+		private UList<Instruction> order = new UList<Instruction>(new Instruction[256]);
+		private IdentityHashMap<Instruction, Integer> addrMap = new IdentityHashMap<Instruction, Integer>();
+		private UList<boolean[]> mapPool = new UList<boolean[]>(new boolean[16][]);
+		private UList<Object> valuePool = new UList<Object>(new Object[16]);
+		private UList<MemoPoint> memoPool = new UList<MemoPoint>(new MemoPoint[16]);
+		private UList<IMemoCall> callSites = new UList<IMemoCall>(new IMemoCall[16]);
+		private int[] code = new int[1024];
+		private int size = 0;
+
+		PackedCode encode(NezCode nc) {
+			IdentityHashMap<Instruction, Instruction> visited = new IdentityHashMap<Instruction, Instruction>();
+			for(Instruction inst : nc.getCodeList()) {
+				visit(visited, inst);
+			}
+			visit(visited, nc.getStartPoint());
+			/* address */
+			int addr = ExitTrue + 2;
+			for(int i = 0; i < order.size(); i++) {
+				Instruction inst = order.ArrayValues[i];
+				addrMap.put(inst, addr);
+				addr += width(inst);
+				if(needsJump(i)) {
+					addr += 2;
+				}
+			}
+			emit(Exit, 0);
+			emit(Exit, 1);
+			for(int i = 0; i < order.size(); i++) {
+				Instruction inst = order.ArrayValues[i];
+				assert(size == addrMap.get(inst));
+				encode(inst);
+				if(needsJump(i)) {
+					emit(Jump, addr(inst.next));
+				}
+			}
+			int[] packed = compact();
+			for(IMemoCall call : callSites) {  // patched when the memo point is deactivated
+				call.memoPoint.addPackedSite(packed, addr(call) + 1, addr(call.memoCodePoint), addr(call.nonMemoCodePoint));
+			}
+			return new PackedCode(packed, addr(nc.getStartPoint()), mapPool.compactArray(), valuePool.compactArray(), memoPool.compactArray(),
+					nc.memoPointList != null ? nc.memoPointList : new UList<MemoPoint>(new MemoPoint[0]));
+		}
+
+		private void visit(IdentityHashMap<Instruction, Instruction> visited, Instruction inst) {
+			UList<Instruction> stack = new UList<Instruction>(new Instruction[64]);
+			stack.add(inst);
+			while(stack.size() > 0) {
+				inst = stack.ArrayValues[stack.size() - 1];
+				stack.clear(stack.size() - 1);
+				/* follow the next chain first to keep fallthroughs */
+				while(inst != null && !visited.containsKey(inst)) {
+					visited.put(inst, inst);
+					order.add(inst);
+					push(stack, inst.branch());
+					if(inst instanceof ICallPush) {
+						push(stack, ((ICallPush) inst).jump);
+					}
+					if(inst instanceof IMemoCall) {
+						push(stack, ((IMemoCall) inst).returnPoint);
+						push(stack, ((IMemoCall) inst).memoCodePoint);
+						push(stack, ((IMemoCall) inst).nonMemoCodePoint);
+					}
+					if(inst instanceof ILookup) {
+						push(stack, ((ILookup) inst).skip);
+					}
+					if(inst instanceof IPredictDispatch) {
+						for(Instruction j : ((IPredictDispatch) inst).jumpTable) {
+							push(stack, j);
+						}
+					}
+					inst = hasNext(inst) ? inst.next : null;
+				}
+			}
+		}
+
+		private void push(UList<Instruction> stack, Instruction inst) {
+			if(inst != null) {
+				stack.add(inst);
+			}
+		}
+
+		private boolean hasNext(Instruction inst) {
+			return inst.next != null && !(inst instanceof IFail || inst instanceof IRet || inst instanceof IPredictDispatch);
+		}
+
+		private boolean needsJump(int i) {
+			Instruction inst = order.ArrayValues[i];
+			if(!hasNext(inst) || inst instanceof ICallPush || inst instanceof IMemoCall) {
+				return false;
+			}
+			return i + 1 == order.size() || order.ArrayValues[i + 1] != inst.next;
+		}
+
+		private int width(Instruction inst) {
+			if(inst instanceof IPredictDispatch) {
+				return ((IPredictDispatch) inst).offset > 0 ? 259 : 258;
+			}
+			if(inst instanceof ILookup) {
+				return 6;
+			}
+			if(inst instanceof IMemoize) {
+				return 4;
+			}
+			if(inst instanceof ICallPush || inst instanceof IMemoCall || inst instanceof IMemoizeFail
+					|| inst instanceof IBeginLocalScope || inst instanceof IMultiChar && !(inst instanceof INotMultiChar)) {
+				return 3;
+			}
+			if(inst instanceof IFailPush || inst instanceof IByteChar || inst instanceof IByteMap
+					|| inst instanceof INotByteMap || inst instanceof IRepeatedByteMap || inst instanceof INotMultiChar
+					|| inst instanceof INodeStore || inst instanceof ILink || inst instanceof INew || inst instanceof ILeftNew
+					|| inst instanceof ITag || inst instanceof IReplace || inst instanceof IEndSymbolScope
+					|| inst instanceof IDefSymbol || inst instanceof IExistsSymbol || inst instanceof IIsSymbol || inst instanceof IIsaSymbol
+					|| inst instanceof IDfaScan) {
+				return 2;
+			}
+			return 1;
+		}
+
+		private void encode(Instruction inst) {
+			if(inst instanceof IMemoizeFail) {
+				IMemoizeFail op = (IMemoizeFail) inst;
+				emit(MemoizeFail, memo(op.memoPoint), flag(op.state));
+			}
+			else if(inst instanceof IFail) {
+				emit(Fail);
+			}
+			else if(inst instanceof ILookup) {
+				ILookup op = (ILookup) inst;
+				emit(Lookup, memo(op.memoPoint), flag(op.node), flag(op.state), addr(op.skip), addr(op.failjump));
+			}
+			else if(inst instanceof IBeginSymbolScope) {
+				emit(BeginSymbolScope, addr(((IFailPush) inst).failjump));
+			}
+			else if(inst instanceof IBeginLocalScope) {
+				emit(BeginLocalScope, addr(((IFailPush) inst).failjump), value(((IBeginLocalScope) inst).tableName));
+			}
+			else if(inst instanceof IFailPush) {
+				emit(FailPush, addr(((IFailPush) inst).failjump));
+			}
+			else if(inst instanceof IFailPop) {
+				emit(FailPop);
+			}
+			else if(inst instanceof IFailCheckSkip) {
+				emit(FailCheckSkip);
+			}
+			else if(inst instanceof IFailSkip) {
+				emit(FailSkip);
+			}
+			else if(inst instanceof ICallPush) {
+				emit(Call, addr(inst.next), addr(((ICallPush) inst).jump));
+			}
+			else if(inst instanceof IMemoCall) {
+				IMemoCall call = (IMemoCall) inst;
+				callSites.add(call);
+				emit(Call, addr(call.next), addr(call.returnPoint));
+			}
+			else if(inst instanceof IRet) {
+				emit(Ret);
+			}
+			else if(inst instanceof IPosPush) {
+				emit(PosPush);
+			}
+			else if(inst instanceof IPosBack) {
+				emit(PosBack);
+			}
+			else if(inst instanceof IAnyChar) {
+				emit(AnyChar);
+			}
+			else if(inst instanceof INotAnyChar) {
+				emit(NotAnyChar);
+			}
+			else if(inst instanceof IOptionByteChar) {
+				emit(OptionByteChar, ((IByteChar) inst).byteChar);
+			}
+			else if(inst instanceof IByteChar) {
+				emit(ByteChar, ((IByteChar) inst).byteChar);
+			}
+			else if(inst instanceof IOptionByteMap) {
+				emit(OptionByteMap, map(((IByteMap) inst).byteMap));
+			}
+			else if(inst instanceof IByteMap) {
+				emit(ByteMap, map(((IByteMap) inst).byteMap));
+			}
+			else if(inst instanceof INotByteMap) {
+				emit(NotByteMap, map(((INotByteMap) inst).byteMap));
+			}
+			else if(inst instanceof IRepeatedByteMap) {
+				if(((IRepeatedByteMap) inst).stopWords != null) {
+					emit(ScanByteMap, value(inst));
+				}
+				else {
+					emit(RepeatedByteMap, map(((IRepeatedByteMap) inst).byteMap));
+				}
+			}
+			else if(inst instanceof IDfaScan) {
+				emit(DfaScan, value(((IDfaScan) inst).dfa));
+			}
+			else if(inst instanceof INotMultiChar) {
+				emit(NotMultiChar, value(((IMultiChar) inst).utf8));
+			}
+			else if(inst instanceof IMultiChar) {
+				IMultiChar op = (IMultiChar) inst;
+				emit(MultiChar, value(op.utf8), flag(op.optional));
+			}
+			else if(inst instanceof IConsume) {
+				emit(Consume);
+			}
+			else if(inst instanceof IBacktrack) {
+				emit(Backtrack);
+			}
+			else if(inst instanceof IPredictDispatch) {
+				if(((IPredictDispatch) inst).offset > 0) {
+					emit(DispatchAt, ((IPredictDispatch) inst).offset);
+				}
+				else {
+					emit(Dispatch);
+				}
+				for(Instruction j : ((IPredictDispatch) inst).jumpTable) {
+					emit(addr(j));
+				}
+			}
+			else if(inst instanceof INodePush) {
+				emit(NodePush);
+			}
+			else if(inst instanceof INodeStore) {
+				emit(NodeStore, ((INodeStore) inst).index);
+			}
+			else if(inst instanceof ICommit) {
+				emit(Commit);
+			}
+			else if(inst instanceof ILink) {
+				emit(Link, ((ILink) inst).index);
+			}
+			else if(inst instanceof INew) {
+				emit(New, ((INew) inst).shift);
+			}
+			else if(inst instanceof ILeftNew) {
+				emit(LeftNew, ((ILeftNew) inst).shift);
+			}
+			else if(inst instanceof ICapture) {
+				emit(Capture);
+			}
+			else if(inst instanceof ITag) {
+				emit(Tagging, value(((ITag) inst).tag));
+			}
+			else if(inst instanceof IReplace) {
+				emit(Replace, value(((IReplace) inst).value));
+			}
+			else if(inst instanceof IMemoize) {
+				IMemoize op = (IMemoize) inst;
+				emit(Memoize, memo(op.memoPoint), flag(op.node), flag(op.state));
+			}
+			else if(inst instanceof IEndSymbolScope) {
+				emit(EndSymbolScope, flag(((IEndSymbolScope) inst).fail));
+			}
+			else if(inst instanceof IDefSymbol) {
+				emit(DefSymbol, value(((IDefSymbol) inst).tableName));
+			}
+			else if(inst instanceof IExistsSymbol) {
+				emit(ExistsSymbol, value(((IExistsSymbol) inst).tableName));
+			}
+			else if(inst instanceof IIsSymbol) {
+				emit(IsSymbol, value(((IIsSymbol) inst).tableName));
+			}
+			else if(inst instanceof IIsaSymbol) {
+				emit(IsaSymbol, value(((IIsaSymbol) inst).tableName));
+			}
+			else if(inst instanceof IDefIndent) {
+				emit(DefIndent);
+			}
+			else if(inst instanceof IIsIndent) {
+				emit(IsIndent);
+			}
+			else {
+				throw new RuntimeException("unsupported instruction " + inst.getName());
+			}
+		}
+
+		private void emit(int... ops) {
+			for(int op : ops) {
+				if(size == code.length) {
+					code = grow(code, size * 2);
+				}
+				code[size++] = op;
+			}
+		}
+
+		private int[] compact() {
+			int[] a = new int[size];
+			System.arraycopy(code, 0, a, 0, size);
+			return a;
+		}
+
+		private int addr(Instruction inst) {
+			Integer addr = addrMap.get(inst);
+			if(addr == null) {
+				throw new RuntimeException("unresolved jump " + inst);
+			}
+			return addr;
+		}
+
+		private int flag(boolean b) {
+			return b ? 1 : 0;
+		}
+
+		private int map(boolean[] byteMap) {
+			return index(mapPool, byteMap);
+		}
+
+		private int value(Object value) {
+			return index(valuePool, value);
+		}
+
+		private int memo(MemoPoint mp) {
+			return index(memoPool, mp);
+		}
+
+		private <T> int index(UList<T> pool, T value) {
+			for(int i = 0; i < pool.size(); i++) {
+				if(pool.ArrayValues[i] == value) {
+					return i;
+				}
+			}
+			pool.add(value);
+			return pool.size() - 1;
+		}
+	}
+
+}
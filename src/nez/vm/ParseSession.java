@@ -0,0 +1,95 @@
+package nez.vm;
+
+import java.util.List;
+
+/**
+ * ParseSession holds the mutable state of a single parse: the memo table,
+ * the symbol table, the jump stack, the AST log pool and the memo
+ * statistics. A compiled grammar is immutable and can be shared by many
+ * threads, while each thread parses with its own session. A session is
+ * reset and reused for the next input on the same thread.
+ */
+
+public final class ParseSession {
+	final MemoTable memoTable;
+	final SymbolTable symbolTable = new SymbolTable();
+	ContextStack[] contextStacks = null;
+	ASTLog unusedDataLog = null;
+
+	// hit, failHit, miss, hitLength, maxLength per memo point
+	private final long[] memoStat;
+	private boolean active = false;
+	private boolean used = false;
+	private boolean adaptive = true;
+
+	public ParseSession(MemoTable memoTable, int memoPointSize) {
+		this.memoTable = memoTable;
+		this.memoStat = new long[memoPointSize * 5];
+	}
+
+	/**
+	 * Keeps the memo points active in this session, so that a sample
+	 * parse measures every lookup (see nez.lang.MemoTuning).
+	 */
+	public final void disableAdaptiveMemo() {
+		this.adaptive = false;
+	}
+
+	public final boolean isActive() {
+		return this.active;
+	}
+
+	final void begin() {
+		if(this.used) {
+			this.memoTable.clear();
+			this.symbolTable.clear();
+		}
+		this.active = true;
+		this.used = true;
+	}
+
+	final void end(ContextStack[] contextStacks, ASTLog unusedDataLog) {
+		this.contextStacks = contextStacks;
+		this.unusedDataLog = unusedDataLog;
+		this.active = false;
+	}
+
+	final void memoHit(int memoId, int consumed) {
+		int n = memoId * 5;
+		this.memoStat[n] += 1;
+		this.memoStat[n+3] += consumed;
+		if(this.memoStat[n+4] < consumed) {
+			this.memoStat[n+4] = consumed;
+		}
+	}
+
+	final void memoFailHit(int memoId) {
+		this.memoStat[memoId * 5 + 1] += 1;
+	}
+
+	final void memoMiss(MemoPoint mp) {
+		int n = mp.id * 5;
+		long miss = this.memoStat[n+2] += 1;
+		if((miss & 31) == 0 && mp.adaptive && this.adaptive) {
+			mp.check(this.memoStat[n] + this.memoStat[n+1], miss);
+		}
+	}
+
+	/**
+	 * Merges the memo statistics of this session into the shared memo points.
+	 */
+	public final void flushMemoStat(NezCode code) {
+		List<MemoPoint> memoPointList = code.memoPointList;
+		if(memoPointList == null) {
+			return;
+		}
+		long[] s = this.memoStat;
+		for(MemoPoint mp : memoPointList) {
+			int n = mp.id * 5;
+			if(n + 4 < s.length && (s[n] | s[n+1] | s[n+2]) != 0) {
+				mp.merge(s[n], s[n+1], s[n+2], s[n+3], s[n+4]);
+				s[n] = 0; s[n+1] = 0; s[n+2] = 0; s[n+3] = 0; s[n+4] = 0;
+			}
+		}
+	}
+}
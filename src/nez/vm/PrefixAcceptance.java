@@ -0,0 +1,371 @@
+package nez.vm;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import nez.lang.ASTOperation;
+import nez.lang.And;
+import nez.lang.AnyChar;
+import nez.lang.ByteChar;
+import nez.lang.ByteMap;
+import nez.lang.Choice;
+import nez.lang.DefIndent;
+import nez.lang.Empty;
+import nez.lang.Expression;
+import nez.lang.Failure;
+import nez.lang.IfFlag;
+import nez.lang.New;
+import nez.lang.NonTerminal;
+import nez.lang.Not;
+import nez.lang.Option;
+import nez.lang.PossibleAcceptance;
+import nez.lang.Production;
+import nez.lang.Repetition;
+import nez.lang.Repetition1;
+import nez.lang.Sequence;
+import nez.lang.Unary;
+
+/**
+ * PrefixAcceptance tells which bytes can follow a few given bytes in an
+ * input that an expression matches (--option:predict). Nonterminals are
+ * followed into their productions, so the bytes after a keyword or a
+ * punctuation are seen through the calls. All the next bytes are tried
+ * at once: a state holds, for each offset in the prefix, the set of the
+ * next bytes with which the offset is reached. The analysis is
+ * conservative; what cannot be decided within the prefix (symbols,
+ * indents, recursion) is accepted, so a rejected byte is never matched.
+ */
+
+class PrefixAcceptance {
+	private final int[] prefix;
+	private final int len;      // the offset of the next byte
+	private final int beyond;   // the offset after the next byte
+	private final IdentityHashMap<Production, long[][][]> scanMemo = new IdentityHashMap<Production, long[][][]>();
+	private final IdentityHashMap<Production, long[][][]> matchMemo = new IdentityHashMap<Production, long[][][]>();
+	private final IdentityHashMap<Expression, long[]> charMap = new IdentityHashMap<Expression, long[]>();
+
+	private final static int Words = 5;  // 257 bits
+	private final static long[] All = { -1L, -1L, -1L, -1L, 1L };
+	private final static long[][] Busy = new long[0][];
+
+	PrefixAcceptance(int[] prefix, int len) {
+		this.prefix = Arrays.copyOf(prefix, len);
+		this.len = len;
+		this.beyond = len + 1;
+	}
+
+	/* the bytes that can follow the prefix in an input that e matches */
+	final long[] nextBytes(Expression e) {
+		return union(scan(e, unit(0)));
+	}
+
+	static boolean contains(long[] set, int ch) {
+		return (set[ch >> 6] & (1L << (ch & 63))) != 0;
+	}
+
+	/* sets of bytes */
+
+	private static boolean isEmpty(long[] set) {
+		for(int i = 0; i < Words; i++) {
+			if(set[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void or(long[] set, long[] set2) {
+		for(int i = 0; i < Words; i++) {
+			set[i] |= set2[i];
+		}
+	}
+
+	private static long[] and(long[] set, long[] set2) {
+		long[] r = new long[Words];
+		for(int i = 0; i < Words; i++) {
+			r[i] = set[i] & set2[i];
+		}
+		return r;
+	}
+
+	private static long[] andNot(long[] set, long[] set2) {
+		long[] r = new long[Words];
+		for(int i = 0; i < Words; i++) {
+			r[i] = set[i] & ~set2[i];
+		}
+		return r;
+	}
+
+	private long[] charSet(Expression e) {
+		long[] set = charMap.get(e);
+		if(set == null) {
+			set = new long[Words];
+			for(int ch = 0; ch < 257; ch++) {
+				if(e.acceptByte(ch) == PossibleAcceptance.Accept) {
+					set[ch >> 6] |= 1L << (ch & 63);
+				}
+			}
+			charMap.put(e, set);
+		}
+		return set;
+	}
+
+	/* states */
+
+	private long[][] empty() {
+		long[][] s = new long[beyond + 1][];
+		for(int i = 0; i <= beyond; i++) {
+			s[i] = new long[Words];
+		}
+		return s;
+	}
+
+	private long[][] unit(int i) {
+		long[][] s = empty();
+		s[i] = All.clone();
+		return s;
+	}
+
+	private static long[] union(long[][] s) {
+		long[] r = new long[Words];
+		for(long[] set : s) {
+			or(r, set);
+		}
+		return r;
+	}
+
+	private static void or(long[][] s, long[][] s2) {
+		for(int i = 0; i < s.length; i++) {
+			or(s[i], s2[i]);
+		}
+	}
+
+	private static boolean equals(long[][] s, long[][] s2) {
+		for(int i = 0; i < s.length; i++) {
+			for(int j = 0; j < Words; j++) {
+				if(s[i][j] != s2[i][j]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/* any offset after a reached one */
+	private long[][] any(long[][] s) {
+		long[][] r = empty();
+		for(int i = 0; i <= beyond; i++) {
+			for(int j = i; j <= beyond; j++) {
+				or(r[j], s[i]);
+			}
+		}
+		return r;
+	}
+
+	private boolean isBeyond(long[][] s) {
+		for(int i = 0; i < beyond; i++) {
+			if(!isEmpty(s[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* the offsets that e reaches from those of s */
+	private long[][] scan(Expression e, long[][] s) {
+		if(isBeyond(s)) {
+			return s;  // the rest is not seen
+		}
+		if(e instanceof ByteChar || e instanceof ByteMap || e instanceof AnyChar) {
+			long[][] r = empty();
+			for(int i = 0; i < len; i++) {
+				if(e.acceptByte(prefix[i]) == PossibleAcceptance.Accept) {
+					or(r[i + 1], s[i]);
+				}
+			}
+			or(r[beyond], s[beyond]);
+			or(r[beyond], and(s[len], charSet(e)));
+			return r;
+		}
+		if(e instanceof Sequence) {
+			return scan(e.get(1), scan(e.get(0), s));
+		}
+		if(e instanceof Choice) {
+			long[][] r = empty();
+			for(Expression sub : e) {
+				or(r, scan(sub, s));
+			}
+			return r;
+		}
+		if(e instanceof NonTerminal) {
+			return scan(((NonTerminal) e).getProduction(), s);
+		}
+		if(e instanceof Option) {
+			long[][] r = empty();
+			or(r, s);
+			or(r, scan(e.get(0), s));
+			return r;
+		}
+		if(e instanceof Repetition) {
+			long[][] r = e instanceof Repetition1 ? scan(e.get(0), s) : s;
+			while(true) {
+				long[][] r2 = empty();
+				or(r2, r);
+				or(r2, scan(e.get(0), r));
+				if(equals(r, r2)) {
+					return r;
+				}
+				r = r2;
+			}
+		}
+		if(e instanceof And || e instanceof Not) {
+			long[][] r = empty();
+			or(r[beyond], s[beyond]);
+			for(int i = 0; i < beyond; i++) {
+				if(!isEmpty(s[i])) {
+					r[i] = e instanceof And ? and(s[i], possible(e.get(0), i)) : andNot(s[i], certain(e.get(0), i));
+				}
+			}
+			return r;
+		}
+		if(e instanceof Failure) {
+			return empty();
+		}
+		if(isUnconsumed(e)) {
+			return s;
+		}
+		if(e instanceof Unary) {
+			return scan(e.get(0), s);  // link, block, symbol definition, flag
+		}
+		return any(s);
+	}
+
+	/* a production is scanned once from each offset */
+	private long[][] scan(Production p, long[][] s) {
+		long[][] r = empty();
+		for(int i = 0; i <= beyond; i++) {
+			if(isEmpty(s[i])) {
+				continue;
+			}
+			long[][] ri = (p == null || i == beyond) ? any(unit(i)) : scanFrom(p, i);
+			for(int j = 0; j <= beyond; j++) {
+				or(r[j], and(ri[j], s[i]));
+			}
+		}
+		return r;
+	}
+
+	private long[][] scanFrom(Production p, int i) {
+		long[][][] m = scanMemo.get(p);
+		if(m == null) {
+			m = new long[beyond + 1][][];
+			scanMemo.put(p, m);
+		}
+		if(m[i] == Busy) {
+			return any(unit(i));  // a recursion within the prefix
+		}
+		if(m[i] == null) {
+			m[i] = Busy;
+			m[i] = scan(p.getExpression(), unit(i));
+		}
+		return m[i];
+	}
+
+	/* the next bytes with which e may match from i */
+	private long[] possible(Expression e, int i) {
+		return union(scan(e, unit(i)));
+	}
+
+	/* the next bytes with which e surely matches from i */
+	private long[] certain(Expression e, int i) {
+		return union(match(e, i));
+	}
+
+	/* the offsets where e surely ends from i */
+	private long[][] match(Expression e, int i) {
+		if(e instanceof ByteChar || e instanceof ByteMap || e instanceof AnyChar) {
+			long[][] r = empty();
+			if(i < len && e.acceptByte(prefix[i]) == PossibleAcceptance.Accept) {
+				r[i + 1] = All.clone();
+			}
+			if(i == len) {
+				r[beyond] = charSet(e).clone();
+			}
+			return r;
+		}
+		if(e instanceof Sequence) {
+			long[][] m = match(e.get(0), i);
+			long[][] r = empty();
+			for(int j = 0; j <= beyond; j++) {
+				if(!isEmpty(m[j])) {
+					long[][] m2 = match(e.get(1), j);
+					for(int k = 0; k <= beyond; k++) {
+						or(r[k], and(m2[k], m[j]));
+					}
+				}
+			}
+			return r;
+		}
+		if(e instanceof Choice) {
+			long[][] r = empty();
+			long[] rest = All.clone();
+			for(Expression sub : e) {
+				long[] p = and(possible(sub, i), rest);  // the first alternative that may match
+				if(isEmpty(p)) {
+					continue;
+				}
+				long[][] m = match(sub, i);
+				for(int j = 0; j <= beyond; j++) {
+					or(r[j], and(m[j], p));
+				}
+				rest = andNot(rest, p);
+				if(isEmpty(rest)) {
+					break;
+				}
+			}
+			return r;
+		}
+		if(e instanceof NonTerminal) {
+			Production p = ((NonTerminal) e).getProduction();
+			return p == null ? empty() : matchFrom(p, i);
+		}
+		if(e instanceof Not) {
+			long[][] r = empty();
+			if(i < beyond) {
+				r[i] = andNot(All, possible(e.get(0), i));
+			}
+			return r;
+		}
+		if(e instanceof Option || e instanceof Repetition || e instanceof And) {
+			return empty();
+		}
+		if(isUnconsumed(e)) {
+			return unit(i);
+		}
+		if(e instanceof Unary) {
+			return match(e.get(0), i);
+		}
+		return empty();
+	}
+
+	private long[][] matchFrom(Production p, int i) {
+		long[][][] m = matchMemo.get(p);
+		if(m == null) {
+			m = new long[beyond + 1][][];
+			matchMemo.put(p, m);
+		}
+		if(m[i] == Busy) {
+			return empty();  // a recursion is not sure
+		}
+		if(m[i] == null) {
+			m[i] = Busy;
+			m[i] = match(p.getExpression(), i);
+		}
+		return m[i];
+	}
+
+	/* flags are taken as set */
+	private static boolean isUnconsumed(Expression e) {
+		return e instanceof Empty || e instanceof New || e instanceof IfFlag || e instanceof DefIndent || e instanceof ASTOperation;
+	}
+}
@@ -1,7 +1,16 @@
 package nez.vm;
 
+import java.util.Arrays;
+
 import nez.ast.Tag;
-import nez.util.UList;
+
+/**
+ * SymbolTable is a stack of symbols, save points and counters, which is
+ * rolled back on backtracking. Two indexes over the stack avoid linear
+ * scans: the top available entry of each table (exists, getSymbol, count)
+ * and hash chains of symbols (contains, contains2). Each entry records the
+ * index heads it replaced, so rollBack restores them in the reverse order.
+ */
 
 public class SymbolTable {
 	public final static byte[] NullSymbol = {0,0,0,0}; // to distinguish others
@@ -12,12 +21,26 @@ public class SymbolTable {
 	public int stateValue = 0;
 	int stateCount = 0;
 
+	private int[] tableTops = new int[16];   // indexed by Tag.tagId
+	private int[] hashHeads = new int[256];
+	private int hashMask = 255;
+	private int hashSize = 0;
+
+	public SymbolTable() {
+		Arrays.fill(this.tableTops, -1);
+		Arrays.fill(this.hashHeads, -1);
+	}
+
 	final class SymbolTableEntry2 {
 		Tag     table;
 		long    code;
 		byte[]  utf8;
 		boolean avail;   // if hidden, avail = false
+		int     prevTop;   // the previous top of the table, or NotIndexed
+		int     prevHash;  // the previous head of the hash chain, or NotIndexed
 	}
+
+	final static int NotIndexed = -2;
 	
 	final static long hashCode(byte[] utf8) {
 		long hashCode = 0;
@@ -41,12 +64,16 @@ public class SymbolTable {
 
 	
 	private void initEntry(int s, int e) {
+		initEntry2(this.tables, s, e);
+	}
+
+	private void initEntry2(SymbolTableEntry2[] tables, int s, int e) {
 		for(int i = s; i < e; i++) {
-			this.tables[i] = new SymbolTableEntry2();
+			tables[i] = new SymbolTableEntry2();
 		}
 	}
-	
-	private void push(Tag table, long code, byte[] utf8) {
+
+	private SymbolTableEntry2 push(Tag table, long code, byte[] utf8) {
 		if(!(tableSize < maxTableSize)) {
 			if(maxTableSize == 0) {
 				maxTableSize = 128;
@@ -57,8 +84,8 @@ public class SymbolTable {
 				maxTableSize *= 2;
 				SymbolTableEntry2[] newtable = new SymbolTableEntry2[maxTableSize];
 				System.arraycopy(this.tables, 0, newtable, 0, tables.length);
+				initEntry2(newtable, tables.length, maxTableSize);
 				this.tables = newtable;
-				initEntry(tables.length, maxTableSize);
 			}
 		}
 		SymbolTableEntry2 entry = tables[tableSize];
@@ -67,8 +94,63 @@ public class SymbolTable {
 		entry.code  = code;
 		entry.utf8  = utf8;
 		entry.avail = true;
+		entry.prevTop = NotIndexed;
+		entry.prevHash = NotIndexed;
 		this.stateCount += 1;
 		this.stateValue = stateCount;
+		return entry;
+	}
+
+	/* indexes */
+
+	private int top(Tag table) {
+		return table.tagId < this.tableTops.length ? this.tableTops[table.tagId] : -1;
+	}
+
+	private void indexTable(SymbolTableEntry2 entry) {
+		int id = entry.table.tagId;
+		if(!(id < this.tableTops.length)) {
+			int size = this.tableTops.length;
+			this.tableTops = Arrays.copyOf(this.tableTops, Math.max(size * 2, id + 1));
+			Arrays.fill(this.tableTops, size, this.tableTops.length, -1);
+		}
+		entry.prevTop = this.tableTops[id];
+		this.tableTops[id] = this.tableSize - 1;
+	}
+
+	private int bucket(long code) {
+		return (int)(code ^ (code >>> 32)) & this.hashMask;
+	}
+
+	private void indexHash(SymbolTableEntry2 entry, int index) {
+		int b = bucket(entry.code);
+		entry.prevHash = this.hashHeads[b];
+		this.hashHeads[b] = index;
+		this.hashSize++;
+	}
+
+	private void resizeHash() {
+		this.hashHeads = new int[this.hashHeads.length * 2];
+		this.hashMask = this.hashHeads.length - 1;
+		this.hashSize = 0;
+		Arrays.fill(this.hashHeads, -1);
+		for(int i = 0; i < this.tableSize; i++) {
+			if(tables[i].prevHash != NotIndexed) {
+				indexHash(tables[i], i);
+			}
+		}
+	}
+
+	final void clear() {
+		for(int i = 0; i < this.tableSize; i++) {
+			this.tables[i].utf8 = null;
+		}
+		this.tableSize = 0;
+		this.stateValue = 0;
+		this.stateCount = 0;
+		Arrays.fill(this.tableTops, -1);
+		Arrays.fill(this.hashHeads, -1);
+		this.hashSize = 0;
 	}
 
 	public final int savePoint() {
@@ -83,6 +165,16 @@ public class SymbolTable {
 	}
 
 	public final void rollBack(int savePoint) {
+		for(int i = this.tableSize - 1; i >= savePoint; i--) {
+			SymbolTableEntry2 entry = tables[i];
+			if(entry.prevTop != NotIndexed) {
+				this.tableTops[entry.table.tagId] = entry.prevTop;
+			}
+			if(entry.prevHash != NotIndexed) {
+				this.hashHeads[bucket(entry.code)] = entry.prevHash;
+				this.hashSize--;
+			}
+		}
 		this.stateValue = (int)tables[savePoint].code;
 		this.tableSize = savePoint;
 	}
@@ -92,32 +184,28 @@ public class SymbolTable {
 	}
 	
 	public final void addTable(Tag table, byte[] utf8) {
-		push(table, hashCode(utf8), utf8);
+		SymbolTableEntry2 entry = push(table, hashCode(utf8), utf8);
+		indexTable(entry);
+		if(this.hashSize * 4 > this.hashHeads.length * 3) {
+			resizeHash();
+		}
+		indexHash(entry, this.tableSize - 1);
 	}
 
 	public final boolean exists(Tag table) {
-		for(int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry2 entry = tables[i];
-			if(entry.table == table && entry.avail ) {
-				return true;
-			}
-		}
-		return false;
+		return top(table) != -1;
 	}
 
 	public final byte[] getSymbol(Tag table) {
-		for(int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry2 entry = tables[i];
-			if(entry.table == table && entry.avail ) {
-				return entry.utf8;
-			}
-		}
-		return null;
+		int i = top(table);
+		return i != -1 ? tables[i].utf8 : null;
 	}
 
+	/* save points and counters are not symbols in the hash chains */
+
 	public final boolean contains(Tag table, byte[] s) {
 		long code = hashCode(s);
-		for(int i = tableSize - 1; i >= 0; i--) {
+		for(int i = this.hashHeads[bucket(code)]; i != -1; i = tables[i].prevHash) {
 			SymbolTableEntry2 entry = tables[i];
 			if(entry.table == table && entry.code == code && equals(entry.utf8, s)) {
 				return entry.avail;
@@ -128,7 +216,7 @@ public class SymbolTable {
 
 	public final boolean contains2(Tag table, byte[] s) {
 		long code = hashCode(s);
-		for(int i = tableSize - 1; i >= 0; i--) {
+		for(int i = this.hashHeads[bucket(code)]; i != -1; i = tables[i].prevHash) {
 			SymbolTableEntry2 entry = tables[i];
 			if(entry.code == code && equals(entry.utf8, s)) {
 				if(entry.table == table && entry.avail) {
@@ -143,17 +231,16 @@ public class SymbolTable {
 	}
 	
 	public final void setCount(Tag table, int number) {
-		push(table, number, NullSymbol);
+		indexTable(push(table, number, NullSymbol));
 	}
 
 	public final boolean count(Tag table) {
-		for(int i = tableSize - 1; i >= 0; i--) {
+		int i = top(table);
+		if(i != -1) {
 			SymbolTableEntry2 entry = tables[i];
-			if(entry.table == table && entry.avail ) {
-				if(entry.code == 0) return false;
-				entry.code--;
-				return true;
-			}
+			if(entry.code == 0) return false;
+			entry.code--;
+			return true;
 		}
 		return false;
 	}
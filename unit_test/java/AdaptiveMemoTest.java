@@ -0,0 +1,93 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.vm.MemoPoint;
+import nez.vm.NezCode;
+
+import org.junit.Test;
+
+
+public class AdaptiveMemoTest {
+
+	private static Grammar load(String options) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		if(options != null) {
+			option.setOption(options);
+		}
+		return GrammarFile.loadGrammarFile("json.nez", option).newGrammar("File", option);
+	}
+
+	/* a json list with few memo hits */
+	private static String text(int size) {
+		StringBuilder sb = new StringBuilder("[\n");
+		for(int i = 0; i < size; i++) {
+			sb.append("  { \"id\": " + i + ", \"name\": \"item" + i + "\", \"tags\": [ \"a\", \"b\" ], \"ok\": true },\n");
+		}
+		sb.append("  null\n]\n");
+		return sb.toString();
+	}
+
+	/* the tree, or the error, and where the parser stopped */
+	private static String parse(Grammar g, String text) {
+		SourceContext sc = SourceContext.newStringContext(text);
+		Object node = g.parse(sc);
+		return (node == null ? sc.getSyntaxErrorMessage() : node.toString()) + "@" + sc.getPosition();
+	}
+
+	/* the deactivated memo points; their call sites call the productions */
+	private static int deactivated(Grammar g) {
+		int n = 0;
+		NezCode code = g.getCode();
+		for(MemoPoint mp : code.getMemoPointList()) {
+			if(mp.isActive()) {
+				assertTrue(mp.label, mp.countMemoCallSites() == mp.countCallSites());
+			}
+			else {
+				assertTrue(mp.label, mp.countCallSites() > 0 && mp.countMemoCallSites() == 0);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	@Test
+	public void testRuntimes() throws Exception {
+		Grammar g0 = load("-adaptive");
+		String[] options = { null, "packed", "jit" };
+		String[] inputs = { text(1), text(300), text(2), "[ 1, { \"a\": ] ]", text(300) };
+		for(String option : options) {
+			Grammar g = load(option);
+			assertTrue(option, g.getCode().getMemoPointSize() > 0 && deactivated(g) == 0);
+			for(String text : inputs) {
+				assertTrue(option + ": " + text, parse(g0, text).equals(parse(g, text)));
+			}
+			assertTrue(option, deactivated(g) > 0);
+			g.getCode().reactivateMemoPoints();
+			assertTrue(option, deactivated(g) == 0);
+			for(String text : inputs) {
+				assertTrue(option + ": " + text, parse(g0, text).equals(parse(g, text)));
+			}
+		}
+		assertTrue(deactivated(g0) == 0);
+	}
+
+	@Test
+	public void testReactivate() throws Exception {
+		String[] options = { "reactivate", "packed:reactivate", "jit:reactivate" };
+		for(String option : options) {
+			Grammar g = load(option);
+			parse(g, text(300));
+			assertTrue(option, deactivated(g) > 0);
+			parse(g, "[ 1 ]");  // too short to deactivate again
+			assertTrue(option, deactivated(g) == 0);
+		}
+		Grammar g = load(null);
+		parse(g, text(300));
+		int n = deactivated(g);
+		parse(g, "[ 1 ]");
+		assertTrue(n > 0 && deactivated(g) == n);
+	}
+}
@@ -0,0 +1,82 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.vm.MemoTable;
+
+import org.junit.Test;
+
+
+public class ArrayMemoTest {
+	/* REF is memoized with the symbol state; &<def> changes the state at the same position */
+	static final String Grammar =
+		"File = { (@Stmt _)* #File }\n" +
+		"Stmt = { REF '!' #Bang } / { &<def T NAME> REF '?' #Def } / { REF ';' #Semi } / { @Ref ',' #Pair } / { @Ref ':' #Label }\n" +
+		"REF = (<isa T> / NAME) ('.' NAME)*\n" +
+		"Ref = { NAME ('.' NAME)* #Name }\n" +
+		"NAME = [a-z]+\n" +
+		"_ = [ ]*\n";
+
+	/* one file for all tests; <isa T> is interned across grammars */
+	private static File file;
+	private static String text;
+
+	private static Grammar load(String options) throws Exception {
+		if(file == null) {
+			file = File.createTempFile("arraymemo", ".nez");
+			file.deleteOnExit();
+			FileWriter w = new FileWriter(file);
+			w.write(Grammar);
+			w.close();
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; sb.length() < 16 * 1024; i++) {
+				sb.append(i % 4 == 0 ? "ab.ef? " : i % 4 == 1 ? "gh.kl! " : i % 4 == 2 ? "mn.op; " : "q.rs:");
+			}
+			text = sb.toString();
+		}
+		NezOption option = NezOption.newDefaultOption();
+		option.setOption(options);
+		return GrammarFile.loadGrammarFile(file.getPath(), option).newGrammar("File", option);
+	}
+
+	private static MemoTable parse(String options, String expected) throws Exception {
+		SourceContext sc = SourceContext.newStringContext(text);
+		assertTrue(options, expected.equals(String.valueOf(load(options).parse(sc))));
+		return sc.getMemoTable();
+	}
+
+	@Test
+	public void testWays() throws Exception {
+		String expected = String.valueOf(load("memo").parse(SourceContext.newStringContext(text)));
+		MemoTable m = parse("arraymemo:ways=4:window=8", expected);
+		assertTrue(m.getClass().getSimpleName().equals("ElasticArrayTable"));
+		assertTrue(m.getUsedCount() > 0);
+		assertTrue(m.getInvalidatedCount() > 0);
+		assertTrue(m.getEvictedCount() > 0 && m.getEvictedCount() < m.getStoredCount());
+
+		/* a 1-way table loses as much as ElasticTable; more ways keep the hits */
+		MemoTable e1 = parse("window=1", expected);
+		MemoTable a1 = parse("arraymemo:ways=1:window=1", expected);
+		assertTrue(a1.getUsedCount() == e1.getUsedCount() && a1.getEvictedCount() == e1.getEvictedCount());
+		for(String ways : new String[] { "2", "4" }) {
+			MemoTable a = parse("arraymemo:ways=" + ways + ":window=1", expected);
+			assertTrue(ways, a.getUsedCount() > a1.getUsedCount() && a.getEvictedCount() < a1.getEvictedCount());
+			assertTrue(ways, a.getUsedCount() == m.getUsedCount() && a.getInvalidatedCount() == m.getInvalidatedCount());
+		}
+	}
+
+	@Test
+	public void testResults() throws Exception {
+		/* subtrees are memoized, and moved within a set on eviction */
+		String expected = String.valueOf(load("incremental").parse(SourceContext.newStringContext(text)));
+		for(String ways : new String[] { "1", "2", "4" }) {
+			MemoTable m = parse("incremental:arraymemo:ways=" + ways + ":window=1", expected);
+			assertTrue(ways, m.getUsedCount() > 0 && m.getEvictedCount() > 0);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.vm.BacktrackProfiler;
+
+import org.junit.Test;
+
+
+public class BacktrackProfilerTest {
+	static final String Grammar =
+		"File = { Name 'x' #X } / { Name 'y' #Y }\n" +
+		"Name = [a-c]+\n";
+
+	@Test
+	public void test() throws Exception {
+		File file = File.createTempFile("backtrack", ".nez");
+		file.deleteOnExit();
+		FileWriter w = new FileWriter(file);
+		w.write(Grammar);
+		w.close();
+		NezOption option = NezOption.newDefaultOption();
+		Grammar g = GrammarFile.loadGrammarFile(file.getPath(), option).newGrammar("File", option);
+		String expected = String.valueOf(g.parse(SourceContext.newStringContext("abcy")));
+
+		BacktrackProfiler prof = new BacktrackProfiler();
+		g.setBacktrackProfiler(prof);
+		assertTrue(expected.equals(String.valueOf(g.parse(SourceContext.newStringContext("abcy")))));
+		assertTrue(String.valueOf(prof.getWastedBytes()), prof.getWastedBytes() == 3);  // "abc" of the first alternative
+		assertTrue(prof.getInstructions() > 0);
+		g.parse(SourceContext.newStringContext("abcx"));
+		assertTrue(prof.getWastedBytes() == 3);
+	}
+}
@@ -0,0 +1,79 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.ast.BinaryTree;
+import nez.ast.BinaryTreeCursor;
+import nez.ast.BinaryTreeWriter;
+import nez.ast.CommonTree;
+import nez.ast.Tag;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Test;
+
+
+public class BinaryTreeTest {
+
+	@Test
+	public void test() throws Exception {
+		Grammar g = GrammarFile.loadGrammarFile("json.nez", NezOption.newDefaultOption()).newGrammar("File");
+		String text = "{ \"name\": \"n\u00e9z\", \"list\": [1, 2, { \"a\": true }, null], \"n\": -1.5e3 }";
+		SourceContext sc = SourceContext.newStringContext(text);
+		CommonTree t = g.parse(sc);
+		File f = File.createTempFile("nez", ".nezb");
+		f.deleteOnExit();
+		new BinaryTreeWriter(true).transform(f.getPath(), t);
+		BinaryTree b = BinaryTree.open(f.getPath());
+		assertTrue(b.hasEmbeddedSource());
+		assertTrue(t.toString().equals(b.toCommonTree().toString()));
+		BinaryTreeCursor cur = b.newCursor();
+		assertTrue(cur.size() == t.size());
+		int count = 0;
+		do {
+			count++;
+		} while(next(cur));
+		assertTrue(count == t.count());
+		cur.reset();
+		assertTrue(cur.child(0) && cur.child(1) && cur.getText().equals(t.get(0).get(1).getText()));
+		assertTrue(cur.parent() && !cur.child(2) && cur.getDepth() == 1);
+
+		new BinaryTreeWriter().transform(f.getPath(), t);
+		b = BinaryTree.open(f.getPath());
+		assertTrue(!b.hasEmbeddedSource() && b.getSource() == null);  // (string) is not a file
+		b.setSource(sc);
+		assertTrue(t.toString().equals(b.toCommonTree().toString()));
+	}
+
+	@Test
+	public void testValue() throws Exception {
+		SourceContext sc = SourceContext.newStringContext("abc");
+		CommonTree t = new CommonTree(Tag.tag("List"), sc, 0, 3, 3, null);
+		t.set(0, new CommonTree(Tag.tag("Name"), sc, 0, 1, 0, "replaced"));
+		t.set(2, new CommonTree(Tag.tag("Name"), sc, 2, 3, 0, null));
+		File f = File.createTempFile("nez", ".nezb");
+		f.deleteOnExit();
+		new BinaryTreeWriter(true).transform(f.getPath(), t);
+		BinaryTreeCursor cur = BinaryTree.open(f.getPath()).newCursor();
+		assertTrue(cur.child(0) && cur.getText().equals("replaced"));
+		assertTrue(cur.nextSibling() && cur.isNull());
+		assertTrue(cur.nextSibling() && cur.getText().equals("c") && !cur.nextSibling());
+		cur.reset();
+		assertTrue(t.toString().equals(cur.toCommonTree().toString()));
+	}
+
+	private boolean next(BinaryTreeCursor cur) {
+		if(cur.firstChild()) {
+			return true;
+		}
+		while(!cur.nextSibling()) {
+			if(!cur.parent()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
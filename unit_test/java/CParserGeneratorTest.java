@@ -0,0 +1,137 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.ast.CommonTree;
+import nez.generator.CParserGenerator;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+
+public class CParserGeneratorTest {
+
+	private static String run(File dir, String... command) throws IOException, InterruptedException {
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.directory(dir);
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		InputStream in = p.getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		p.waitFor();
+		return p.exitValue() + ":" + new String(out.toByteArray(), "UTF-8");
+	}
+
+	/* the generated C parser of the grammar; skipped without gcc */
+	private static File compile(Grammar g, NezOption option, File dir) throws Exception {
+		File libnez = new File("libnez/c/libnez.c").getAbsoluteFile();
+		Assume.assumeTrue(libnez.exists());
+		File c = new File(dir, "parser.c");
+		new CParserGenerator().generate(g, option, c.getPath());
+		File exe = new File(dir, "parser");
+		String r;
+		try {
+			r = run(dir, "gcc", "-O2", "-w", "-I", libnez.getParentFile().getParentFile().getParent(), c.getPath(), libnez.getPath(), "-lm", "-o", exe.getPath());
+		}
+		catch(IOException e) {
+			Assume.assumeTrue(false);  // no gcc
+			return null;
+		}
+		assertTrue(r, r.startsWith("0:"));
+		return exe;
+	}
+
+	private static File write(File dir, String text) throws IOException {
+		File f = File.createTempFile("input", ".txt", dir);
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+		return f;
+	}
+
+	/* as dump_pego() in libnez.c prints */
+	private static void dump(CommonTree t, int level, StringBuilder sb) {
+		for(int i = 0; i < level; i++) {
+			sb.append("  ");
+		}
+		sb.append("{" + t.getTag().getName() + " ");
+		if(t.size() == 0) {
+			sb.append("'" + t.getText() + "'");
+		}
+		else {
+			sb.append("\n");
+			for(int i = 0; i < t.size(); i++) {
+				dump(t.get(i), level + 1, sb);
+			}
+			for(int i = 0; i < level; i++) {
+				sb.append("  ");
+			}
+		}
+		sb.append("}\n");
+	}
+
+	private static void check(String file, String[] inputs) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		Grammar g = GrammarFile.loadGrammarFile(file, option).newGrammar("File", option);
+		File dir = File.createTempFile("cnez", "");
+		dir.delete();
+		dir.mkdir();
+		File exe = compile(g, option, dir);
+		for(String text : inputs) {
+			CommonTree t = g.parse(SourceContext.newStringContext(text));
+			File in = write(dir, text);
+			String r = run(dir, exe.getPath(), in.getPath());
+			if(t == null) {
+				assertTrue(text, r.startsWith("1:"));
+			}
+			else {
+				StringBuilder sb = new StringBuilder("0:");
+				dump(t, 0, sb);
+				assertTrue(text + "\n" + r, sb.toString().equals(r));
+			}
+			in.delete();
+		}
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		check("json.nez", new String[] {
+			"{ \"name\": \"n\u00e9z\", \"list\": [1, 2, { \"a\": true }, null], \"n\": -1.5e3 }",
+			"[[], {}, \"x\", false]",
+			"{ \"a\": }",
+		});
+	}
+
+	@Test
+	public void testMath() throws Exception {
+		check("math.nez", new String[] { "1+2*3", "(1+2)*3-4/5", "1-2-3" });
+	}
+
+	@Test
+	public void testXml() throws Exception {
+		check("xml.nez", new String[] { "<a x=\"1\" y='2'><b/>t<c>u</c></a>", "<a><b></a>" });
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		/* (@Line)* stops where Line consumes nothing */
+		check("csv.nez", new String[] { "a,b\n1,2\n", "a,b,c" });
+	}
+}
@@ -0,0 +1,48 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.ast.ColumnarTree;
+import nez.ast.CommonTree;
+import nez.ast.TreeCursor;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+
+public class ColumnarTreeTest {
+
+	@Test
+	public void test() throws Exception {
+		Grammar g = GrammarFile.loadGrammarFile("json.nez", NezOption.newDefaultOption()).newGrammar("File");
+		String text = "{ \"name\": \"nez\", \"list\": [1, 2, { \"a\": true }, null], \"n\": -1.5e3 }";
+		CommonTree t = g.parseAST(text);
+		ColumnarTree c = g.parseColumnarTree(SourceContext.newStringContext(text));
+		assertTrue(t.toString().equals(c.toCommonTree().toString()));
+		TreeCursor cur = c.newCursor();
+		assertTrue(cur.size() == t.size());
+		int count = 0;
+		do {
+			count++;
+		} while(next(cur));
+		assertTrue(count == t.count());
+		cur.reset();
+		assertTrue(cur.child(0) && cur.child(0) && cur.textEquals(StringUtils.toUtf8(t.get(0).get(0).getText())));
+		assertTrue(cur.parent() && cur.parent() && !cur.parent());
+	}
+
+	private boolean next(TreeCursor cur) {
+		if(cur.firstChild()) {
+			return true;
+		}
+		while(!cur.nextSibling()) {
+			if(!cur.parent()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,41 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.ast.CommonTree;
+import nez.ast.SourceText;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+
+public class CommonTreeTextTest {
+
+	@Test
+	public void test() throws Exception {
+		Grammar g = GrammarFile.loadGrammarFile("json.nez", NezOption.newDefaultOption()).newGrammar("File");
+		String text = "{ \"name\": \"nez\", \"text\": \"\u3042\u3044\u3046\", \"n\": [1, 23, 456] }";
+		check(g.parseAST(text), g.parseAST(text));
+	}
+
+	private void check(CommonTree view, CommonTree t) {
+		assertTrue(view.size() == t.size());
+		if(t.size() == 0) {
+			byte[] utf8 = StringUtils.toUtf8(t.getText());
+			assertTrue(view.textEquals(utf8));
+			assertTrue(view.textHash() == SourceText.textHash(utf8));
+			assertTrue(view.getTextView().toString().equals(t.getText()));
+			assertTrue(view.getTextView().length() == t.getText().length());
+			assertTrue(!view.textEquals(StringUtils.toUtf8(t.getText() + "x")));
+			/* the text is now cached in the node */
+			assertTrue(t.textEquals(utf8));
+			assertTrue(t.textHash() == SourceText.textHash(utf8));
+			return;
+		}
+		for(int i = 0; i < t.size(); i++) {
+			check(view.get(i), t.get(i));
+		}
+	}
+
+}
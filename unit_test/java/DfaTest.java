@@ -0,0 +1,67 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.lang.Production;
+import nez.vm.Dfa;
+import nez.vm.DfaConverter;
+
+import org.junit.Test;
+
+
+public class DfaTest {
+
+	@Test
+	public void testConvert() throws Exception {
+		GrammarFile file = GrammarFile.loadGrammarFile("java.nez", NezOption.newDefaultOption());
+		DfaConverter c = new DfaConverter(false);
+		for(String name : new String[] { "_", "NAME", "KEYWORD", "FLOAT", "STRING_CONTENT" }) {
+			Production p = file.getProduction(name);
+			Dfa dfa = c.convert(p);
+			assertTrue(name + ": " + c.getReason(), dfa != null && dfa.getStateSize() > 1);
+		}
+		assertTrue(c.convert(file.getProduction("Expression")) == null);
+	}
+
+	@Test
+	public void testJava() throws Exception {
+		String text = "/* a ** comment **/ package a.b;\n" +
+			"// line\n" +
+			"class A1 extends B { /**/ int x = 1.5e3f, y = 0x1F, w = 07L; String s = \"a\\\"b\\u00e9\";\n" +
+			"  void f() { while(true) { continue; } if(x >= 1) return; else { x = x * 2; } }\n" +
+			"  char c = '\\n'; boolean whileX = doIt instanceof Object; }\n" +
+			"/* unterminated";
+		check("java.nez", "File", text);
+		check("java.nez", "File", "class A { int x = 1; } // end");
+	}
+
+	@Test
+	public void testJs() throws Exception {
+		String text = "/* block ** comment **/\n" +
+			"var x = 1.5e3, s = \"a\\\"b\", t = 'c\\'d'; // trailing\n" +
+			"function f(a, b) { return a / b / 2 + /re[/]g\\/x/gi.test(s); }\n" +
+			"for (var i = 0; i < 10; i++) { console.log(i); } var instanceofx = typeof x;\n";
+		check("js.nez", "File", text);
+	}
+
+	private void check(String grammar, String start, String text) throws Exception {
+		Grammar g1 = load(grammar, start, false);
+		Grammar g2 = load(grammar, start, true);
+		for(int i = 1; i <= text.length(); i++) {
+			/* prefixes end in every state of a token */
+			String s = text.substring(0, i);
+			Object t1 = g1.parse(SourceContext.newStringContext(s));
+			Object t2 = g2.parse(SourceContext.newStringContext(s));
+			assertTrue(s, String.valueOf(t1).equals(String.valueOf(t2)));
+		}
+	}
+
+	private Grammar load(String grammar, String start, boolean dfa) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		option.setOption("dfa", dfa);
+		return GrammarFile.loadGrammarFile(grammar, option).newGrammar(start, option);
+	}
+
+}
@@ -0,0 +1,69 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarCache;
+
+import org.junit.Test;
+
+
+public class GrammarCacheTest {
+	static final String Grammar =
+		"File = { (@Pair)* #List }\n" +
+		"Pair = { Name '=' [0-9]+ ';' #Pair } / { Name ';' #Key }\n" +
+		"Name = [a-z]+\n";
+
+	@Test
+	public void test() throws Exception {
+		File dir = File.createTempFile("nez", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "pair.nez");
+		write(file, Grammar);
+		String cache = System.getProperty("nez.cache");
+		System.setProperty("nez.cache", dir.getPath());
+		try {
+			NezOption option = NezOption.newDefaultOption();
+			option.setOption("cache", true);
+			String text = "a=1;b;c=23;d";
+			Grammar g = GrammarCache.load(file.getPath(), "File", option);
+			assertTrue(!g.isCached());
+			String expected = g.parse(SourceContext.newStringContext(text)).toString();
+
+			g = GrammarCache.load(file.getPath(), "File", option);
+			assertTrue(g.isCached());
+			assertTrue(expected.equals(g.parse(SourceContext.newStringContext(text)).toString()));
+			assertTrue(g.getStartProduction().getLocalName().equals("File"));  // loaded on demand
+			assertTrue(expected.equals(g.parse(SourceContext.newStringContext(text)).toString()));
+
+			/* the cache of other options, and of a changed grammar, are not used */
+			NezOption option2 = option.clone();
+			option2.setOption("memo", false);
+			assertTrue(!GrammarCache.load(file.getPath(), "File", option2).isCached());
+			write(file, Grammar + "Pair2 = Pair\n");
+			assertTrue(!GrammarCache.load(file.getPath(), "File", option).isCached());
+		}
+		finally {
+			if(cache == null) {
+				System.clearProperty("nez.cache");
+			}
+			else {
+				System.setProperty("nez.cache", cache);
+			}
+			for(File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static void write(File file, String text) throws Exception {
+		FileWriter w = new FileWriter(file);
+		w.write(text);
+		w.close();
+	}
+}
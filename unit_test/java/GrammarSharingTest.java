@@ -0,0 +1,50 @@
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.lang.NezCombinator;
+
+import org.junit.Test;
+
+
+public class GrammarSharingTest {
+
+	@Test(timeout=60000)
+	public void test() throws Exception {
+		GrammarFile ns = NezCombinator.newGrammarFile();
+		final Grammar p = ns.newGrammar("File");
+		final String[] inputs = {
+			"File = _ Expr _\nExpr = Sum\nSum = Prod ('+' Prod)*\nProd = [0-9]+\n_ = [ \\t]*\n",
+			"A = { 'a'* #A }\nB = { @A ('b' / 'c')+ #B }\n",
+			"public File = S* (Rule S*)*\nRule = NAME S* '=' S* (!'\\n' .)*\nS = [ \\t\\n]\nNAME = [a-z]+\n",
+		};
+		final String[] expected = new String[inputs.length];
+		for(int i = 0; i < inputs.length; i++) {
+			expected[i] = p.parseAST(inputs[i]).toString();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for(int t = 0; t < 32; t++) {
+			final int n = t % inputs.length;
+			results.add(pool.submit(() -> {
+				for(int i = 0; i < 20; i++) {
+					if(!expected[n].equals(p.parseAST(inputs[n]).toString())) {
+						return false;
+					}
+				}
+				return true;
+			}));
+		}
+		for(Future<Boolean> r : results) {
+			assertTrue(r.get());
+		}
+		pool.shutdown();
+	}
+
+}
@@ -0,0 +1,87 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.vm.HotPathProfiler;
+
+import org.junit.Test;
+
+
+public class HotPathProfilerTest {
+
+	@Test
+	public void test() throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		option.setOption("inline", false);
+		Grammar g = GrammarFile.loadGrammarFile("math.nez", option).newGrammar("File", option);
+		String[] inputs = { "(1+2)*3-4/5", "1*2+3*(4+5)" };
+		String[] expected = new String[inputs.length];
+		for(int i = 0; i < inputs.length; i++) {
+			expected[i] = String.valueOf(g.parse(SourceContext.newStringContext(inputs[i])));
+		}
+		HotPathProfiler prof = new HotPathProfiler();
+		g.setHotPathProfiler(prof);
+		for(int i = 0; i < inputs.length; i++) {
+			assertTrue(expected[i].equals(String.valueOf(g.parse(SourceContext.newStringContext(inputs[i])))));
+		}
+		StringWriter w = new StringWriter();
+		prof.writeCollapsedStacks(new PrintWriter(w));
+		boolean product = false;
+		for(String line : w.toString().split("\n")) {
+			assertTrue(line, line.matches("File(;[^; ]+)* [1-9][0-9]*"));
+			if(line.startsWith("File;Expression;") && line.contains(";Product ")) {
+				product = true;
+			}
+		}
+		assertTrue(w.toString(), product);
+	}
+
+	/* the calls and fails of each production in the table */
+	private static HashMap<String, String> profile(String options, String text) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		if(options != null) {
+			option.setOption(options);
+		}
+		Grammar g = GrammarFile.loadGrammarFile("json.nez", option).newGrammar("File", option);
+		HotPathProfiler prof = new HotPathProfiler();
+		g.setHotPathProfiler(prof);
+		assertTrue(g.parse(SourceContext.newStringContext(text)) != null);
+		PrintStream out = System.out;
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(buf));
+		try {
+			prof.printTable(1000);
+		}
+		finally {
+			System.setOut(out);
+		}
+		HashMap<String, String> m = new HashMap<String, String>();
+		String[] lines = buf.toString().split("\n");
+		for(int i = 1; i < lines.length; i++) {
+			String[] c = lines[i].split("\t");
+			m.put(c[0], c[1] + "/" + c[2]);
+		}
+		return m;
+	}
+
+	@Test
+	public void testAdaptiveMemo() throws Exception {
+		/* deactivated memo points are still frames of their productions */
+		StringBuilder sb = new StringBuilder("[\n");
+		for(int i = 0; i < 300; i++) {
+			sb.append("  { \"id\": " + i + ", \"name\": \"item" + i + "\", \"tags\": [ \"a\", \"b\" ], \"ok\": true },\n");
+		}
+		sb.append("  null\n]\n");
+		HashMap<String, String> m = profile(null, sb.toString());
+		assertTrue(m.toString(), m.containsKey("S"));
+		assertTrue(m.toString(), m.equals(profile("-adaptive", sb.toString())));
+	}
+}
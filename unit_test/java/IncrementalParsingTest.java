@@ -0,0 +1,179 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import nez.NezOption;
+import nez.ast.CommonTree;
+import nez.io.EditableContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.util.StringUtils;
+import nez.vm.MemoTable;
+
+import org.junit.Test;
+
+
+public class IncrementalParsingTest {
+
+	/* an edit that keeps the text valid */
+	static abstract class Editor {
+		int offset;
+		int removed;
+		String inserted;
+
+		abstract void next(Random r, String text);
+
+		final void set(int offset, int removed, String inserted) {
+			this.offset = offset;
+			this.removed = removed;
+			this.inserted = inserted;
+		}
+	}
+
+	private static String resource(String name) throws Exception {
+		File f = new File(IncrementalParsingTest.class.getResource(name).toURI());
+		return new String(Files.readAllBytes(f.toPath()), "UTF-8");
+	}
+
+	/* each reparse matches a full parse; returns the memo table */
+	private static MemoTable check(String file, String text, Editor editor, int edits) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		option.setOption("incremental");
+		Grammar g = GrammarFile.loadGrammarFile(file, option).newGrammar("File", option);
+		Grammar full = GrammarFile.loadGrammarFile(file, NezOption.newDefaultOption()).newGrammar("File");
+		EditableContext sc = new EditableContext(text);
+		CommonTree t = g.parseIncremental(sc);
+		MemoTable memo = sc.getMemoTable();
+		assertTrue(file, t != null);
+		Random r = new Random(1);
+		for(int i = 0; i < edits; i++) {
+			editor.next(r, text);
+			text = text.substring(0, editor.offset) + editor.inserted + text.substring(editor.offset + editor.removed);
+			t = g.reparse(t, memo, editor.offset, editor.removed, StringUtils.toUtf8(editor.inserted));
+			CommonTree expected = full.parse(new EditableContext(text));
+			assertTrue(file + ": " + text, expected != null);
+			assertTrue(file + ": " + text, t != null && expected.toString().equals(t.toString()));
+		}
+		return memo;
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		StringBuilder sb = new StringBuilder("[\n");
+		for(int i = 0; i < 300; i++) {
+			sb.append("  { \"id\": " + i + ", \"name\": \"item" + i + "\", \"tags\": [ \"a\", \"b\" ], \"ok\": true },\n");
+		}
+		sb.append("  null\n]\n");
+		Editor editor = new Editor() {
+			@Override
+			void next(Random r, String text) {
+				int p = text.indexOf("\"id\": ", r.nextInt(text.length()));
+				if(p == -1) {
+					p = text.indexOf("\"id\": ");
+				}
+				int kind = r.nextInt(5);
+				if(p == -1) {
+					kind = 2;
+					p = 2;
+				}
+				int line = text.lastIndexOf('\n', p) + 1;
+				switch(kind) {
+				case 0: {  // a new id
+					int start = p + 6;
+					int end = start;
+					while(Character.isDigit(text.charAt(end))) {
+						end++;
+					}
+					set(start, end - start, "" + r.nextInt(100000));
+					break;
+				}
+				case 1:
+					set(r.nextInt(text.length() + 1), 0, "");
+					break;
+				case 2:
+					set(line, 0, "  { \"id\": 7, \"name\": \"new\", \"tags\": [], \"ok\": false },\n");
+					break;
+				case 3:
+					set(line, text.indexOf('\n', p) + 1 - line, "");
+					break;
+				default:
+					set(line, 0, " ");
+				}
+			}
+		};
+		MemoTable memo = check("json.nez", sb.toString(), editor, 200);
+		assertTrue(memo.getUsedCount() > 0);  // subtrees are reused
+	}
+
+	@Test
+	public void testSymbols() throws Exception {
+		String file = IncrementalParsingTest.class.getResource("symbols.nez").getPath();
+		String[] empty = { "", " " };
+		for(String inserted : empty) {
+			NezOption option = NezOption.newDefaultOption();
+			option.setOption("incremental");
+			Grammar g = GrammarFile.loadGrammarFile(file, option).newGrammar("File", option);
+			EditableContext sc = new EditableContext("def a;use a;");
+			CommonTree t = g.parseIncremental(sc);
+			t = g.reparse(t, sc.getMemoTable(), 12, 0, StringUtils.toUtf8(inserted));
+			assertTrue(inserted, t != null && t.size() == 2);
+		}
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 100; i++) {
+			sb.append("def a" + i + ";\nuse a" + (i / 2) + ";\n");
+		}
+		Editor editor = new Editor() {
+			int count = 0;
+
+			@Override
+			void next(Random r, String text) {
+				int p = r.nextInt(text.length() + 1);
+				int b = text.lastIndexOf(';', p - 1) + 1;  // between statements
+				switch(r.nextInt(5)) {
+				case 0:
+					set(p, 0, "");
+					break;
+				case 1:
+					set(b, 0, r.nextBoolean() ? " " : "\n");
+					break;
+				case 2:
+					set(b, 0, "def b" + (count++) + ";");
+					break;
+				case 3:
+					set(b, 0, "def c" + count + ";use c" + (count++) + ";");
+					break;
+				default: {  // removes a use
+					int u = text.indexOf("use ", p);
+					if(u == -1) {
+						set(b, 0, "");
+					}
+					else {
+						set(u, text.indexOf(';', u) + 1 - u, "");
+					}
+				}
+				}
+			}
+		};
+		check(file, sb.toString(), editor, 200);
+	}
+
+	@Test
+	public void testResources() throws Exception {
+		/* csv.nez accepts any text, so any edit keeps the corpora valid */
+		final String[] texts = { "", "0", "42", ",", "\n", "\"", " " };
+		Editor editor = new Editor() {
+			@Override
+			void next(Random r, String text) {
+				int offset = r.nextInt(text.length() + 1);
+				set(offset, Math.min(r.nextInt(4), text.length() - offset), texts[r.nextInt(texts.length)]);
+			}
+		};
+		String[] corpora = { "lines.txt", "lines.py", "sample.txt" };
+		for(String name : corpora) {
+			check("csv.nez", resource(name), editor, 100);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.ast.CommonTree;
+import nez.generator.JavaParserGenerator;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.main.LCjavabench;
+
+import org.junit.Test;
+
+
+public class JavaParserGeneratorTest {
+
+	private void check(String file, String[] inputs) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		Grammar g = GrammarFile.loadGrammarFile(file, option).newGrammar("File", option);
+		String source = new JavaParserGenerator().generateSource(g, option, "TestParser");
+		Method parse = LCjavabench.compile("TestParser", source).getMethod("parse", String.class);
+		for(String text : inputs) {
+			CommonTree t = g.parse(SourceContext.newStringContext(text));
+			Object t2 = parse.invoke(null, text);
+			assertTrue(text, String.valueOf(t).equals(String.valueOf(t2)));
+		}
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		check("json.nez", new String[] {
+			"{ \"name\": \"n\u00e9z\", \"list\": [1, 2, { \"a\": true }, null], \"n\": -1.5e3 }",
+			"[[], {}, \"\\u0041\", false]",
+			"{ \"a\": }",
+		});
+	}
+
+	@Test
+	public void testMath() throws Exception {
+		check("math.nez", new String[] { "1+2*3", "(1+2)*3-4/5", "1+" });
+	}
+
+	@Test
+	public void testSymbols() throws Exception {
+		String file = this.getClass().getResource("symbols.nez").getPath();
+		check(file, new String[] { "def a; def b; use a; use b;", "def a; use b;", "def ab; use a;" });
+	}
+
+}
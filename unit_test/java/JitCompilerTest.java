@@ -0,0 +1,122 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.main.Command;
+import nez.vm.JitCompiler;
+import nez.vm.JitParser;
+import nez.vm.NezCompiler;
+import nez.vm.NezCompiler1;
+import nez.vm.NezCompiler2;
+
+import org.junit.Test;
+
+
+public class JitCompilerTest {
+
+	private static Grammar load(String file, String options) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		if(options != null) {
+			option.setOption(options);
+		}
+		return GrammarFile.loadGrammarFile(file, option).newGrammar("File", option);
+	}
+
+	/* as Grammar.compile() does */
+	private static JitParser compile(Grammar g) {
+		NezCompiler bc = Command.ReleasePreview ? new NezCompiler2(g.getNezOption()) : new NezCompiler1(g.getNezOption());
+		return JitCompiler.compile(bc.compile(g));
+	}
+
+	/* the tree, or the error, and where the parser stopped */
+	private static String parse(Grammar g, String text) {
+		SourceContext sc = SourceContext.newStringContext(text);
+		Object node = g.parse(sc);
+		return (node == null ? sc.getSyntaxErrorMessage() : node.toString()) + "@" + sc.getPosition();
+	}
+
+	private static void check(String file, String[] inputs) throws Exception {
+		Grammar g0 = load(file, null);
+		Grammar g = load(file, "jit");
+		assertTrue(file, compile(g) != null);
+		for(String text : inputs) {
+			String expected = parse(g0, text);
+			assertTrue(file + ": " + text, expected.equals(parse(g, text)));
+			for(int i = 1; i < text.length(); i += 7) {
+				String s = text.substring(0, text.length() - i);  // mostly failing
+				assertTrue(file + ": " + s, parse(g0, s).equals(parse(g, s)));
+			}
+		}
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		check("json.nez", new String[] {
+			"{ \"a\": [1, 2.5e3, true, null], \"b\": { \"c\": \"d\\u0041\" } }",
+			"[[], {}, \"x\", -0.5]",
+			"{ \"a\": }",
+		});
+	}
+
+	@Test
+	public void testMath() throws Exception {
+		check("math.nez", new String[] { "(1+2)*3-4/5", "1+(2*", "((((1))))" });
+	}
+
+	@Test
+	public void testXml() throws Exception {
+		check("xml.nez", new String[] {
+			"<?xml version=\"1.0\"?>\n<a x=\"1\" y='2'><b/><!-- c --><c>text</c></a>\n",
+			"<a><b></a>",
+		});
+	}
+
+	@Test
+	public void testJava() throws Exception {
+		String source =
+			"package a.b;\n" +
+			"import java.util.List;\n" +
+			"/* a class */\n" +
+			"public class A<T> extends B implements C {\n" +
+			"	private final static int N = 0x10 << 2;\n" +
+			"	@Override\n" +
+			"	public String f(List<T> list, int... n) throws Exception {\n" +
+			"		for(int i = 0; i < n.length; i++) {\n" +
+			"			if(list.get(i) instanceof String && !(n[i] > N)) {\n" +
+			"				return (String) list.get(i) + \"\\n\" + 'c';\n" +
+			"			}\n" +
+			"		}\n" +
+			"		return new A<T>() { }.toString();  // anonymous\n" +
+			"	}\n" +
+			"}\n";
+		check("java.nez", new String[] { source, "class A { void f() { int x = 1 +; } }" });
+	}
+
+	@Test
+	public void testInterpretedProduction() throws Exception {
+		/* a choice within a frame cannot be split; it is too large for a JVM method */
+		StringBuilder sb = new StringBuilder("File = { (@Word _)* #File }\nWord = { ((");
+		for(int i = 0; i < 3000; i++) {
+			sb.append(i == 0 ? "" : " / ").append("[a-z]+ ':" + i + "' #W" + (i % 10));
+		}
+		sb.append(") ';')? '.' }\n_ = [ ]*\n");
+		File file = File.createTempFile("jit", ".nez");
+		file.deleteOnExit();
+		FileWriter w = new FileWriter(file);
+		w.write(sb.toString());
+		w.close();
+		Grammar g = load(file.getPath(), "jit");
+		JitParser jit = compile(g);
+		assertTrue(jit != null && jit.getInterpretedMethodSize() > 0);
+		Grammar g0 = load(file.getPath(), null);
+		String[] inputs = { "ab:0;. c:2999;. .", "ab:1500;. xy:3000;.", "ab:12;. c:1", "" };
+		for(String text : inputs) {
+			assertTrue(text, parse(g0, text).equals(parse(g, text)));
+		}
+	}
+}
@@ -0,0 +1,65 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Test;
+
+
+public class LazyCompilationTest {
+
+	private static Grammar load(String file, String option) throws Exception {
+		NezOption o = NezOption.newDefaultOption();
+		o.setOption(option);
+		return GrammarFile.loadGrammarFile(file, o).newGrammar("File", o);
+	}
+
+	private static String parse(Grammar g, String text) {
+		return String.valueOf(g.parse(SourceContext.newStringContext(text)));
+	}
+
+	@Test
+	public void testSameTrees() throws Exception {
+		String[] inputs = {
+			"{ \"a\": [1, 2.5e3, true, null], \"b\": { \"c\": \"d\\u0041\" } }",
+			"[[], {}, \"x\"]",
+			"{ \"a\": }",
+		};
+		Grammar eager = load("json.nez", "");
+		Grammar lazy = load("json.nez", "lazy");
+		for(String text : inputs) {
+			assertTrue(text, parse(eager, text).equals(parse(lazy, text)));
+		}
+		lazy = load("math.nez", "lazy:-memo");
+		assertTrue(parse(load("math.nez", ""), "(1+2)*3-4/5").equals(parse(lazy, "(1+2)*3-4/5")));
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final String text = "{ \"list\": [1, { \"n\": -1.5e3 }, [\"s\", false]], \"e\": {} }";
+		final String expected = parse(load("json.nez", ""), text);
+		final Grammar g = load("json.nez", "lazy");
+		final boolean[] same = new boolean[8];
+		Thread[] threads = new Thread[same.length];
+		for(int i = 0; i < threads.length; i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					same[n] = expected.equals(parse(g, text));
+				}
+			};
+		}
+		for(Thread t : threads) {
+			t.start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		for(boolean b : same) {
+			assertTrue(b);
+		}
+	}
+}
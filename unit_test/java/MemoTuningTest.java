@@ -0,0 +1,87 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.util.Properties;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Test;
+
+
+public class MemoTuningTest {
+	static final String Grammar =
+		"File = { (@Pair)* #List }\n" +
+		"Pair = { Name '=' [0-9]+ ';' #Pair } / { Name '=' Name ';' #Alias } / { Name ';' #Key }\n" +
+		"Name = [a-z]+ ('.' [a-z]+)*\n";
+
+	@Test
+	public void test() throws Exception {
+		File dir = File.createTempFile("nez", "");
+		dir.delete();
+		dir.mkdir();
+		File file = new File(dir, "pair.nez");
+		FileWriter w = new FileWriter(file);
+		w.write(Grammar);
+		w.close();
+		File memo = new File(dir, "pair.nez.memo");
+		memo.deleteOnExit();
+		file.deleteOnExit();
+		dir.deleteOnExit();
+
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; sb.length() < 32 * 1024; i++) {
+			sb.append(i % 3 == 0 ? "abc.def=" + i + ";" : i % 3 == 1 ? "abc.def=gh.ij;" : "abc;");
+		}
+		String text = sb.toString();
+		String expected = load(file, "").parse(SourceContext.newStringContext(text)).toString();
+
+		SourceContext sc = SourceContext.newStringContext(text);
+		assertTrue(expected.equals(load(file, "automemo").parse(sc).toString()));
+		assertTrue(memo.isFile());
+		assertTrue(properties(memo).getProperty("File.table").equals("elastic"));
+		assertTrue(sc.getMemoTable().getClass().getSimpleName().equals("ElasticTable"));
+
+		/* a saved choice is reused */
+		Properties p = properties(memo);
+		p.setProperty("File.table", "packrat");
+		FileOutputStream out = new FileOutputStream(memo);
+		p.store(out, null);
+		out.close();
+		sc = SourceContext.newStringContext(text);
+		assertTrue(expected.equals(load(file, "automemo").parse(sc).toString()));
+		assertTrue(sc.getMemoTable().getClass().getSimpleName().equals("PackratHashTable"));
+
+		/* no lookup hits without backtracking */
+		memo.delete();
+		sb = new StringBuilder();
+		for(int i = 0; sb.length() < 32 * 1024; i++) {
+			sb.append("abc.def=" + i + ";");
+		}
+		sc = SourceContext.newStringContext(sb.toString());
+		assertTrue(load(file, "automemo").parse(sc) != null);
+		assertTrue(properties(memo).getProperty("File.table").equals("null"));
+	}
+
+	private Grammar load(File file, String options) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		if(options.length() > 0) {
+			option.setOption(options);
+		}
+		return GrammarFile.loadGrammarFile(file.getPath(), option).newGrammar("File", option);
+	}
+
+	private Properties properties(File f) throws Exception {
+		Properties p = new Properties();
+		FileInputStream in = new FileInputStream(f);
+		p.load(in);
+		in.close();
+		return p;
+	}
+
+}
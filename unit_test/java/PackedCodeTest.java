@@ -0,0 +1,96 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.main.Command;
+import nez.vm.NezCompiler;
+import nez.vm.NezCompiler1;
+import nez.vm.NezCompiler2;
+import nez.vm.PackedCode;
+
+import org.junit.Test;
+
+
+public class PackedCodeTest {
+
+	private static Grammar load(String file, String options) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		if(options != null) {
+			option.setOption(options);
+		}
+		return GrammarFile.loadGrammarFile(file, option).newGrammar("File", option);
+	}
+
+	/* the tree, or the error, and where the parser stopped */
+	private static String parse(Grammar g, String text) {
+		SourceContext sc = SourceContext.newStringContext(text);
+		Object node = g.parse(sc);
+		return (node == null ? sc.getSyntaxErrorMessage() : node.toString()) + "@" + sc.getPosition();
+	}
+
+	private static void check(String file, String options, String[] inputs) throws Exception {
+		Grammar g0 = load(file, options);
+		Grammar g = load(file, options == null ? "packed" : options + ":packed");
+		NezCompiler bc = Command.ReleasePreview ? new NezCompiler2(g.getNezOption()) : new NezCompiler1(g.getNezOption());
+		assertTrue(file, PackedCode.encode(bc.compile(g)) != null);  // as Grammar.compile() does
+		for(String text : inputs) {
+			assertTrue(file + ": " + text, parse(g0, text).equals(parse(g, text)));
+			for(int i = 1; i < text.length(); i += 5) {
+				String s = text.substring(0, text.length() - i);  // mostly failing
+				assertTrue(file + ": " + s, parse(g0, s).equals(parse(g, s)));
+			}
+		}
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		check("json.nez", null, new String[] {
+			"{ \"a\": [1, 2.5e3, true, null], \"b\": { \"c\": \"d\" } }",
+			"[[], {}, \"x\", -0.5]",
+			"{ \"a\": }",
+		});
+	}
+
+	@Test
+	public void testMath() throws Exception {
+		String[] inputs = { "(1+2)*3-4/5", "1+(2*", "((((1))))" };
+		check("math.nez", null, inputs);
+		check("math.nez", "-memo", inputs);
+		check("math.nez", "packrat", inputs);
+	}
+
+	@Test
+	public void testXml() throws Exception {
+		check("xml.nez", null, new String[] {
+			"<?xml version=\"1.0\"?>\n<a x=\"1\" y='2'><b/><!-- c --><c>text</c></a>\n",
+			"<a><b></a>",
+		});
+	}
+
+	@Test
+	public void testJava() throws Exception {
+		String source =
+			"package a.b;\n" +
+			"import java.util.List;\n" +
+			"public class A<T> extends B implements C {\n" +
+			"	private final static int N = 0x10 << 2;\n" +
+			"	public String f(List<T> list, int... n) throws Exception {\n" +
+			"		for(int i = 0; i < n.length; i++) {\n" +
+			"			if(list.get(i) instanceof String && !(n[i] > N)) {\n" +
+			"				return (String) list.get(i) + \"\\n\" + 'c';\n" +
+			"			}\n" +
+			"		}\n" +
+			"		return new A<T>() { }.toString();  // anonymous\n" +
+			"	}\n" +
+			"}\n";
+		check("java.nez", null, new String[] { source, "class A { void f() { int x = 1 +; } }" });
+	}
+
+	@Test
+	public void testSymbols() throws Exception {
+		String file = PackedCodeTest.class.getResource("symbols.nez").getPath();
+		check(file, null, new String[] { "def a; def b; use a; use b;", "def a; use b;" });
+	}
+}
@@ -0,0 +1,60 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+import nez.vm.BacktrackProfiler;
+
+import org.junit.Test;
+
+
+public class PrefixPredictionTest {
+	static final String Grammar =
+		"File = { (@Decl)* #File }\n" +
+		"Decl = { 'interface' !W _ @Name _ '{' _ '}' _ #Interface }\n" +
+		"     / { 'int' !W _ @Name _ ';' _ #Int }\n" +
+		"     / { 'import' !W _ @Name _ ';' _ #Import }\n" +
+		"     / { @Name _ '=' _ @Name _ ';' _ #Assign }\n" +
+		"Name = { !KEYWORD W+ #Name }\n" +
+		"KEYWORD = ('interface' / 'int' / 'import') !W\n" +
+		"W = [a-z]\n" +
+		"_ = [ \\n]*\n";
+
+	private Grammar load(boolean prediction) throws Exception {
+		File file = File.createTempFile("prefix", ".nez");
+		file.deleteOnExit();
+		FileWriter w = new FileWriter(file);
+		w.write(Grammar);
+		w.close();
+		NezOption option = NezOption.newDefaultOption();
+		option.enabledPrediction = prediction;
+		return GrammarFile.loadGrammarFile(file.getPath(), option).newGrammar("File", option);
+	}
+
+	private BacktrackProfiler parse(Grammar g, String text, String expected) {
+		BacktrackProfiler prof = new BacktrackProfiler();
+		g.setBacktrackProfiler(prof);
+		String t = String.valueOf(g.parse(SourceContext.newStringContext(text)));
+		assertTrue(t, expected == null || expected.equals(t));
+		return prof;
+	}
+
+	@Test
+	public void testKeywords() throws Exception {
+		Grammar g = load(true);
+		Grammar g0 = load(false);
+		String[] inputs = { "int a; interface b {} import c; d = e; integer = f; in = intx;", "int a; int b; int c;", "inter = i;" };
+		for(String text : inputs) {
+			String expected = String.valueOf(g0.parse(SourceContext.newStringContext(text)));
+			BacktrackProfiler p0 = parse(g0, text, null);
+			BacktrackProfiler p = parse(g, text, expected);
+			assertTrue(text, p.getInstructions() < p0.getInstructions());
+		}
+		/* int is told from interface and the names by the fourth byte */
+		assertTrue(parse(g, "int a; int b; int c;", null).getWastedBytes() == 0);
+	}
+}
@@ -0,0 +1,67 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.io.StreamContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Test;
+
+
+public class StreamContextTest {
+	static final String Grammar =
+		"File = { (@Line)* #File }\n" +
+		"Line = { [a-z0-9 ]* #Line } '\\n'\n";
+
+	private Grammar load() throws Exception {
+		File file = File.createTempFile("stream", ".nez");
+		file.deleteOnExit();
+		FileWriter w = new FileWriter(file);
+		w.write(Grammar);
+		w.close();
+		return GrammarFile.loadGrammarFile(file.getPath(), NezOption.newDefaultOption()).newGrammar("File");
+	}
+
+	private String lines(int n) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < n; i++) {
+			sb.append("line " + i + "\n");
+		}
+		return sb.toString();
+	}
+
+	private SourceContext stream(String text) {
+		return SourceContext.newStreamContext("(test)", new ByteArrayInputStream(text.getBytes()));
+	}
+
+	@Test
+	public void testWindow() throws Exception {
+		Grammar g = load();
+		String text = lines(50000);
+		SourceContext sc = stream(text);
+		String t = String.valueOf(g.parse(sc));
+		assertTrue(t.equals(String.valueOf(g.parse(SourceContext.newStringContext(text)))));
+		assertTrue(sc.getWindowStart() > 0);
+		assertTrue(((StreamContext) sc).getBufferedSize() < text.length());
+	}
+
+	@Test
+	public void testDiscarded() throws Exception {
+		Grammar g = load();
+		SourceContext sc = stream(lines(50000));
+		assertTrue(g.parse(sc) != null);
+		boolean thrown = false;
+		try {
+			sc.byteAt(0);
+		}
+		catch(IllegalStateException e) {
+			thrown = true;
+		}
+		assertTrue(thrown);
+	}
+}
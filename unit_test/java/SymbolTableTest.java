@@ -0,0 +1,40 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.ast.CommonTree;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Test;
+
+
+public class SymbolTableTest {
+
+	private Grammar load() throws Exception {
+		String file = this.getClass().getResource("symbols.nez").getPath();
+		return GrammarFile.loadGrammarFile(file, NezOption.newDefaultOption()).newGrammar("File");
+	}
+
+	@Test
+	public void test() throws Exception {
+		Grammar g = load();
+		assertTrue(g.parseAST("def a; def b; use a; use b;") != null);
+		assertTrue(g.parseAST("def a; use b;") == null);
+	}
+
+	@Test(timeout=20000)
+	public void stress() throws Exception {
+		Grammar g = load();
+		int n = 100000;
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < n; i++) {
+			sb.append("def s" + i + ";\n");
+		}
+		for(int i = 0; i < n; i++) {
+			sb.append("use s" + (i * 7919 % n) + ";\n");
+		}
+		CommonTree t = g.parseAST(sb.toString());
+		assertTrue(t != null && t.size() == 2 * n);
+	}
+
+}
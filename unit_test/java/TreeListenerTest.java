@@ -0,0 +1,40 @@
+import static org.junit.Assert.assertTrue;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.ast.Source;
+import nez.ast.Tag;
+import nez.ast.TreeListener;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Test;
+
+
+public class TreeListenerTest {
+
+	@Test
+	public void test() throws Exception {
+		Grammar g = GrammarFile.loadGrammarFile("xml.nez", NezOption.newDefaultOption()).newGrammar("File");
+		String text = "<a x=\"1\"><b y=\"2\">text</b><c/></a>";
+		final StringBuilder sb = new StringBuilder();
+		TreeListener listener = new TreeListener("Element", "Value") {
+			@Override
+			public void startTree(Tag tag, Source s, long pos) {
+				sb.append("<" + tag.getName());
+			}
+			@Override
+			public void endTree(Tag tag, Source s, long spos, long epos) {
+				sb.append(">");
+			}
+			@Override
+			public void token(Tag tag, Source s, long spos, long epos, CharSequence text) {
+				sb.append(" " + tag.getName() + "=" + text);
+			}
+		};
+		assertTrue(g.parse(SourceContext.newStringContext(text), listener));
+		assertTrue(sb.toString().equals("<Element Value=1<Element Value=2><Element>>"));
+		assertTrue(!g.parse(SourceContext.newStringContext("<a x="), listener));
+	}
+
+}
@@ -0,0 +1,59 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import nez.NezOption;
+import nez.SourceContext;
+import nez.io.MappedFileContext;
+import nez.lang.Grammar;
+import nez.lang.GrammarFile;
+
+import org.junit.Test;
+
+
+public class WordScanTest {
+
+	@Test
+	public void test() throws Exception {
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i < 40; i++) {
+			sb.append("\"");
+			for(int j = 0; j < i; j++) {
+				sb.append((char)('a' + j % 26));
+				if(j % 11 == 10) {
+					sb.append("\\\"");
+				}
+			}
+			sb.append("\u00e9\", ");
+		}
+		sb.append("\"end\"]");
+		String text = sb.toString();
+		String expected = load("-swar").parse(SourceContext.newStringContext(text)).toString();
+		for(String options : new String[] { "swar", "swar:packed", "swar:jit" }) {
+			Grammar g = load(options);
+			assertTrue(options, expected.equals(g.parse(SourceContext.newStringContext(text)).toString()));
+			for(int i = 1; i < 16; i++) {
+				/* unterminated strings end in the last word */
+				String s = text.substring(0, text.length() - i);
+				Object t1 = load("-swar").parse(SourceContext.newStringContext(s));
+				Object t2 = g.parse(SourceContext.newStringContext(s));
+				assertTrue(s, String.valueOf(t1).equals(String.valueOf(t2)));
+			}
+		}
+
+		File file = File.createTempFile("nez", ".json");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(text.getBytes("UTF-8"));
+		out.close();
+		assertTrue(expected.equals(load("swar").parse(new MappedFileContext(file.getPath())).toString()));
+	}
+
+	private Grammar load(String options) throws Exception {
+		NezOption option = NezOption.newDefaultOption();
+		option.setOption(options);
+		return GrammarFile.loadGrammarFile("json.nez", option).newGrammar("File", option);
+	}
+
+}
@@ -0,0 +1,117 @@
+package nez.io;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+
+public class MappedFileContextTest {
+
+	/* a text of about 1 KiB with multi-byte characters */
+	private static String text() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; sb.length() < 1000; i++) {
+			sb.append(i % 3 == 0 ? "abc\u00e9\u3042 " : i % 3 == 1 ? "x,y,z\n" : "    " + i + ";\n");
+		}
+		return sb.toString();
+	}
+
+	private static MappedFileContext open(String text, int chunkShift) throws Exception {
+		File f = File.createTempFile("mapped", ".txt");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(StringUtils.toUtf8(text));
+		out.close();
+		return new MappedFileContext(f.getPath(), chunkShift);
+	}
+
+	private static boolean[] byteMap(String chars) {
+		boolean[] map = new boolean[256];
+		for(byte c : StringUtils.toUtf8(chars)) {
+			map[c & 0xff] = true;
+		}
+		return map;
+	}
+
+	/* any byte but the chars and EOF */
+	private static boolean[] notByteMap(String chars) {
+		boolean[] map = byteMap(chars);
+		for(int c = 0; c < 256; c++) {
+			map[c] = !map[c];
+		}
+		map[0] = false;
+		return map;
+	}
+
+	/* the bytes out of byteMap, each repeated over a word, as Context.stopWords */
+	private static long[] stopWords(boolean[] byteMap) {
+		long[] words = new long[256];
+		int n = 0;
+		for(int c = 0; c < 256; c++) {
+			if(!byteMap[c]) {
+				words[n++] = c * 0x0101010101010101L;
+			}
+		}
+		return Arrays.copyOf(words, n);
+	}
+
+	private static void check(String text, int chunkShift) throws Exception {
+		StringContext s = new StringContext(text);
+		MappedFileContext m = open(text, chunkShift);
+		long length = s.length();
+		assertTrue(m.length() == length && length > 2 << chunkShift);
+		for(long pos = 0; pos <= length; pos++) {
+			assertTrue("byteAt " + pos, m.byteAt(pos) == s.byteAt(pos));
+			for(long end = pos; end <= length && end <= pos + 40; end++) {
+				String r = "[" + pos + ", " + end + ")";
+				byte[] b = s.subbyte(pos, end);
+				assertTrue("subbyte " + r, Arrays.equals(b, m.subbyte(pos, end)));
+				assertTrue("substring " + r, s.substring(pos, end).equals(m.substring(pos, end)));
+				assertTrue("match " + r, m.match(pos, b));
+				if(b.length > 0) {
+					b[b.length - 1]++;
+					assertTrue("match " + r, !m.match(pos, b));
+				}
+			}
+			byte[] over = s.subbyte(pos, length);
+			assertTrue("match " + pos, !m.match(pos, Arrays.copyOf(over, over.length + 1)));
+		}
+		boolean[][] maps = { byteMap(" "), byteMap("abcxyz, "), notByteMap("\n"), notByteMap(";\n"), notByteMap(",\u00e9") };
+		for(boolean[] map : maps) {
+			long[] stops = stopWords(map);
+			for(long pos = 0; pos < length; pos++) {
+				long expected = s.skipByteMap(pos, map, null);
+				assertTrue("skipByteMap " + pos, expected == m.skipByteMap(pos, map, null));
+				if(stops.length <= 4) {
+					assertTrue("skipByteMap " + pos, expected == s.skipByteMap(pos, map, stops));
+					assertTrue("skipByteMap " + pos, expected == m.skipByteMap(pos, map, stops));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testChunks() throws Exception {
+		String text = text();
+		for(int shift = 3; shift <= 7; shift++) {
+			check(text, shift);
+		}
+	}
+
+	@Test
+	public void testFileLength() throws Exception {
+		/* the last chunk is full, and a single byte */
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() < 512) {
+			sb.append("x,y,z\n");
+		}
+		check(sb.substring(0, 512), 7);
+		check(sb.substring(0, 513), 7);
+	}
+}